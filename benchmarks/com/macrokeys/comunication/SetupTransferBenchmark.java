@@ -0,0 +1,142 @@
+package com.macrokeys.comunication;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import com.macrokeys.LimitedKeySequence;
+import com.macrokeys.MacroKey;
+import com.macrokeys.MacroScreen;
+import com.macrokeys.MacroSetup;
+
+/**
+ * Bytes on the wire and time to the first render of a {@link MacroSetup}
+ * sent whole, compressed and compressed with the preset dictionary of {@link SetupCodec}.
+ * <p>
+ * The time to the first render is the time of the transfer at the given bandwidth
+ * plus the measured time of the decompression and of the loading of the setup.
+ * </p>
+ * Usage: {@code SetupTransferBenchmark [mbitPerSecond]}
+ */
+public final class SetupTransferBenchmark {
+
+	/** Number of keys of the measured setups */
+	private static final int[] KEYS = {100, 300, 1000};
+
+	/** Measures of the decoding; the median is reported */
+	private static final int RUNS = 200;
+
+	private SetupTransferBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		double mbit = args.length > 0 ? Double.parseDouble(args[0]) : 10;
+		double bytesPerMs = mbit * 1e6 / 8 / 1000;
+
+		System.out.printf("bandwidth %.1f Mbit/s%n", mbit);
+		System.out.printf("%6s %-12s %8s %10s %10s%n", "keys", "encoding", "bytes", "decode ms", "render ms");
+		for(int n : KEYS) {
+			byte[] data = macroSetup(n).saveAsByteArray();
+			final byte[] full = SetupCodec.encodeFullSetup(data, SetupCodec.CAPABILITIES);
+			final byte[] plain = deflate(data);
+			final byte[] dict = SetupCodec.encodeDeflatedSetup(data);
+
+			report(n, "serialized", full.length, bytesPerMs, decodeTime(new Decoder() {
+				@Override
+				public byte[] decode() {
+					return full;
+				}
+			}));
+			report(n, "deflate", plain.length, bytesPerMs, decodeTime(new Decoder() {
+				@Override
+				public byte[] decode() throws Exception {
+					return inflate(plain, data.length);
+				}
+			}));
+			report(n, "deflate+dict", dict.length, bytesPerMs, decodeTime(new Decoder() {
+				@Override
+				public byte[] decode() throws Exception {
+					return SetupCodec.decodeDeflatedSetup(dict);
+				}
+			}));
+		}
+	}
+
+
+	private static void report(int keys, String name, int bytes, double bytesPerMs, double decode) {
+		System.out.printf("%6d %-12s %8d %10.3f %10.3f%n", keys, name, bytes, decode, bytes / bytesPerMs + decode);
+	}
+
+
+	/**
+	 * @param d Decoder of the message
+	 * @return Median time in ms of the decoding and of the loading of the setup
+	 */
+	private static double decodeTime(Decoder d) throws Exception {
+		long[] t = new long[RUNS];
+		for(int i = 0; i < RUNS; i++) {
+			long start = System.nanoTime();
+			MacroSetup.load(new ByteArrayInputStream(d.decode()));
+			t[i] = System.nanoTime() - start;
+		}
+		Arrays.sort(t);
+		return t[RUNS / 2] / 1e6;
+	}
+
+
+	/** @return {@code data} compressed without dictionary */
+	private static byte[] deflate(byte[] data) {
+		Deflater d = new Deflater(Deflater.BEST_COMPRESSION);
+		d.setInput(data);
+		d.finish();
+		ByteArrayOutputStream str = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		while(!d.finished()) {
+			str.write(buf, 0, d.deflate(buf));
+		}
+		d.end();
+		return str.toByteArray();
+	}
+
+
+	/** @return {@code data} decompressed */
+	private static byte[] inflate(byte[] data, int length) throws Exception {
+		java.util.zip.Inflater inf = new java.util.zip.Inflater();
+		inf.setInput(data);
+		byte[] r = new byte[length];
+		int off = 0;
+		while(off < length) {
+			off += inf.inflate(r, off, length - off);
+		}
+		inf.end();
+		return r;
+	}
+
+
+	/**
+	 * @param n Number of keys
+	 * @return Setup with {@code n} keys on 4 screens
+	 */
+	private static MacroSetup macroSetup(int n) throws Exception {
+		List<MacroScreen> l = new ArrayList<>();
+		for(int i = 0; i < 4; i++) {
+			l.add(new MacroScreen());
+		}
+		for(int i = 0; i < n; i++) {
+			MacroKey k = new MacroKey();
+			k.setText("Key " + i);
+			k.setKeySeq(new LimitedKeySequence(new Integer[] {17, 65 + i % 26}));
+			l.get(i % l.size()).getKeys().add(k);
+		}
+		return new MacroSetup(l);
+	}
+
+
+	/** Decoding of a message in the serialized setup */
+	private interface Decoder {
+		byte[] decode() throws Exception;
+	}
+}
@@ -0,0 +1,173 @@
+package com.macrokeys.netcode;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.macrokeys.netcode.MacroNetClient.SSDPServerInfo;
+
+/**
+ * Time to the first server of the discovery on a simulated multi-homed host.
+ * <p>
+ * Every network interface is simulated by a responder on a loopback port: only one of them
+ * has a server, that answers after the given delay; on the others, like a VPN or a
+ * network without servers, the request is lost. The interfaces are probed one after the
+ * other, each with a wait of {@code window} ms as a single socket on the default interface
+ * does, and in parallel by {@link ServerDiscovery}.
+ * </p>
+ * Usage: {@code DiscoveryBenchmark [interfaces] [index of the server] [delay ms] [window ms] [rounds]}
+ */
+public final class DiscoveryBenchmark {
+
+	private static final int BASE_PORT = 25370;
+
+	private DiscoveryBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		int interfaces = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+		int server = args.length > 1 ? Integer.parseInt(args[1]) : interfaces - 1;
+		int delay = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+		int window = args.length > 3 ? Integer.parseInt(args[3]) : 250;
+		int rounds = args.length > 4 ? Integer.parseInt(args[4]) : 20;
+
+		List<Responder> responders = new ArrayList<>();
+		for(int i = 0; i < interfaces; i++) {
+			Responder r = new Responder(BASE_PORT + i, i == server ? delay : -1);
+			r.start();
+			responders.add(r);
+		}
+
+		try {
+			System.out.printf("%d interfaces, server on interface %d answering in %d ms%n",
+					interfaces, server, delay);
+			long[] sequential = new long[rounds];
+			long[] parallel = new long[rounds];
+			for(int i = 0; i < rounds; i++) {
+				sequential[i] = sequential(interfaces, window);
+				parallel[i] = parallel(interfaces, window * interfaces);
+			}
+			report("sequential", sequential);
+			report("parallel", parallel);
+			System.out.println("default interface only: "
+					+ (server == 0 ? "found" : "not found"));
+		} finally {
+			for(Responder r : responders) {
+				r.socket.close();
+			}
+		}
+	}
+
+
+	/**
+	 * @return Time in ns to the first server probing an interface at a time
+	 */
+	private static long sequential(int interfaces, int window) throws IOException {
+		long t = System.nanoTime();
+		for(int i = 0; i < interfaces; i++) {
+			try(DatagramSocket s = new DatagramSocket()) {
+				s.send(new DatagramPacket(NetStatic.SSDP_CLIENT_KEY, NetStatic.SSDP_CLIENT_KEY.length,
+						InetAddress.getLoopbackAddress(), BASE_PORT + i));
+				s.setSoTimeout(window);
+				byte[] b = new byte[NetStatic.SSDP_SERVER_KEY.length + NetStatic.SSDP_NAME_LENGTH];
+				try {
+					s.receive(new DatagramPacket(b, b.length));
+					return System.nanoTime() - t;
+				} catch(SocketTimeoutException e) {
+					// Next interface
+				}
+			}
+		}
+		return -1;
+	}
+
+
+	/**
+	 * @return Time in ns to the first server probing all the interfaces together
+	 */
+	private static long parallel(int interfaces, int timeout) throws Exception {
+		List<ServerDiscovery.Probe> probes = new ArrayList<>();
+		for(int i = 0; i < interfaces; i++) {
+			probes.add(new ServerDiscovery.Probe(DatagramChannel.open(),
+					Collections.<SocketAddress>singletonList(
+							new InetSocketAddress(InetAddress.getLoopbackAddress(), BASE_PORT + i))));
+		}
+
+		final CountDownLatch first = new CountDownLatch(1);
+		long t = System.nanoTime();
+		ServerDiscovery d = ServerDiscovery.start(probes, timeout, new ServerDiscovery.Listener() {
+			@Override
+			public void serverFound(SSDPServerInfo s) {
+				first.countDown();
+			}
+
+			@Override
+			public void discoveryEnded() { }
+		}, Executors.defaultThreadFactory());
+		boolean found = first.await(timeout, TimeUnit.MILLISECONDS);
+		t = System.nanoTime() - t;
+		d.cancel();
+		d.await();
+		return found ? t : -1;
+	}
+
+
+	private static void report(String name, long[] times) {
+		long[] l = times.clone();
+		Arrays.sort(l);
+		if(l[0] < 0) {
+			System.out.printf("%-12s server not found in some rounds%n", name);
+			return;
+		}
+		System.out.printf("%-12s time to first server: p50 %8.2f ms, max %8.2f ms%n", name,
+				l[l.length / 2] / 1e6, l[l.length - 1] / 1e6);
+	}
+
+
+
+	/** Simulated interface: answers the requests after a delay, or never */
+	private static final class Responder extends Thread {
+		private final DatagramSocket socket;
+
+		/** Delay in ms of the answer; < 0 to never answer */
+		private final int delay;
+
+		Responder(int port, int delay) throws IOException {
+			this.socket = new DatagramSocket(port, InetAddress.getLoopbackAddress());
+			this.delay = delay;
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			byte[] answer = new byte[NetStatic.SSDP_SERVER_KEY.length + NetStatic.SSDP_NAME_LENGTH];
+			System.arraycopy(NetStatic.SSDP_SERVER_KEY, 0, answer, 0, NetStatic.SSDP_SERVER_KEY.length);
+			byte[] request = new byte[NetStatic.SSDP_CLIENT_KEY.length];
+			try {
+				while(true) {
+					DatagramPacket p = new DatagramPacket(request, request.length);
+					socket.receive(p);
+					if(delay < 0) {
+						continue;
+					}
+					Thread.sleep(delay);
+					socket.send(new DatagramPacket(answer, answer.length, p.getSocketAddress()));
+				}
+			} catch(IOException | InterruptedException e) {
+				// Closed
+			}
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package com.macrokeys.netcode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmark of the latency of {@link TCPMessageProtocol#sendMessage(byte[])} with many
+ * concurrent senders, against the previous send path that serialized the senders on a fair
+ * {@link Semaphore}.
+ * <p>
+ * Every sender sends small messages like the key actions; the sample time mode reports the
+ * percentiles of the calls. The other side of the connection reads and discards the bytes.
+ * </p>
+ * Usage: {@code org.openjdk.jmh.Main SendContentionBenchmark}, see the README
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class SendContentionBenchmark {
+
+	private static final int PORT = 25362;
+
+	/** Size in bytes of a message */
+	private static final int MESSAGE_SIZE = 5;
+
+	/** Send path under measure: {@code queue} or {@code semaphore} */
+	@Param({"queue", "semaphore"})
+	public String path;
+
+	private Socket client;
+
+	private Socket server;
+
+	private Thread reader;
+
+	private Sender sender;
+
+
+	/** Message of a sender */
+	@State(Scope.Thread)
+	public static class Message {
+		final byte[] payload = new byte[MESSAGE_SIZE];
+	}
+
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		try(ServerSocket sv = new ServerSocket(PORT)) {
+			client = new Socket("localhost", PORT);
+			client.setTcpNoDelay(true);
+			server = sv.accept();
+		}
+		final InputStream in = server.getInputStream();
+		reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				byte[] buf = new byte[65536];
+				try {
+					while(in.read(buf) >= 0) {
+						// Discard
+					}
+				} catch(IOException e) {
+					// Closed
+				}
+			}
+		});
+		reader.start();
+
+		if(path.equals("semaphore")) {
+			sender = new SemaphoreSender(client.getOutputStream());
+		} else {
+			final TCPMessageProtocol p = new TCPMessageProtocol(client);
+			sender = new Sender() {
+				@Override
+				public void send(byte[] payload) throws IOException {
+					p.sendMessage(payload);
+				}
+			};
+		}
+	}
+
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException, InterruptedException {
+		client.close();
+		reader.join();
+		server.close();
+	}
+
+
+	@Benchmark
+	public void send(Message m) throws IOException {
+		m.payload[0]++;
+		sender.send(m.payload);
+	}
+
+
+
+	/** Send path under measure */
+	private interface Sender {
+		void send(byte[] payload) throws IOException;
+	}
+
+
+	/**
+	 * Previous send path of {@link TCPMessageProtocol}: every message is framed and written
+	 * while holding a fair semaphore
+	 */
+	private static final class SemaphoreSender implements Sender {
+		private final OutputStream out;
+		private final Semaphore sem = new Semaphore(1, true);
+		private final byte[] frame = new byte[8192];
+
+		SemaphoreSender(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void send(byte[] payload) throws IOException {
+			sem.acquireUninterruptibly();
+			try {
+				int l = payload.length;
+				frame[0] = TCPMessageProtocol.CODE_MESSAGE;
+				frame[1] = (byte) (l >>> 24);
+				frame[2] = (byte) (l >>> 16);
+				frame[3] = (byte) (l >>> 8);
+				frame[4] = (byte) l;
+				System.arraycopy(payload, 0, frame, 5, l);
+				out.write(frame, 0, 5 + l);
+			} finally {
+				sem.release();
+			}
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package com.macrokeys.netcode;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import com.macrokeys.LimitedKeySequence;
+import com.macrokeys.MacroKey;
+import com.macrokeys.MacroKeyType;
+import com.macrokeys.MacroScreen;
+import com.macrokeys.MacroSetup;
+import com.macrokeys.comunication.DiscardKeyPresser;
+import com.macrokeys.comunication.KeyPresser;
+import com.macrokeys.comunication.MacroClient;
+import com.macrokeys.comunication.MessageProtocol;
+import com.macrokeys.comunication.RecordingKeyPresser;
+
+/**
+ * Throughput of the whole pipeline from the network to the keystrokes of a
+ * {@link MacroNetServer}, without a display.
+ * <p>
+ * Every client presses and releases its own key in a loop; the server executes the
+ * keystrokes on a {@link RecordingKeyPresser} or a {@link DiscardKeyPresser}. Reports the
+ * key actions per second and the latency of the output stage of the server.
+ * </p>
+ * Usage: {@code ServerThroughputBenchmark [clients] [actions per client] [record|discard] [rounds]}
+ */
+public final class ServerThroughputBenchmark {
+
+	private ServerThroughputBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		int actions = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+		boolean record = args.length <= 2 || args[2].equals("record");
+		int rounds = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+
+		System.out.printf("%d clients, %d actions each, %s backend%n", clients, actions,
+				record ? "recording" : "discard");
+		for(int r = 0; r < rounds; r++) {
+			// The first round warms up the JIT
+			run(clients, actions, record, r == 0 ? " (warm-up)" : "");
+		}
+	}
+
+
+	/**
+	 * Run a round and print its results
+	 */
+	private static void run(int clients, final int actions, boolean record, String suffix)
+			throws Exception {
+		// A key for every client
+		MacroScreen screen = new MacroScreen();
+		for(int i = 0; i < clients; i++) {
+			MacroKey k = new MacroKey();
+			k.setKeySeq(new LimitedKeySequence(new Integer[] {'A' + i % 26}));
+			k.setType(MacroKeyType.Game);
+			screen.getKeys().add(k);
+		}
+		List<MacroScreen> l = new ArrayList<>();
+		l.add(screen);
+
+		// Every action is a press and a release of a key code
+		long events = 2L * clients * actions;
+		final RecordingKeyPresser recording = new RecordingKeyPresser((int) events);
+		final DiscardKeyPresser discard = new DiscardKeyPresser();
+		KeyPresser backend = record ? recording : discard;
+
+		MacroNetServer server = new MacroNetServer(new MacroSetup(l), backend);
+		server.start();
+		List<MacroClient> cs = new ArrayList<>();
+		try {
+			final List<MacroKey> keys = new ArrayList<>();
+			for(int i = 0; i < clients; i++) {
+				// The server identifies the clients by address: one loopback address each
+				final InetAddress local = InetAddress.getByAddress(new byte[] {127, 0, 0, (byte) (i + 1)});
+				MacroClient c = new MacroClient() {
+					@Override
+					protected MessageProtocol innerConnectToServer() throws IOException {
+						Socket s = new Socket(InetAddress.getLoopbackAddress(), NetStatic.PORT, local, 0);
+						s.setTcpNoDelay(true);
+						return new TCPMessageProtocol(s);
+					}
+				};
+				c.connectToServer();
+				keys.add(c.reciveMacroSetup().getMacroScreens().get(0).getKeys().get(i));
+				cs.add(c);
+			}
+
+			final CountDownLatch start = new CountDownLatch(1);
+			List<Thread> threads = new ArrayList<>();
+			for(int i = 0; i < clients; i++) {
+				final MacroClient c = cs.get(i);
+				final MacroKey k = keys.get(i);
+				Thread t = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							start.await();
+							for(int j = 0; j < actions; j++) {
+								c.keyDown(k);
+								c.keyUp(k);
+							}
+						} catch(Exception e) {
+							e.printStackTrace();
+						}
+					}
+				});
+				t.start();
+				threads.add(t);
+			}
+
+			long t0 = System.nanoTime();
+			start.countDown();
+			for(Thread t : threads) {
+				t.join();
+			}
+			while((record ? recording.size() : discard.getCount()) < events) {
+				Thread.sleep(1);
+			}
+			long elapsed = System.nanoTime() - t0;
+
+			System.out.printf("%-12s %10.0f actions/s, output latency mean %8.2f us, max %8.2f us%n",
+					"round" + suffix, clients * (double) actions / (elapsed / 1e9),
+					server.getKeyDispatchLatency() / 1e3, server.getKeyDispatchMaxLatency() / 1e3);
+		} finally {
+			for(MacroClient c : cs) {
+				c.close();
+			}
+			server.close();
+		}
+	}
+}
@@ -0,0 +1,347 @@
+package com.macrokeys.netcode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.macrokeys.comunication.MessageProtocol;
+
+/**
+ * Latency of the key actions over {@link TCPMessageProtocol} and {@link UDPMessageProtocol}
+ * through a local relay that simulates a lossy link.
+ * <p>
+ * The UDP relay drops the datagrams with the given probability. The TCP relay can't drop
+ * the segments of a stream: it stands in for a lost segment by stalling the stream, with
+ * the same probability for every read, for the minimum retransmission timeout of TCP.
+ * Both relays add the one-way delay.
+ * </p>
+ * Usage: {@code TransportLossBenchmark [loss] [delayMs] [actions]}
+ */
+public final class TransportLossBenchmark {
+
+	private static final int SERVER_PORT = 25360;
+
+	private static final int RELAY_PORT = 25361;
+
+	/** Minimum retransmission timeout of TCP on Linux in ms */
+	private static final int TCP_MIN_RTO = 200;
+
+	/** Time between two key actions in ms */
+	private static final int ACTION_PERIOD = 5;
+
+	/** Number of distinct keys */
+	private static final int KEYS = 16;
+
+	private TransportLossBenchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		double loss = args.length > 0 ? Double.parseDouble(args[0]) : 0.02;
+		int delay = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		int actions = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+
+		System.out.printf("loss %.1f%%, one-way delay %d ms, %d actions%n", loss * 100, delay, actions);
+		report("TCP", runTcp(loss, delay, actions));
+		report("UDP", runUdp(loss, delay, actions));
+	}
+
+
+	/**
+	 * @return Latency in ns of every action; -1 if never delivered
+	 */
+	private static long[] runTcp(double loss, int delay, int actions) throws Exception {
+		final long[] latency = new long[actions];
+		Arrays.fill(latency, -1);
+
+		try(ServerSocket sv = new ServerSocket(SERVER_PORT);
+				TcpRelay relay = new TcpRelay(RELAY_PORT, SERVER_PORT, loss, delay)) {
+			relay.start();
+			Socket s = new Socket("localhost", RELAY_PORT);
+			final TCPMessageProtocol client = new TCPMessageProtocol(s);
+			client.setTcpNoDelay(true);
+			final TCPMessageProtocol server = new TCPMessageProtocol(sv.accept());
+
+			final long[] sentAt = new long[actions];
+			Thread receiver = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					byte[] buf = new byte[5];
+					try {
+						for(int i = 0; i < latency.length; i++) {
+							server.receiveMessage(buf);
+							int id = ByteBuffer.wrap(buf).getInt();
+							latency[id] = System.nanoTime() - sentAt[id];
+						}
+					} catch(IOException e) {
+						// Closed
+					}
+				}
+			});
+			receiver.start();
+
+			send(client, sentAt);
+			receiver.join(TimeUnit.SECONDS.toMillis(30));
+			client.close();
+			server.close();
+		}
+		return latency;
+	}
+
+
+	/**
+	 * @return Latency in ns of every action; -1 if never delivered or superseded
+	 */
+	private static long[] runUdp(double loss, int delay, int actions) throws Exception {
+		final long[] latency = new long[actions];
+		Arrays.fill(latency, -1);
+		final long[] sentAt = new long[actions];
+
+		DatagramChannel ch = DatagramChannel.open();
+		ch.bind(new InetSocketAddress(SERVER_PORT));
+		UDPEndpoint sv = new UDPEndpoint(ch, new UDPEndpoint.Handler() {
+			@Override
+			public void foreign(ByteBuffer datagram, SocketAddress sender) { }
+
+			@Override
+			public UDPMessageProtocol.Listener accepted(UDPMessageProtocol c) {
+				return new UDPMessageProtocol.Listener() {
+					@Override
+					public void message(byte[] mess) {
+						int id = ByteBuffer.wrap(mess).getInt();
+						latency[id] = System.nanoTime() - sentAt[id];
+					}
+
+					@Override
+					public void closed() { }
+				};
+			}
+		});
+		new Thread(sv).start();
+
+		try(UdpRelay relay = new UdpRelay(RELAY_PORT, SERVER_PORT, loss, delay)) {
+			relay.start();
+			UDPMessageProtocol client = UDPMessageProtocol.connect(
+					new InetSocketAddress("localhost", RELAY_PORT), 5000, Executors.defaultThreadFactory());
+			send(client, sentAt);
+			Thread.sleep(2000);
+			client.close();
+		} finally {
+			sv.close();
+		}
+		return latency;
+	}
+
+
+	/**
+	 * Sends the key actions at a fixed rate
+	 * @param p Protocol
+	 * @param sentAt Time of the send of every action
+	 */
+	private static void send(MessageProtocol p, long[] sentAt) throws IOException, InterruptedException {
+		byte[] mess = new byte[5];
+		for(int i = 0; i < sentAt.length; i++) {
+			ByteBuffer.wrap(mess).putInt(i).put((byte) (i / KEYS % 2));
+			sentAt[i] = System.nanoTime();
+			p.sendState(i % KEYS, mess, mess.length);
+			Thread.sleep(ACTION_PERIOD);
+		}
+	}
+
+
+	private static void report(String name, long[] latency) {
+		long[] l = Arrays.stream(latency).filter(x -> x >= 0).sorted().toArray();
+		if(l.length == 0) {
+			System.out.printf("%s: nothing delivered%n", name);
+			return;
+		}
+		System.out.printf("%s: delivered %d/%d, p50 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms%n",
+				name, l.length, latency.length,
+				l[l.length / 2] / 1e6, l[(int) (l.length * 0.99)] / 1e6,
+				l[(int) (l.length * 0.999)] / 1e6, l[l.length - 1] / 1e6);
+	}
+
+
+
+	/** Datagram or chunk of stream to forward at a given time */
+	private static final class Delivery implements Delayed {
+		final long at;
+		final byte[] data;
+		final SocketAddress to;
+
+		Delivery(long at, byte[] data, SocketAddress to) {
+			this.at = at;
+			this.data = data;
+			this.to = to;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(at - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed o) {
+			return Long.compare(at, ((Delivery) o).at);
+		}
+	}
+
+
+	/** Relay of the datagrams of a single client that drops and delays them */
+	private static final class UdpRelay extends Thread implements AutoCloseable {
+		private final DatagramChannel channel;
+		private final InetSocketAddress server;
+		private final double loss;
+		private final long delay;
+		private final Random random = new Random(1);
+		private final DelayQueue<Delivery> queue = new DelayQueue<>();
+		private volatile SocketAddress client;
+
+		UdpRelay(int port, int serverPort, double loss, int delay) throws IOException {
+			channel = DatagramChannel.open();
+			channel.bind(new InetSocketAddress(port));
+			server = new InetSocketAddress("localhost", serverPort);
+			this.loss = loss;
+			this.delay = TimeUnit.MILLISECONDS.toNanos(delay);
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			Thread sender = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while(true) {
+							Delivery d = queue.take();
+							channel.send(ByteBuffer.wrap(d.data), d.to);
+						}
+					} catch(IOException | InterruptedException e) {
+						// Closed
+					}
+				}
+			});
+			sender.setDaemon(true);
+			sender.start();
+
+			ByteBuffer b = ByteBuffer.allocate(2048);
+			try {
+				while(true) {
+					b.clear();
+					SocketAddress from = channel.receive(b);
+					b.flip();
+					SocketAddress to = from.equals(server) ? client : server;
+					if(!from.equals(server)) {
+						client = from;
+					}
+					if(to != null && random.nextDouble() >= loss) {
+						byte[] data = new byte[b.remaining()];
+						b.get(data);
+						queue.add(new Delivery(System.nanoTime() + delay, data, to));
+					}
+				}
+			} catch(IOException e) {
+				// Closed
+			} finally {
+				sender.interrupt();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+
+	/** Relay of a single TCP connection that delays the stream and stalls it at a loss */
+	private static final class TcpRelay extends Thread implements AutoCloseable {
+		private final ServerSocket socket;
+		private final int serverPort;
+		private final double loss;
+		private final long delay;
+		private final Random random = new Random(1);
+
+		TcpRelay(int port, int serverPort, double loss, int delay) throws IOException {
+			socket = new ServerSocket(port);
+			this.serverPort = serverPort;
+			this.loss = loss;
+			this.delay = TimeUnit.MILLISECONDS.toNanos(delay);
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			try {
+				Socket c = socket.accept();
+				c.setTcpNoDelay(true);
+				Socket s = new Socket("localhost", serverPort);
+				s.setTcpNoDelay(true);
+				pipe(c.getInputStream(), s.getOutputStream());
+				pipe(s.getInputStream(), c.getOutputStream());
+			} catch(IOException e) {
+				// Closed
+			}
+		}
+
+		/** Forwards a direction of the stream; a chunk is never forwarded before the previous one */
+		private void pipe(final InputStream in, final OutputStream out) {
+			final DelayQueue<Delivery> queue = new DelayQueue<>();
+			Thread reader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					byte[] buf = new byte[8192];
+					long last = 0;
+					try {
+						int n;
+						while((n = in.read(buf)) >= 0) {
+							long at = System.nanoTime() + delay;
+							synchronized(random) {
+								if(random.nextDouble() < loss) {
+									at += TimeUnit.MILLISECONDS.toNanos(TCP_MIN_RTO);
+								}
+							}
+							// Head-of-line blocking: in order after the previous chunk
+							last = Math.max(at, last + 1);
+							queue.add(new Delivery(last, Arrays.copyOf(buf, n), null));
+						}
+					} catch(IOException e) {
+						// Closed
+					}
+				}
+			});
+			Thread writer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while(true) {
+							out.write(queue.take().data);
+						}
+					} catch(IOException | InterruptedException e) {
+						// Closed
+					}
+				}
+			});
+			reader.setDaemon(true);
+			writer.setDaemon(true);
+			reader.start();
+			writer.start();
+		}
+
+		@Override
+		public void close() throws IOException {
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package com.macrokeys.comunication;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import jdk.jfr.consumer.RecordingStream;
+
+/**
+ * Support for the execution of {@link MacroServer} on virtual threads (Java 21+).
+ * <p>
+ * Use {@link #factory()} with {@link MacroServer#setThreadFactory(ThreadFactory)}:
+ * the threads of the clients keep the blocking style but cost only a few KB each.
+ * An instance monitors the pinning of the carrier threads through the JFR event
+ * {@code jdk.VirtualThreadPinned}.
+ * </p>
+ */
+public final class VirtualThreads implements AutoCloseable {
+
+	/** Name of the JFR event of a virtual thread that blocks while pinned */
+	private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+
+	/** Stream of the JFR events */
+	private final RecordingStream stream;
+
+	/** Number of times that a carrier thread was pinned */
+	private final AtomicLong pinnedCount = new AtomicLong();
+
+	/** Total time in ns where a carrier thread was pinned */
+	private final AtomicLong pinnedTime = new AtomicLong();
+
+
+	/**
+	 * Starts the monitor of the pinned carrier threads
+	 * @param threshold Minimum duration of a pinning to be counted
+	 */
+	public VirtualThreads(@NonNull Duration threshold) {
+		stream = new RecordingStream();
+		stream.enable(PINNED_EVENT).withThreshold(threshold).withStackTrace();
+		stream.onEvent(PINNED_EVENT, e -> {
+			pinnedCount.incrementAndGet();
+			pinnedTime.addAndGet(e.getDuration().toNanos());
+		});
+		stream.startAsync();
+	}
+
+
+	/**
+	 * @return Factory of virtual threads for the connections of the server
+	 */
+	public static @NonNull ThreadFactory factory() {
+		return Thread.ofVirtual().name("macrokeys-client-", 0).factory();
+	}
+
+
+	/**
+	 * @return Number of times that a virtual thread blocked pinning its carrier thread
+	 */
+	public long getPinnedCount() {
+		return pinnedCount.get();
+	}
+
+
+	/**
+	 * @return Total time where the carrier threads were pinned
+	 */
+	public @NonNull Duration getPinnedTime() {
+		return Duration.ofNanos(pinnedTime.get());
+	}
+
+
+	/**
+	 * Stop the monitor of the pinned threads
+	 */
+	@Override
+	public void close() {
+		stream.close();
+	}
+}
@@ -0,0 +1,123 @@
+package com.macrokeys;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * Compiled form of a {@link LimitedKeySequence}: the key codes in order of press and in
+ * reverse order of release, as primitive arrays.
+ * <p>
+ * Immutable: the reads don't lock nor allocate. The plans are shared, so the equal
+ * sequences of all the keys have the same instance; see {@link LimitedKeySequence#getPlan()}.
+ * </p>
+ */
+public final class KeySequencePlan {
+
+	/** Plan without keys */
+	public static final KeySequencePlan EMPTY = new KeySequencePlan(new int[0]);
+
+	/** Shared plans; weak, so the plans of the sequences no longer used are collected */
+	private static final Map<KeySequencePlan, WeakReference<KeySequencePlan>> cache = new WeakHashMap<>();
+
+
+	/** Key codes in order of press */
+	private final int[] press;
+
+	/** Key codes in order of release: reverse of {@link #press} */
+	private final int[] release;
+
+	/** Hash of {@link #press} */
+	private final int hash;
+
+
+	/**
+	 * @param press Key codes in order of press; not copied
+	 */
+	private KeySequencePlan(@NonNull int[] press) {
+		assert press != null;
+
+		this.press = press;
+		this.release = new int[press.length];
+		for(int i = 0; i < press.length; i++) {
+			release[i] = press[press.length - 1 - i];
+		}
+		this.hash = Arrays.hashCode(press);
+	}
+
+
+	/**
+	 * Compile the keys, sharing the plan of an equal sequence if present
+	 * @param keys Key codes in order of press; null for no keys
+	 * @return Plan of the keys
+	 */
+	static @NonNull KeySequencePlan compile(List<Integer> keys) {
+		if(keys == null || keys.isEmpty()) {
+			return EMPTY;
+		}
+
+		int[] p = new int[keys.size()];
+		for(int i = 0; i < p.length; i++) {
+			p[i] = keys.get(i);
+		}
+		KeySequencePlan plan = new KeySequencePlan(p);
+		synchronized(cache) {
+			WeakReference<KeySequencePlan> r = cache.get(plan);
+			KeySequencePlan shared = r == null ? null : r.get();
+			if(shared != null) {
+				return shared;
+			}
+			cache.put(plan, new WeakReference<>(plan));
+			return plan;
+		}
+	}
+
+
+	/**
+	 * @return Number of keys
+	 */
+	public int size() {
+		return press.length;
+	}
+
+
+	/**
+	 * @param i Index of the key; < {@link #size()}
+	 * @return Code of the i-th key to press
+	 */
+	public int getPressKey(int i) {
+		return press[i];
+	}
+
+
+	/**
+	 * @param i Index of the key; < {@link #size()}
+	 * @return Code of the i-th key to release
+	 */
+	public int getReleaseKey(int i) {
+		return release[i];
+	}
+
+
+	@Override
+	public boolean equals(Object obj) {
+		if(obj == this) {
+			return true;
+		} else if(obj == null || !obj.getClass().equals(getClass())) {
+			return false;
+		} else {
+			KeySequencePlan p = (KeySequencePlan)obj;
+			return hash == p.hash && Arrays.equals(press, p.press);
+		}
+	}
+
+
+	@Override
+	public int hashCode() {
+		return hash;
+	}
+}
@@ -24,6 +24,9 @@ public final class LimitedKeySequence implements Serializable {
 	/** Sequence of keys; not editable, never null */
 	private final List<Integer> keys;
 	
+	/** Compiled form of {@link #keys}; null until the first {@link #getPlan()} */
+	private transient volatile KeySequencePlan plan;
+	
 	/**
 	 * Sets an empty key sequence
 	 */
@@ -54,6 +57,20 @@ public final class LimitedKeySequence implements Serializable {
 		return keys;
 	}
 	
+	/**
+	 * @return Keys in order of press and release as primitive codes; compiled once and
+	 * shared by the equal sequences
+	 */
+	public @NonNull KeySequencePlan getPlan() {
+		KeySequencePlan p = plan;
+		if(p == null) {
+			// A concurrent compile gets the same shared instance
+			p = KeySequencePlan.compile(keys);
+			plan = p;
+		}
+		return p;
+	}
+	
 	/**
 	 * Indicates if the key is present in the sequence
 	 * @param key Key to find
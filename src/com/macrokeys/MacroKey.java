@@ -18,6 +18,12 @@ public final class MacroKey implements Cloneable, Serializable, Comparable<Macro
 	 * Serial for {@link Serializable}
 	 */
 	private static final long serialVersionUID = 2L;
+	
+	/** Default time in ms before the first repeat of a {@link MacroKeyType#Normal} key */
+	public static final int DEFAULT_REPEAT_DELAY = 750;
+	
+	/** Default repeats per second of a {@link MacroKeyType#Normal} key */
+	public static final int DEFAULT_REPEAT_RATE = 30;
 
 	/** Identifier of the key in the {@link MacroSetup} */
 	private int id = -1;
@@ -48,6 +54,12 @@ public final class MacroKey implements Cloneable, Serializable, Comparable<Macro
     
     /** Type of key */
     private MacroKeyType type;
+    
+    /** Time in ms before the first repeat of a {@link MacroKeyType#Normal} key; 0 for the default */
+    private int repeatDelay;
+    
+    /** Repeats per second of a {@link MacroKeyType#Normal} key; 0 for the default */
+    private int repeatRate;
 
 
     /**
@@ -238,6 +250,49 @@ public final class MacroKey implements Cloneable, Serializable, Comparable<Macro
 		this.type = type;
 	}
 
+	/**
+	 * @return Time in ms, while a {@link MacroKeyType#Normal} key is held, between
+	 * its first keystroke and the first repeat
+	 */
+	public int getRepeatDelay() {
+		return repeatDelay == 0 ? DEFAULT_REPEAT_DELAY : repeatDelay;
+	}
+
+
+	/**
+	 * @param ms Time in ms, while a {@link MacroKeyType#Normal} key is held, between
+	 * its first keystroke and the first repeat; > 0
+	 * @throws IllegalArgumentException If {@code ms} is <= 0
+	 */
+	public void setRepeatDelay(int ms) {
+		if(ms <= 0) {
+			throw new IllegalArgumentException("Parameter ms must be > 0");
+		}
+		this.repeatDelay = ms;
+	}
+
+
+	/**
+	 * @return Keystrokes per second of a held {@link MacroKeyType#Normal} key after
+	 * the first repeat
+	 */
+	public int getRepeatRate() {
+		return repeatRate == 0 ? DEFAULT_REPEAT_RATE : repeatRate;
+	}
+
+
+	/**
+	 * @param rate Keystrokes per second of a held {@link MacroKeyType#Normal} key after
+	 * the first repeat; > 0
+	 * @throws IllegalArgumentException If {@code rate} is <= 0
+	 */
+	public void setRepeatRate(int rate) {
+		if(rate <= 0) {
+			throw new IllegalArgumentException("Parameter rate must be > 0");
+		}
+		this.repeatRate = rate;
+	}
+
 	@Override
     public Object clone() throws CloneNotSupportedException {
 		return JavaUtil.utilDeepClone(this);
@@ -253,6 +308,8 @@ public final class MacroKey implements Cloneable, Serializable, Comparable<Macro
 			MacroKey k2 = (MacroKey)obj;
 			return getId() == k2.getId() &&
 				    getType() == k2.getType() &&
+				    getRepeatDelay() == k2.getRepeatDelay() &&
+				    getRepeatRate() == k2.getRepeatRate() &&
 					getArea().equals(k2.getArea()) &&
 					getColorEdge() == k2.getColorEdge() &&
 					getColorEdgePress() == k2.getColorEdgePress() &&
@@ -268,6 +325,7 @@ public final class MacroKey implements Cloneable, Serializable, Comparable<Macro
 	public int hashCode() {
 		return getId() + getArea().hashCode() + 
 				getType().ordinal() +
+				getRepeatDelay() + getRepeatRate() +
 				getColorEdge() +
 				getColorEdgePress() + getColorFill() +
 				getColorFillPress() + getKeySeq().hashCode() +
@@ -241,7 +241,7 @@ public final class MacroSetup implements Serializable {
     /** 
      * Generates the ids of the {@link MacroKey} in the {@link MacroScreen}s
      */
-    private void generateMacroKeysIDs() {
+    void generateMacroKeysIDs() {
     	int counter = 0;
     	for(MacroScreen s : getMacroScreens()) {
     		for(MacroKey m : s.getKeys()) {
@@ -250,6 +250,30 @@ public final class MacroSetup implements Serializable {
     	}
     }
     
+    /**
+     * Adds a screen at the end; the ids of the keys are not updated
+     * @param m Screen to add
+     */
+    void addScreen(@NonNull MacroScreen m) {
+    	assert m != null;
+    	screens.add(m);
+    }
+    
+    /**
+     * Removes the screens from the end; if the selected screen is removed
+     * the first one is selected. The ids of the keys are not updated
+     * @param n New number of screens; at least one
+     */
+    void truncateScreens(int n) {
+    	assert n > 0 && n <= screens.size();
+    	for(int i = n; i < screens.size(); i++) {
+    		if(screens.get(i) == actualScreen) {
+    			actualScreen = screens.get(0);
+    		}
+    	}
+    	screens.subList(n, screens.size()).clear();
+    }
+    
     /**
      * Gets the {@link MacroKey} with the given id
      * @param id If of the {@link MacroKey} to get
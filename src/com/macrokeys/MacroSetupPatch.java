@@ -0,0 +1,623 @@
+package com.macrokeys;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Objects;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import com.macrokeys.MacroScreen.Orientation;
+import com.macrokeys.MacroScreen.SwipeType;
+import com.macrokeys.rendering.RectF;
+
+/**
+ * Structural difference between two versions of a {@link MacroSetup}.
+ * <p>
+ * The screens and the keys are matched by position: the patch contains only the changed
+ * fields of the matched ones, the added ones at the end and the number of the removed ones.
+ * It's applied in place on a {@link MacroSetup} equal to the old version; the checksums
+ * of the two versions detect a patch applied to a different setup.
+ * </p>
+ */
+public final class MacroSetupPatch {
+
+	/** Change of fields of a screen: index, mask of the fields, fields */
+	private static final byte OP_SCREEN = 1;
+
+	/** Change of fields of a key: index of the screen, index of the key, mask of the fields, fields */
+	private static final byte OP_KEY = 2;
+
+	/** Screen added at the end: fields, number of keys, keys */
+	private static final byte OP_ADD_SCREEN = 3;
+
+	/** Key added at the end of a screen: index of the screen, fields */
+	private static final byte OP_ADD_KEY = 4;
+
+	/** Screens removed from the end: new number of screens */
+	private static final byte OP_TRUNCATE_SCREENS = 5;
+
+	/** Keys removed from the end of a screen: index of the screen, new number of keys */
+	private static final byte OP_TRUNCATE_KEYS = 6;
+
+	private static final int SCREEN_BACKGROUND_COLOR = 1;
+	private static final int SCREEN_BACKGROUND_TEXT = 1 << 1;
+	private static final int SCREEN_SWIPE_TYPE = 1 << 2;
+	private static final int SCREEN_ORIENTATION = 1 << 3;
+	private static final int SCREEN_ALL = (1 << 4) - 1;
+
+	private static final int KEY_AREA = 1;
+	private static final int KEY_SHAPE = 1 << 1;
+	private static final int KEY_COLOR_EDGE = 1 << 2;
+	private static final int KEY_COLOR_FILL = 1 << 3;
+	private static final int KEY_COLOR_EDGE_PRESS = 1 << 4;
+	private static final int KEY_COLOR_FILL_PRESS = 1 << 5;
+	private static final int KEY_TEXT = 1 << 6;
+	private static final int KEY_SEQUENCE = 1 << 7;
+	private static final int KEY_TYPE = 1 << 8;
+	private static final int KEY_REPEAT = 1 << 9;
+	private static final int KEY_ALL = (1 << 10) - 1;
+
+
+	/** Checksum of the version to which the patch applies */
+	private final int baseChecksum;
+
+	/** Checksum of the version obtained applying the patch */
+	private final int checksum;
+
+	/** Operations of the patch */
+	private final byte[] ops;
+
+
+	/**
+	 * @param baseChecksum Checksum of the version to which the patch applies
+	 * @param checksum Checksum of the version obtained applying the patch
+	 * @param ops Operations of the patch
+	 */
+	private MacroSetupPatch(int baseChecksum, int checksum, @NonNull byte[] ops) {
+		assert ops != null;
+
+		this.baseChecksum = baseChecksum;
+		this.checksum = checksum;
+		this.ops = ops;
+	}
+
+
+	/**
+	 * Computes the patch that transforms {@code from} in {@code to}
+	 * @param from Old version
+	 * @param to New version
+	 * @return The patch
+	 */
+	public static @NonNull MacroSetupPatch diff(@NonNull MacroSetup from, @NonNull MacroSetup to) {
+		Objects.requireNonNull(from);
+		Objects.requireNonNull(to);
+
+		ByteArrayOutputStream str = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(str);
+		try {
+			List<MacroScreen> l1 = from.getMacroScreens();
+			List<MacroScreen> l2 = to.getMacroScreens();
+			int common = Math.min(l1.size(), l2.size());
+
+			if(l2.size() < l1.size()) {
+				out.writeByte(OP_TRUNCATE_SCREENS);
+				out.writeInt(l2.size());
+			}
+
+			for(int i = 0; i < common; i++) {
+				diffScreen(out, i, l1.get(i), l2.get(i));
+			}
+
+			for(int i = common; i < l2.size(); i++) {
+				out.writeByte(OP_ADD_SCREEN);
+				writeScreen(out, l2.get(i), SCREEN_ALL);
+				List<MacroKey> keys = l2.get(i).getKeys();
+				out.writeInt(keys.size());
+				for(MacroKey k : keys) {
+					writeKey(out, k, KEY_ALL);
+				}
+			}
+			out.flush();
+		} catch(IOException e) {
+			assert false : "Should not happend";
+			throw new RuntimeException(e);
+		}
+
+		return new MacroSetupPatch(checksum(from), checksum(to), str.toByteArray());
+	}
+
+
+	/**
+	 * Writes the operations that transform the screen {@code s1} in {@code s2}
+	 * @param out Destination of the operations
+	 * @param i Index of the screen
+	 * @param s1 Old version of the screen
+	 * @param s2 New version of the screen
+	 * @throws IOException If an IO error occurs
+	 */
+	private static void diffScreen(@NonNull DataOutputStream out, int i,
+			@NonNull MacroScreen s1, @NonNull MacroScreen s2) throws IOException {
+		int mask = 0;
+		if(s1.getBackgroundColor() != s2.getBackgroundColor()) {
+			mask |= SCREEN_BACKGROUND_COLOR;
+		}
+		if(!s1.getBackgroundText().equals(s2.getBackgroundText())) {
+			mask |= SCREEN_BACKGROUND_TEXT;
+		}
+		if(s1.getSwipeType() != s2.getSwipeType()) {
+			mask |= SCREEN_SWIPE_TYPE;
+		}
+		if(s1.getOrientation() != s2.getOrientation()) {
+			mask |= SCREEN_ORIENTATION;
+		}
+		if(mask != 0) {
+			out.writeByte(OP_SCREEN);
+			out.writeInt(i);
+			writeScreen(out, s2, mask);
+		}
+
+		List<MacroKey> k1 = s1.getKeys();
+		List<MacroKey> k2 = s2.getKeys();
+		int common = Math.min(k1.size(), k2.size());
+
+		if(k2.size() < k1.size()) {
+			out.writeByte(OP_TRUNCATE_KEYS);
+			out.writeInt(i);
+			out.writeInt(k2.size());
+		}
+
+		for(int j = 0; j < common; j++) {
+			MacroKey a = k1.get(j);
+			MacroKey b = k2.get(j);
+			int keyMask = keyDiff(a, b);
+			if(keyMask != 0) {
+				out.writeByte(OP_KEY);
+				out.writeInt(i);
+				out.writeInt(j);
+				writeKey(out, b, keyMask);
+			}
+		}
+
+		for(int j = common; j < k2.size(); j++) {
+			out.writeByte(OP_ADD_KEY);
+			out.writeInt(i);
+			writeKey(out, k2.get(j), KEY_ALL);
+		}
+	}
+
+
+	/**
+	 * @param a Old version of the key
+	 * @param b New version of the key
+	 * @return Mask of the fields that differ
+	 */
+	private static int keyDiff(@NonNull MacroKey a, @NonNull MacroKey b) {
+		int mask = 0;
+		if(!a.getArea().equals(b.getArea())) {
+			mask |= KEY_AREA;
+		}
+		if(!a.getShape().equals(b.getShape())) {
+			mask |= KEY_SHAPE;
+		}
+		if(a.getColorEdge() != b.getColorEdge()) {
+			mask |= KEY_COLOR_EDGE;
+		}
+		if(a.getColorFill() != b.getColorFill()) {
+			mask |= KEY_COLOR_FILL;
+		}
+		if(a.getColorEdgePress() != b.getColorEdgePress()) {
+			mask |= KEY_COLOR_EDGE_PRESS;
+		}
+		if(a.getColorFillPress() != b.getColorFillPress()) {
+			mask |= KEY_COLOR_FILL_PRESS;
+		}
+		if(!a.getText().equals(b.getText())) {
+			mask |= KEY_TEXT;
+		}
+		if(!a.getKeySeq().equals(b.getKeySeq())) {
+			mask |= KEY_SEQUENCE;
+		}
+		if(a.getType() != b.getType()) {
+			mask |= KEY_TYPE;
+		}
+		if(a.getRepeatDelay() != b.getRepeatDelay() || a.getRepeatRate() != b.getRepeatRate()) {
+			mask |= KEY_REPEAT;
+		}
+		return mask;
+	}
+
+
+	/**
+	 * Applies the patch in place; the ids of the keys are updated
+	 * @param s Setup equal to the old version of the patch
+	 * @throws MSLoadException If {@code s} is not the old version of the patch or
+	 * the patch is malformed; {@code s} could be partially modified
+	 */
+	public void applyTo(@NonNull MacroSetup s) throws MSLoadException {
+		Objects.requireNonNull(s);
+
+		if(checksum(s) != baseChecksum) {
+			throw new MSLoadException("Patch of a different setup", null);
+		}
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(ops));
+		try {
+			while(in.available() > 0) {
+				byte op = in.readByte();
+				switch(op) {
+				case OP_SCREEN:
+					readScreen(in, screen(s, in.readInt()));
+					break;
+
+				case OP_KEY: {
+					List<MacroKey> keys = screen(s, in.readInt()).getKeys();
+					int j = in.readInt();
+					if(j < 0 || j >= keys.size()) {
+						throw new IOException("Key index out of range: " + j);
+					}
+					readKey(in, keys.get(j));
+					break;
+				}
+
+				case OP_ADD_SCREEN: {
+					MacroScreen m = new MacroScreen();
+					readScreen(in, m);
+					int n = in.readInt();
+					for(int j = 0; j < n; j++) {
+						MacroKey k = new MacroKey();
+						readKey(in, k);
+						m.getKeys().add(k);
+					}
+					s.addScreen(m);
+					break;
+				}
+
+				case OP_ADD_KEY: {
+					MacroScreen m = screen(s, in.readInt());
+					MacroKey k = new MacroKey();
+					readKey(in, k);
+					m.getKeys().add(k);
+					break;
+				}
+
+				case OP_TRUNCATE_SCREENS: {
+					int n = in.readInt();
+					if(n <= 0 || n > s.getMacroScreens().size()) {
+						throw new IOException("Number of screens out of range: " + n);
+					}
+					s.truncateScreens(n);
+					break;
+				}
+
+				case OP_TRUNCATE_KEYS: {
+					List<MacroKey> keys = screen(s, in.readInt()).getKeys();
+					int n = in.readInt();
+					if(n < 0 || n > keys.size()) {
+						throw new IOException("Number of keys out of range: " + n);
+					}
+					keys.subList(n, keys.size()).clear();
+					break;
+				}
+
+				default:
+					throw new IOException("Unknown operation: " + op);
+				}
+			}
+		} catch(IOException | IllegalArgumentException e) {
+			throw new MSLoadException("Malformed patch", e);
+		}
+
+		s.generateMacroKeysIDs();
+		if(checksum(s) != checksum) {
+			throw new MSLoadException("Setup different from the expected after the patch", null);
+		}
+	}
+
+
+	/**
+	 * @return True if the patch doesn't change the setup
+	 */
+	public boolean isEmpty() {
+		return ops.length == 0 && baseChecksum == checksum;
+	}
+
+
+	/**
+	 * @return Checksum of the version to which the patch applies
+	 */
+	public int getBaseChecksum() {
+		return baseChecksum;
+	}
+
+
+	/**
+	 * @return Checksum of the version obtained applying the patch
+	 */
+	public int getChecksum() {
+		return checksum;
+	}
+
+
+	/**
+	 * Save this as an array of bytes
+	 * @return Data that rapresents this intance
+	 */
+	public @NonNull byte[] saveAsByteArray() {
+		byte[] b = new byte[4 + 4 + ops.length];
+		writeInt(b, 0, baseChecksum);
+		writeInt(b, 4, checksum);
+		System.arraycopy(ops, 0, b, 8, ops.length);
+		return b;
+	}
+
+
+	/**
+	 * Loads a patch saved with {@link #saveAsByteArray()}
+	 * @param data Data of the patch
+	 * @param offset Position of the patch in {@code data}
+	 * @param length Length of the patch
+	 * @return The patch
+	 * @throws MSLoadException If the data is too short
+	 */
+	public static @NonNull MacroSetupPatch load(@NonNull byte[] data, int offset, int length)
+			throws MSLoadException {
+		Objects.requireNonNull(data);
+		if(length < 8 || offset < 0 || offset + length > data.length) {
+			throw new MSLoadException("Patch too short", null);
+		}
+
+		byte[] ops = new byte[length - 8];
+		System.arraycopy(data, offset + 8, ops, 0, ops.length);
+		return new MacroSetupPatch(readInt(data, offset), readInt(data, offset + 4), ops);
+	}
+
+
+	/**
+	 * Checksum of the content of the setup, independent from the serialization
+	 * @param s Setup
+	 * @return Checksum of {@code s}
+	 */
+	public static int checksum(@NonNull MacroSetup s) {
+		Objects.requireNonNull(s);
+
+		CheckedOutputStream str = new CheckedOutputStream(new OutputStream() {
+			@Override
+			public void write(int b) { }
+
+			@Override
+			public void write(byte[] b, int off, int len) { }
+		}, new CRC32());
+		DataOutputStream out = new DataOutputStream(str);
+		try {
+			out.writeInt(s.getMacroScreens().size());
+			for(MacroScreen m : s.getMacroScreens()) {
+				writeScreen(out, m, SCREEN_ALL);
+				out.writeInt(m.getKeys().size());
+				for(MacroKey k : m.getKeys()) {
+					out.writeInt(k.getId());
+					writeKey(out, k, KEY_ALL);
+				}
+			}
+			out.flush();
+		} catch(IOException e) {
+			assert false : "Should not happend";
+			throw new RuntimeException(e);
+		}
+		return (int) str.getChecksum().getValue();
+	}
+
+
+
+	/**
+	 * @param s Setup
+	 * @param i Index of the screen
+	 * @return The screen
+	 * @throws IOException If the index is out of range
+	 */
+	private static @NonNull MacroScreen screen(@NonNull MacroSetup s, int i) throws IOException {
+		if(i < 0 || i >= s.getMacroScreens().size()) {
+			throw new IOException("Screen index out of range: " + i);
+		}
+		return s.getMacroScreens().get(i);
+	}
+
+
+	private static void writeScreen(@NonNull DataOutputStream out, @NonNull MacroScreen m, int mask)
+			throws IOException {
+		out.writeByte(mask);
+		if((mask & SCREEN_BACKGROUND_COLOR) != 0) {
+			out.writeInt(m.getBackgroundColor());
+		}
+		if((mask & SCREEN_BACKGROUND_TEXT) != 0) {
+			writeString(out, m.getBackgroundText());
+		}
+		if((mask & SCREEN_SWIPE_TYPE) != 0) {
+			writeEnum(out, m.getSwipeType());
+		}
+		if((mask & SCREEN_ORIENTATION) != 0) {
+			writeEnum(out, m.getOrientation());
+		}
+	}
+
+
+	private static void readScreen(@NonNull DataInputStream in, @NonNull MacroScreen m)
+			throws IOException {
+		int mask = in.readUnsignedByte();
+		if((mask & SCREEN_BACKGROUND_COLOR) != 0) {
+			m.setBackgroundColor(in.readInt());
+		}
+		if((mask & SCREEN_BACKGROUND_TEXT) != 0) {
+			m.setBackgroundText(readString(in));
+		}
+		if((mask & SCREEN_SWIPE_TYPE) != 0) {
+			m.setSwipeType(readEnum(in, SwipeType.values()));
+		}
+		if((mask & SCREEN_ORIENTATION) != 0) {
+			m.setOrientation(readEnum(in, Orientation.values()));
+		}
+	}
+
+
+	private static void writeKey(@NonNull DataOutputStream out, @NonNull MacroKey k, int mask)
+			throws IOException {
+		out.writeShort(mask);
+		if((mask & KEY_AREA) != 0) {
+			RectF a = k.getArea();
+			out.writeFloat(a.left);
+			out.writeFloat(a.top);
+			out.writeFloat(a.right);
+			out.writeFloat(a.bottom);
+		}
+		if((mask & KEY_SHAPE) != 0) {
+			writeEnum(out, k.getShape().getType());
+		}
+		if((mask & KEY_COLOR_EDGE) != 0) {
+			out.writeInt(k.getColorEdge());
+		}
+		if((mask & KEY_COLOR_FILL) != 0) {
+			out.writeInt(k.getColorFill());
+		}
+		if((mask & KEY_COLOR_EDGE_PRESS) != 0) {
+			out.writeInt(k.getColorEdgePress());
+		}
+		if((mask & KEY_COLOR_FILL_PRESS) != 0) {
+			out.writeInt(k.getColorFillPress());
+		}
+		if((mask & KEY_TEXT) != 0) {
+			writeString(out, k.getText());
+		}
+		if((mask & KEY_SEQUENCE) != 0) {
+			List<Integer> seq = k.getKeySeq().getKeys();
+			if(seq == null) {
+				out.writeByte(-1);
+			} else {
+				out.writeByte(seq.size());
+				for(Integer i : seq) {
+					out.writeInt(i);
+				}
+			}
+		}
+		if((mask & KEY_TYPE) != 0) {
+			writeEnum(out, k.getType());
+		}
+		if((mask & KEY_REPEAT) != 0) {
+			out.writeInt(k.getRepeatDelay());
+			out.writeInt(k.getRepeatRate());
+		}
+	}
+
+
+	private static void readKey(@NonNull DataInputStream in, @NonNull MacroKey k)
+			throws IOException {
+		int mask = in.readUnsignedShort();
+		if((mask & KEY_AREA) != 0) {
+			k.setArea(new RectF(in.readFloat(), in.readFloat(), in.readFloat(), in.readFloat()));
+		}
+		if((mask & KEY_SHAPE) != 0) {
+			k.setShape(new KeyShape(readEnum(in, KeyShape.Type.values())));
+		}
+		if((mask & KEY_COLOR_EDGE) != 0) {
+			k.setColorEdge(in.readInt());
+		}
+		if((mask & KEY_COLOR_FILL) != 0) {
+			k.setColorFill(in.readInt());
+		}
+		if((mask & KEY_COLOR_EDGE_PRESS) != 0) {
+			k.setColorEdgePress(in.readInt());
+		}
+		if((mask & KEY_COLOR_FILL_PRESS) != 0) {
+			k.setColorFillPress(in.readInt());
+		}
+		if((mask & KEY_TEXT) != 0) {
+			k.setText(readString(in));
+		}
+		if((mask & KEY_SEQUENCE) != 0) {
+			int n = in.readByte();
+			if(n < 0) {
+				k.setKeySeq(new LimitedKeySequence(null));
+			} else {
+				Integer[] seq = new Integer[n];
+				for(int i = 0; i < n; i++) {
+					seq[i] = in.readInt();
+				}
+				k.setKeySeq(n == 0 ? new LimitedKeySequence() : new LimitedKeySequence(seq));
+			}
+		}
+		if((mask & KEY_TYPE) != 0) {
+			k.setType(readEnum(in, MacroKeyType.values()));
+		}
+		if((mask & KEY_REPEAT) != 0) {
+			k.setRepeatDelay(in.readInt());
+			k.setRepeatRate(in.readInt());
+		}
+	}
+
+
+	private static void writeString(@NonNull DataOutputStream out, @NonNull String s)
+			throws IOException {
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+
+	private static @NonNull String readString(@NonNull DataInputStream in) throws IOException {
+		int n = in.readInt();
+		if(n < 0 || n > in.available()) {
+			throw new IOException("String length out of range: " + n);
+		}
+		byte[] b = new byte[n];
+		in.readFully(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+
+	/**
+	 * @param out Destination
+	 * @param e Value; null is written as -1
+	 * @throws IOException If an IO error occurs
+	 */
+	private static void writeEnum(@NonNull DataOutputStream out, Enum<?> e) throws IOException {
+		out.writeByte(e == null ? -1 : e.ordinal());
+	}
+
+
+	/**
+	 * @param in Source
+	 * @param values Values of the enum
+	 * @return Value read; null for -1
+	 * @throws IOException If the ordinal is out of range
+	 */
+	private static <T extends Enum<T>> T readEnum(@NonNull DataInputStream in, @NonNull T[] values)
+			throws IOException {
+		int i = in.readByte();
+		if(i == -1) {
+			return null;
+		} else if(i < 0 || i >= values.length) {
+			throw new IOException("Enum ordinal out of range: " + i);
+		}
+		return values[i];
+	}
+
+
+	private static void writeInt(@NonNull byte[] b, int offset, int v) {
+		b[offset] = (byte) (v >>> 24);
+		b[offset + 1] = (byte) (v >>> 16);
+		b[offset + 2] = (byte) (v >>> 8);
+		b[offset + 3] = (byte) v;
+	}
+
+
+	private static int readInt(@NonNull byte[] b, int offset) {
+		return ((b[offset] & 0xFF) << 24) | ((b[offset + 1] & 0xFF) << 16)
+				| ((b[offset + 2] & 0xFF) << 8) | (b[offset + 3] & 0xFF);
+	}
+}
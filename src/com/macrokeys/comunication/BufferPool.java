@@ -0,0 +1,110 @@
+package com.macrokeys.comunication;
+
+import java.nio.ByteBuffer;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * Pool of the buffers of the received messages, see
+ * {@link MessageProtocol#receiveMessage(BufferPool)}.
+ * <p>
+ * Every buffer has the same capacity, that is also the maximum length of a message
+ * received in it. A {@link MessageLease} released returns in the pool, so a steady
+ * flow of messages is received without allocations.
+ * </p>
+ * <p>
+ * The leases not in use are kept in a preallocated stack, under a short lock:
+ * acquire and release don't allocate. A lease released to a full pool is discarded.
+ * </p>
+ */
+public final class BufferPool {
+
+	/** Leases not in use, in the first {@link #freeCount} slots; guarded by {@code this} */
+	private final MessageLease[] free;
+
+	/** Number of the leases in {@link #free}; guarded by {@code this} */
+	private int freeCount = 0;
+
+	/** Capacity in bytes of every buffer */
+	private final int bufferSize;
+
+	/** True for direct buffers */
+	private final boolean direct;
+
+
+	/**
+	 * @param bufferSize Capacity in bytes of every buffer: maximum length of a message
+	 * @param maxPooled Maximum number of buffers kept in the pool
+	 * @param direct True for direct buffers, false for heap buffers
+	 * @throws IllegalArgumentException If {@code bufferSize} or {@code maxPooled} is < 0
+	 */
+	public BufferPool(int bufferSize, int maxPooled, boolean direct) {
+		if(bufferSize < 0 || maxPooled < 0) {
+			throw new IllegalArgumentException("Size must be >= 0");
+		}
+
+		this.bufferSize = bufferSize;
+		this.free = new MessageLease[maxPooled];
+		this.direct = direct;
+	}
+
+
+	/**
+	 * @return Capacity in bytes of every buffer: maximum length of a message
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+
+	/**
+	 * @return True if the buffers are direct
+	 */
+	public boolean isDirect() {
+		return direct;
+	}
+
+
+	/**
+	 * @return Number of buffers in the pool, not in use
+	 */
+	public synchronized int getPooled() {
+		return freeCount;
+	}
+
+
+	/**
+	 * Takes a buffer from the pool, allocated if the pool is empty
+	 * @return Lease of the buffer, empty; to release after the use
+	 */
+	public @NonNull MessageLease acquire() {
+		MessageLease l = null;
+		synchronized(this) {
+			if(freeCount > 0) {
+				l = free[--freeCount];
+				free[freeCount] = null;
+			}
+		}
+		if(l == null) {
+			ByteBuffer b = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+			l = new MessageLease(this, b);
+		}
+		l.acquired();
+		return l;
+	}
+
+
+	/**
+	 * Returns the lease in the pool
+	 * @param l Lease released
+	 */
+	void release(@NonNull MessageLease l) {
+		assert l != null;
+
+		synchronized(this) {
+			if(freeCount < free.length) {
+				free[freeCount++] = l;
+			}
+		}
+	}
+}
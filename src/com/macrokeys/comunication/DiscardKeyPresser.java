@@ -0,0 +1,39 @@
+package com.macrokeys.comunication;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import com.macrokeys.KeySequencePlan;
+
+/**
+ * {@link KeyPresser} that discards the keystrokes, only counting the key codes
+ */
+public final class DiscardKeyPresser implements KeyPresser {
+
+	/** Number of the key codes pressed or released */
+	private final AtomicLong count = new AtomicLong(0);
+
+
+	@Override
+	public void press(@NonNull KeySequencePlan p) {
+		Objects.requireNonNull(p);
+		count.addAndGet(p.size());
+	}
+
+
+	@Override
+	public void release(@NonNull KeySequencePlan p) {
+		Objects.requireNonNull(p);
+		count.addAndGet(p.size());
+	}
+
+
+	/**
+	 * @return Number of the key codes pressed or released
+	 */
+	public long getCount() {
+		return count.get();
+	}
+}
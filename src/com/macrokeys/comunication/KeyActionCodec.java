@@ -0,0 +1,224 @@
+package com.macrokeys.comunication;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import com.macrokeys.MacroKey;
+
+/**
+ * Fixed layout encoding of the action of a {@link MacroKey} sent from
+ * {@link MacroClient} to {@link MacroServer}.
+ * <p>
+ * The layout is the one of {@link java.io.DataOutputStream}: the id of the key as
+ * a big-endian int followed by a byte, 1 for the pression and 0 for the release.
+ * The methods work on caller owned buffers, so they don't allocate.
+ * </p>
+ * <p>
+ * A message of {@link #ACTION_LENGTH} bytes is a single key action; any other
+ * message starts with a type byte, like {@link #TYPE_KEY_BATCH}.
+ * </p>
+ */
+final class KeyActionCodec {
+
+	/** Size in bytes of an encoded key action */
+	public static final int ACTION_LENGTH = 4 + 1;
+
+	/** Type of a message of a single key action, recognized by its length */
+	public static final int TYPE_KEY_ACTION = 0;
+
+	/**
+	 * Type of a message of many key actions, applied in order:
+	 * the type byte, the number of actions as unsigned short and the actions
+	 */
+	public static final int TYPE_KEY_BATCH = 1;
+
+	/**
+	 * Type of the message with the capabilities of the client, answer to a full setup:
+	 * the type byte and the capabilities as unsigned short. Sent before the first setup
+	 * it's followed by the hash of the setup in the {@link SetupCache} of the client.
+	 */
+	public static final int TYPE_HELLO = 2;
+
+	/** Size in bytes of a {@link #TYPE_HELLO} message without the hash */
+	public static final int HELLO_LENGTH = 1 + 2;
+
+	/** Type of the request of the uncompressed full setup after a setup message that could not be loaded */
+	public static final int TYPE_SETUP_RESYNC = 3;
+
+	/**
+	 * Type of a message of many key actions with their sequence number, applied in order:
+	 * the type byte, the number of actions as unsigned short, the actions and the sequence
+	 * number of the first action as int; the next actions have the following numbers.
+	 * An action older than the last one applied to its key is ignored, so the messages
+	 * can overtake each other, like the ones of {@link MessageProtocol#sendState(int, byte[], int)}
+	 */
+	public static final int TYPE_KEY_SEQUENCED = 4;
+
+	/** Size in bytes of the header of a {@link #TYPE_KEY_BATCH} message */
+	public static final int BATCH_HEADER_LENGTH = 1 + 2;
+
+	/** Size in bytes of the sequence number of a {@link #TYPE_KEY_SEQUENCED} message */
+	public static final int SEQUENCE_LENGTH = 4;
+
+	/** Size in bytes of a {@link #TYPE_KEY_SEQUENCED} message of a single action */
+	public static final int SEQUENCED_ACTION_LENGTH = BATCH_HEADER_LENGTH + ACTION_LENGTH + SEQUENCE_LENGTH;
+
+	/** Maximum number of actions of a {@link #TYPE_KEY_BATCH} message */
+	public static final int MAX_BATCH = 128;
+
+	/** Maximum size in bytes of a key message */
+	public static final int MAX_MESSAGE_LENGTH = BATCH_HEADER_LENGTH + MAX_BATCH * ACTION_LENGTH
+			+ SEQUENCE_LENGTH;
+
+	private KeyActionCodec() {
+	}
+
+	/**
+	 * @param mess Message
+	 * @param length Length of the message
+	 * @return Type of the message: {@link #TYPE_KEY_ACTION}, {@link #TYPE_KEY_BATCH},
+	 * {@link #TYPE_HELLO}, {@link #TYPE_SETUP_RESYNC}, {@link #TYPE_KEY_SEQUENCED}
+	 * or an unknown type; -1 if empty
+	 */
+	public static int messageType(@NonNull byte[] mess, int length) {
+		if(length == ACTION_LENGTH) {
+			return TYPE_KEY_ACTION;
+		} else if(length > 0) {
+			return mess[0] & 0xFF;
+		} else {
+			return -1;
+		}
+	}
+
+	/**
+	 * Encode the header of a {@link #TYPE_KEY_BATCH} message;
+	 * the actions follow at {@link #batchOffset(int)}
+	 * @param dst Destination buffer
+	 * @param count Number of actions; in [0, {@link #MAX_BATCH}]
+	 * @return Length of the message
+	 */
+	public static int encodeBatchHeader(@NonNull byte[] dst, int count) {
+		assert count >= 0 && count <= MAX_BATCH;
+
+		dst[0] = (byte) TYPE_KEY_BATCH;
+		dst[1] = (byte) (count >>> 8);
+		dst[2] = (byte) count;
+		return batchOffset(count);
+	}
+
+	/**
+	 * @param src A {@link #TYPE_KEY_BATCH} message
+	 * @param length Length of the message
+	 * @return Number of actions of the message
+	 * @throws IllegalArgumentException If the length of the message is not consistent
+	 */
+	public static int batchCount(@NonNull byte[] src, int length) {
+		if(length < BATCH_HEADER_LENGTH) {
+			throw new IllegalArgumentException("Batch too short: " + length);
+		}
+		int count = ((src[1] & 0xFF) << 8) | (src[2] & 0xFF);
+		if(count > MAX_BATCH || batchOffset(count) != length) {
+			throw new IllegalArgumentException("Malformed batch of " + count + " actions");
+		}
+		return count;
+	}
+
+	/**
+	 * Encode the header and the sequence number of a {@link #TYPE_KEY_SEQUENCED} message;
+	 * the actions are at {@link #batchOffset(int)}
+	 * @param dst Destination buffer
+	 * @param count Number of actions; in [1, {@link #MAX_BATCH}]
+	 * @param sequence Sequence number of the first action
+	 * @return Length of the message
+	 */
+	public static int encodeSequenced(@NonNull byte[] dst, int count, int sequence) {
+		assert count > 0 && count <= MAX_BATCH;
+
+		dst[0] = (byte) TYPE_KEY_SEQUENCED;
+		dst[1] = (byte) (count >>> 8);
+		dst[2] = (byte) count;
+		int offset = batchOffset(count);
+		dst[offset] = (byte) (sequence >>> 24);
+		dst[offset + 1] = (byte) (sequence >>> 16);
+		dst[offset + 2] = (byte) (sequence >>> 8);
+		dst[offset + 3] = (byte) sequence;
+		return offset + SEQUENCE_LENGTH;
+	}
+
+	/**
+	 * @param src A {@link #TYPE_KEY_SEQUENCED} message
+	 * @param length Length of the message
+	 * @return Number of actions of the message
+	 * @throws IllegalArgumentException If the length of the message is not consistent
+	 */
+	public static int sequencedCount(@NonNull byte[] src, int length) {
+		if(length < BATCH_HEADER_LENGTH + SEQUENCE_LENGTH) {
+			throw new IllegalArgumentException("Sequenced actions too short: " + length);
+		}
+		int count = ((src[1] & 0xFF) << 8) | (src[2] & 0xFF);
+		if(count == 0 || count > MAX_BATCH || batchOffset(count) + SEQUENCE_LENGTH != length) {
+			throw new IllegalArgumentException("Malformed message of " + count + " sequenced actions");
+		}
+		return count;
+	}
+
+	/**
+	 * @param src A valid {@link #TYPE_KEY_SEQUENCED} message
+	 * @param length Length of the message
+	 * @return Sequence number of the first action of the message
+	 */
+	public static int decodeSequence(@NonNull byte[] src, int length) {
+		int offset = length - SEQUENCE_LENGTH;
+		return ((src[offset] & 0xFF) << 24)
+				| ((src[offset + 1] & 0xFF) << 16)
+				| ((src[offset + 2] & 0xFF) << 8)
+				| (src[offset + 3] & 0xFF);
+	}
+
+	/**
+	 * @param i Index of the action
+	 * @return Position of the action in a {@link #TYPE_KEY_BATCH} or
+	 * {@link #TYPE_KEY_SEQUENCED} message
+	 */
+	public static int batchOffset(int i) {
+		return BATCH_HEADER_LENGTH + i * ACTION_LENGTH;
+	}
+
+	/**
+	 * Encode a key action
+	 * @param dst Destination buffer
+	 * @param offset Position in {@code dst} of the action
+	 * @param id Id of the {@link MacroKey}
+	 * @param down True: pressed, released otherwise
+	 * @throws ArrayIndexOutOfBoundsException If {@code dst} is too short
+	 */
+	public static void encode(@NonNull byte[] dst, int offset, int id, boolean down) {
+		dst[offset] = (byte) (id >>> 24);
+		dst[offset + 1] = (byte) (id >>> 16);
+		dst[offset + 2] = (byte) (id >>> 8);
+		dst[offset + 3] = (byte) id;
+		dst[offset + 4] = (byte) (down ? 1 : 0);
+	}
+
+	/**
+	 * @param src Encoded actions
+	 * @param offset Position in {@code src} of the action
+	 * @return Id of the {@link MacroKey} of the action
+	 * @throws ArrayIndexOutOfBoundsException If {@code src} is too short
+	 */
+	public static int decodeId(@NonNull byte[] src, int offset) {
+		return ((src[offset] & 0xFF) << 24)
+				| ((src[offset + 1] & 0xFF) << 16)
+				| ((src[offset + 2] & 0xFF) << 8)
+				| (src[offset + 3] & 0xFF);
+	}
+
+	/**
+	 * @param src Encoded actions
+	 * @param offset Position in {@code src} of the action
+	 * @return True: pressed, released otherwise
+	 * @throws ArrayIndexOutOfBoundsException If {@code src} is too short
+	 */
+	public static boolean decodeDown(@NonNull byte[] src, int offset) {
+		return src[offset + 4] != 0;
+	}
+}
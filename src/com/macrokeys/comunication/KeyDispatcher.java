@@ -0,0 +1,316 @@
+package com.macrokeys.comunication;
+
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import com.macrokeys.KeySequencePlan;
+
+/**
+ * Output stage of the keystrokes: the threads of the clients publish the press and
+ * release commands in a ring buffer, and a single thread executes them in order on the
+ * {@link KeyPresser}, so a slow {@link java.awt.Robot} doesn't stall the network threads.
+ * <p>
+ * The commands are executed in the order of publication. When the buffer is full the
+ * publishers wait for a free slot. Exposes the depth of the queue and the latency from
+ * the publication to the execution of the commands.
+ * </p>
+ * <p>
+ * The {@link #close(long)} executes the commands already published before stopping:
+ * the releases published later are executed by the publisher, so a key is never
+ * left pressed, and the presses are discarded.
+ * </p>
+ */
+final class KeyDispatcher implements Runnable {
+
+	/** Default number of slots of the buffer */
+	static final int DEFAULT_CAPACITY = 1024;
+
+	/** Command to press the keys of the sequence */
+	private static final byte PRESS = 1;
+
+	/** Command to release the keys of the sequence */
+	private static final byte RELEASE = 2;
+
+	/** Value of {@link #next} after the close: negative for all the following publications */
+	private static final long CLOSED = Long.MIN_VALUE;
+
+
+	/** Executor of the commands */
+	private final KeyPresser sink;
+
+	/** Number of slots - 1; the number of slots is a power of 2 */
+	private final int mask;
+
+	/** Keys of the commands */
+	private final KeySequencePlan[] plans;
+
+	/** Type of the commands */
+	private final byte[] commands;
+
+	/** Time in ns of the publication of the commands */
+	private final long[] times;
+
+	/** Number of the command published in every slot; -1 if none */
+	private final AtomicLongArray published;
+
+	/** Number of the next command to publish; negative after the close */
+	private final AtomicLong next = new AtomicLong(0);
+
+	/** Number of the commands published before the close; -1 if not closed */
+	private volatile long end = -1;
+
+	/** Number of the commands executed; written only by the dispatcher */
+	private volatile long executed = 0;
+
+	/** Sum of the latencies in ns of the executed commands; written only by the dispatcher */
+	private volatile long totalLatency = 0;
+
+	/** Maximum latency in ns of the executed commands; written only by the dispatcher */
+	private volatile long maxLatency = 0;
+
+	/** Thread of the dispatcher; null if not running */
+	private volatile Thread dispatcher;
+
+	/** True while the dispatcher is parked waiting a command */
+	private volatile boolean waiting = false;
+
+	/** True if stopped: the commands not executed are discarded */
+	private volatile boolean stopped = false;
+
+
+	/**
+	 * @param sink Executor of the commands, called by the thread of the dispatcher
+	 * @param capacity Minimum number of slots of the buffer; > 0
+	 * @throws IllegalArgumentException If {@code capacity} is <= 0
+	 */
+	KeyDispatcher(@NonNull KeyPresser sink, int capacity) {
+		Objects.requireNonNull(sink);
+		if(capacity <= 0 || capacity > 1 << 30) {
+			throw new IllegalArgumentException("Parameter capacity must be > 0");
+		}
+
+		int n = Integer.highestOneBit(capacity);
+		if(n < capacity) {
+			n <<= 1;
+		}
+		this.sink = sink;
+		this.mask = n - 1;
+		this.plans = new KeySequencePlan[n];
+		this.commands = new byte[n];
+		this.times = new long[n];
+		this.published = new AtomicLongArray(n);
+		for(int i = 0; i < n; i++) {
+			published.set(i, -1);
+		}
+	}
+
+
+	/**
+	 * Publish the press of the keys
+	 * @param p Keys to press
+	 */
+	void press(@NonNull KeySequencePlan p) {
+		publish(PRESS, p);
+	}
+
+
+	/**
+	 * Publish the release of the keys
+	 * @param p Keys to release
+	 */
+	void release(@NonNull KeySequencePlan p) {
+		publish(RELEASE, p);
+	}
+
+
+	/**
+	 * @return Number of the commands published and not executed yet
+	 */
+	int getQueueDepth() {
+		long n = next.get();
+		if(n < 0) {
+			n = end;
+		}
+		return (int) Math.max(0, n - executed);
+	}
+
+
+	/**
+	 * @return Number of the commands executed
+	 */
+	long getExecuted() {
+		return executed;
+	}
+
+
+	/**
+	 * @return Mean latency in ns from the publication to the execution of the commands;
+	 * 0 if none executed
+	 */
+	long getMeanLatency() {
+		long n = executed;
+		return n == 0 ? 0 : totalLatency / n;
+	}
+
+
+	/**
+	 * @return Maximum latency in ns from the publication to the execution of the commands
+	 */
+	long getMaxLatency() {
+		return maxLatency;
+	}
+
+
+	/**
+	 * Stop the dispatcher after the execution of the commands already published; the
+	 * ones not executed within the timeout are discarded. Nothing if already closed.
+	 * @param timeout Maximum time in ms to wait the execution of the commands
+	 */
+	void close(long timeout) {
+		long last = next.getAndSet(CLOSED);
+		if(last < 0) {
+			return;
+		}
+		end = last;
+
+		Thread t = dispatcher;
+		if(t != null) {
+			LockSupport.unpark(t);
+			try {
+				t.join(timeout);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		stopped = true;
+		if(t != null) {
+			t.interrupt();
+		}
+	}
+
+
+	@Override
+	public void run() {
+		dispatcher = Thread.currentThread();
+		long n = executed;
+		try {
+			while(!stopped) {
+				long last = end;
+				if(last >= 0 && n >= last) {
+					// Published before the close: all executed
+					break;
+				}
+				int i = (int) n & mask;
+				if(published.get(i) != n) {
+					await(i, n);
+					continue;
+				}
+
+				byte c = commands[i];
+				KeySequencePlan p = plans[i];
+				long latency = System.nanoTime() - times[i];
+				plans[i] = null;
+				try {
+					if(c == PRESS) {
+						sink.press(p);
+					} else {
+						sink.release(p);
+					}
+				} catch(RuntimeException e) {
+					// E.g. a key code not valid: the following commands are executed
+					e.printStackTrace();
+				}
+
+				n++;
+				totalLatency += latency;
+				if(latency > maxLatency) {
+					maxLatency = latency;
+				}
+				// Frees the slot for the publishers
+				executed = n;
+			}
+		} finally {
+			dispatcher = null;
+		}
+	}
+
+
+	/**
+	 * Park the dispatcher until the command is published, closed or stopped
+	 * @param i Slot of the command
+	 * @param n Number of the command
+	 */
+	private void await(int i, long n) {
+		waiting = true;
+		// Checked again after the flag: the publisher sees it or the command is seen here
+		if(published.get(i) != n && !stopped) {
+			if(end < 0) {
+				LockSupport.park(this);
+			} else {
+				// Claimed before the close: it's being published
+				LockSupport.parkNanos(this, TimeUnit.MICROSECONDS.toNanos(50));
+			}
+		}
+		waiting = false;
+		if(Thread.interrupted() && !stopped && end < 0) {
+			// Interrupted without close
+			stopped = true;
+		}
+	}
+
+
+	/**
+	 * Publish a command, waiting a free slot if the buffer is full.
+	 * After the close a release is executed by the caller and a press is discarded.
+	 * @param c Type of the command
+	 * @param p Keys of the command
+	 */
+	private void publish(byte c, @NonNull KeySequencePlan p) {
+		Objects.requireNonNull(p);
+
+		long n = next.getAndIncrement();
+		if(n < 0) {
+			if(c == RELEASE) {
+				releaseClosed(p);
+			}
+			return;
+		}
+		while(n - executed > mask) {
+			if(stopped) {
+				return;
+			}
+			LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+		}
+
+		int i = (int) n & mask;
+		commands[i] = c;
+		plans[i] = p;
+		times[i] = System.nanoTime();
+		published.set(i, n);
+
+		if(waiting) {
+			Thread t = dispatcher;
+			if(t != null) {
+				LockSupport.unpark(t);
+			}
+		}
+	}
+
+
+	/**
+	 * Execute a release published after the close; the releases are executed one at a time
+	 * @param p Keys to release
+	 */
+	private synchronized void releaseClosed(@NonNull KeySequencePlan p) {
+		try {
+			sink.release(p);
+		} catch(RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+}
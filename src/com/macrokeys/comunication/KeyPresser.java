@@ -1,44 +1,30 @@
 package com.macrokeys.comunication;
 
-import java.awt.AWTException;
-import java.awt.Robot;
-import java.util.Objects;
 import org.eclipse.jdt.annotation.NonNull;
-import com.macrokeys.LimitedKeySequence;
+
+import com.macrokeys.KeySequencePlan;
 
 /**
- * Handle the pressure and release of keys
+ * Backend that executes the keystrokes of a {@link MacroServer}.
+ * <p>
+ * Used by the single thread of the output stage of the server, so the implementations
+ * don't need to be thread safe.
+ * </p>
+ * @see RobotKeyPresser
+ * @see RecordingKeyPresser
+ * @see DiscardKeyPresser
  */
-final class KeyPresser {
-
-    private final Robot robot;
-
-    /**
-     * @throws AWTException If there is an error while initialising the {@link Robot}
-     */
-    public KeyPresser() throws AWTException {
-        robot = new Robot();
-    }
+public interface KeyPresser {
 
     /**
-     * Press the given keys
-     * @param s Sequence of keys to press
+     * Press the given keys, in the order of {@link KeySequencePlan#getPressKey(int)}
+     * @param p Keys to press
      */
-    public synchronized void press(@NonNull LimitedKeySequence s) {
-        Objects.requireNonNull(s);
-        for (int i : s.getKeys()) {
-            robot.keyPress(i);
-        }
-    }
+    void press(@NonNull KeySequencePlan p);
 
     /**
-     * Release the given keys
-     * @param s Sequence of keys to release
+     * Release the given keys, in the order of {@link KeySequencePlan#getReleaseKey(int)}
+     * @param p Keys to release
      */
-    public synchronized void release(@NonNull LimitedKeySequence s) {
-        Objects.requireNonNull(s);
-        for (int i : s.getKeys()) {
-            robot.keyRelease(i);
-        }
-    }
+    void release(@NonNull KeySequencePlan p);
 }
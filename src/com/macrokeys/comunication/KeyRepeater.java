@@ -0,0 +1,184 @@
+package com.macrokeys.comunication;
+
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import com.macrokeys.MacroKey;
+import com.macrokeys.MacroKeyType;
+
+/**
+ * Repeats the keystrokes of the held {@link MacroKeyType#Normal} keys, with the delay
+ * and the rate of every {@link MacroKey}.
+ * <p>
+ * The next keystroke of every key is kept in a queue ordered by its time on the
+ * {@link System#nanoTime()} clock: the thread sleeps until the first one, and without
+ * timeout while no key is held. Runs until interrupted.
+ * </p>
+ */
+final class KeyRepeater implements Runnable {
+
+	/** Executor of the keystrokes */
+	private final Action action;
+
+	/** Guards {@link #queue} and {@link #repeats} */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/** Signaled when a key is held */
+	private final Condition changed = lock.newCondition();
+
+	/** Held keys ordered by the time of the next keystroke */
+	private final PriorityQueue<Repeat> queue = new PriorityQueue<>(11, new Comparator<Repeat>() {
+		@Override
+		public int compare(Repeat a, Repeat b) {
+			return Long.compare(a.deadline - b.deadline, 0);
+		}
+	});
+
+	/** Held keys; by identity, the instance pressed is the one released */
+	private final IdentityHashMap<MacroKey, Repeat> repeats = new IdentityHashMap<>();
+
+
+	/**
+	 * @param action Executor of the keystrokes, called by the thread of {@code this}
+	 */
+	KeyRepeater(@NonNull Action action) {
+		assert action != null;
+
+		this.action = action;
+	}
+
+
+	/**
+	 * Start the keystrokes of the key: the first one immediately; nothing if already held
+	 * @param k Key held
+	 */
+	void hold(@NonNull MacroKey k) {
+		assert k != null;
+
+		lock.lock();
+		try {
+			if(repeats.containsKey(k)) {
+				return;
+			}
+			Repeat r = new Repeat(k, System.nanoTime());
+			repeats.put(k, r);
+			queue.add(r);
+			if(queue.peek() == r) {
+				changed.signal();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	/**
+	 * Stop the keystrokes of the key
+	 * @param k Key released
+	 */
+	void release(@NonNull MacroKey k) {
+		assert k != null;
+
+		lock.lock();
+		try {
+			Repeat r = repeats.remove(k);
+			if(r != null) {
+				// The thread wakes up at the old deadline and finds the next one
+				queue.remove(r);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+	@Override
+	public void run() {
+		try {
+			while(true) {
+				MacroKey k = next();
+				action.keystroke(k);
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+
+	/**
+	 * Wait the next keystroke and schedule the following one of the same key
+	 * @return Key of the keystroke
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	private @NonNull MacroKey next() throws InterruptedException {
+		lock.lock();
+		try {
+			while(true) {
+				Repeat r = queue.peek();
+				if(r == null) {
+					changed.await();
+					continue;
+				}
+				long now = System.nanoTime();
+				long wait = r.deadline - now;
+				if(wait > 0) {
+					changed.awaitNanos(wait);
+					continue;
+				}
+
+				queue.poll();
+				MacroKey k = r.key;
+				if(r.first) {
+					r.first = false;
+					r.deadline += TimeUnit.MILLISECONDS.toNanos(k.getRepeatDelay());
+				} else {
+					r.deadline += TimeUnit.SECONDS.toNanos(1) / k.getRepeatRate();
+				}
+				if(r.deadline - now < 0) {
+					// Late of more than a period: no burst of keystrokes
+					r.deadline = now + TimeUnit.SECONDS.toNanos(1) / k.getRepeatRate();
+				}
+				queue.add(r);
+				return k;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+
+
+	/** Executor of the keystrokes of a {@link KeyRepeater} */
+	interface Action {
+
+		/**
+		 * Press and release the key
+		 * @param k The key
+		 */
+		void keystroke(@NonNull MacroKey k);
+	}
+
+
+
+	/** Held key with the time of its next keystroke */
+	private static final class Repeat {
+		private final MacroKey key;
+
+		/** Time in ns of the next keystroke */
+		private long deadline;
+
+		/** True until the first keystroke, that is followed by the delay of the key */
+		private boolean first = true;
+
+		Repeat(@NonNull MacroKey key, long deadline) {
+			this.key = key;
+			this.deadline = deadline;
+		}
+	}
+}
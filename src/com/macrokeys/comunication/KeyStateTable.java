@@ -0,0 +1,250 @@
+package com.macrokeys.comunication;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import com.macrokeys.MacroKey;
+import com.macrokeys.MacroScreen;
+import com.macrokeys.MacroSetup;
+
+/**
+ * Pressed {@link MacroKey} of a server, indexed by {@link MacroKey#getId()}, safe for
+ * concurrent clients.
+ * <p>
+ * The ids are dense, so the keys are stored in segments of {@link #SEGMENT_SIZE} slots,
+ * allocated by {@link #reserve(int)}: press, release and lookup are O(1) and don't allocate.
+ * Every slot has an atomic state; the key and the client of a slot are accessed only by the
+ * thread that moved the state to {@link #BUSY}, for the few instructions of the access.
+ * </p>
+ */
+final class KeyStateTable {
+
+	/** Maximum number of keys; the keys with a greater id are never pressed */
+	static final int MAX_KEYS = 1 << 16;
+
+	/** Number of slots of a segment */
+	private static final int SEGMENT_SIZE = 64;
+
+	/** State of a slot of a key released */
+	private static final int UP = 0;
+
+	/** State of a slot of a key pressed */
+	private static final int DOWN = 1;
+
+	/** State of a slot accessed by a thread */
+	private static final int BUSY = 2;
+
+
+	/** Segments of the slots; null if not reserved */
+	private final AtomicReferenceArray<Segment> segments =
+			new AtomicReferenceArray<>(MAX_KEYS / SEGMENT_SIZE);
+
+
+	/**
+	 * Allocate the slots of the keys with id < {@code n}
+	 * @param n Number of keys
+	 */
+	void reserve(int n) {
+		int last = (Math.min(n, MAX_KEYS) + SEGMENT_SIZE - 1) / SEGMENT_SIZE;
+		for(int i = 0; i < last; i++) {
+			if(segments.get(i) == null) {
+				segments.compareAndSet(i, null, new Segment());
+			}
+		}
+	}
+
+
+	/**
+	 * Allocate the slots of all the keys of the setup
+	 * @param s Setup with the ids of the keys assigned
+	 */
+	void reserve(@NonNull MacroSetup s) {
+		int max = -1;
+		for(MacroScreen m : s.getMacroScreens()) {
+			for(MacroKey k : m.getKeys()) {
+				max = Math.max(max, k.getId());
+			}
+		}
+		reserve(max + 1);
+	}
+
+
+	/**
+	 * Mark the key as pressed
+	 * @param k Key
+	 * @param clientId Client that pressed the key
+	 * @return True if pressed; false if a key with the same id is already pressed or
+	 * the id is out of range
+	 */
+	boolean press(@NonNull MacroKey k, @NonNull String clientId) {
+		assert k != null && clientId != null;
+
+		Segment s = segment(k.getId());
+		if(s == null) {
+			return false;
+		}
+		int j = k.getId() % SEGMENT_SIZE;
+		if(lock(s, j) != UP) {
+			s.state.set(j, DOWN);
+			return false;
+		}
+		s.keys[j] = k;
+		s.owners[j] = clientId;
+		s.state.set(j, DOWN);
+		return true;
+	}
+
+
+	/**
+	 * Mark the key as released
+	 * @param id Id of the key
+	 * @param v Receiver of the key released and of its client, called after the release
+	 * @return True if released; false if not pressed
+	 */
+	boolean release(int id, @NonNull Visitor v) {
+		assert v != null;
+
+		Segment s = segment(id);
+		if(s == null) {
+			return false;
+		}
+		int j = id % SEGMENT_SIZE;
+		if(s.state.get(j) == UP) {
+			return false;
+		}
+		if(lock(s, j) != DOWN) {
+			s.state.set(j, UP);
+			return false;
+		}
+		MacroKey k = s.keys[j];
+		String clientId = s.owners[j];
+		s.keys[j] = null;
+		s.owners[j] = null;
+		s.state.set(j, UP);
+
+		v.released(k, clientId);
+		return true;
+	}
+
+
+	/**
+	 * @param id Id of the key
+	 * @return True if the key with the id is pressed
+	 */
+	boolean isDown(int id) {
+		Segment s = segment(id);
+		return s != null && s.state.get(id % SEGMENT_SIZE) != UP;
+	}
+
+
+	/**
+	 * Release the keys pressed by the client
+	 * @param clientId Id of the client; null for all the keys
+	 * @param v Receiver of every key released
+	 */
+	void releaseAll(String clientId, @NonNull Visitor v) {
+		for(int i = 0; i < segments.length(); i++) {
+			Segment s = segments.get(i);
+			if(s == null) {
+				continue;
+			}
+			for(int j = 0; j < SEGMENT_SIZE; j++) {
+				if(s.state.get(j) == UP) {
+					continue;
+				}
+				if(lock(s, j) != DOWN) {
+					s.state.set(j, UP);
+				} else if(clientId != null && !clientId.equals(s.owners[j])) {
+					s.state.set(j, DOWN);
+				} else {
+					MacroKey k = s.keys[j];
+					String owner = s.owners[j];
+					s.keys[j] = null;
+					s.owners[j] = null;
+					s.state.set(j, UP);
+					v.released(k, owner);
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Assign the keys pressed by a client to another one
+	 * @param from Id of the current client
+	 * @param to Id of the new client
+	 */
+	void transfer(@NonNull String from, @NonNull String to) {
+		assert from != null && to != null;
+
+		for(int i = 0; i < segments.length(); i++) {
+			Segment s = segments.get(i);
+			if(s == null) {
+				continue;
+			}
+			for(int j = 0; j < SEGMENT_SIZE; j++) {
+				if(s.state.get(j) == UP) {
+					continue;
+				}
+				int old = lock(s, j);
+				if(old == DOWN && from.equals(s.owners[j])) {
+					s.owners[j] = to;
+				}
+				s.state.set(j, old);
+			}
+		}
+	}
+
+
+	/**
+	 * @param id Id of a key
+	 * @return Segment of the key; null if not reserved or out of range
+	 */
+	private Segment segment(int id) {
+		if(id < 0 || id >= MAX_KEYS) {
+			return null;
+		}
+		return segments.get(id / SEGMENT_SIZE);
+	}
+
+
+	/**
+	 * Move the state of the slot to {@link #BUSY}, waiting the other threads
+	 * @param s Segment
+	 * @param j Index of the slot in the segment
+	 * @return State of the slot before
+	 */
+	private static int lock(@NonNull Segment s, int j) {
+		while(true) {
+			int old = s.state.get(j);
+			if(old == BUSY) {
+				Thread.yield();
+			} else if(s.state.compareAndSet(j, old, BUSY)) {
+				return old;
+			}
+		}
+	}
+
+
+
+	/** Receiver of the released keys */
+	interface Visitor {
+
+		/**
+		 * @param k Key released, as it was pressed
+		 * @param clientId Client that pressed the key
+		 */
+		void released(@NonNull MacroKey k, @NonNull String clientId);
+	}
+
+
+
+	/** Slots of {@link #SEGMENT_SIZE} consecutive ids */
+	private static final class Segment {
+		private final AtomicIntegerArray state = new AtomicIntegerArray(SEGMENT_SIZE);
+		private final MacroKey[] keys = new MacroKey[SEGMENT_SIZE];
+		private final String[] owners = new String[SEGMENT_SIZE];
+	}
+}
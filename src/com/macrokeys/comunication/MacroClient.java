@@ -1,16 +1,18 @@
 package com.macrokeys.comunication;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.HashSet;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Objects;
-import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 import org.eclipse.jdt.annotation.NonNull;
 import com.macrokeys.MSLoadException;
 import com.macrokeys.MacroKey;
 import com.macrokeys.MacroSetup;
+import com.macrokeys.MacroSetupPatch;
 import com.macrokeys.netcode.ConnectionNotSetException;
 
 /**
@@ -18,12 +20,92 @@ import com.macrokeys.netcode.ConnectionNotSetException;
  */
 public abstract class MacroClient {
 
+    /**
+     * Default of the first delay in ms of the automatic reconnection
+     */
+    public static final int DEFAULT_RECONNECT_INITIAL_DELAY = 50;
+
+    /**
+     * Default of the maximum delay in ms of the automatic reconnection
+     */
+    public static final int DEFAULT_RECONNECT_MAX_DELAY = 5000;
+
     /**
      * Identifiers of the actual pressed keys
      */
-    private final Set<MacroKey> pressedKeys = new HashSet<>();
+    private final BitSet pressedKeys = new BitSet();
+
+    /**
+     * Identifiers of the keys pressed for the server: differ from {@link #pressedKeys}
+     * while the connection is lost; guarded by {@code this}
+     */
+    private final BitSet sentKeys = new BitSet();
+
+    /**
+     * True after a connection until the key state is replayed to the server; guarded by {@code this}
+     */
+    private boolean replayPending = false;
+
+    /**
+     * True to reconnect automatically when the connection is lost
+     */
+    private volatile boolean autoReconnect = false;
+
+    private int reconnectInitialDelay = DEFAULT_RECONNECT_INITIAL_DELAY;
+    private int reconnectMaxDelay = DEFAULT_RECONNECT_MAX_DELAY;
+
+    /**
+     * Buffer of the key action to send; reused for every action
+     */
+    private final byte[] actionBuffer = new byte[KeyActionCodec.ACTION_LENGTH];
+
+    /**
+     * Buffer of the sequenced key action to send; reused for every action
+     */
+    private final byte[] stateBuffer = new byte[KeyActionCodec.SEQUENCED_ACTION_LENGTH];
+
+    /**
+     * Buffer of the batch of key actions to send; reused for every batch
+     */
+    private final byte[] batchBuffer = new byte[KeyActionCodec.MAX_MESSAGE_LENGTH];
+
+    /**
+     * Sequence number of the last key action sent, see {@link KeyActionCodec#TYPE_KEY_SEQUENCED};
+     * guarded by {@code this}
+     */
+    private int actionSequence = 0;
+
+    private volatile MessageProtocol messProt;
+
+    /**
+     * Capabilities of the server, see {@link SetupCodec}; 0 until the first setup
+     */
+    private volatile int serverCapabilities = 0;
+
+    /**
+     * Last setup received; patched in place by the following patches
+     */
+    private MacroSetup currentSetup;
+
+    /**
+     * True if a full setup was requested after a patch that could not be applied
+     */
+    private boolean resyncPending = false;
+
+    /**
+     * True if the capabilities of the client were sent to the server
+     */
+    private boolean helloSent = false;
+
+    /**
+     * Cache of the setups; null if none
+     */
+    private SetupCache setupCache;
 
-    private MessageProtocol messProt;
+    /**
+     * Token of the session given by the server, see {@link SetupCodec#CAP_SESSION}; null if none
+     */
+    private byte[] sessionToken;
 
     /**
      * Current state of the client
@@ -31,22 +113,163 @@ public abstract class MacroClient {
     private State state = State.NoConnection;
 
     /**
-     * Connects to the server
+     * Connects to the server. After a {@link #close()} the client connects again and
+     * resumes its session: the server keeps the keys pressed and sends the setup only
+     * if changed, see {@link #reciveMacroSetup()}
      * @throws IOException In case of an IO error
-     * @throws IllegalStateException If {@link #getState()} is not {@link State#NoConnection}
+     * @throws IllegalStateException If {@link #getState()} is {@link State#Comunication}
      * @see #getState()
      */
     public final void connectToServer() throws IOException {
-        if (!getState().equals(State.NoConnection)) {
+        if (getState().equals(State.Comunication)) {
             throw new IllegalStateException();
         }
-        assert this.messProt == null;
-        this.messProt = innerConnectToServer();
-        messProt.setInputKeepAlive(ComunicationParameters.TIMEOUT_MESSAGES);
-        messProt.setOutputKeepAlive(ComunicationParameters.TIMEOUT_MESSAGES);
+        assert this.messProt == null || getState().equals(State.Closed);
+        openConnection();
         state = State.Comunication;
     }
 
+    /**
+     * Opens a connection with the server and sends the early hello; the connection
+     * is closed if the hello fails
+     * @throws IOException In case of an IO error
+     */
+    private void openConnection() throws IOException {
+        MessageProtocol p = innerConnectToServer();
+        try {
+            p.setInputKeepAlive(ComunicationParameters.TIMEOUT_MESSAGES);
+            p.setOutputKeepAlive(ComunicationParameters.TIMEOUT_MESSAGES);
+            synchronized (this) {
+                messProt = p;
+                replayPending = true;
+                if (currentSetup == null || sessionToken == null) {
+                    // No session to resume: the server released the keys
+                    sentKeys.clear();
+                }
+            }
+            helloSent = false;
+            resyncPending = false;
+            sendEarlyHello();
+        } catch (IOException | RuntimeException e) {
+            try {
+                p.close();
+            } catch (IOException ex) {
+                // Already broken
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Sets the automatic reconnection: when the connection is lost the thread in
+     * {@link #reciveMacroSetup()} connects again, waiting between the attempts an exponential
+     * delay with jitter. Meanwhile the key actions are not sent but kept: at the reconnection
+     * only the keys still pressed are sent, and the ones released since the loss.
+     * @param enable True to enable
+     */
+    public final void setAutoReconnect(boolean enable) {
+        autoReconnect = enable;
+    }
+
+    /**
+     * @return True if the automatic reconnection is enabled
+     * @see #setAutoReconnect(boolean)
+     */
+    public final boolean isAutoReconnect() {
+        return autoReconnect;
+    }
+
+    /**
+     * Sets the delays of the automatic reconnection: the delay before an attempt is
+     * doubled after every failure, up to the maximum. The actual wait is between
+     * half the delay and the delay.
+     * @param initial Delay in ms of the first attempt
+     * @param max Maximum delay in ms
+     * @throws IllegalArgumentException If not 0 < {@code initial} <= {@code max}
+     */
+    public final synchronized void setReconnectDelay(int initial, int max) {
+        if (initial <= 0 || initial > max) {
+            throw new IllegalArgumentException("Delays " + initial + ", " + max);
+        }
+        reconnectInitialDelay = initial;
+        reconnectMaxDelay = max;
+    }
+
+    /**
+     * Sends the hello before the first setup: with the token of the session to resume it,
+     * and with the hash of the cached setup if the server is known to support the cache;
+     * the server then doesn't send the setup if it's unchanged
+     * @throws IOException In case of an IO error
+     */
+    private void sendEarlyHello() throws IOException {
+        // Resumed only with a setup to which apply the changes
+        byte[] token = currentSetup == null ? null : sessionToken;
+        byte[] hash = cachedHash();
+        if (hash == null && token == null) {
+            return;
+        }
+
+        enableFragmentation();
+        helloSent = true;
+        messProt.sendMessage(SetupCodec.encodeHello(SetupCodec.CAPABILITIES, hash, token));
+    }
+
+    /**
+     * Gets the hash of the setup of the server in the cache, if the server is known to
+     * support the cache; sets {@link #serverCapabilities} to the cached ones
+     * @return Hash of the cached setup; null if none
+     */
+    private byte[] cachedHash() {
+        String server = getServerId();
+        if (setupCache == null || server == null) {
+            return null;
+        }
+
+        byte[] hash;
+        int caps;
+        try {
+            hash = setupCache.lastHash(server);
+            caps = setupCache.capabilities(server);
+            if (hash == null || (caps & SetupCodec.CAP_SETUP_CACHE) == 0 || setupCache.get(hash) == null) {
+                return null;
+            }
+        } catch (IOException e) {
+            // Cache not available: the server sends the setup
+            return null;
+        }
+        serverCapabilities = caps;
+        return hash;
+    }
+
+    /**
+     * Sets the cache of the setups received from the servers; the cache is used only
+     * if {@link #getServerId()} is not null
+     * @param cache Cache; null for none
+     * @throws IllegalStateException If {@link #getState()} is not {@link State#NoConnection}
+     * @see #getState()
+     */
+    public final void setSetupCache(SetupCache cache) {
+        if (!getState().equals(State.NoConnection)) {
+            throw new IllegalStateException();
+        }
+        this.setupCache = cache;
+    }
+
+    /**
+     * @return Cache of the setups; null if none
+     */
+    public final SetupCache getSetupCache() {
+        return setupCache;
+    }
+
+    /**
+     * @return Identifier of the server in the {@link SetupCache}, stable between the
+     * connections; null to not use the cache
+     */
+    protected String getServerId() {
+        return null;
+    }
+
     /**
      * Connects to the server (implementation)
      * @return Communication interface with the server
@@ -57,16 +280,14 @@ public abstract class MacroClient {
      * Send the release of the key
      * @param macroKey Key released
      * @throws IOException If there is an IO error
+     * @throws IllegalArgumentException If the key has no id (not loaded from a {@link MacroSetup})
      * @throws IllegalStateException If {@link #getState()} is not {@link State#Communication}
      * @see #getState()
      */
     public synchronized final void keyUp(@NonNull MacroKey macroKey) throws IOException {
-        Objects.requireNonNull(macroKey);
-        if (!getState().equals(State.Comunication)) {
-            throw new IllegalStateException();
-        }
-        if (pressedKeys.contains(macroKey)) {
-            pressedKeys.remove(macroKey);
+        int id = checkKey(macroKey);
+        if (pressedKeys.get(id)) {
+            pressedKeys.clear(id);
             sendActionKey(macroKey, false);
         }
     }
@@ -75,22 +296,121 @@ public abstract class MacroClient {
      * Send the pression of the key
      * @param macroKey Key pressed
      * @throws IOException If there is an IO error
+     * @throws IllegalArgumentException If the key has no id (not loaded from a {@link MacroSetup})
      * @throws IllegalStateException If {@link #getState()} is not {@link State#Communication}
      * @see #getState()
      */
     public synchronized final void keyDown(@NonNull MacroKey macroKey) throws IOException {
+        int id = checkKey(macroKey);
+        if (!pressedKeys.get(id)) {
+            pressedKeys.set(id);
+            sendActionKey(macroKey, true);
+        }
+    }
+
+    /**
+     * Send the release and the pression of many keys as a single message; the server
+     * applies all the actions together, first the releases then the pressions in
+     * iteration order. Keys already in the requested state are ignored.
+     * <p>A batch of a single action, or any batch if the server doesn't support them,
+     * is sent as {@link #keyUp(MacroKey)} or {@link #keyDown(MacroKey)} actions.
+     * Sent with {@link MessageProtocol#sendMessage(byte[], int)}: a later single action sent with
+     * {@link MessageProtocol#sendState(int, byte[], int)} can overtake it, and the server ignores
+     * the older action of the key by its sequence number.</p>
+     * @param released Keys released
+     * @param pressed Keys pressed
+     * @throws IOException If there is an IO error
+     * @throws IllegalArgumentException If a key has no id (not loaded from a {@link MacroSetup})
+     * or if the keys are more than {@link KeyActionCodec#MAX_BATCH}
+     * @throws IllegalStateException If {@link #getState()} is not {@link State#Communication}
+     * @see #getState()
+     */
+    public synchronized final void keyBatch(@NonNull Collection<MacroKey> released,
+            @NonNull Collection<MacroKey> pressed) throws IOException {
+        Objects.requireNonNull(released);
+        Objects.requireNonNull(pressed);
+        if (released.size() + pressed.size() > KeyActionCodec.MAX_BATCH) {
+            throw new IllegalArgumentException("Too many keys in the batch");
+        }
+        for (MacroKey k : released) {
+            checkKey(k);
+        }
+        for (MacroKey k : pressed) {
+            checkKey(k);
+        }
+        boolean online = isConnected();
+        if (!online && !autoReconnect) {
+            throw new ConnectionNotSetException();
+        }
+
+        int count = 0;
+        for (MacroKey k : released) {
+            int id = k.getId();
+            if (pressedKeys.get(id)) {
+                pressedKeys.clear(id);
+                KeyActionCodec.encode(batchBuffer, KeyActionCodec.batchOffset(count++), id, false);
+            }
+        }
+        for (MacroKey k : pressed) {
+            int id = k.getId();
+            if (!pressedKeys.get(id)) {
+                pressedKeys.set(id);
+                KeyActionCodec.encode(batchBuffer, KeyActionCodec.batchOffset(count++), id, true);
+            }
+        }
+
+        if (!online) {
+            // Replayed at the reconnection
+            return;
+        }
+        try {
+            if (count == 1 || (serverCapabilities & SetupCodec.CAP_KEY_BATCH) == 0) {
+                // Single actions: the format understood by every server
+                for (int i = 0; i < count; i++) {
+                    int offset = KeyActionCodec.batchOffset(i);
+                    sendAction(KeyActionCodec.decodeId(batchBuffer, offset), KeyActionCodec.decodeDown(batchBuffer, offset));
+                }
+            } else if (count > 1) {
+                int length;
+                if ((serverCapabilities & SetupCodec.CAP_KEY_SEQUENCE) != 0) {
+                    length = KeyActionCodec.encodeSequenced(batchBuffer, count, actionSequence + 1);
+                    actionSequence += count;
+                } else {
+                    length = KeyActionCodec.encodeBatchHeader(batchBuffer, count);
+                }
+                messProt.sendMessage(batchBuffer, length);
+                for (int i = 0; i < count; i++) {
+                    int offset = KeyActionCodec.batchOffset(i);
+                    sentKeys.set(KeyActionCodec.decodeId(batchBuffer, offset), KeyActionCodec.decodeDown(batchBuffer, offset));
+                }
+            }
+        } catch (IOException e) {
+            connectionLost(e);
+        }
+    }
+
+    /**
+     * Checks the preconditions of an action on the key
+     * @param macroKey Key subject to the action
+     * @return Id of the key
+     * @throws IllegalArgumentException If the key has no id (not loaded from a {@link MacroSetup})
+     * @throws IllegalStateException If {@link #getState()} is not {@link State#Communication}
+     */
+    private int checkKey(@NonNull MacroKey macroKey) {
         Objects.requireNonNull(macroKey);
         if (!getState().equals(State.Comunication)) {
             throw new IllegalStateException();
         }
-        if (!pressedKeys.contains(macroKey)) {
-            pressedKeys.add(macroKey);
-            sendActionKey(macroKey, true);
+        int id = macroKey.getId();
+        if (id < 0) {
+            throw new IllegalArgumentException("The key has no id");
         }
+        return id;
     }
 
     /**
      * Send an action of the key
+     * <p>The caller must hold the lock of {@code this}</p>
      * @param mk the Key subject to the action
      * @param action True: pressed, released otherwise
      * @throws IOException In case of an IO error
@@ -98,16 +418,120 @@ public abstract class MacroClient {
     private void sendActionKey(@NonNull MacroKey mk, boolean action) throws IOException {
         Objects.requireNonNull(mk);
         if (isConnected()) {
-            ByteArrayOutputStream str = new ByteArrayOutputStream();
-            DataOutputStream dataStr = new DataOutputStream(str);
-            dataStr.writeInt(mk.getId());
-            dataStr.writeBoolean(action);
-            messProt.sendMessage(str.toByteArray());
-            dataStr.close();
-            str.close();
-        } else {
+            try {
+                sendAction(mk.getId(), action);
+            } catch (IOException e) {
+                connectionLost(e);
+            }
+        } else if (!autoReconnect) {
             throw new ConnectionNotSetException();
         }
+        // Else replayed at the reconnection
+    }
+
+    /**
+     * Send a single key action on the current connection. If the server orders the actions
+     * by their sequence number the action is sent as the state of the key, so it doesn't wait
+     * the lost actions of the other keys; otherwise it's sent in order with the other messages.
+     * <p>The action is encoded in {@link #stateBuffer} or {@link #actionBuffer}: the caller
+     * must hold the lock of {@code this}</p>
+     * @param id Id of the key
+     * @param down True: pressed, released otherwise
+     * @throws IOException In case of an IO error
+     */
+    private void sendAction(int id, boolean down) throws IOException {
+        if ((serverCapabilities & SetupCodec.CAP_KEY_SEQUENCE) != 0) {
+            KeyActionCodec.encode(stateBuffer, KeyActionCodec.batchOffset(0), id, down);
+            int length = KeyActionCodec.encodeSequenced(stateBuffer, 1, ++actionSequence);
+            // The action supersedes the previous ones of the key
+            messProt.sendState(id, stateBuffer, length);
+        } else {
+            KeyActionCodec.encode(actionBuffer, 0, id, down);
+            messProt.sendMessage(actionBuffer, KeyActionCodec.ACTION_LENGTH);
+        }
+        sentKeys.set(id, down);
+    }
+
+    /**
+     * Handles the failure of a send: with the automatic reconnection the connection is
+     * closed, so the thread in {@link #reciveMacroSetup()} reconnects, and the action
+     * is replayed at the reconnection
+     * @param e Error of the send
+     * @throws IOException {@code e} if the automatic reconnection is disabled
+     */
+    private void connectionLost(@NonNull IOException e) throws IOException {
+        if (!autoReconnect) {
+            throw e;
+        }
+        try {
+            messProt.close();
+        } catch (IOException ex) {
+            // Already broken
+        }
+    }
+
+    /**
+     * Sends to the server the key state changed while the connection was lost: the
+     * pressions of the keys still pressed and the releases of the ones released.
+     * The keys not in the current setup are forgotten.
+     * @throws IOException In case of an IO error
+     */
+    private synchronized void replayKeys() throws IOException {
+        if (!replayPending) {
+            return;
+        }
+        replayPending = false;
+
+        BitSet changed = (BitSet) pressedKeys.clone();
+        changed.xor(sentKeys);
+        for (int id = changed.nextSetBit(0); id >= 0; id = changed.nextSetBit(id + 1)) {
+            if (currentSetup == null || currentSetup.macroKeyFromID(id) == null) {
+                pressedKeys.clear(id);
+                sentKeys.clear(id);
+                continue;
+            }
+            sendAction(id, pressedKeys.get(id));
+        }
+    }
+
+    /**
+     * Connects again to the server after the loss of the connection, waiting an
+     * exponential delay with jitter before every attempt
+     * @throws IOException If the client was closed or the thread interrupted
+     */
+    private void reconnect() throws IOException {
+        try {
+            messProt.close();
+        } catch (IOException e) {
+            // Already broken
+        }
+
+        int delay, max;
+        synchronized (this) {
+            delay = reconnectInitialDelay;
+            max = reconnectMaxDelay;
+        }
+        while (true) {
+            // Random half of the delay: the clients that lost the connection together,
+            // like on the restart of the server, don't reconnect together
+            long wait = delay / 2 + ThreadLocalRandom.current().nextInt(delay / 2 + 1);
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Reconnection interrupted");
+            }
+            if (!getState().equals(State.Comunication)) {
+                throw new IOException("Client closed");
+            }
+
+            try {
+                openConnection();
+                return;
+            } catch (IOException e) {
+                delay = (int) Math.min(max, 2L * delay);
+            }
+        }
     }
 
     /**
@@ -120,6 +544,11 @@ public abstract class MacroClient {
     /**
      * Receive the {@link MacroSetup} sent by the server
      * <p>This is a sync method that waits until the server send the key</p>
+     * <p>A change of the setup can be sent as a patch of the previous one: in that case the
+     * instance returned by the previous call is updated in place and returned again.
+     * If the patch can't be applied the whole setup is requested to the server.</p>
+     * <p>With {@link #setAutoReconnect(boolean)} the connection lost is established again
+     * in this method, that returns the setup after the reconnection.</p>
      * @return the Setup sent by the server
      * @throws IOException In case of an IO error
      * @throws MSLoadException In case of error in the loading of the {@link MacroSetup}
@@ -127,18 +556,135 @@ public abstract class MacroClient {
      * @see #getState()
      */
     public final MacroSetup reciveMacroSetup() throws IOException, MSLoadException {
-        if (!isConnected()) {
+        if (!isConnected() && !autoReconnect) {
             return null;
         } else if (!getState().equals(State.Comunication)) {
             throw new IllegalStateException();
         }
-        byte[] payload = messProt.receiveMessage();
-        ByteArrayInputStream str = new ByteArrayInputStream(payload);
+        while (true) {
+            try {
+                if (!isConnected()) {
+                    throw new IOException("Connection lost");
+                }
+                MacroSetup m = receiveSetup();
+                replayKeys();
+                return m;
+            } catch (IOException e) {
+                if (!autoReconnect || !getState().equals(State.Comunication)) {
+                    throw e;
+                }
+                reconnect();
+            }
+        }
+    }
+
+    /**
+     * Receive the next setup from the current connection
+     * @return the Setup sent by the server
+     * @throws IOException In case of an IO error
+     * @throws MSLoadException In case of error in the loading of the {@link MacroSetup}
+     */
+    private MacroSetup receiveSetup() throws IOException, MSLoadException {
+        while (true) {
+            byte[] payload = messProt.receiveMessage();
+            if (SetupCodec.isFullSetup(payload)) {
+                int caps = SetupCodec.fullSetupCapabilities(payload);
+                if (caps >= 0 && !helloSent) {
+                    // The server knows the capabilities: answers with the ones of the client
+                    helloSent = true;
+                    messProt.sendMessage(SetupCodec.encodeHello(SetupCodec.CAPABILITIES, null));
+                }
+                serverCapabilities = Math.max(caps, 0);
+                enableFragmentation();
+                return loadSetup(SetupCodec.fullSetupData(payload));
+            } else if (payload.length > 0 && payload[0] == SetupCodec.TYPE_SETUP_DEFLATE) {
+                try {
+                    return loadSetup(SetupCodec.decodeDeflatedSetup(payload));
+                } catch (MSLoadException e) {
+                    requestResync();
+                }
+            } else if (payload.length > 0 && payload[0] == SetupCodec.TYPE_SETUP_CACHED) {
+                byte[] data = null;
+                try {
+                    data = setupCache == null ? null : setupCache.get(SetupCodec.cachedHash(payload));
+                } catch (IOException | MSLoadException e) {
+                    // Requested to the server
+                }
+                if (data != null) {
+                    return loadSetup(data);
+                }
+                requestResync();
+            } else if (payload.length > 0 && payload[0] == SetupCodec.TYPE_SESSION) {
+                int flags = SetupCodec.sessionFlags(payload);
+                byte[] token = SetupCodec.sessionToken(payload);
+                if (sessionToken != null && !Arrays.equals(sessionToken, token)) {
+                    // New session: the server released the keys of the previous one
+                    synchronized (this) {
+                        sentKeys.clear();
+                    }
+                }
+                sessionToken = token;
+                if ((flags & SetupCodec.SESSION_RESUMED) != 0 && currentSetup != null) {
+                    return currentSetup;
+                }
+            } else if (payload.length > 0 && payload[0] == SetupCodec.TYPE_SETUP_PATCH
+                    && currentSetup != null && !resyncPending) {
+                try {
+                    MacroSetupPatch p = MacroSetupPatch.load(payload, 1, payload.length - 1);
+                    p.applyTo(currentSetup);
+                    return currentSetup;
+                } catch (MSLoadException e) {
+                    requestResync();
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads the setup received and stores it in the cache
+     * @param data Serialized setup
+     * @return The setup
+     * @throws IOException In case of an IO error
+     * @throws MSLoadException In case of error in the loading of the {@link MacroSetup}
+     */
+    private MacroSetup loadSetup(@NonNull byte[] data) throws IOException, MSLoadException {
+        ByteArrayInputStream str = new ByteArrayInputStream(data);
         MacroSetup m = MacroSetup.load(str);
         str.close();
+        currentSetup = m;
+        resyncPending = false;
+
+        String server = getServerId();
+        if (setupCache != null && server != null && (serverCapabilities & SetupCodec.CAP_SETUP_CACHE) != 0) {
+            try {
+                setupCache.put(server, data, serverCapabilities);
+            } catch (IOException e) {
+                // The cache is optional
+            }
+        }
         return m;
     }
 
+    /**
+     * Requests the uncompressed full setup after a setup message that could not be loaded
+     * @throws IOException In case of an IO error
+     */
+    private void requestResync() throws IOException {
+        if (!resyncPending) {
+            resyncPending = true;
+            messProt.sendMessage(new byte[] { (byte) KeyActionCodec.TYPE_SETUP_RESYNC });
+        }
+    }
+
+    /**
+     * Enables the fragmentation of the long messages if the server can receive them
+     */
+    private void enableFragmentation() {
+        if ((serverCapabilities & SetupCodec.CAP_FRAGMENTS) != 0) {
+            messProt.setFragmentation(true);
+        }
+    }
+
     /**
      * @return True if the connection with the server is established
      */
@@ -174,7 +720,7 @@ public abstract class MacroClient {
          */
         Comunication,
         /**
-         * The connection with the server is closed
+         * The connection with the server is closed; the client can connect again
          */
         Closed
     }
@@ -3,22 +3,36 @@ package com.macrokeys.comunication;
 import java.awt.AWTException;
 import java.awt.Robot;
 import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
+import java.security.SecureRandom;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.eclipse.jdt.annotation.NonNull;
 
 import com.macrokeys.MacroKey;
 import com.macrokeys.MacroKeyType;
-import com.macrokeys.LimitedKeySequence;
+import com.macrokeys.KeySequencePlan;
+import com.macrokeys.MSLoadException;
 import com.macrokeys.MacroSetup;
+import com.macrokeys.MacroSetupPatch;
 
 /**
  * Abstract class for a server that sends {@link MacroSetup} at the {@link MacroClient}
@@ -26,30 +40,55 @@ import com.macrokeys.MacroSetup;
  */
 public abstract class MacroServer {
 	
-	/** Actuator of the keystrokes */
-	private final KeyPresser keyPresser;
+	/** Output stage of the keystrokes, executed by {@link #keyOutputThread} */
+	private final KeyDispatcher keyOutput;
+	
+	/** Thread that executes the keystrokes of {@link #keyOutput}; created at the {@link #start()} */
+	private Thread keyOutputThread;
 	
 	/** Listener for the event of {@code this}; never null */
 	private final List<EventListener> eventListeners = new ArrayList<>();
 	
 	
 	/** {@link MacroKey} currently pressed (key down) */
-	private final HashMap<MacroKey, KeyDown> pressedKeys = new HashMap<>();
+	private final KeyStateTable pressedKeys = new KeyStateTable();
+	
+	/** Executes the release of the keys removed from {@link #pressedKeys} */
+	private final KeyStateTable.Visitor releaser = new KeyStateTable.Visitor() {
+		@Override
+		public void released(@NonNull MacroKey k, @NonNull String clientId) {
+			releasePressedKey(k, clientId);
+		}
+	};
+	
+	/** Repeater of the held {@link MacroKeyType#Normal} keys */
+	private final KeyRepeater keyRepeater = new KeyRepeater(new KeyRepeater.Action() {
+		@Override
+		public void keystroke(@NonNull MacroKey k) {
+			pressAndReleaseKey(k);
+		}
+	});
 	
 	/** Thread for the pression of {@link MacroKeyType#Normal} keys */
-	private final Thread normalPresser = new Thread(new ThreadRunnable());
+	private final Thread normalPresser = new Thread(keyRepeater);
 	
 	/** Flag for the suspended mode of the server */
 	private boolean suspend = false;
 	
-	/** Setup currently used; never null */
-	private MacroSetup setup;
+	/**
+	 * Setup currently used; never null. Volatile: read by the threads of the
+	 * connections and of the broadcasts
+	 */
+	private volatile MacroSetup setup;
 	
 	/** 
 	 * Data rapresenting the {@link MacroSetup} currently used,
 	 * get from {@link #setup}; never null
 	 */
-	private byte[] macroSetupData;
+	private volatile byte[] macroSetupData;
+	
+	/** Version of the setup sent to the clients; never null */
+	private volatile SetupVersion setupVersion;
 	
 	
 	
@@ -66,34 +105,123 @@ public abstract class MacroServer {
 	private final ConcurrentHashMap<String, ClientInfo> clients =
 			new ConcurrentHashMap<>();
 	
+	/**
+	 * Connections with the clients, including the ones that are resuming a session;
+	 * the key is the id of the connection, see {@link ClientInfo#connectionId}
+	 */
+	private final ConcurrentHashMap<String, ClientInfo> connections =
+			new ConcurrentHashMap<>();
+	
+	/** Clients with a session; the key is the token of the session in Base64 */
+	private final ConcurrentHashMap<String, ClientInfo> sessions =
+			new ConcurrentHashMap<>();
+	
+	/** Generator of the tokens of the sessions */
+	private final SecureRandom tokenRandom = new SecureRandom();
+	
+	/** Number of the connections with an id already in use, to give them a distinct one */
+	private final AtomicLong resumingConnections = new AtomicLong(0);
+	
 	
 	/** Current state of the server */
 	private State state = State.WaitStart;
 	
+	/** Factory of the threads that serve the clients and generate the events; never null */
+	private ThreadFactory threadFactory = DEFAULT_THREAD_FACTORY;
+	
+	/** Time in ms to wait the hello of a new client before sending it the setup */
+	private int helloTimeout = DEFAULT_HELLO_TIMEOUT;
+	
+	/** Default of {@link #helloTimeout} */
+	private static final int DEFAULT_HELLO_TIMEOUT = 50;
+	
+	/**
+	 * Timer of the sessions of the clients; created at the {@link #start()}, before
+	 * the first client can connect
+	 */
+	private volatile ScheduledExecutorService sessionTimer;
+	
+	/** Time in ms given to a client to receive a changed setup */
+	private int broadcastTimeout = DEFAULT_BROADCAST_TIMEOUT;
+	
+	/** Default of {@link #broadcastTimeout} */
+	private static final int DEFAULT_BROADCAST_TIMEOUT = 2000;
+	
+	/**
+	 * Threads of the sends to the clients: broadcasts of the changed setups and
+	 * writers of the outbound queues; created at the {@link #start()}, before the
+	 * first client can connect
+	 */
+	private volatile ExecutorService sendExecutor;
+	
+	/**
+	 * Buffers of the messages received from the clients, shared by all the clients:
+	 * a buffer is in use only while its message is handled
+	 */
+	private final BufferPool receivePool = new BufferPool(KeyActionCodec.MAX_MESSAGE_LENGTH,
+			RECEIVE_POOL_SIZE, false);
+	
+	/** Time in ms given at the close to the key output to execute the queued keystrokes */
+	private static final int KEY_OUTPUT_CLOSE_TIMEOUT = 1000;
+	
+	/** Maximum number of buffers kept in {@link #receivePool} */
+	private static final int RECEIVE_POOL_SIZE = 64;
+	
+	/** Key of the self-contained setup messages: a newer one replaces the queued one */
+	private static final int SETUP_STATE_KEY = 0;
+	
+	/** Limits of the outbound queues of the clients, see {@link QueuedMessageProtocol} */
+	private int outboundLowWatermark = QueuedMessageProtocol.DEFAULT_LOW_WATERMARK;
+	private int outboundHighWatermark = QueuedMessageProtocol.DEFAULT_HIGH_WATERMARK;
+	private int outboundCapacity = QueuedMessageProtocol.DEFAULT_CAPACITY;
+	
+	/** Time in ms a client is kept with the outbound queue above the high watermark */
+	private int evictionTime = QueuedMessageProtocol.DEFAULT_EVICTION_TIME;
+	
+	/** Factory of platform threads, the default of {@link #threadFactory} */
+	private static final ThreadFactory DEFAULT_THREAD_FACTORY = new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			return new Thread(r);
+		}
+	};
+	
 	
 	/**
 	 * @param setup Initial setup
 	 * @throws AWTException In case of error whili initializing an instance of {@link Robot}
 	 */
 	public MacroServer(@NonNull MacroSetup setup) throws AWTException {
+		this(setup, new RobotKeyPresser());
+	}
+	
+	
+	/**
+	 * @param setup Initial setup
+	 * @param keyPresser Backend of the keystrokes
+	 */
+	public MacroServer(@NonNull MacroSetup setup, @NonNull KeyPresser keyPresser) {
 		Objects.requireNonNull(setup);
+		Objects.requireNonNull(keyPresser);
 		
 		this.setup = setup;
 		try {
 			this.macroSetupData = setup.saveAsByteArray();
-		} catch (IOException e) {
+			this.setupVersion = new SetupVersion(macroSetupData, null);
+			pressedKeys.reserve(setup);
+		} catch (IOException | MSLoadException e) {
 			e.printStackTrace();
 			assert false : "Should not happend";
 		}
-		keyPresser = new KeyPresser();
+		keyOutput = new KeyDispatcher(keyPresser, KeyDispatcher.DEFAULT_CAPACITY);
 	}
 	
 	@Override
 	protected void finalize() throws Throwable {
 		normalPresser.interrupt();
-		for(MacroKey k : pressedKeys.keySet()) {
-			releaseKey(k);
-		}
+		pressedKeys.releaseAll(null, releaser);
+		// Executes the releases; nothing if already closed
+		keyOutput.close(KEY_OUTPUT_CLOSE_TIMEOUT);
 	}
 	
 	
@@ -112,23 +240,36 @@ public abstract class MacroServer {
 		}
 		
 		
-		innerStart();
+		// Used by the first client, that can connect as soon as innerStart() listens
+		sessionTimer = Executors.newSingleThreadScheduledExecutor(threadFactory);
+		sendExecutor = Executors.newCachedThreadPool(threadFactory);
+		try {
+			innerStart();
+		} catch(IOException | RuntimeException e) {
+			sessionTimer.shutdownNow();
+			sendExecutor.shutdownNow();
+			throw e;
+		}
 		
+		keyOutputThread = threadFactory.newThread(keyOutput);
+		keyOutputThread.start();
 		normalPresser.start();
 		
-		threadListener = new Thread() {
-			@Override
-			public void run() {
-				newClientListener();
-			}
-		};
+		if(!isEventDriven()) {
+			threadListener = new Thread() {
+				@Override
+				public void run() {
+					newClientListener();
+				}
+			};
+			threadListener.start();
+		}
 		threadIntroduce = new Thread() {
 			@Override
 			public void run() {
 				introduceServerToClient();
 			}
 		};
-		threadListener.start();
 		threadIntroduce.start();
 		
 		state = State.Functional;
@@ -137,198 +278,846 @@ public abstract class MacroServer {
 	
 	
 	/**
-	 * Init the server; the server start to listen to the incoming client requests
-	 * @throws IOException In case of an IO error
+	 * Init the server; the server start to listen to the incoming client requests
+	 * @throws IOException In case of an IO error
+	 */
+	protected abstract void innerStart() throws IOException;
+	
+	
+	
+	/**
+	 * @return Current state of the server
+	 */
+	public final State getState() {
+		return state;
+	}
+	
+	
+	
+	/**
+	 * Sets the factory of the threads that serve the clients and generate the
+	 * connection events; for example a factory of virtual threads.
+	 * By default every thread is a new platform thread.
+	 * @param f Factory of threads
+	 * @throws IllegalStateException If {@code this} is not in the state
+	 * {@link State#WaitStart}
+	 * @see #getState()
+	 */
+	public final void setThreadFactory(@NonNull ThreadFactory f) {
+		Objects.requireNonNull(f);
+		if(!getState().equals(State.WaitStart)) {
+			throw new IllegalStateException();
+		}
+		threadFactory = f;
+	}
+	
+	
+	/**
+	 * @return Factory of the threads that serve the clients; never null
+	 */
+	public final @NonNull ThreadFactory getThreadFactory() {
+		return threadFactory;
+	}
+	
+	
+	
+	/**
+	 * Sets the time to wait the hello of a new client before sending it the setup.
+	 * A client with the setup in its {@link SetupCache} sends the hello at the connection
+	 * and skips the transfer of the setup; the other clients receive the setup after
+	 * this time. 0 sends the setup at the connection, disabling the cache.
+	 * @param ms Time in ms; 50 by default
+	 * @throws IllegalArgumentException If {@code ms} < 0
+	 * @throws IllegalStateException If {@code this} is not in the state
+	 * {@link State#WaitStart}
+	 * @see #getState()
+	 */
+	public final void setHelloTimeout(int ms) {
+		if(ms < 0) {
+			throw new IllegalArgumentException("Time must be >= 0");
+		}
+		if(!getState().equals(State.WaitStart)) {
+			throw new IllegalStateException();
+		}
+		helloTimeout = ms;
+	}
+	
+	
+	/**
+	 * @return Time in ms to wait the hello of a new client before sending it the setup
+	 */
+	public final int getHelloTimeout() {
+		return helloTimeout;
+	}
+	
+	
+	
+	/**
+	 * Sets the time given to every client to receive a setup changed with
+	 * {@link #changeMacroSetup(MacroSetup)}; the clients that exceed it are disconnected
+	 * @param ms Time in ms; 2000 by default
+	 * @throws IllegalArgumentException If {@code ms} <= 0
+	 * @throws IllegalStateException If {@code this} is not in the state
+	 * {@link State#WaitStart}
+	 * @see #getState()
+	 */
+	public final void setBroadcastTimeout(int ms) {
+		if(ms <= 0) {
+			throw new IllegalArgumentException("Time must be > 0");
+		}
+		if(!getState().equals(State.WaitStart)) {
+			throw new IllegalStateException();
+		}
+		broadcastTimeout = ms;
+	}
+	
+	
+	/**
+	 * @return Time in ms given to every client to receive a changed setup
+	 */
+	public final int getBroadcastTimeout() {
+		return broadcastTimeout;
+	}
+	
+	
+	/**
+	 * @return Number of the key commands (press or release of a sequence) received from
+	 * the clients and waiting to be executed
+	 */
+	public final int getKeyQueueDepth() {
+		return keyOutput.getQueueDepth();
+	}
+	
+	
+	/**
+	 * @return Number of the key commands executed
+	 */
+	public final long getKeyDispatchCount() {
+		return keyOutput.getExecuted();
+	}
+	
+	
+	/**
+	 * @return Mean time in ns from the receive of a key command to its execution
+	 */
+	public final long getKeyDispatchLatency() {
+		return keyOutput.getMeanLatency();
+	}
+	
+	
+	/**
+	 * @return Maximum time in ns from the receive of a key command to its execution
+	 */
+	public final long getKeyDispatchMaxLatency() {
+		return keyOutput.getMaxLatency();
+	}
+	
+	
+	
+	/**
+	 * Sets the limits of the outbound queue of every client. A client with more than
+	 * {@code high} bytes queued is congested until it drains below {@code low}; the client
+	 * is disconnected if it stays congested longer than {@code evictionTime} or
+	 * if its queue exceeds {@code capacity}.
+	 * @param low Low watermark in bytes
+	 * @param high High watermark in bytes
+	 * @param capacity Maximum bytes queued
+	 * @param evictionTime Time in ms
+	 * @throws IllegalArgumentException If not 0 <= {@code low} < {@code high} <= {@code capacity}
+	 * or if {@code evictionTime} <= 0
+	 * @throws IllegalStateException If {@code this} is not in the state
+	 * {@link State#WaitStart}
+	 * @see #getState()
+	 */
+	public final void setOutboundQueueLimits(int low, int high, int capacity, int evictionTime) {
+		if(low < 0 || low >= high || high > capacity) {
+			throw new IllegalArgumentException("Watermarks " + low + ", " + high + ", " + capacity);
+		}
+		if(evictionTime <= 0) {
+			throw new IllegalArgumentException("Time must be > 0");
+		}
+		if(!getState().equals(State.WaitStart)) {
+			throw new IllegalStateException();
+		}
+		this.outboundLowWatermark = low;
+		this.outboundHighWatermark = high;
+		this.outboundCapacity = capacity;
+		this.evictionTime = evictionTime;
+	}
+	
+	
+	/**
+	 * @param clientId Id of the client
+	 * @return Bytes queued for the client and not written yet; -1 if the client is not connected
+	 */
+	public final int getQueuedBytes(@NonNull String clientId) {
+		Objects.requireNonNull(clientId);
+		
+		ClientInfo info = clients.get(clientId);
+		return info == null ? -1 : info.messProt.getQueuedBytes();
+	}
+	
+	
+	/**
+	 * @param clientId Id of the client
+	 * @return Messages queued for the client and not written yet; -1 if the client is not connected
+	 */
+	public final int getQueuedMessages(@NonNull String clientId) {
+		Objects.requireNonNull(clientId);
+		
+		ClientInfo info = clients.get(clientId);
+		return info == null ? -1 : info.messProt.getQueuedMessages();
+	}
+	
+	
+	/**
+	 * @param clientId Id of the client
+	 * @return True if the outbound queue of the client is congested; false if not
+	 * connected
+	 * @see QueuedMessageProtocol#isCongested()
+	 */
+	public final boolean isCongested(@NonNull String clientId) {
+		Objects.requireNonNull(clientId);
+		
+		ClientInfo info = clients.get(clientId);
+		return info != null && info.messProt.isCongested();
+	}
+	
+	
+	
+	/**
+	 * Informs the client that this machine offer this serive
+	 * <p>
+	 * Executent in a dedicated thread
+	 * </p>
+	 */
+	protected abstract void introduceServerToClient();
+	
+	
+	
+	
+	/**
+	 * Waits new client's connections
+	 * <p>
+	 * Executed in the thread {@link #threadListener}
+	 * </p>
+	 */
+	private void newClientListener() {
+		while(!threadListener.isInterrupted()) {
+			final MessageProtocol messProt;
+			
+			try {
+				messProt = waitNewClientConnection();
+			} catch(IOException e) {
+				continue;
+			}
+			
+			final ClientInfo info = acceptClient(messProt);
+			if(info == null) {
+				continue;
+			}
+			
+			// Server thread for the client
+			Thread th = threadFactory.newThread(new Runnable() {
+				@Override
+				public void run() {
+					serveClient(info);
+				}
+			});
+			th.start();
+		}
+		
+	}
+	
+	
+	
+	/**
+	 * Log-in the newly connected client and register it in {@link #clients}.
+	 * The connection event is generated in a separate thread.
+	 * @param messProt Comunication layer with the client
+	 * @return Informations of the client; null if the client was refused
+	 */
+	private ClientInfo acceptClient(@NonNull MessageProtocol messProt) {
+		assert messProt != null;
+		
+		if(!isSeekConnection()) {
+			try {
+				messProt.close();
+			} catch (IOException e) {
+				// Nothing
+			}
+			return null;
+		}
+		
+		// Set timeout for the comunication
+		messProt.setInputKeepAlive(ComunicationParameters.TIMEOUT_MESSAGES);
+		messProt.setOutputKeepAlive(ComunicationParameters.TIMEOUT_MESSAGES);
+		
+		String clientId;
+		try {
+			clientId = loginClient(messProt);
+		} catch(IOException e) {
+			return null;
+		}
+		
+		QueuedMessageProtocol queue = new QueuedMessageProtocol(messProt, sendExecutor, sessionTimer);
+		queue.setCapacity(outboundCapacity);
+		queue.setWatermarks(outboundLowWatermark, outboundHighWatermark);
+		queue.setEvictionTime(evictionTime);
+		ClientInfo newInfo = new ClientInfo(clientId, clientId, queue);
+		if(clients.putIfAbsent(clientId, newInfo) != null) {
+			// Client already logged-in, maybe a stale connection: the new one is kept
+			// only if it resumes the session in its hello
+			newInfo = new ClientInfo(clientId,
+					clientId + "#" + resumingConnections.incrementAndGet(), queue);
+			newInfo.resuming = true;
+		}
+		final ClientInfo info = newInfo;
+		connections.put(info.connectionId, info);
+		if(info.resuming) {
+			return info;
+		}
+		
+		// Fire the event for the new connection of a client.
+		// Done it in a separate thread to relieve this thread and avoid interruption caused by exceptions.
+		Thread startEvents = threadFactory.newThread(new Runnable() {
+			@Override
+			public void run() {
+				fireClientConnectListener(info.clientId);
+			}
+		});
+		startEvents.start();
+		
+		return info;
+	}
+	
+	
+	/**
+	 * Serve the given client. In particular it handles the exceptions
+	 * of {@link #ServeClientExceptions(ClientInfo)}
+	 * @param info The client to serve
+	 * @see #ServeClientExceptions(ClientInfo)
+	 */
+	private void serveClient(@NonNull ClientInfo info) {		
+		try {
+			serveClientExceptions(info);
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				info.messProt.close();
+			} catch (IOException e) { }
+			
+			removeClient(info);
+		}
+	}
+	
+	
+	
+	/**
+	 * Remove the client from {@link #clients}, release the keys pressed by it
+	 * and generate the disconnection event
+	 * @param info Client disconnected
+	 */
+	private void removeClient(@NonNull ClientInfo info) {
+		assert info != null;
+		
+		// Rimuovo le infirmazioni del client dalla lista
+		connections.remove(info.connectionId, info);
+		if(!clients.remove(info.clientId, info)) {
+			// Not logged-in or its session was resumed by another connection
+			return;
+		}
+		String token = info.sessionKey();
+		if(token != null) {
+			sessions.remove(token, info);
+		}
+		
+		// Rilascio i tasti premuti dal client che si è disconnesso
+		pressedKeys.releaseAll(info.clientId, releaser);
+		
+		// Genero l'evento di disconnessione
+		fireClientDisconnectListener(info.clientId);
+	}
+	
+	
+	
+	/**
+	 * Login for the client
+	 * @param messProt Comunication layer with the client
+	 * @return Id of the client
+	 * @throws IOException In case of IO error
+	 */
+	private String loginClient(MessageProtocol messProt) throws IOException {
+		// TODO: identify the client and implement securety
+		return messProt.toString();
+	}
+
+	/**
+	 * Handles the input of the given client
+	 * @param info Client to handle
+	 * @throws IOException In case of IO error
+	 */
+	private void serveClientExceptions(@NonNull ClientInfo info)
+			throws IOException {
+		assert info != null;
+		
+		beginSession(info);
+		
+		// Receive the request from the client
+		while(info.messProt.isConnected()) {
+			MessageLease l = info.messProt.receiveMessage(receivePool);
+			try {
+				handleMessage(info, l.getBuffer().array(), l.getLength());
+			} finally {
+				l.close();
+			}
+		}
+	}
+	
+	
+	
+	/**
+	 * Start the session with a newly logged-in client: the setup is sent at the hello
+	 * of the client or after {@link #getHelloTimeout()}
+	 * @param info Client to start
+	 * @throws IOException In case of IO error
+	 */
+	private void beginSession(@NonNull final ClientInfo info) throws IOException {
+		assert info != null;
+		assert getMacroSetup() != null;
+		
+		if(helloTimeout == 0 && !info.resuming) {
+			sendFullSetup(info, null);
+			return;
+		}
+		
+		// The clients that don't send the hello receive the setup after the timeout;
+		// the ones that had to resume a session are closed
+		int timeout = helloTimeout == 0 ? DEFAULT_HELLO_TIMEOUT : helloTimeout;
+		sessionTimer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					synchronized(info) {
+						if(info.resuming) {
+							throw new IOException("Client " + info.clientId + " already logged-in");
+						} else if(!info.setupSent) {
+							sendFullSetup(info, null);
+						}
+					}
+				} catch(IOException e) {
+					clientClose(info);
+				}
+			}
+		}, timeout, TimeUnit.MILLISECONDS);
+	}
+	
+	
+	
+	/**
+	 * Send the current setup to the client, whole with the capabilities of the server
+	 * @param info Client
+	 * @param c Notified when the setup is written or discarded; null for none
+	 * @throws IOException In case of IO error
+	 */
+	private void sendFullSetup(@NonNull ClientInfo info, QueuedMessageProtocol.Completion c)
+			throws IOException {
+		assert info != null;
+		
+		synchronized(info) {
+			SetupVersion v = setupVersion;
+			info.setupChecksum = v.checksum;
+			info.setupSent = true;
+			info.messProt.sendState(SETUP_STATE_KEY, v.fullMessage, v.fullMessage.length, c);
+		}
+	}
+	
+	
+	
+	/**
+	 * Send the setup to the client, compressed if supported by the client
+	 * @param info Client
+	 * @param v Setup to send
+	 * @param c Notified when the setup is written or discarded; null for none
+	 * @throws IOException In case of IO error
+	 */
+	private void sendSetup(@NonNull ClientInfo info, @NonNull SetupVersion v,
+			QueuedMessageProtocol.Completion c) throws IOException {
+		assert Thread.holdsLock(info);
+		
+		if(v.deflatedMessage != null && (info.capabilities & SetupCodec.CAP_SETUP_DEFLATE) != 0) {
+			info.setupChecksum = v.checksum;
+			info.setupSent = true;
+			info.messProt.sendState(SETUP_STATE_KEY, v.deflatedMessage, v.deflatedMessage.length, c);
+		} else {
+			sendFullSetup(info, c);
+		}
+	}
+	
+	
+	
+	/**
+	 * Handles the hello of the client. The first setup is sent if not already sent:
+	 * nothing but a confirmation if the client has it in the cache
+	 * @param info Client
+	 * @param mess The hello
+	 * @param length Length of the hello
+	 * @throws IOException In case of IO error or if the hello is malformed
+	 */
+	private void handleHello(@NonNull ClientInfo info, @NonNull byte[] mess, int length)
+			throws IOException {
+		try {
+			info.capabilities = SetupCodec.helloCapabilities(mess, length);
+		} catch(IllegalArgumentException e) {
+			throw new IOException(e.getMessage());
+		}
+		if((info.capabilities & SetupCodec.CAP_FRAGMENTS) != 0) {
+			info.messProt.setFragmentation(true);
+		}
+		
+		byte[] token = SetupCodec.helloToken(mess, length);
+		if(token != null && resumeSession(info, token)) {
+			return;
+		}
+		if(info.resuming) {
+			// No session to resume: accepted only if the other connection is gone
+			synchronized(info) {
+				if(clients.putIfAbsent(info.clientId, info) != null) {
+					throw new IOException("Client " + info.clientId + " already logged-in");
+				}
+				info.resuming = false;
+			}
+			fireClientConnectListener(info.clientId);
+		}
+		
+		byte[] hash = SetupCodec.helloHash(mess, length);
+		synchronized(info) {
+			if((info.capabilities & SetupCodec.CAP_SESSION) != 0 && info.token == null) {
+				info.token = new byte[SetupCodec.TOKEN_LENGTH];
+				tokenRandom.nextBytes(info.token);
+				sessions.put(info.sessionKey(), info);
+				info.messProt.sendMessage(SetupCodec.encodeSession(0, info.token));
+			}
+			
+			if(info.setupSent) {
+				return;
+			}
+			
+			SetupVersion v = setupVersion;
+			if(hash != null && Arrays.equals(hash, v.hash)) {
+				info.setupChecksum = v.checksum;
+				info.setupSent = true;
+				byte[] cached = SetupCodec.encodeCached(v.hash);
+				info.messProt.sendState(SETUP_STATE_KEY, cached, cached.length);
+			} else {
+				sendSetup(info, v, null);
+			}
+		}
+	}
+	
+	
+	
+	/**
+	 * Resume the session of the token with the connection of the client: the connection
+	 * of the session is closed without releasing its keys, that pass to the client.
+	 * The setup is sent only if changed since the last one sent to the session.
+	 * @param info Client that presented the token
+	 * @param token Token of the session
+	 * @return True if resumed, false if there is no session with the token
+	 * @throws IOException In case of IO error
+	 */
+	private boolean resumeSession(@NonNull ClientInfo info, @NonNull byte[] token)
+			throws IOException {
+		assert info != null && token != null;
+		
+		String key = Base64.getEncoder().encodeToString(token);
+		ClientInfo old = sessions.get(key);
+		if(old == null || old == info) {
+			return false;
+		}
+		
+		if(info.resuming) {
+			// The timeout of the hello checks the flag holding the lock
+			synchronized(info) {
+				if(!old.clientId.equals(info.clientId) || !clients.replace(info.clientId, old, info)) {
+					return false;
+				}
+				info.resuming = false;
+			}
+		} else {
+			// Resumed from another id: the stale one is disconnected
+			if(!clients.remove(old.clientId, old)) {
+				return false;
+			}
+			pressedKeys.transfer(old.clientId, info.clientId);
+			fireClientDisconnectListener(old.clientId);
+		}
+		synchronized(info) {
+			info.token = token;
+		}
+		connections.remove(old.connectionId, old);
+		sessions.replace(key, old, info);
+		try {
+			old.messProt.close();
+		} catch(IOException e) {
+			// Nothing
+		}
+		
+		synchronized(info) {
+			if(!info.setupSent) {
+				synchronized(old) {
+					info.setupSent = old.setupSent;
+					info.setupChecksum = old.setupChecksum;
+				}
+			}
+			
+			if(!info.setupSent) {
+				info.messProt.sendMessage(SetupCodec.encodeSession(0, token));
+				sendSetup(info, setupVersion, null);
+			} else if(info.setupChecksum == setupVersion.checksum) {
+				info.messProt.sendMessage(SetupCodec.encodeSession(SetupCodec.SESSION_RESUMED, token));
+			} else {
+				info.messProt.sendMessage(SetupCodec.encodeSession(0, token));
+				sendCurrentSetup(info, null);
+			}
+		}
+		return true;
+	}
+	
+	
+	
+	/**
+	 * Handles a message received from the client: a single key action or a batch
+	 * of actions, applied in a single pass, or a message about the setup.
+	 * The sequenced actions older than the last one applied to their key are ignored.
+	 * @param info Client that sent the message
+	 * @param mess Payload of the message
+	 * @param length Length of the payload in {@code mess}
+	 * @throws IOException If the message is malformed
 	 */
-	protected abstract void innerStart() throws IOException;
-	
+	private void handleMessage(@NonNull ClientInfo info, @NonNull byte[] mess, int length)
+			throws IOException {
+		assert info != null && mess != null;
+		
+		int type = KeyActionCodec.messageType(mess, length);
+		if(info.resuming && type != KeyActionCodec.TYPE_HELLO) {
+			throw new IOException("Client " + info.clientId + " already logged-in");
+		}
+		
+		int first, count;
+		boolean sequenced = false;
+		int sequence = 0;
+		switch(type) {
+		case KeyActionCodec.TYPE_KEY_ACTION:
+			first = 0;
+			count = 1;
+			break;
+		case KeyActionCodec.TYPE_KEY_BATCH:
+			try {
+				count = KeyActionCodec.batchCount(mess, length);
+			} catch(IllegalArgumentException e) {
+				throw new IOException(e.getMessage());
+			}
+			first = KeyActionCodec.batchOffset(0);
+			break;
+		case KeyActionCodec.TYPE_KEY_SEQUENCED:
+			try {
+				count = KeyActionCodec.sequencedCount(mess, length);
+			} catch(IllegalArgumentException e) {
+				throw new IOException(e.getMessage());
+			}
+			first = KeyActionCodec.batchOffset(0);
+			sequenced = true;
+			sequence = KeyActionCodec.decodeSequence(mess, length);
+			break;
+		case KeyActionCodec.TYPE_HELLO:
+			handleHello(info, mess, length);
+			return;
+		case KeyActionCodec.TYPE_SETUP_RESYNC:
+			sendFullSetup(info, null);
+			return;
+		default:
+			throw new IOException("Malformed key action of length " + length);
+		}
+		
+		for(int i = 0; i < count; i++) {
+			int macroID = KeyActionCodec.decodeId(mess, first + i * KeyActionCodec.ACTION_LENGTH);
+			if(macroID < 0) {
+				throw new IOException("Malformed key id " + macroID);
+			}
+		}
+		
+		//Esecizione della macro:
+		MacroSetup setup = getMacroSetup();
+		synchronized(setup) {
+			for(int i = 0; i < count; i++) {
+				int offset = first + i * KeyActionCodec.ACTION_LENGTH;
+				int macroID = KeyActionCodec.decodeId(mess, offset);
+				if(sequenced && !info.advanceKey(macroID, sequence + i)) {
+					// Overtaken by a newer action of the key
+					continue;
+				}
+				applyKeyAction(setup, info, macroID, KeyActionCodec.decodeDown(mess, offset));
+			}
+		}
+	}
 	
 	
 	/**
-	 * @return Current state of the server
+	 * Apply the action of a key; the caller must hold the lock of {@code setup}
+	 * @param setup Current setup
+	 * @param info Client that sent the action
+	 * @param macroID Id of the key
+	 * @param state True: pressed, released otherwise
 	 */
-	public final State getState() {
-		return state;
+	private void applyKeyAction(@NonNull MacroSetup setup, @NonNull ClientInfo info,
+			int macroID, boolean state) {
+		assert Thread.holdsLock(setup);
+		
+		MacroKey k = setup.macroKeyFromID(macroID);
+		if(k == null) {
+			// Unknown id sent by the peer (e.g. a key of an older setup): ignored
+			return;
+		}
+		
+		if(state) {
+			pressKey(k, info.clientId);
+		} else {
+			releaseKey(k);
+		}
 	}
 	
 	
 	
+	//--- EVENT-DRIVEN CLIENT HANDLING ---
+	
+	
 	/**
-	 * Informs the client that this machine offer this serive
+	 * Indicates whether the implementation accepts the clients and reads their
+	 * messages by itself instead of using a thread for each client.
 	 * <p>
-	 * Executent in a dedicated thread
+	 * If true {@link #waitNewClientConnection()} is never called and the implementation
+	 * must notify the server with {@link #clientConnected(MessageProtocol)},
+	 * {@link #clientMessage(String, byte[])} and {@link #clientDisconnected(String, MessageProtocol)}.
+	 * Evaluated at {@link #start()}.
 	 * </p>
+	 * @return True if the clients are served by the implementation, false otherwise
 	 */
-	protected abstract void introduceServerToClient();
-	
-	
+	protected boolean isEventDriven() {
+		return false;
+	}
 	
 	
 	/**
-	 * Waits new client's connections
+	 * Notify the connection of a new client not served by a thread of the server,
+	 * like the clients of {@link #isEventDriven()} servers.
 	 * <p>
-	 * Executed in the thread {@link #threadListener}
+	 * The {@link MessageProtocol#receiveMessage()} of {@code messProt} is never called:
+	 * the messages must be notified with {@link #clientMessage(String, byte[])}
 	 * </p>
+	 * @param messProt Comunication layer with the client; used to send the messages
+	 * @return Id of the connection, the id of the client unless it's already logged-in
+	 * from another connection; null if the client was refused and {@code messProt} closed
 	 */
-	private void newClientListener() {
-		while(!threadListener.isInterrupted()) {
-			final MessageProtocol messProt;
-			
-			try {
-				messProt = waitNewClientConnection();
-			} catch(IOException e) {
-				continue;
-			}
-			
-			
-			if(!isSeekConnection()) {
-				try {
-					messProt.close();
-				} catch (IOException e) {
-					continue;
-				}
-			}
-			
-			// Set timeout for the comunication
-			messProt.setInputKeepAlive(ComunicationParameters.TIMEOUT_MESSAGES);
-			messProt.setOutputKeepAlive(ComunicationParameters.TIMEOUT_MESSAGES);
-				
-			String clientId;
+	protected final String clientConnected(@NonNull MessageProtocol messProt) {
+		Objects.requireNonNull(messProt);
+		
+		ClientInfo info = acceptClient(messProt);
+		if(info == null) {
 			try {
-				clientId = loginClient(messProt);
+				messProt.close();
 			} catch(IOException e) {
-				continue;
-			}
-			
-			// Client already logged-in
-			if(clients.containsKey(clientId)) {
-				continue;
+				// Nothing
 			}
-			
-			final ClientInfo info = new ClientInfo(clientId, messProt);
-			clients.put(clientId, info);
-			
-			// Server thread for the client
-			Thread th = new Thread() {
-				@Override
-				public void run() {
-					serveClient(info);
-				}
-			};
-			th.start();
-			
-			// Fire the event for the new connection of a client.
-			// Done it in a separate thread to relieve this thread and avoid interruption caused by exceptions.
-			Thread startEvents = new Thread() {
-				@Override
-				public void run() {
-					fireClientConnectListener(info.clientId);
-				}
-			};
-			startEvents.start();
+			return null;
 		}
 		
+		try {
+			beginSession(info);
+		} catch(IOException e) {
+			clientClose(info);
+			return null;
+		}
+		return info.connectionId;
 	}
 	
 	
 	/**
-	 * Serve the given client. In particular it handles the exceptions
-	 * of {@link #ServeClientExceptions(ClientInfo)}
-	 * @param info The client to serve
-	 * @see #ServeClientExceptions(ClientInfo)
+	 * Notify a message received from a client added with {@link #clientConnected(MessageProtocol)}.
+	 * If the message is malformed the client is disconnected.
+	 * @param clientId Id of the connection, returned by {@link #clientConnected(MessageProtocol)}
+	 * @param mess Payload of the message
 	 */
-	private void serveClient(@NonNull ClientInfo info) {		
+	protected final void clientMessage(@NonNull String clientId, @NonNull byte[] mess) {
+		Objects.requireNonNull(mess);
+		clientMessage(clientId, mess, mess.length);
+	}
+	
+	
+	/**
+	 * Notify a message received from a client added with {@link #clientConnected(MessageProtocol)}.
+	 * If the message is malformed the client is disconnected.
+	 * @param clientId Id of the connection, returned by {@link #clientConnected(MessageProtocol)}
+	 * @param mess Array that contains the payload from the index 0; not used after the call
+	 * @param length Length of the payload
+	 * @throws IndexOutOfBoundsException If {@code length} is not in [0, {@code mess.length}]
+	 */
+	protected final void clientMessage(@NonNull String clientId, @NonNull byte[] mess, int length) {
+		Objects.requireNonNull(clientId);
+		Objects.requireNonNull(mess);
+		if(length < 0 || length > mess.length) {
+			throw new IndexOutOfBoundsException("Length " + length);
+		}
+		
+		ClientInfo info = connections.get(clientId);
+		if(info == null) {
+			return;
+		}
+		
 		try {
-			serveClientExceptions(info);
-		} catch (IOException e) {
-			e.printStackTrace();
-		} finally {
-			try {
-				info.messProt.close();
-			} catch (IOException e) { }
-			
-			// Rimuovo le infirmazioni del client dalla lista
-			clients.remove(info.clientId);
-			
-			// Rilascio i tasti premuti dal client che si è disconnesso
-			for(Map.Entry<MacroKey, KeyDown> p : pressedKeys.entrySet()) {
-				MacroKey mk = p.getKey();
-				KeyDown k = p.getValue();
-				assert mk != null && k != null;
-				
-				if(k.clientId.equals(info.clientId)) {
-					releaseKey(mk);
-				}
-			}
-			
-			// Genero l'evento di disconnessione
-			fireClientDisconnectListener(info.clientId);
+			handleMessage(info, mess, length);
+		} catch(IOException e) {
+			clientClose(info);
 		}
 	}
 	
 	
-	
 	/**
-	 * Login for the client
-	 * @param messProt Comunication layer with the client
-	 * @return Id of the client
-	 * @throws IOException In case of IO error
+	 * Notify the disconnection of a client added with {@link #clientConnected(MessageProtocol)}.
+	 * @param clientId Id of the connection, returned by {@link #clientConnected(MessageProtocol)}
+	 * @param messProt Comunication layer of the disconnected client; a newer client with
+	 * the same id is not removed
 	 */
-	private String loginClient(MessageProtocol messProt) throws IOException {
-		// TODO: identify the client and implement securety
-		return messProt.toString();
+	protected final void clientDisconnected(@NonNull String clientId,
+			@NonNull MessageProtocol messProt) {
+		Objects.requireNonNull(clientId);
+		Objects.requireNonNull(messProt);
+		
+		ClientInfo info = connections.get(clientId);
+		if(info != null && info.messProt.getInner() == messProt) {
+			removeClient(info);
+		}
 	}
-
+	
+	
 	/**
-	 * Handles the input of the given client
-	 * @param info Client to handle
-	 * @throws IOException In case of IO error
+	 * Close the connection with the client and remove it
+	 * @param info Client to close
 	 */
-	private void serveClientExceptions(@NonNull ClientInfo info)
-			throws IOException {
-		assert info != null;
-		assert getMacroSetup() != null;
-		
-		
-		// Send the macro setup
-		byte[] macroSetupData = getMacroSetupData();
-		assert macroSetupData != null;
-		info.messProt.sendMessage(macroSetupData);
-		
-		
-		
-		// Receive the request from the client
-		while(info.messProt.isConnected()) {
-			byte[] mess = info.messProt.receiveMessage();
-			ByteArrayInputStream str = new ByteArrayInputStream(mess);
-			DataInputStream dataStr = new DataInputStream(str);
-			
-			int macroID = dataStr.readInt();
-			boolean state = dataStr.readBoolean();
-			
-			dataStr.close();
-			str.close();
-			
-			//Esecizione della macro:
-			MacroSetup setup = getMacroSetup();
-			synchronized(setup) {
-				MacroKey k = setup.macroKeyFromID(macroID);
-				assert k != null && k.getId() == macroID :
-					"MacroID has not been found correctly: " + macroID;
-					
-				if(state) {
-					pressKey(k, info.clientId);
-				} else {
-					releaseKey(k);
-				}
-			}
+	private void clientClose(@NonNull ClientInfo info) {
+		try {
+			info.messProt.close();
+		} catch(IOException e) {
+			// Nothing
 		}
+		removeClient(info);
 	}
 	
 	
 	
 	/**
-	 * Wait a connection of a client
+	 * Wait a connection of a client; not called if {@link #isEventDriven()}
 	 * @return Comunication layer with the newly connected client
 	 */
 	protected abstract MessageProtocol waitNewClientConnection() throws IOException;
@@ -352,10 +1141,7 @@ public abstract class MacroServer {
 			suspend = s;
 			
 			if(suspend) {
-				for(MacroKey k : pressedKeys.keySet()) {
-					releaseKey(k);
-				}
-				pressedKeys.clear();
+				pressedKeys.releaseAll(null, releaser);
 			}
 			fireServerSuspendEvent(s);
 		}
@@ -401,8 +1187,11 @@ public abstract class MacroServer {
 			throw new IllegalStateException();
 		}
 		
-		//Chiudo tutte le connessioni
-		for(ClientInfo s : clients.values()) {
+		//Chiudo tutte le connessioni, anche quelle che stanno riprendendo una sessione
+		Set<ClientInfo> all = Collections.newSetFromMap(new IdentityHashMap<ClientInfo, Boolean>());
+		all.addAll(clients.values());
+		all.addAll(connections.values());
+		for(ClientInfo s : all) {
 			try {
 				s.messProt.close();
 			} catch (IOException e) {
@@ -411,8 +1200,16 @@ public abstract class MacroServer {
 		}
 		
 		threadIntroduce.interrupt();
-		threadListener.interrupt();
+		if(threadListener != null) {
+			threadListener.interrupt();
+		}
 		normalPresser.interrupt();
+		// Releases the keys still pressed, then executes the queued keystrokes; the
+		// releases of the threads of the clients closing now are executed by them
+		pressedKeys.releaseAll(null, releaser);
+		keyOutput.close(KEY_OUTPUT_CLOSE_TIMEOUT);
+		sessionTimer.shutdownNow();
+		sendExecutor.shutdownNow();
 		
 		
 		innerClose();
@@ -431,35 +1228,124 @@ public abstract class MacroServer {
 	
 	/**
 	 * Change the actual {@link MacroSetup}
-	 * <p>Syncronous method; better not call this on the UI thread</p>
+	 * <p>The setup is sent to all the clients concurrently: the returned handle completes
+	 * when the setup is written on the connection of every client, the connection failed
+	 * or exceeded {@link #getBroadcastTimeout()}</p>
+	 * <p>The serialization of the setup, the patch from the previous one and the compression
+	 * are executed in the calling thread, before the return; only the sends are concurrent</p>
 	 * @param m New {@link MacroSetup} to use
+	 * @return Completion handle of the send to the clients
 	 */
-	public final void changeMacroSetup(@NonNull MacroSetup m) {
+	public final @NonNull SetupBroadcast changeMacroSetup(@NonNull MacroSetup m) {
 		Objects.requireNonNull(m);
 		assert setup != null;
 		
-		this.setup = m;
+		byte[] data;
+		SetupVersion v;
 		try {
-			this.macroSetupData = setup.saveAsByteArray();
-		} catch(IOException e) {
+			data = m.saveAsByteArray();
+			v = new SetupVersion(data, setupVersion);
+			pressedKeys.reserve(m);
+		} catch(IOException | MSLoadException e) {
 			e.printStackTrace();
 			assert false : "Should not happend";
+			return new SetupBroadcast(0);
 		}
-		
+		// Published when complete
+		this.macroSetupData = data;
+		this.setup = m;
+		this.setupVersion = v;
 		
 		// Send to the client the new MacroSetup
-		byte[] macroSetupData = getMacroSetupData();
-		for(ClientInfo p : clients.values()) {
-			try {
-				p.messProt.sendMessage(macroSetupData);
-			} catch(IOException e) {
-				// Nothing
-			}
+		List<ClientInfo> targets = new ArrayList<>(clients.values());
+		SetupBroadcast b = new SetupBroadcast(targets.size());
+		for(ClientInfo p : targets) {
+			broadcastTo(p, b);
 		}
-
-		
 		
 		fireServerChangeMacroSetup(m);
+		return b;
+	}
+	
+	
+	/**
+	 * Queue the current setup for the client in a thread of {@link #sendExecutor},
+	 * disconnecting the client if the setup is not written on its connection
+	 * within {@link #broadcastTimeout}
+	 * @param p Client
+	 * @param b Broadcast to complete with the outcome of the client
+	 */
+	private void broadcastTo(@NonNull final ClientInfo p, @NonNull final SetupBroadcast b) {
+		assert p != null && b != null;
+		
+		final ScheduledFuture<?> deadline;
+		try {
+			deadline = sessionTimer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					if(b.complete(p.clientId, SetupBroadcast.Outcome.TimedOut)) {
+						clientClose(p);
+					}
+				}
+			}, broadcastTimeout, TimeUnit.MILLISECONDS);
+			
+			// Completed by the writer of the outbound queue, or at the discard of the queue
+			final QueuedMessageProtocol.Completion written = new QueuedMessageProtocol.Completion() {
+				@Override
+				public void completed(boolean w) {
+					deadline.cancel(false);
+					if(b.complete(p.clientId, w ? SetupBroadcast.Outcome.Sent : SetupBroadcast.Outcome.Failed)
+							&& !w) {
+						clientClose(p);
+					}
+				}
+			};
+			
+			sendExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						if(!sendCurrentSetup(p, written)) {
+							deadline.cancel(false);
+							b.complete(p.clientId, SetupBroadcast.Outcome.Skipped);
+						}
+					} catch(IOException e) {
+						written.completed(false);
+					}
+				}
+			});
+		} catch(RejectedExecutionException e) {
+			// Server closed
+			b.complete(p.clientId, SetupBroadcast.Outcome.Failed);
+		}
+	}
+	
+	
+	/**
+	 * Send the current setup to a client that received the first one, as a patch if
+	 * possible. Concurrent changes are coalesced: only the last setup is sent.
+	 * @param p Client
+	 * @param c Notified when the setup is written or discarded, if sent; null for none
+	 * @return True if sent, false if the client already had it
+	 * @throws IOException In case of IO error
+	 */
+	private boolean sendCurrentSetup(@NonNull ClientInfo p, QueuedMessageProtocol.Completion c)
+			throws IOException {
+		synchronized(p) {
+			SetupVersion v = setupVersion;
+			if(!p.setupSent || p.setupChecksum == v.checksum) {
+				// The first setup will be the current one
+				return false;
+			} else if(v.patchMessage != null && p.setupChecksum == v.patchBase
+					&& (p.capabilities & SetupCodec.CAP_SETUP_PATCH) != 0) {
+				// Not superseding: it applies to the setup queued before
+				p.setupChecksum = v.checksum;
+				p.messProt.sendMessage(v.patchMessage, v.patchMessage.length, c);
+			} else {
+				sendSetup(p, v, c);
+			}
+			return true;
+		}
 	}
 	
 	
@@ -494,15 +1380,16 @@ public abstract class MacroServer {
 		assert getState().equals(State.Functional);
 		
 		// If suspended or already pressed i ignore the press
-		if(suspend || pressedKeys.containsKey(mk)) {
+		if(suspend || !pressedKeys.press(mk, clientId)) {
 			return false;
 		}
 		
 		switch(mk.getType()) {
 		case Game:
-			keyPresser.press(mk.getKeySeq());
+			keyOutput.press(mk.getKeySeq().getPlan());
 			break;
 		case Normal:
+			keyRepeater.hold(mk);
 			break;
 		case OnRelease:
 			break;
@@ -512,9 +1399,6 @@ public abstract class MacroServer {
 			
 		}
 		
-		// Mark the key as pressed
-		pressedKeys.put(mk, new KeyDown(clientId, mk.getType()));
-		
 		fireKeyRecivedListener(clientId, mk, true);
 		
 		return true;
@@ -532,21 +1416,26 @@ public abstract class MacroServer {
 		assert mk != null;
 		assert getState().equals(State.Functional);
 		
-		if(pressedKeys.containsKey(mk)) {
-			if(mk.getType() == MacroKeyType.Game) {
-				keyPresser.release(mk.getKeySeq());
-			} else if(mk.getType() == MacroKeyType.OnRelease) {
-				pressAndReleaseKey(mk);
-			}
-			String clientId = pressedKeys.get(mk).clientId;
-			pressedKeys.remove(mk);
-			
-			fireKeyRecivedListener(clientId, mk, false);
-			
-			return true;
-		} else {
-			return false;
+		return pressedKeys.release(mk.getId(), releaser);
+	}
+	
+	/**
+	 * Execute the release of a {@link MacroKey} already removed from {@link #pressedKeys}
+	 * @param mk Key to release
+	 * @param clientId Id of the client that pressed the key
+	 */
+	private void releasePressedKey(@NonNull MacroKey mk, @NonNull String clientId) {
+		assert mk != null && clientId != null;
+		
+		if(mk.getType() == MacroKeyType.Game) {
+			keyOutput.release(mk.getKeySeq().getPlan());
+		} else if(mk.getType() == MacroKeyType.Normal) {
+			keyRepeater.release(mk);
+		} else if(mk.getType() == MacroKeyType.OnRelease) {
+			pressAndReleaseKey(mk);
 		}
+		
+		fireKeyRecivedListener(clientId, mk, false);
 	}
 	
 	/**
@@ -557,9 +1446,9 @@ public abstract class MacroServer {
 		assert mk != null;
 		assert getState().equals(State.Functional);
 		
-		LimitedKeySequence l = mk.getKeySeq();
-		keyPresser.press(l);
-		keyPresser.release(l);
+		KeySequencePlan p = mk.getKeySeq().getPlan();
+		keyOutput.press(p);
+		keyOutput.release(p);
 	}
 	
 	
@@ -572,105 +1461,148 @@ public abstract class MacroServer {
 	 */
 	private final static class ClientInfo {
 		private final String clientId;
-		private final MessageProtocol messProt;
+		
+		/** Id of the connection; differs from {@link #clientId} while it's in use by another connection */
+		private final String connectionId;
+		
+		/** True while the client waits to resume the session of the connection with its id */
+		private volatile boolean resuming = false;
+		
+		/** Token of the session; null if none; guarded by {@code this} */
+		private byte[] token;
+		
+		/** Comunication layer with the client, sends through its outbound queue */
+		private final QueuedMessageProtocol messProt;
+		
+		/** Capabilities of the client, see {@link SetupCodec}; 0 until its hello */
+		private volatile int capabilities = 0;
+		
+		/** Checksum of the setup last sent to the client; guarded by {@code this} */
+		private int setupChecksum;
+		
+		/** True if the first setup was sent to the client; guarded by {@code this} */
+		private boolean setupSent = false;
+		
+		/**
+		 * Sequence number of the last action applied to every key, indexed by id, see
+		 * {@link KeyActionCodec#TYPE_KEY_SEQUENCED}; accessed only by the reader of the connection
+		 */
+		private int[] keySequences = new int[0];
+		
+		/** Ids of the keys with a sequence number in {@link #keySequences} */
+		private final BitSet sequencedKeys = new BitSet();
 		
 		
 		/**
 		 * @param clientId Id of the client
+		 * @param connectionId Id of the connection
 		 * @param p Comunication layer with the client
 		 */
-		public ClientInfo(@NonNull String clientId, @NonNull MessageProtocol p) {
+		public ClientInfo(@NonNull String clientId, @NonNull String connectionId,
+				@NonNull QueuedMessageProtocol p) {
 			Objects.requireNonNull(clientId);
+			Objects.requireNonNull(connectionId);
 			Objects.requireNonNull(p);
 			
 			this.clientId = clientId;
+			this.connectionId = connectionId;
 			this.messProt = p;
 		}
+		
+		
+		/**
+		 * Records the sequence number of an action of the key if it's newer than the last one
+		 * applied; called only by the reader of the connection
+		 * @param macroID Id of the key; >= 0
+		 * @param sequence Sequence number of the action
+		 * @return True if the action is newer, false if it must be ignored: older than the
+		 * last one or of a key with an id out of the range of {@link KeyStateTable}
+		 */
+		public boolean advanceKey(int macroID, int sequence) {
+			assert macroID >= 0;
+			
+			if(macroID >= KeyStateTable.MAX_KEYS) {
+				return false;
+			} else if(sequencedKeys.get(macroID) && sequence - keySequences[macroID] <= 0) {
+				return false;
+			}
+			if(macroID >= keySequences.length) {
+				keySequences = Arrays.copyOf(keySequences,
+						Math.min(KeyStateTable.MAX_KEYS, Math.max(macroID + 1, 2 * keySequences.length)));
+			}
+			keySequences[macroID] = sequence;
+			sequencedKeys.set(macroID);
+			return true;
+		}
+		
+		
+		/**
+		 * @return Key of the session in {@link MacroServer#sessions}; null if none
+		 */
+		public synchronized String sessionKey() {
+			return token == null ? null : Base64.getEncoder().encodeToString(token);
+		}
+	}
+	
+	
+	
+	/**
+	 * Version of the setup sent to the clients
+	 */
+	private final static class SetupVersion {
+		/** Setup as loaded by the clients */
+		private final MacroSetup snapshot;
+		
+		/** Checksum of {@link #snapshot}, see {@link MacroSetupPatch#checksum(MacroSetup)} */
+		private final int checksum;
+		
+		/** Hash of the serialized setup, see {@link SetupCache#hash(byte[])} */
+		private final byte[] hash;
+		
+		/** Message of the full setup */
+		private final byte[] fullMessage;
+		
+		/** Message of the compressed full setup; null if not smaller than {@link #fullMessage} */
+		private final byte[] deflatedMessage;
+		
+		/** Message of the patch from the previous version; null if not smaller than {@link #fullMessage} */
+		private final byte[] patchMessage;
+		
+		/** Checksum of the previous version, base of {@link #patchMessage} */
+		private final int patchBase;
+		
+		
+		/**
+		 * @param data Serialized setup
+		 * @param previous Previous version; null if none
+		 * @throws IOException In case of IO error
+		 * @throws MSLoadException If {@code data} is not a valid setup
+		 */
+		public SetupVersion(@NonNull byte[] data, SetupVersion previous)
+				throws IOException, MSLoadException {
+			assert data != null;
+			
+			this.snapshot = MacroSetup.load(new ByteArrayInputStream(data));
+			this.checksum = MacroSetupPatch.checksum(snapshot);
+			this.hash = SetupCache.hash(data);
+			this.fullMessage = SetupCodec.encodeFullSetup(data, SetupCodec.CAPABILITIES);
+			byte[] d = SetupCodec.encodeDeflatedSetup(data);
+			this.deflatedMessage = d.length < fullMessage.length ? d : null;
+			
+			if(previous == null) {
+				this.patchMessage = null;
+				this.patchBase = 0;
+			} else {
+				MacroSetupPatch patch = MacroSetupPatch.diff(previous.snapshot, snapshot);
+				byte[] p = SetupCodec.encodePatch(patch);
+				this.patchMessage = p.length < fullMessage.length ? p : null;
+				this.patchBase = patch.getBaseChecksum();
+			}
+		}
 	}
 	
 	
 	
-	/** Thread for normal pressions */
-	private class ThreadRunnable implements Runnable {
-    	/** Time to wait in ms before repeating a key press of a pressed key */
-        final static int KEY_REPEAT_WAIT = 750;
-        
-        /** Frequency of keystroke to send */
-        final static int KEY_FREQ = 30;
-        
-        /** Period of wait (in ms) before recognizing a pression as multiple keystroke */
-        final static int KEY_SLEEP = 1000 / KEY_FREQ;
-        
-        /** Sleep time between one keypress loop and the next */
-        final int FREE_TIME = Math.max(1, Math.min(KEY_REPEAT_WAIT, KEY_SLEEP) / 2);
-
-        @Override
-        public void run() {
-        	while(true) {
-	    		try {
-					Thread.sleep(FREE_TIME);
-				} catch (InterruptedException e) {
-					Thread.currentThread().interrupt();
-					return;
-				}
-	    		
-	    		for(Map.Entry<MacroKey, KeyDown> p : pressedKeys.entrySet()) {
-	    			MacroKey k = p.getKey();
-	    			KeyDown u = p.getValue();
-	    			
-	    			assert k != null && u != null;
-	    			
-	    			if(u.type == MacroKeyType.Normal) {
-						long d = System.currentTimeMillis() - u.lastDownTime;
-						assert d >= 0;
-						
-						if(!u.firstDown) {
-							u.firstDown = true;
-							u.lastDownTime = System.currentTimeMillis();
-							pressAndReleaseKey(k);
-						} else if(!u.firsPressOccurred && d >= KEY_REPEAT_WAIT) {
-							// It was pressed for the first time: waiting before repeating the pressure
-							
-							u.firsPressOccurred = true;
-							u.lastDownTime = System.currentTimeMillis();
-							pressAndReleaseKey(k);
-						} else if(u.firsPressOccurred && d >= KEY_SLEEP) {
-							// Wating for the following pressures
-							
-							u.lastDownTime = System.currentTimeMillis();
-							pressAndReleaseKey(k);
-						}
-					}
-	    		}
-        	}
-        }
-    }
-	
-    private class KeyDown {
-    	
-    	/** Id of the client that pressed the key */
-    	private String clientId;
-    	
-    	/** Pressure type */
-    	private MacroKeyType type;
-    	
-    	/**
-    	 Timestamp where the request was made
-    	 */
-    	private long lastDownTime = 0;
-    	
-    	/**
-    	 * True: indicates that the key was already pressed for the first time
-    	 */
-    	private boolean firstDown = false;
-    	
-    	private boolean firsPressOccurred = false;
-    	
-    	private KeyDown(String clientId, MacroKeyType type) {
-    		this.clientId = clientId;
-    		this.type = type;
-    	}
-    }
 	
 	
 	//--- LISTENERS ---
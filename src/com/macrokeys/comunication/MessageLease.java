@@ -0,0 +1,83 @@
+package com.macrokeys.comunication;
+
+import java.nio.ByteBuffer;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * Buffer of a {@link BufferPool} that contains a received message.
+ * <p>
+ * The message is between the position and the limit of {@link #getBuffer()}; the buffer
+ * can be used only until {@link #close()}, that returns it in the pool.
+ * </p>
+ */
+public final class MessageLease implements AutoCloseable {
+
+	/** Pool of the buffer */
+	private final BufferPool pool;
+
+	/** Buffer of the message */
+	private final ByteBuffer buffer;
+
+	/** True between the acquire and the release */
+	private volatile boolean inUse = false;
+
+
+	/**
+	 * @param pool Pool of the buffer
+	 * @param buffer Buffer of the message
+	 */
+	MessageLease(@NonNull BufferPool pool, @NonNull ByteBuffer buffer) {
+		assert pool != null && buffer != null;
+
+		this.pool = pool;
+		this.buffer = buffer;
+	}
+
+
+	/**
+	 * Prepare the lease for a new message; called by the pool
+	 */
+	void acquired() {
+		assert !inUse;
+
+		inUse = true;
+		buffer.clear();
+	}
+
+
+	/**
+	 * @return Buffer of the message: the message starts at the position 0
+	 * and ends at the limit
+	 * @throws IllegalStateException If the lease is released
+	 */
+	public @NonNull ByteBuffer getBuffer() {
+		if(!inUse) {
+			throw new IllegalStateException("Lease released");
+		}
+		return buffer;
+	}
+
+
+	/**
+	 * @return Length of the message
+	 * @throws IllegalStateException If the lease is released
+	 */
+	public int getLength() {
+		return getBuffer().limit();
+	}
+
+
+	/**
+	 * Returns the buffer in the pool; the buffer must no longer be used
+	 * @throws IllegalStateException If the lease is already released
+	 */
+	@Override
+	public void close() {
+		if(!inUse) {
+			throw new IllegalStateException("Lease already released");
+		}
+		inUse = false;
+		pool.release(this);
+	}
+}
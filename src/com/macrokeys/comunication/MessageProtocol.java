@@ -1,5 +1,7 @@
 package com.macrokeys.comunication;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Objects;
 
 /** 
  * Interface that comunicates with messages.
@@ -49,6 +51,48 @@ public interface MessageProtocol {
 	 */
 	void sendMessage(byte[] payload) throws IOException;
 	
+	/**
+	 * Send a message with the first bytes of the given array
+	 * @param payload Array that contains the payload
+	 * @param length Length of the payload
+	 * @throws IOException If an IO error occur
+	 * @throws IndexOutOfBoundsException If {@code length} is not in [0, {@code payload.length}]
+	 */
+	default void sendMessage(byte[] payload, int length) throws IOException {
+		if(length < 0 || length > payload.length) {
+			throw new IndexOutOfBoundsException("Length " + length);
+		}
+		sendMessage(length == payload.length ? payload : Arrays.copyOf(payload, length));
+	}
+	
+	/**
+	 * Send a message that supersedes the previous messages with the same key, like the
+	 * state of a key. An implementation over an unreliable transport can retransmit only
+	 * the last message of each key and drop an older one arrived late.
+	 * <p>
+	 * The order with the messages of other keys and of {@link #sendMessage(byte[])}
+	 * is not guaranteed; by default the message is sent as {@link #sendMessage(byte[], int)}.
+	 * </p>
+	 * @param stateKey Key of the state
+	 * @param payload Array that contains the payload
+	 * @param length Length of the payload
+	 * @throws IOException If an IO error occur
+	 * @throws IndexOutOfBoundsException If {@code length} is not in [0, {@code payload.length}]
+	 */
+	default void sendState(int stateKey, byte[] payload, int length) throws IOException {
+		sendMessage(payload, length);
+	}
+	
+	/**
+	 * Enables the split of the long messages of {@link #sendMessage(byte[])} in fragments,
+	 * so that the short messages of {@link #sendState(int, byte[], int)} can be sent
+	 * between them. The other side must be able to receive the fragments.
+	 * <p>By default nothing: the implementations that don't need it can ignore it</p>
+	 * @param enable True to enable, false to disable
+	 */
+	default void setFragmentation(boolean enable) {
+	}
+	
 	/**
 	 * Wait the reception of a message
 	 * @return Payload of the message
@@ -56,6 +100,45 @@ public interface MessageProtocol {
 	 */
 	byte[] receiveMessage() throws IOException;
 	
+	/**
+	 * Wait the reception of a message and copy its payload in the given buffer.
+	 * <p>The implementations should not allocate, so the buffer can be reused for
+	 * every message</p>
+	 * @param buffer Destination of the payload
+	 * @return Length of the payload
+	 * @throws IOException If an IO error occur or if the payload is longer
+	 * than {@code buffer}; in the last case the connection must be closed
+	 */
+	default int receiveMessage(byte[] buffer) throws IOException {
+		byte[] payload = receiveMessage();
+		if(payload.length > buffer.length) {
+			throw new IOException("Message too long: " + payload.length);
+		}
+		System.arraycopy(payload, 0, buffer, 0, payload.length);
+		return payload.length;
+	}
+	
+	/**
+	 * Wait the reception of a message and read it in a buffer of the pool.
+	 * <p>The implementations should check the length of the message before reading
+	 * it and should not allocate, so the steady reception is allocation free</p>
+	 * @param pool Pool of the buffers
+	 * @return Lease of the buffer with the message; to close after the use
+	 * @throws IOException If an IO error occur or if the payload is longer than
+	 * {@link BufferPool#getBufferSize()}; in the last case the connection must be closed
+	 */
+	default MessageLease receiveMessage(BufferPool pool) throws IOException {
+		Objects.requireNonNull(pool);
+		
+		byte[] payload = receiveMessage();
+		if(payload.length > pool.getBufferSize()) {
+			throw new IOException("Message too long: " + payload.length);
+		}
+		MessageLease l = pool.acquire();
+		l.getBuffer().put(payload).flip();
+		return l;
+	}
+	
 	
 	/**
 	 * Close the connection and terminates the transmission
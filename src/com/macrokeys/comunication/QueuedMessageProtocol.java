@@ -0,0 +1,622 @@
+package com.macrokeys.comunication;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * {@link MessageProtocol} that queues the sent messages and writes them on another
+ * {@link MessageProtocol} from a thread of an {@link Executor}, so the senders never
+ * block on a slow connection.
+ * <p>
+ * The queue is bounded: above the high watermark the connection is congested until the
+ * queue drains below the low watermark. A connection that stays congested longer than
+ * the eviction time, or whose queue exceeds the capacity, is closed.
+ * A message sent with {@link #sendState(int, byte[], int)} replaces the queued message
+ * with the same key that it supersedes, taking its place in the queue.
+ * </p>
+ * <p>
+ * A {@link Completion} given to the send is notified when the message is written on
+ * the inner protocol or discarded.
+ * </p>
+ * <p>
+ * The payloads are not copied: they must not be modified after the send.
+ * </p>
+ */
+public final class QueuedMessageProtocol implements MessageProtocol {
+
+	/** Default low watermark in bytes */
+	public static final int DEFAULT_LOW_WATERMARK = 64 * 1024;
+
+	/** Default high watermark in bytes */
+	public static final int DEFAULT_HIGH_WATERMARK = 256 * 1024;
+
+	/** Default capacity in bytes */
+	public static final int DEFAULT_CAPACITY = 1024 * 1024;
+
+	/** Default eviction time in ms */
+	public static final int DEFAULT_EVICTION_TIME = 5000;
+
+
+	/** Protocol where the messages are written */
+	private final MessageProtocol inner;
+
+	/** Executor of the writes on {@link #inner} */
+	private final Executor writer;
+
+	/** Timer of the evictions */
+	private final ScheduledExecutorService timer;
+
+	/** Messages not written yet; guarded by {@code this} */
+	private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+
+	/** Bytes of the messages not written yet, including the one in writing; guarded by {@code this} */
+	private int queuedBytes = 0;
+
+	/** True while a thread of {@link #writer} drains {@link #queue}; guarded by {@code this} */
+	private boolean draining = false;
+
+	/** True while a message taken from {@link #queue} is written; guarded by {@code this} */
+	private boolean writing = false;
+
+	/** Cause of the close of the queue; null while open; guarded by {@code this} */
+	private IOException failure = null;
+
+	/** True while congested; guarded by {@code this} */
+	private boolean congested = false;
+
+	/** Number of the congestions, to recognize the current one; guarded by {@code this} */
+	private int congestions = 0;
+
+	private int lowWatermark = DEFAULT_LOW_WATERMARK;
+	private int highWatermark = DEFAULT_HIGH_WATERMARK;
+	private int capacity = DEFAULT_CAPACITY;
+	private int evictionTime = DEFAULT_EVICTION_TIME;
+
+	/** Maximum of {@link #queuedBytes}; guarded by {@code this} */
+	private int peakBytes = 0;
+
+	/** Messages replaced before being written; guarded by {@code this} */
+	private long coalesced = 0;
+
+
+	/**
+	 * @param inner Protocol where the messages are written
+	 * @param writer Executor of the writes
+	 * @param timer Timer of the evictions
+	 */
+	public QueuedMessageProtocol(@NonNull MessageProtocol inner, @NonNull Executor writer,
+			@NonNull ScheduledExecutorService timer) {
+		Objects.requireNonNull(inner);
+		Objects.requireNonNull(writer);
+		Objects.requireNonNull(timer);
+
+		this.inner = inner;
+		this.writer = writer;
+		this.timer = timer;
+	}
+
+
+	/**
+	 * @return Protocol where the messages are written
+	 */
+	public @NonNull MessageProtocol getInner() {
+		return inner;
+	}
+
+
+	/**
+	 * Sets the watermarks of the congestion
+	 * @param low Bytes below which the congestion ends
+	 * @param high Bytes above which the congestion begins
+	 * @throws IllegalArgumentException If not 0 <= {@code low} < {@code high} <= capacity
+	 */
+	public synchronized void setWatermarks(int low, int high) {
+		if(low < 0 || low >= high || high > capacity) {
+			throw new IllegalArgumentException("Watermarks " + low + ", " + high);
+		}
+		lowWatermark = low;
+		highWatermark = high;
+	}
+
+
+	/**
+	 * Sets the maximum bytes in the queue; a send beyond it closes the connection
+	 * @param bytes Capacity in bytes
+	 * @throws IllegalArgumentException If {@code bytes} is below the high watermark
+	 */
+	public synchronized void setCapacity(int bytes) {
+		if(bytes < highWatermark) {
+			throw new IllegalArgumentException("Capacity below the high watermark");
+		}
+		capacity = bytes;
+	}
+
+
+	/**
+	 * Sets the time a congested connection is kept before being closed
+	 * @param ms Time in ms
+	 * @throws IllegalArgumentException If {@code ms} <= 0
+	 */
+	public synchronized void setEvictionTime(int ms) {
+		if(ms <= 0) {
+			throw new IllegalArgumentException("Time must be > 0");
+		}
+		evictionTime = ms;
+	}
+
+
+	/**
+	 * @return Messages not written yet
+	 */
+	public synchronized int getQueuedMessages() {
+		return queue.size() + (writing ? 1 : 0);
+	}
+
+
+	/**
+	 * @return Bytes of the messages not written yet
+	 */
+	public synchronized int getQueuedBytes() {
+		return queuedBytes;
+	}
+
+
+	/**
+	 * @return Maximum bytes queued since the creation
+	 */
+	public synchronized int getPeakQueuedBytes() {
+		return peakBytes;
+	}
+
+
+	/**
+	 * @return Messages replaced by a newer message with the same key before being written
+	 */
+	public synchronized long getCoalescedMessages() {
+		return coalesced;
+	}
+
+
+	/**
+	 * @return True if the queue is above the high watermark and has not yet drained
+	 * below the low one; the senders should hold back the messages that can wait
+	 */
+	public synchronized boolean isCongested() {
+		return congested;
+	}
+
+
+
+	@Override
+	public boolean isConnected() {
+		synchronized(this) {
+			if(failure != null) {
+				return false;
+			}
+		}
+		return inner.isConnected();
+	}
+
+	@Override
+	public void setInputKeepAlive(int time) {
+		inner.setInputKeepAlive(time);
+	}
+
+	@Override
+	public int getInputKeepAlive() {
+		return inner.getInputKeepAlive();
+	}
+
+	@Override
+	public void setOutputKeepAlive(int time) {
+		inner.setOutputKeepAlive(time);
+	}
+
+	@Override
+	public int getOutputKeepAlive() {
+		return inner.getOutputKeepAlive();
+	}
+
+	@Override
+	public void sendMessage(byte[] payload) throws IOException {
+		Objects.requireNonNull(payload);
+		sendMessage(payload, payload.length, null);
+	}
+
+	@Override
+	public void sendMessage(byte[] payload, int length) throws IOException {
+		sendMessage(payload, length, null);
+	}
+
+	/**
+	 * Queue a message, see {@link #sendMessage(byte[], int)}
+	 * @param payload Array that contains the payload
+	 * @param length Length of the payload
+	 * @param c Notified when the message is written or discarded; null for none
+	 * @throws IOException If the connection is closed or the queue exceeds the capacity;
+	 * {@code c} is notified of the discard
+	 * @throws IndexOutOfBoundsException If {@code length} is not in [0, {@code payload.length}]
+	 */
+	public void sendMessage(byte[] payload, int length, Completion c) throws IOException {
+		Objects.requireNonNull(payload);
+		if(length < 0 || length > payload.length) {
+			throw new IndexOutOfBoundsException("Length " + length);
+		}
+		enqueue(new Entry(payload, length, 0, false, c));
+	}
+
+	@Override
+	public void sendState(int stateKey, byte[] payload, int length) throws IOException {
+		sendState(stateKey, payload, length, null);
+	}
+
+	/**
+	 * Queue a message that supersedes the queued one with the same key, see
+	 * {@link #sendState(int, byte[], int)}. The completions of the superseded message
+	 * are notified with the ones of this message.
+	 * @param stateKey Key of the state
+	 * @param payload Array that contains the payload
+	 * @param length Length of the payload
+	 * @param c Notified when the message is written or discarded; null for none
+	 * @throws IOException If the connection is closed or the queue exceeds the capacity;
+	 * {@code c} is notified of the discard
+	 * @throws IndexOutOfBoundsException If {@code length} is not in [0, {@code payload.length}]
+	 */
+	public void sendState(int stateKey, byte[] payload, int length, Completion c) throws IOException {
+		Objects.requireNonNull(payload);
+		if(length < 0 || length > payload.length) {
+			throw new IndexOutOfBoundsException("Length " + length);
+		}
+		enqueue(new Entry(payload, length, stateKey, true, c));
+	}
+
+	@Override
+	public void setFragmentation(boolean enable) {
+		inner.setFragmentation(enable);
+	}
+
+	@Override
+	public byte[] receiveMessage() throws IOException {
+		return inner.receiveMessage();
+	}
+
+	@Override
+	public int receiveMessage(byte[] buffer) throws IOException {
+		return inner.receiveMessage(buffer);
+	}
+
+	@Override
+	public MessageLease receiveMessage(BufferPool pool) throws IOException {
+		return inner.receiveMessage(pool);
+	}
+
+	@Override
+	public void close() throws IOException {
+		List<Completion> discarded;
+		synchronized(this) {
+			if(failure == null) {
+				failure = new IOException("Connection closed");
+			}
+			discarded = discardQueue();
+		}
+		complete(discarded, false);
+		inner.close();
+	}
+
+
+	@Override
+	public String toString() {
+		return inner.toString();
+	}
+
+
+
+	/**
+	 * Append the message to the queue, or put it in the place of the one it supersedes,
+	 * and start the drain
+	 * @param e Message to append
+	 * @throws IOException If the connection is closed or the queue exceeds the capacity
+	 */
+	private void enqueue(@NonNull Entry e) throws IOException {
+		assert e != null;
+
+		boolean startDrain = false;
+		boolean evicted = false;
+		IOException overflow = null;
+		List<Completion> discarded = null;
+		synchronized(this) {
+			if(failure != null) {
+				discarded = e.completions;
+				overflow = new IOException(failure.getMessage(), failure);
+			} else {
+				Entry old = null;
+				if(e.keyed) {
+					for(Entry q : queue) {
+						if(q.keyed && q.stateKey == e.stateKey) {
+							old = q;
+							break;
+						}
+					}
+				}
+				int bytes = queuedBytes + e.length - (old == null ? 0 : old.length);
+
+				if(bytes > capacity) {
+					discarded = evict("Outbound queue over capacity: " + bytes + " bytes");
+					if(e.completions != null) {
+						discarded.addAll(e.completions);
+					}
+					overflow = failure;
+					evicted = true;
+				} else {
+					if(old != null) {
+						// In place: the order with the other messages doesn't change
+						old.replace(e);
+						coalesced++;
+					} else {
+						queue.add(e);
+					}
+					queuedBytes = bytes;
+					peakBytes = Math.max(peakBytes, queuedBytes);
+					if(!congested && queuedBytes > highWatermark) {
+						beginCongestion();
+					}
+
+					startDrain = !draining;
+					draining = true;
+				}
+			}
+		}
+
+		if(overflow != null) {
+			complete(discarded, false);
+			if(evicted) {
+				closeInner();
+			}
+			throw overflow;
+		}
+
+		if(startDrain) {
+			try {
+				writer.execute(new Runnable() {
+					@Override
+					public void run() {
+						drain();
+					}
+				});
+			} catch(RejectedExecutionException ex) {
+				synchronized(this) {
+					draining = false;
+				}
+				close();
+				throw new IOException("Writer not available", ex);
+			}
+		}
+	}
+
+
+	/**
+	 * Write the queued messages on {@link #inner} until the queue is empty;
+	 * executed by {@link #writer}
+	 */
+	private void drain() {
+		while(true) {
+			Entry e;
+			synchronized(this) {
+				e = queue.poll();
+				if(e == null || failure != null) {
+					draining = false;
+					return;
+				}
+				writing = true;
+			}
+
+			try {
+				if(e.keyed) {
+					inner.sendState(e.stateKey, e.payload, e.length);
+				} else {
+					inner.sendMessage(e.payload, e.length);
+				}
+			} catch(IOException ex) {
+				List<Completion> discarded;
+				synchronized(this) {
+					writing = false;
+					draining = false;
+					if(failure == null) {
+						failure = ex;
+					}
+					discarded = discardQueue();
+				}
+				complete(e.completions, false);
+				complete(discarded, false);
+				closeInner();
+				return;
+			}
+
+			complete(e.completions, true);
+			synchronized(this) {
+				writing = false;
+				if(failure != null) {
+					// Queue discarded during the write
+					draining = false;
+					return;
+				}
+				queuedBytes -= e.length;
+				if(congested && queuedBytes <= lowWatermark) {
+					congested = false;
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Begin a congestion and schedule the eviction at its end if still in progress.
+	 * The caller must hold the lock of {@code this}.
+	 */
+	private void beginCongestion() {
+		assert Thread.holdsLock(this);
+
+		congested = true;
+		final int c = ++congestions;
+		try {
+			timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					List<Completion> discarded = null;
+					synchronized(QueuedMessageProtocol.this) {
+						if(failure == null && congested && congestions == c) {
+							discarded = evict("Outbound queue congested for " + evictionTime + " ms");
+						}
+					}
+					if(discarded != null) {
+						complete(discarded, false);
+						closeInner();
+					}
+				}
+			}, evictionTime, TimeUnit.MILLISECONDS);
+		} catch(RejectedExecutionException e) {
+			// Timer stopped: the connection is closing
+		}
+	}
+
+
+	/**
+	 * Close the queue; the caller must hold the lock of {@code this} and then,
+	 * without the lock, notify the discarded messages and call {@link #closeInner()}
+	 * @param reason Reason of the eviction
+	 * @return Completions of the discarded messages
+	 */
+	private @NonNull List<Completion> evict(@NonNull String reason) {
+		assert Thread.holdsLock(this);
+
+		failure = new IOException(reason);
+		return discardQueue();
+	}
+
+
+	/**
+	 * Close {@link #inner}, ignoring the errors
+	 */
+	private void closeInner() {
+		try {
+			inner.close();
+		} catch(IOException e) {
+			// Nothing
+		}
+	}
+
+
+	/**
+	 * Remove the messages not written yet; the caller must hold the lock of {@code this}
+	 * and then, without the lock, notify the discarded messages
+	 * @return Completions of the discarded messages
+	 */
+	private @NonNull List<Completion> discardQueue() {
+		assert Thread.holdsLock(this);
+
+		List<Completion> discarded = new ArrayList<>();
+		for(Entry e : queue) {
+			if(e.completions != null) {
+				discarded.addAll(e.completions);
+			}
+		}
+		queue.clear();
+		queuedBytes = 0;
+		congested = false;
+		return discarded;
+	}
+
+
+	/**
+	 * Notify the completions; called without the lock of {@code this}
+	 * @param l Completions; null for none
+	 * @param written True if written, false if discarded
+	 */
+	private static void complete(List<Completion> l, boolean written) {
+		if(l == null) {
+			return;
+		}
+		for(Completion c : l) {
+			try {
+				c.completed(written);
+			} catch(RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+
+
+	/**
+	 * Receiver of the outcome of a queued message
+	 */
+	public interface Completion {
+
+		/**
+		 * Called once, by the thread that wrote or discarded the message
+		 * @param written True if written on the inner protocol, false if discarded
+		 * because the connection was closed
+		 */
+		void completed(boolean written);
+	}
+
+
+
+	/**
+	 * Message in the queue
+	 */
+	private final static class Entry {
+		private byte[] payload;
+		private int length;
+
+		/** Key of the state superseded by the message; valid if {@link #keyed} */
+		private final int stateKey;
+
+		/** True if sent with {@link QueuedMessageProtocol#sendState(int, byte[], int)} */
+		private final boolean keyed;
+
+		/** Notified when the message is written or discarded; null if none */
+		private List<Completion> completions;
+
+
+		public Entry(@NonNull byte[] payload, int length, int stateKey, boolean keyed, Completion c) {
+			assert payload != null && length >= 0 && length <= payload.length;
+
+			this.payload = payload;
+			this.length = length;
+			this.stateKey = stateKey;
+			this.keyed = keyed;
+			this.completions = c == null ? null : new ArrayList<>(Collections.singletonList(c));
+		}
+
+
+		/**
+		 * Take the payload of the message that supersedes this one, keeping the
+		 * completions of both
+		 * @param e Message with the same key
+		 */
+		void replace(@NonNull Entry e) {
+			assert e.keyed && e.stateKey == stateKey;
+
+			payload = e.payload;
+			length = e.length;
+			if(e.completions != null) {
+				if(completions == null) {
+					completions = e.completions;
+				} else {
+					completions.addAll(e.completions);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package com.macrokeys.comunication;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import com.macrokeys.KeySequencePlan;
+
+/**
+ * {@link KeyPresser} that records in memory every key code, with the time of its
+ * press or release, without generating keystrokes; for the tests and the benchmarks
+ * without a display.
+ * <p>
+ * The events are stored in preallocated arrays: the recording doesn't lock nor
+ * allocate. The events beyond the capacity are discarded and counted.
+ * </p>
+ */
+public final class RecordingKeyPresser implements KeyPresser {
+
+	/** Key codes of the events */
+	private final int[] codes;
+
+	/** Time in ns of the events, see {@link System#nanoTime()} */
+	private final long[] times;
+
+	/** True for the presses, false for the releases */
+	private final boolean[] presses;
+
+	/** 1 for the events completely written */
+	private final AtomicIntegerArray written;
+
+	/** Number of the events recorded or discarded */
+	private final AtomicInteger next = new AtomicInteger(0);
+
+	/** Number of the events discarded */
+	private final AtomicLong dropped = new AtomicLong(0);
+
+
+	/**
+	 * @param capacity Maximum number of events recorded
+	 * @throws IllegalArgumentException If {@code capacity} is < 0
+	 */
+	public RecordingKeyPresser(int capacity) {
+		if(capacity < 0) {
+			throw new IllegalArgumentException("Parameter capacity must be >= 0");
+		}
+
+		codes = new int[capacity];
+		times = new long[capacity];
+		presses = new boolean[capacity];
+		written = new AtomicIntegerArray(capacity);
+	}
+
+
+	@Override
+	public void press(@NonNull KeySequencePlan p) {
+		record(p, true);
+	}
+
+
+	@Override
+	public void release(@NonNull KeySequencePlan p) {
+		record(p, false);
+	}
+
+
+	/**
+	 * @return Number of the events recorded
+	 */
+	public int size() {
+		return Math.min(next.get(), codes.length);
+	}
+
+
+	/**
+	 * @return Number of the events discarded because over the capacity
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+
+	/**
+	 * @param i Index of the event, in order of recording; < {@link #size()}
+	 * @return Key code of the event
+	 */
+	public int getKeyCode(int i) {
+		await(i);
+		return codes[i];
+	}
+
+
+	/**
+	 * @param i Index of the event, in order of recording; < {@link #size()}
+	 * @return Time in ns of the event, see {@link System#nanoTime()}
+	 */
+	public long getTime(int i) {
+		await(i);
+		return times[i];
+	}
+
+
+	/**
+	 * @param i Index of the event, in order of recording; < {@link #size()}
+	 * @return True for a press, false for a release
+	 */
+	public boolean isPress(int i) {
+		await(i);
+		return presses[i];
+	}
+
+
+	/**
+	 * @param p Keys of the event
+	 * @param press True for a press
+	 */
+	private void record(@NonNull KeySequencePlan p, boolean press) {
+		Objects.requireNonNull(p);
+		long t = System.nanoTime();
+		for(int k = 0; k < p.size(); k++) {
+			int code = press ? p.getPressKey(k) : p.getReleaseKey(k);
+			int i = next.getAndIncrement();
+			if(i >= codes.length || i < 0) {
+				next.set(codes.length);
+				dropped.incrementAndGet();
+				continue;
+			}
+			codes[i] = code;
+			times[i] = t;
+			presses[i] = press;
+			written.set(i, 1);
+		}
+	}
+
+
+	/**
+	 * Wait the end of the writing of an event counted by {@link #size()}
+	 * @param i Index of the event
+	 * @throws IndexOutOfBoundsException If {@code i} is not < {@link #size()}
+	 */
+	private void await(int i) {
+		if(i < 0 || i >= size()) {
+			throw new IndexOutOfBoundsException("Event " + i + " of " + size());
+		}
+		while(written.get(i) == 0) {
+			Thread.yield();
+		}
+	}
+}
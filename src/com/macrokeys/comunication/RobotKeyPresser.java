@@ -0,0 +1,38 @@
+package com.macrokeys.comunication;
+
+import java.awt.AWTException;
+import java.awt.Robot;
+import java.util.Objects;
+import org.eclipse.jdt.annotation.NonNull;
+import com.macrokeys.KeySequencePlan;
+
+/**
+ * {@link KeyPresser} that generates the keystrokes of the system with {@link Robot}
+ */
+public final class RobotKeyPresser implements KeyPresser {
+
+    private final Robot robot;
+
+    /**
+     * @throws AWTException If there is an error while initialising the {@link Robot}
+     */
+    public RobotKeyPresser() throws AWTException {
+        robot = new Robot();
+    }
+
+    @Override
+    public void press(@NonNull KeySequencePlan p) {
+        Objects.requireNonNull(p);
+        for (int i = 0; i < p.size(); i++) {
+            robot.keyPress(p.getPressKey(i));
+        }
+    }
+
+    @Override
+    public void release(@NonNull KeySequencePlan p) {
+        Objects.requireNonNull(p);
+        for (int i = 0; i < p.size(); i++) {
+            robot.keyRelease(p.getReleaseKey(i));
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.macrokeys.comunication;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import com.macrokeys.MacroSetup;
+
+/**
+ * Completion handle of the send of a {@link MacroSetup} to the clients of a
+ * {@link MacroServer}, started by {@link MacroServer#changeMacroSetup(MacroSetup)}.
+ * <p>
+ * Every client completes independently with an {@link Outcome}, when the setup leaves its
+ * outbound queue; a client that doesn't complete within
+ * {@link MacroServer#getBroadcastTimeout()} is disconnected.
+ * </p>
+ */
+public final class SetupBroadcast {
+
+	/** Outcomes of the clients by id */
+	private final ConcurrentHashMap<String, Outcome> results = new ConcurrentHashMap<>();
+
+	/** Clients not completed yet */
+	private final CountDownLatch pending;
+
+
+	/**
+	 * @param clients Number of clients of the broadcast
+	 */
+	SetupBroadcast(int clients) {
+		assert clients >= 0;
+		this.pending = new CountDownLatch(clients);
+	}
+
+
+	/**
+	 * Completes a client; a client already completed is not changed
+	 * @param clientId Id of the client
+	 * @param o Outcome of the client
+	 * @return True if the client was completed by this call
+	 */
+	boolean complete(@NonNull String clientId, @NonNull Outcome o) {
+		assert clientId != null && o != null;
+
+		if(results.putIfAbsent(clientId, o) == null) {
+			pending.countDown();
+			return true;
+		}
+		return false;
+	}
+
+
+	/**
+	 * @return True if all the clients are completed
+	 */
+	public boolean isDone() {
+		return pending.getCount() == 0;
+	}
+
+
+	/**
+	 * Waits the completion of all the clients
+	 * @throws InterruptedException If the thread is interrupted
+	 */
+	public void await() throws InterruptedException {
+		pending.await();
+	}
+
+
+	/**
+	 * Waits the completion of all the clients
+	 * @param timeout Maximum time to wait
+	 * @param unit Unit of {@code timeout}
+	 * @return True if all the clients are completed, false if the time elapsed
+	 * @throws InterruptedException If the thread is interrupted
+	 */
+	public boolean await(long timeout, @NonNull TimeUnit unit) throws InterruptedException {
+		return pending.await(timeout, unit);
+	}
+
+
+	/**
+	 * @return Outcomes of the clients completed so far, by id of the client
+	 */
+	public @NonNull Map<String, Outcome> getResults() {
+		return Collections.unmodifiableMap(new HashMap<>(results));
+	}
+
+
+
+	/**
+	 * Outcome of the broadcast for a client
+	 */
+	public enum Outcome {
+		/** The setup, whole or as a patch, was written on the connection of the client */
+		Sent,
+
+		/** The client already had the setup */
+		Skipped,
+
+		/** The send failed: the client is disconnected */
+		Failed,
+
+		/** The send didn't complete in time: the client is disconnected */
+		TimedOut
+	}
+}
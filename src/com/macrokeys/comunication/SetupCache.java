@@ -0,0 +1,220 @@
+package com.macrokeys.comunication;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Objects;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import com.macrokeys.MacroSetup;
+
+/**
+ * On-disk cache of the {@link MacroSetup}s received by a {@link MacroClient}, keyed by
+ * the SHA-256 of their serialization.
+ * <p>
+ * For every server it records the hash of the last setup received; at the next
+ * connection the client offers that hash and the server skips the transfer if it's
+ * still the current setup. Only the servers that support the cache are recorded.
+ * </p>
+ */
+public final class SetupCache {
+
+	/** Size in bytes of a hash */
+	public static final int HASH_LENGTH = 32;
+
+	/** Extension of the files of the setups */
+	private static final String SETUP_EXTENSION = ".setup";
+
+	/** Extension of the files of the record of a server */
+	private static final String SERVER_EXTENSION = ".server";
+
+	/** Size in bytes of the record of a server: hash of the last setup and capabilities */
+	private static final int SERVER_RECORD_LENGTH = HASH_LENGTH + 4;
+
+
+	/** Directory of the cache */
+	private final Path directory;
+
+
+	/**
+	 * @param directory Directory of the cache; created if missing
+	 * @throws IOException If the directory can't be created
+	 */
+	public SetupCache(@NonNull File directory) throws IOException {
+		Objects.requireNonNull(directory);
+
+		this.directory = directory.toPath();
+		Files.createDirectories(this.directory);
+	}
+
+
+	/**
+	 * @param data Serialized {@link MacroSetup}
+	 * @return Hash of {@code data}
+	 */
+	public static @NonNull byte[] hash(@NonNull byte[] data) {
+		Objects.requireNonNull(data);
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(data);
+		} catch(NoSuchAlgorithmException e) {
+			assert false : "Should not happend";
+			throw new RuntimeException(e);
+		}
+	}
+
+
+	/**
+	 * @param hash Hash of the setup
+	 * @return Serialized setup; null if not in the cache or corrupted
+	 * @throws IOException If an IO error occurs
+	 */
+	public byte[] get(@NonNull byte[] hash) throws IOException {
+		Objects.requireNonNull(hash);
+
+		byte[] data;
+		try {
+			data = Files.readAllBytes(setupFile(hash));
+		} catch(NoSuchFileException e) {
+			return null;
+		}
+		return Arrays.equals(hash, hash(data)) ? data : null;
+	}
+
+
+	/**
+	 * Stores the setup as the last one received from the server; the previous
+	 * setup of the server is removed
+	 * @param server Id of the server
+	 * @param data Serialized setup
+	 * @param capabilities Capabilities advertised by the server
+	 * @return Hash of {@code data}
+	 * @throws IOException If an IO error occurs
+	 */
+	@NonNull byte[] put(@NonNull String server, @NonNull byte[] data, int capabilities)
+			throws IOException {
+		Objects.requireNonNull(server);
+		Objects.requireNonNull(data);
+
+		byte[] hash = hash(data);
+		byte[] old = lastHash(server);
+		if(!Arrays.equals(hash, old)) {
+			write(setupFile(hash), data);
+		}
+
+		byte[] record = Arrays.copyOf(hash, SERVER_RECORD_LENGTH);
+		ByteBuffer.wrap(record).putInt(HASH_LENGTH, capabilities);
+		write(serverFile(server), record);
+
+		if(old != null && !Arrays.equals(hash, old)) {
+			Files.deleteIfExists(setupFile(old));
+		}
+		return hash;
+	}
+
+
+	/**
+	 * @param server Id of the server
+	 * @return Hash of the last setup received from the server; null if none
+	 * @throws IOException If an IO error occurs
+	 */
+	public byte[] lastHash(@NonNull String server) throws IOException {
+		byte[] record = serverRecord(server);
+		return record == null ? null : Arrays.copyOf(record, HASH_LENGTH);
+	}
+
+
+	/**
+	 * @param server Id of the server
+	 * @return Capabilities advertised by the server with its last setup; 0 if none
+	 * @throws IOException If an IO error occurs
+	 */
+	int capabilities(@NonNull String server) throws IOException {
+		byte[] record = serverRecord(server);
+		return record == null ? 0 : ByteBuffer.wrap(record).getInt(HASH_LENGTH);
+	}
+
+
+	/**
+	 * @param server Id of the server
+	 * @return Record of the server: hash of the last setup and capabilities; null if none
+	 * @throws IOException If an IO error occurs
+	 */
+	private byte[] serverRecord(@NonNull String server) throws IOException {
+		Objects.requireNonNull(server);
+
+		byte[] record;
+		try {
+			record = Files.readAllBytes(serverFile(server));
+		} catch(NoSuchFileException e) {
+			return null;
+		}
+		return record.length == SERVER_RECORD_LENGTH ? record : null;
+	}
+
+
+	/**
+	 * Forgets the server and its last setup
+	 * @param server Id of the server
+	 * @throws IOException If an IO error occurs
+	 */
+	public void remove(@NonNull String server) throws IOException {
+		Objects.requireNonNull(server);
+
+		byte[] old = lastHash(server);
+		Files.deleteIfExists(serverFile(server));
+		if(old != null) {
+			Files.deleteIfExists(setupFile(old));
+		}
+	}
+
+
+
+	private @NonNull Path setupFile(@NonNull byte[] hash) {
+		return directory.resolve(hex(hash) + SETUP_EXTENSION);
+	}
+
+
+	private @NonNull Path serverFile(@NonNull String server) {
+		return directory.resolve(hex(server.getBytes(StandardCharsets.UTF_8)) + SERVER_EXTENSION);
+	}
+
+
+	/**
+	 * Writes the file atomically, so a crash never leaves a partial file
+	 * @param f File
+	 * @param data Content
+	 * @throws IOException If an IO error occurs
+	 */
+	private void write(@NonNull Path f, @NonNull byte[] data) throws IOException {
+		Path tmp = Files.createTempFile(directory, null, ".tmp");
+		try {
+			Files.write(tmp, data);
+			try {
+				Files.move(tmp, f, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch(AtomicMoveNotSupportedException e) {
+				Files.move(tmp, f, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+
+	private static @NonNull String hex(@NonNull byte[] b) {
+		StringBuilder s = new StringBuilder(b.length * 2);
+		for(byte x : b) {
+			s.append(Character.forDigit((x >> 4) & 0xF, 16)).append(Character.forDigit(x & 0xF, 16));
+		}
+		return s.toString();
+	}
+}
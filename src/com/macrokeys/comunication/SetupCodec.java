@@ -0,0 +1,448 @@
+package com.macrokeys.comunication;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import com.macrokeys.LimitedKeySequence;
+import com.macrokeys.MSLoadException;
+import com.macrokeys.MacroKey;
+import com.macrokeys.MacroScreen;
+import com.macrokeys.MacroSetup;
+import com.macrokeys.MacroSetupPatch;
+
+/**
+ * Encoding of the {@link MacroSetup} messages sent from {@link MacroServer} to
+ * {@link MacroClient} and of the capabilities of the two sides.
+ * <p>
+ * A full setup is the serialized {@link MacroSetup} followed by a trailer with the
+ * capabilities of the server; the clients that don't know the trailer ignore it, since
+ * they read only the serialized object. A client that finds the trailer answers with
+ * its capabilities in a {@link KeyActionCodec#TYPE_HELLO} message.
+ * </p>
+ * <p>
+ * A message that doesn't start with the magic of the serialization is of the type
+ * of its first byte, like {@link #TYPE_SETUP_PATCH}; only clients with
+ * {@link #CAP_SETUP_PATCH} receive them.
+ * </p>
+ * <p>
+ * A {@link #TYPE_SETUP_DEFLATE} message is a full setup compressed with a preset
+ * dictionary of the serialization of a typical setup, that contains the class
+ * descriptors repeated by every setup.
+ * </p>
+ */
+final class SetupCodec {
+
+	/** Capability of understanding {@link KeyActionCodec#TYPE_KEY_BATCH} messages */
+	public static final int CAP_KEY_BATCH = 1;
+
+	/** Capability of applying {@link #TYPE_SETUP_PATCH} messages */
+	public static final int CAP_SETUP_PATCH = 1 << 1;
+
+	/** Capability of loading {@link #TYPE_SETUP_DEFLATE} messages */
+	public static final int CAP_SETUP_DEFLATE = 1 << 2;
+
+	/**
+	 * Capability of the {@link SetupCache}: the client can send the hash of its cached setup
+	 * in a {@link KeyActionCodec#TYPE_HELLO} before the first setup, the server waits for it
+	 * and answers with {@link #TYPE_SETUP_CACHED} if the hash is of the current setup
+	 */
+	public static final int CAP_SETUP_CACHE = 1 << 3;
+
+	/**
+	 * Capability of receiving the fragmented messages of the {@link MessageProtocol}:
+	 * enabled with {@link MessageProtocol#setFragmentation(boolean)} if both the sides have it
+	 */
+	public static final int CAP_FRAGMENTS = 1 << 4;
+
+	/**
+	 * Capability of the sessions: the server gives a token to the client with a
+	 * {@link #TYPE_SESSION}, the client presents it in the hello of the next connection
+	 * to resume the session
+	 */
+	public static final int CAP_SESSION = 1 << 5;
+
+	/**
+	 * Capability of applying the {@link KeyActionCodec#TYPE_KEY_SEQUENCED} messages: the
+	 * client sends the single key actions as the states of the keys, see
+	 * {@link MessageProtocol#sendState(int, byte[], int)}
+	 */
+	public static final int CAP_KEY_SEQUENCE = 1 << 6;
+
+	/** Capabilities of this implementation */
+	public static final int CAPABILITIES = CAP_KEY_BATCH | CAP_SETUP_PATCH | CAP_SETUP_DEFLATE
+			| CAP_SETUP_CACHE | CAP_FRAGMENTS | CAP_SESSION | CAP_KEY_SEQUENCE;
+
+	/** Type of a message with a {@link MacroSetupPatch}: the type byte and the patch */
+	public static final int TYPE_SETUP_PATCH = 1;
+
+	/**
+	 * Type of a message with a compressed full setup: the type byte, the length of
+	 * the serialized setup as int and the zlib stream
+	 */
+	public static final int TYPE_SETUP_DEFLATE = 2;
+
+	/**
+	 * Type of the message that confirms the setup in the cache of the client:
+	 * the type byte and the hash of the setup
+	 */
+	public static final int TYPE_SETUP_CACHED = 3;
+
+	/** Size in bytes of a {@link #TYPE_SETUP_CACHED} message */
+	private static final int CACHED_LENGTH = 1 + SetupCache.HASH_LENGTH;
+
+	/**
+	 * Type of the message with the token of the session of the client: the type byte,
+	 * the flags and the token. With {@link #SESSION_RESUMED} the session was resumed and
+	 * the client already has the current setup, so no setup follows.
+	 */
+	public static final int TYPE_SESSION = 4;
+
+	/** Flag of a {@link #TYPE_SESSION}: resumed session with the current setup */
+	public static final int SESSION_RESUMED = 1;
+
+	/** Size in bytes of the token of a session */
+	public static final int TOKEN_LENGTH = 16;
+
+	/** Size in bytes of a {@link #TYPE_SESSION} message */
+	private static final int SESSION_LENGTH = 1 + 1 + TOKEN_LENGTH;
+
+	/** Size in bytes of the header of a {@link #TYPE_SETUP_DEFLATE} message */
+	private static final int DEFLATE_HEADER_LENGTH = 1 + 4;
+
+	/** Maximum size in bytes of a decompressed setup */
+	private static final int MAX_SETUP_LENGTH = 1 << 24;
+
+	/** Preset dictionary of the compression; never null */
+	private static final byte[] DICTIONARY = buildDictionary();
+
+	/** Adler-32 of {@link #DICTIONARY}, the id of the dictionary in the zlib stream */
+	private static final int DICTIONARY_ID = dictionaryId(DICTIONARY);
+
+	/** First byte of a serialized object, so of a full setup */
+	private static final byte SERIALIZATION_MAGIC = (byte) 0xAC;
+
+	/** Magic at the end of the trailer of a full setup */
+	private static final long TRAILER_MAGIC = 0x4D4B53657475701AL;
+
+	/** Size in bytes of the trailer: the capabilities and the magic */
+	private static final int TRAILER_LENGTH = 4 + 8;
+
+	private SetupCodec() {
+	}
+
+	/**
+	 * @param data Serialized {@link MacroSetup}
+	 * @param capabilities Capabilities of the server
+	 * @return Message of the full setup
+	 */
+	public static @NonNull byte[] encodeFullSetup(@NonNull byte[] data, int capabilities) {
+		byte[] mess = Arrays.copyOf(data, data.length + TRAILER_LENGTH);
+		writeInt(mess, data.length, capabilities);
+		writeInt(mess, data.length + 4, (int) (TRAILER_MAGIC >>> 32));
+		writeInt(mess, data.length + 8, (int) TRAILER_MAGIC);
+		return mess;
+	}
+
+	/**
+	 * @param mess Message of a full setup
+	 * @return Capabilities of the server in the trailer; -1 if there is no trailer
+	 */
+	public static int fullSetupCapabilities(@NonNull byte[] mess) {
+		int l = mess.length;
+		if(l < TRAILER_LENGTH) {
+			return -1;
+		}
+		long magic = ((long) readInt(mess, l - 8) << 32) | (readInt(mess, l - 4) & 0xFFFFFFFFL);
+		return magic == TRAILER_MAGIC ? readInt(mess, l - TRAILER_LENGTH) : -1;
+	}
+
+	/**
+	 * @param mess Message of a full setup
+	 * @return Serialized {@link MacroSetup} of the message, without the trailer
+	 */
+	public static @NonNull byte[] fullSetupData(@NonNull byte[] mess) {
+		return fullSetupCapabilities(mess) < 0 ? mess : Arrays.copyOf(mess, mess.length - TRAILER_LENGTH);
+	}
+
+	/**
+	 * @param mess Message received from the server
+	 * @return True if it's a full setup
+	 */
+	public static boolean isFullSetup(@NonNull byte[] mess) {
+		return mess.length > 0 && mess[0] == SERIALIZATION_MAGIC;
+	}
+
+	/**
+	 * @param p Patch
+	 * @return Message of the patch
+	 */
+	public static @NonNull byte[] encodePatch(@NonNull MacroSetupPatch p) {
+		byte[] data = p.saveAsByteArray();
+		byte[] mess = new byte[data.length + 1];
+		mess[0] = (byte) TYPE_SETUP_PATCH;
+		System.arraycopy(data, 0, mess, 1, data.length);
+		return mess;
+	}
+
+	/**
+	 * @param data Serialized {@link MacroSetup}
+	 * @return Message of the compressed setup
+	 */
+	public static @NonNull byte[] encodeDeflatedSetup(@NonNull byte[] data) {
+		Deflater d = new Deflater(Deflater.BEST_COMPRESSION);
+		try {
+			d.setDictionary(DICTIONARY);
+			d.setInput(data);
+			d.finish();
+
+			ByteArrayOutputStream str = new ByteArrayOutputStream(data.length / 4 + 64);
+			byte[] header = new byte[DEFLATE_HEADER_LENGTH];
+			header[0] = (byte) TYPE_SETUP_DEFLATE;
+			writeInt(header, 1, data.length);
+			str.write(header, 0, header.length);
+
+			byte[] buf = new byte[4096];
+			while(!d.finished()) {
+				int n = d.deflate(buf);
+				str.write(buf, 0, n);
+			}
+			return str.toByteArray();
+		} finally {
+			d.end();
+		}
+	}
+
+	/**
+	 * @param mess A {@link #TYPE_SETUP_DEFLATE} message
+	 * @return Serialized {@link MacroSetup}
+	 * @throws MSLoadException If the message is malformed or compressed with a
+	 * different dictionary
+	 */
+	public static @NonNull byte[] decodeDeflatedSetup(@NonNull byte[] mess) throws MSLoadException {
+		if(mess.length < DEFLATE_HEADER_LENGTH) {
+			throw new MSLoadException("Compressed setup too short", null);
+		}
+		int length = readInt(mess, 1);
+		if(length < 0 || length > MAX_SETUP_LENGTH) {
+			throw new MSLoadException("Compressed setup of length " + length, null);
+		}
+
+		Inflater inf = new Inflater();
+		try {
+			inf.setInput(mess, DEFLATE_HEADER_LENGTH, mess.length - DEFLATE_HEADER_LENGTH);
+			byte[] data = new byte[length];
+			int off = 0;
+			while(!inf.finished()) {
+				int n = off < length ? inf.inflate(data, off, length - off) : inf.inflate(new byte[1]);
+				if(n > 0 && off == length) {
+					throw new MSLoadException("Compressed setup longer than declared", null);
+				} else if(n == 0 && inf.needsDictionary()) {
+					if(inf.getAdler() != DICTIONARY_ID) {
+						throw new MSLoadException("Setup compressed with a different dictionary", null);
+					}
+					inf.setDictionary(DICTIONARY);
+				} else if(n == 0 && inf.needsInput()) {
+					throw new MSLoadException("Compressed setup truncated", null);
+				}
+				off += n;
+			}
+			if(off != length) {
+				throw new MSLoadException("Compressed setup shorter than declared", null);
+			}
+			return data;
+		} catch(DataFormatException e) {
+			throw new MSLoadException("Malformed compressed setup", e);
+		} finally {
+			inf.end();
+		}
+	}
+
+	/**
+	 * @param hash Hash of the current setup
+	 * @return Message that confirms the setup in the cache of the client
+	 */
+	public static @NonNull byte[] encodeCached(@NonNull byte[] hash) {
+		assert hash.length == SetupCache.HASH_LENGTH;
+
+		byte[] mess = new byte[CACHED_LENGTH];
+		mess[0] = (byte) TYPE_SETUP_CACHED;
+		System.arraycopy(hash, 0, mess, 1, hash.length);
+		return mess;
+	}
+
+	/**
+	 * @param mess A {@link #TYPE_SETUP_CACHED} message
+	 * @return Hash of the setup
+	 * @throws MSLoadException If the length of the message is not consistent
+	 */
+	public static @NonNull byte[] cachedHash(@NonNull byte[] mess) throws MSLoadException {
+		if(mess.length != CACHED_LENGTH) {
+			throw new MSLoadException("Malformed cached setup of length " + mess.length, null);
+		}
+		return Arrays.copyOfRange(mess, 1, CACHED_LENGTH);
+	}
+
+	/**
+	 * @param flags Flags of the session, like {@link #SESSION_RESUMED}
+	 * @param token Token of the session
+	 * @return Message with the token of the session
+	 */
+	public static @NonNull byte[] encodeSession(int flags, @NonNull byte[] token) {
+		assert flags >= 0 && flags <= 0xFF;
+		assert token.length == TOKEN_LENGTH;
+
+		byte[] mess = new byte[SESSION_LENGTH];
+		mess[0] = (byte) TYPE_SESSION;
+		mess[1] = (byte) flags;
+		System.arraycopy(token, 0, mess, 2, token.length);
+		return mess;
+	}
+
+	/**
+	 * @param mess A {@link #TYPE_SESSION} message
+	 * @return Flags of the session
+	 * @throws MSLoadException If the length of the message is not consistent
+	 */
+	public static int sessionFlags(@NonNull byte[] mess) throws MSLoadException {
+		if(mess.length != SESSION_LENGTH) {
+			throw new MSLoadException("Malformed session of length " + mess.length, null);
+		}
+		return mess[1] & 0xFF;
+	}
+
+	/**
+	 * @param mess A valid {@link #TYPE_SESSION} message
+	 * @return Token of the session
+	 */
+	public static @NonNull byte[] sessionToken(@NonNull byte[] mess) {
+		return Arrays.copyOfRange(mess, 2, SESSION_LENGTH);
+	}
+
+	/**
+	 * Encode a {@link KeyActionCodec#TYPE_HELLO} message
+	 * @param capabilities Capabilities of the client
+	 * @param hash Hash of the setup in the cache of the client; null if none
+	 * @return The message
+	 */
+	public static @NonNull byte[] encodeHello(int capabilities, byte[] hash) {
+		return encodeHello(capabilities, hash, null);
+	}
+
+	/**
+	 * Encode a {@link KeyActionCodec#TYPE_HELLO} message; the token follows the hash
+	 * @param capabilities Capabilities of the client
+	 * @param hash Hash of the setup in the cache of the client; null if none
+	 * @param token Token of the session to resume; null if none
+	 * @return The message
+	 */
+	public static @NonNull byte[] encodeHello(int capabilities, byte[] hash, byte[] token) {
+		assert capabilities >= 0 && capabilities <= 0xFFFF;
+		assert hash == null || hash.length == SetupCache.HASH_LENGTH;
+		assert token == null || token.length == TOKEN_LENGTH;
+
+		int hashLength = hash == null ? 0 : hash.length;
+		byte[] mess = new byte[KeyActionCodec.HELLO_LENGTH + hashLength
+				+ (token == null ? 0 : token.length)];
+		mess[0] = (byte) KeyActionCodec.TYPE_HELLO;
+		mess[1] = (byte) (capabilities >>> 8);
+		mess[2] = (byte) capabilities;
+		if(hash != null) {
+			System.arraycopy(hash, 0, mess, KeyActionCodec.HELLO_LENGTH, hash.length);
+		}
+		if(token != null) {
+			System.arraycopy(token, 0, mess, KeyActionCodec.HELLO_LENGTH + hashLength, token.length);
+		}
+		return mess;
+	}
+
+	/**
+	 * @param mess A {@link KeyActionCodec#TYPE_HELLO} message
+	 * @param length Length of the message
+	 * @return Capabilities of the client
+	 * @throws IllegalArgumentException If the length of the message is not consistent
+	 */
+	public static int helloCapabilities(@NonNull byte[] mess, int length) {
+		int extra = length - KeyActionCodec.HELLO_LENGTH;
+		if(extra != 0 && extra != SetupCache.HASH_LENGTH && extra != TOKEN_LENGTH
+				&& extra != SetupCache.HASH_LENGTH + TOKEN_LENGTH) {
+			throw new IllegalArgumentException("Malformed hello of length " + length);
+		}
+		return ((mess[1] & 0xFF) << 8) | (mess[2] & 0xFF);
+	}
+
+	/**
+	 * @param mess A valid {@link KeyActionCodec#TYPE_HELLO} message
+	 * @param length Length of the message
+	 * @return Hash of the setup in the cache of the client; null if none
+	 */
+	public static byte[] helloHash(@NonNull byte[] mess, int length) {
+		int extra = length - KeyActionCodec.HELLO_LENGTH;
+		if(extra < SetupCache.HASH_LENGTH) {
+			return null;
+		}
+		return Arrays.copyOfRange(mess, KeyActionCodec.HELLO_LENGTH,
+				KeyActionCodec.HELLO_LENGTH + SetupCache.HASH_LENGTH);
+	}
+
+	/**
+	 * @param mess A valid {@link KeyActionCodec#TYPE_HELLO} message
+	 * @param length Length of the message
+	 * @return Token of the session to resume; null if none
+	 */
+	public static byte[] helloToken(@NonNull byte[] mess, int length) {
+		int extra = length - KeyActionCodec.HELLO_LENGTH;
+		if(extra != TOKEN_LENGTH && extra != SetupCache.HASH_LENGTH + TOKEN_LENGTH) {
+			return null;
+		}
+		return Arrays.copyOfRange(mess, length - TOKEN_LENGTH, length);
+	}
+
+	/**
+	 * @return Serialization of a setup with a key of every kind of field
+	 */
+	private static @NonNull byte[] buildDictionary() {
+		MacroKey k = new MacroKey();
+		k.setKeySeq(new LimitedKeySequence(new Integer[] {0}));
+		MacroScreen m = new MacroScreen();
+		m.getKeys().add(k);
+		List<MacroScreen> l = new ArrayList<>();
+		l.add(m);
+		try {
+			return new MacroSetup(l).saveAsByteArray();
+		} catch(IOException e) {
+			assert false : "Should not happend";
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @param dictionary Dictionary
+	 * @return Id of the dictionary in a zlib stream
+	 */
+	private static int dictionaryId(@NonNull byte[] dictionary) {
+		Adler32 a = new Adler32();
+		a.update(dictionary, 0, dictionary.length);
+		return (int) a.getValue();
+	}
+
+	private static void writeInt(@NonNull byte[] b, int offset, int v) {
+		b[offset] = (byte) (v >>> 24);
+		b[offset + 1] = (byte) (v >>> 16);
+		b[offset + 2] = (byte) (v >>> 8);
+		b[offset + 3] = (byte) v;
+	}
+
+	private static int readInt(@NonNull byte[] b, int offset) {
+		return ((b[offset] & 0xFF) << 24) | ((b[offset + 1] & 0xFF) << 16)
+				| ((b[offset + 2] & 0xFF) << 8) | (b[offset + 3] & 0xFF);
+	}
+}
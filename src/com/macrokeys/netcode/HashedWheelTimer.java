@@ -0,0 +1,274 @@
+package com.macrokeys.netcode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * Timer for many short, coarse deadlines, like the keep alives of the connections.
+ * <p>
+ * The deadlines are kept in a wheel of buckets advanced by a single thread at every tick:
+ * scheduling and cancelling a deadline are O(1) and a deadline is executed at most one
+ * tick late. The tasks are executed by the thread of the timer, so they must not block.
+ * </p>
+ * The thread is started at the first schedule.
+ */
+final class HashedWheelTimer {
+
+	/** Default duration in ms of a tick */
+	static final int DEFAULT_TICK = 10;
+
+	/** Default number of buckets of the wheel */
+	static final int DEFAULT_WHEEL_SIZE = 512;
+
+	/** Maximum number of deadlines moved in the wheel at every tick */
+	private static final int MAX_TRANSFER = 100000;
+
+	/** Timer shared by the process; created at the first use */
+	private static HashedWheelTimer shared;
+
+
+	/** Duration in ns of a tick */
+	private final long tickNanos;
+
+	/** Buckets of the deadlines; the length is a power of 2 */
+	private final List<ArrayList<Timeout>> wheel;
+
+	/** Mask of the index in {@link #wheel} */
+	private final int mask;
+
+	/** Deadlines scheduled and not yet moved in {@link #wheel} */
+	private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+
+	/** Thread that advances the wheel */
+	private final Thread worker;
+
+	/** True if {@link #worker} was started */
+	private final AtomicBoolean started = new AtomicBoolean(false);
+
+	/** True if the timer is stopped */
+	private volatile boolean stopped = false;
+
+	/** Time in ns of the start of the tick 0 */
+	private final long startTime = System.nanoTime();
+
+
+	/**
+	 * @param tick Duration in ms of a tick; > 0
+	 * @param wheelSize Number of buckets; > 0, rounded to a power of 2
+	 * @param threadFactory Factory of the thread of the timer
+	 * @throws IllegalArgumentException If {@code tick} or {@code wheelSize} is <= 0
+	 */
+	HashedWheelTimer(int tick, int wheelSize, @NonNull ThreadFactory threadFactory) {
+		Objects.requireNonNull(threadFactory);
+		if(tick <= 0 || wheelSize <= 0) {
+			throw new IllegalArgumentException("Tick and wheel size must be > 0");
+		}
+
+		int size = Integer.highestOneBit(wheelSize);
+		if(size < wheelSize) {
+			size <<= 1;
+		}
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tick);
+		this.wheel = new ArrayList<>(size);
+		for(int i = 0; i < size; i++) {
+			wheel.add(new ArrayList<Timeout>());
+		}
+		this.mask = size - 1;
+		this.worker = threadFactory.newThread(new Runnable() {
+			@Override
+			public void run() {
+				advance();
+			}
+		});
+	}
+
+
+	/**
+	 * @return Timer shared by the process; its thread is a daemon
+	 */
+	static synchronized @NonNull HashedWheelTimer shared() {
+		if(shared == null) {
+			shared = new HashedWheelTimer(DEFAULT_TICK, DEFAULT_WHEEL_SIZE, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "HashedWheelTimer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return shared;
+	}
+
+
+	/**
+	 * Schedule the execution of the task
+	 * @param task Task to execute in the thread of the timer; must not block
+	 * @param delay Delay of the execution
+	 * @param unit Unit of {@code delay}
+	 * @return Deadline of the task
+	 * @throws IllegalStateException If the timer is stopped
+	 */
+	@NonNull Timeout schedule(@NonNull Runnable task, long delay, @NonNull TimeUnit unit) {
+		Objects.requireNonNull(task);
+		Objects.requireNonNull(unit);
+		if(stopped) {
+			throw new IllegalStateException("Timer stopped");
+		}
+
+		if(started.compareAndSet(false, true)) {
+			worker.start();
+		}
+
+		long deadline = System.nanoTime() - startTime + unit.toNanos(Math.max(0, delay));
+		Timeout t = new Timeout(task, deadline);
+		added.add(t);
+		return t;
+	}
+
+
+	/**
+	 * Stop the timer; the deadlines not expired are never executed
+	 */
+	void stop() {
+		stopped = true;
+		worker.interrupt();
+	}
+
+
+	/**
+	 * Advance the wheel at every tick; executed by {@link #worker}
+	 */
+	private void advance() {
+		long tick = 0;
+		while(!stopped) {
+			long deadline = (tick + 1) * tickNanos;
+			long sleep = deadline - (System.nanoTime() - startTime);
+			if(sleep > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleep);
+				} catch(InterruptedException e) {
+					break;
+				}
+				continue;
+			}
+
+			transferAdded(tick);
+			expire(wheel.get((int) (tick & mask)), deadline);
+			tick++;
+		}
+	}
+
+
+	/**
+	 * Move the scheduled deadlines in their bucket
+	 * @param tick Current tick
+	 */
+	private void transferAdded(long tick) {
+		for(int i = 0; i < MAX_TRANSFER; i++) {
+			Timeout t = added.poll();
+			if(t == null) {
+				return;
+			}
+			if(t.state.get() != Timeout.PENDING) {
+				continue;
+			}
+
+			long ticks = Math.max(t.deadline / tickNanos, tick);
+			t.rounds = (ticks - tick) / wheel.size();
+			wheel.get((int) (ticks & mask)).add(t);
+		}
+	}
+
+
+	/**
+	 * Execute the expired deadlines of the bucket and remove the cancelled ones
+	 * @param bucket Bucket of the current tick
+	 * @param deadline Time of the current tick
+	 */
+	private void expire(@NonNull ArrayList<Timeout> bucket, long deadline) {
+		int i = 0;
+		while(i < bucket.size()) {
+			Timeout t = bucket.get(i);
+			if(t.state.get() != Timeout.PENDING) {
+				removeAt(bucket, i);
+			} else if(t.rounds > 0) {
+				t.rounds--;
+				i++;
+			} else {
+				assert t.deadline <= deadline;
+				removeAt(bucket, i);
+				if(t.state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED)) {
+					try {
+						t.task.run();
+					} catch(RuntimeException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+	}
+
+
+	/**
+	 * Remove the element at the index in O(1), moving the last one in its place
+	 */
+	private static void removeAt(@NonNull ArrayList<Timeout> bucket, int i) {
+		Timeout last = bucket.remove(bucket.size() - 1);
+		if(i < bucket.size()) {
+			bucket.set(i, last);
+		}
+	}
+
+
+
+	/**
+	 * Deadline of a task scheduled on the timer
+	 */
+	static final class Timeout {
+		private static final int PENDING = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+
+		private final Runnable task;
+
+		/** Time in ns of the expiration, from the start of the timer */
+		private final long deadline;
+
+		/** Rounds of the wheel left before the expiration; used only by the thread of the timer */
+		private long rounds;
+
+		private final AtomicInteger state = new AtomicInteger(PENDING);
+
+
+		private Timeout(@NonNull Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+
+		/**
+		 * Cancel the task; the deadline is removed from the wheel when reached
+		 * @return True if cancelled, false if already executed or cancelled
+		 */
+		boolean cancel() {
+			return state.compareAndSet(PENDING, CANCELLED);
+		}
+
+
+		/**
+		 * @return True if the task was executed or is in execution
+		 */
+		boolean isExpired() {
+			return state.get() == EXPIRED;
+		}
+	}
+}
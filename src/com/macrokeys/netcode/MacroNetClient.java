@@ -4,16 +4,12 @@ import com.macrokeys.comunication.MacroClient;
 import com.macrokeys.comunication.MessageProtocol;
 
 import java.io.*;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketAddress;
-import java.net.SocketTimeoutException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import org.eclipse.jdt.annotation.NonNull;
 
@@ -23,8 +19,21 @@ public class MacroNetClient extends MacroClient {
     /** Server connection timeout */
     private static final int TIMEOUT_CONNECTION = 10000;
     
+    /** Factory of the daemon threads of the discoveries */
+    private static final ThreadFactory DISCOVERY_THREAD_FACTORY = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ServerDiscovery");
+            t.setDaemon(true);
+            return t;
+        }
+    };
+    
     /** Server address */
-    private final SocketAddress address;
+    private final InetSocketAddress address;
+    
+    /** Indicates whether the connection uses {@link UDPMessageProtocol} instead of TCP */
+    private boolean udp = false;
     
     
     /**
@@ -57,8 +66,43 @@ public class MacroNetClient extends MacroClient {
     
     
 
+    /**
+     * Sets whether to connect over {@link UDPMessageProtocol}, that avoids the head-of-line
+     * blocking of TCP on lossy networks; the server must accept it
+     * @param udp True for UDP, false for TCP (the default)
+     * @throws IllegalStateException If {@link #getState()} is not {@link State#NoConnection}
+     * @see MacroNetServer#setUdpEnabled(boolean)
+     */
+    public void setUdp(boolean udp) {
+        if (!getState().equals(State.NoConnection)) {
+            throw new IllegalStateException();
+        }
+        this.udp = udp;
+    }
+    
+    
+    /**
+     * @return True if the connection is over {@link UDPMessageProtocol}, false for TCP
+     */
+    public boolean isUdp() {
+        return udp;
+    }
+    
+    
+
+	@Override
+	protected String getServerId() {
+		return address.getHostString() + ":" + address.getPort();
+	}
+    
+    
+
 	@Override
 	protected MessageProtocol innerConnectToServer() throws IOException {
+		if(udp) {
+			return UDPMessageProtocol.connect(address, TIMEOUT_CONNECTION, Executors.defaultThreadFactory());
+		}
+		
 		Socket socket = new Socket();
         socket.connect(address, TIMEOUT_CONNECTION);
         TCPMessageProtocol messProto = new TCPMessageProtocol(socket);
@@ -71,7 +115,8 @@ public class MacroNetClient extends MacroClient {
     /**
      * Find the server in the local newtwork.
      * It ghets the server that respond before the timeout.
-     * The {@link SocketTimeoutException} is handled
+     * <p>Waits the whole timeout: {@link #discoverServers(int, ServerDiscovery.Listener)}
+     * notifies every server as soon as it answers</p>
      * @param timeout Time limit to the answars of the server
      * @return Discovered servers
      * @throws IOException If an IO error occurrs
@@ -79,58 +124,66 @@ public class MacroNetClient extends MacroClient {
      * @see <a href="link https://en.wikipedia.org/wiki/Simple_Service_Discovery_Protocol">SSDP protocol port</a>
      */
     public static SSDPServerInfo[] findServer(int timeout) throws IOException {
-        if(timeout <= 0) {
-            throw new IllegalArgumentException("Parameter timeout must be > 0");
-        }
-        
-        DatagramSocket clientSocket = new DatagramSocket();
-        InetAddress brodcast = InetAddress.getByName(NetStatic.BRODCAST_ADDR);
-        DatagramPacket sendPacket = new DatagramPacket(NetStatic.SSDP_CLIENT_KEY, NetStatic.SSDP_CLIENT_KEY.length,
-        		brodcast, NetStatic.PORT);
-        clientSocket.send(sendPacket);
-
-        byte[] receve = new byte[NetStatic.SSDP_SERVER_KEY.length + NetStatic.SSDP_NAME_LENGTH];
-        DatagramPacket receivePacket;
-        clientSocket.setSoTimeout(timeout);
-
-        ArrayList<SSDPServerInfo> serversInfo = new ArrayList<>();
-        try {
-            while (!clientSocket.isClosed()) {
-            	receivePacket = new DatagramPacket(receve, receve.length);
-                clientSocket.receive(receivePacket);
-                
-                // Extract from the data the server key:
-                byte[] recivedKey = new byte[NetStatic.SSDP_SERVER_KEY.length];
-                System.arraycopy(receve, 0, recivedKey, 0, recivedKey.length);
-                
-                // Check the key sent by the server
-                if (Arrays.equals(NetStatic.SSDP_SERVER_KEY, recivedKey)) {
-                	InetSocketAddress address = (InetSocketAddress)
-                			receivePacket.getSocketAddress();
-                	
-                	// Extract from the data the name of the server:
-                    byte[] recivedName = new byte[NetStatic.SSDP_NAME_LENGTH];
-                    System.arraycopy(receve, NetStatic.SSDP_SERVER_KEY.length, recivedName, 0, recivedName.length);
-                    String serverName = new String(recivedName);
-
-                    serversInfo.add(new SSDPServerInfo(address, serverName));
+        final ArrayList<SSDPServerInfo> serversInfo = new ArrayList<>();
+        ServerDiscovery d = discoverServers(timeout, new ServerDiscovery.Listener() {
+            @Override
+            public void serverFound(@NonNull SSDPServerInfo server) {
+                synchronized (serversInfo) {
+                    serversInfo.add(server);
                 }
             }
-        } catch (SocketTimeoutException e) {
-            // This exception is always generated and the method must continue
-        } finally {
-        	clientSocket.close();        	
-        }
-
 
+            @Override
+            public void discoveryEnded() { }
+        });
+        
+        try {
+            d.await();
+        } catch (InterruptedException e) {
+            d.cancel();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Discovery interrupted");
+        }
 
         // To array
-        SSDPServerInfo[] arr = new SSDPServerInfo[serversInfo.size()];
-        return serversInfo.toArray(arr);
+        synchronized (serversInfo) {
+            SSDPServerInfo[] arr = new SSDPServerInfo[serversInfo.size()];
+            return serversInfo.toArray(arr);
+        }
+    }
+    
+    
+    /**
+     * Start the discovery of the servers in the local network; every server is notified
+     * to the listener, from another thread, as soon as it answers
+     * @param timeout Time limit to the answars of the server
+     * @param listener Receiver of the servers
+     * @return The discovery in progress, that can be cancelled
+     * @throws IOException If an IO error occurrs
+     * @throws IllegalArgumentException If {@code timeout} is <= 0
+     */
+    public static ServerDiscovery discoverServers(int timeout,
+            ServerDiscovery.@NonNull Listener listener) throws IOException {
+        return ServerDiscovery.start(timeout, listener, DISCOVERY_THREAD_FACTORY);
     }
 
  
 
+    /**
+     * Open the directory of the servers alive in the local network, updated by their
+     * presence beacons from another thread
+     * @param ttl Time to live in ms of a server without beacons
+     * @return The directory; must be closed
+     * @throws IOException If an IO error occurrs
+     * @throws IllegalArgumentException If {@code ttl} is <= 0
+     * @see MacroNetServer#setBeaconInterval(int)
+     */
+    public static ServerDirectory openServerDirectory(int ttl) throws IOException {
+        return ServerDirectory.open(ttl, DISCOVERY_THREAD_FACTORY);
+    }
+
+
+
     /** Info of a discovered server */
     public static class SSDPServerInfo {
         /** Socket address to comunicate with the server */
@@ -143,7 +196,7 @@ public class MacroNetClient extends MacroClient {
          * @param address Socket address to comunicate with the server
          * @param name name of the server
          */
-        private SSDPServerInfo(@NonNull InetSocketAddress address, @NonNull String name) {
+        SSDPServerInfo(@NonNull InetSocketAddress address, @NonNull String name) {
             assert address != null;
             assert name != null;
             
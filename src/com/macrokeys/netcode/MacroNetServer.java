@@ -3,22 +3,31 @@ package com.macrokeys.netcode;
 import java.awt.AWTException;
 import java.awt.Robot;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 
 import org.eclipse.jdt.annotation.NonNull;
 
 import com.macrokeys.MacroSetup;
+import com.macrokeys.comunication.KeyPresser;
 import com.macrokeys.comunication.MacroServer;
 import com.macrokeys.comunication.MessageProtocol;
+import com.macrokeys.comunication.RecordingKeyPresser;
 
 /** Seerver that exectues the macro sent by {@link MacroNetClient} */
 public final class MacroNetServer extends MacroServer {
@@ -42,8 +51,20 @@ public final class MacroNetServer extends MacroServer {
 	/** Server socket */
 	private ServerSocket serverSocket;
 	
-	/** UDP socket for the SSDP */
-	private DatagramSocket udpSocket;
+	/** Endpoint of the UDP port, for the SSDP and the {@link UDPMessageProtocol} clients */
+	private volatile UDPEndpoint udpEndpoint;
+	
+	/** Indicates whether this server accepts the clients over {@link UDPMessageProtocol} */
+	private boolean udpEnabled = false;
+	
+	/** Period in ms of the presence beacons; 0 to not send them */
+	private int beaconInterval = 0;
+	
+	/** Number of event-loop threads; 0 for a thread for each client */
+	private int eventLoopThreads = 0;
+	
+	/** Server of the event loops; null if {@link #eventLoopThreads} is 0 */
+	private SelectorServer selectorServer;
 	
 	
 	/**
@@ -57,9 +78,108 @@ public final class MacroNetServer extends MacroServer {
 	}
 	
 	
+	/**
+	 * @param setup initial setap to use
+	 * @param keyPresser Backend of the keystrokes, e.g. a {@link RecordingKeyPresser}
+	 * to run without a display
+	 */
+	public MacroNetServer(@NonNull MacroSetup setup, @NonNull KeyPresser keyPresser) {
+		super(setup, keyPresser);
+	}
+	
+	
+	/**
+	 * Sets the number of event-loop threads that multiplex the connections of the clients
+	 * on {@link Selector}s. With 0 (the default) every client is served by a dedicated thread.
+	 * @param n Number of threads; >= 0
+	 * @throws IllegalArgumentException If {@code n} is < 0
+	 * @throws IllegalStateException If {@code this} is not in the state {@link State#WaitStart}
+	 */
+	public void setEventLoopThreads(int n) {
+		if(n < 0) {
+			throw new IllegalArgumentException("Parameter n must be >= 0");
+		}
+		if(!getState().equals(State.WaitStart)) {
+			throw new IllegalStateException();
+		}
+		eventLoopThreads = n;
+	}
+	
+	
+	/**
+	 * @return Number of event-loop threads; 0 if every client is served by a dedicated thread
+	 */
+	public int getEventLoopThreads() {
+		return eventLoopThreads;
+	}
+	
+	
+	/**
+	 * Sets whether the clients can connect over {@link UDPMessageProtocol}, on the port
+	 * of the SSDP; the TCP clients are always accepted
+	 * @param enabled True to accept the UDP clients
+	 * @throws IllegalStateException If {@code this} is not in the state {@link State#WaitStart}
+	 */
+	public void setUdpEnabled(boolean enabled) {
+		if(!getState().equals(State.WaitStart)) {
+			throw new IllegalStateException();
+		}
+		udpEnabled = enabled;
+	}
+	
+	
+	/**
+	 * @return True if the clients can connect over {@link UDPMessageProtocol}
+	 */
+	public boolean isUdpEnabled() {
+		return udpEnabled;
+	}
+	
+	
+	/**
+	 * Sets the period of the presence beacons: the answer of the SSDP sent at the
+	 * multicast group on the port {@link NetStatic#BEACON_PORT}, on every interface,
+	 * and received by the {@link ServerDirectory} of the clients
+	 * @param ms Period in ms; 0 (the default) to not send the beacons
+	 * @throws IllegalArgumentException If {@code ms} is < 0
+	 * @throws IllegalStateException If {@code this} is not in the state {@link State#WaitStart}
+	 */
+	public void setBeaconInterval(int ms) {
+		if(ms < 0) {
+			throw new IllegalArgumentException("Parameter ms must be >= 0");
+		}
+		if(!getState().equals(State.WaitStart)) {
+			throw new IllegalStateException();
+		}
+		beaconInterval = ms;
+	}
+	
+	
+	/**
+	 * @return Period in ms of the presence beacons; 0 if they are not sent
+	 */
+	public int getBeaconInterval() {
+		return beaconInterval;
+	}
+	
+	
+	@Override
+	protected boolean isEventDriven() {
+		return eventLoopThreads > 0;
+	}
+	
+	
 	@Override
 	protected void innerStart() throws IOException {
-		serverSocket = new ServerSocket(NetStatic.PORT);
+		if(eventLoopThreads > 0) {
+			ServerSocketChannel ch = ServerSocketChannel.open();
+			ch.bind(new InetSocketAddress(NetStatic.PORT));
+			serverSocket = ch.socket();
+			selectorServer = new SelectorServer(ch, eventLoopThreads, new SelectorHandler());
+			selectorServer.start();
+		} else {
+			serverSocket = new ServerSocket(NetStatic.PORT);
+		}
 		seekConnection = true;
 	}
 	
@@ -83,26 +203,25 @@ public final class MacroNetServer extends MacroServer {
 		
 		int localPort = serverSocket.getLocalPort();
 		
+		DatagramChannel ch = null;
 		try {
-			udpSocket = new DatagramSocket(localPort);
+			ch = DatagramChannel.open(StandardProtocolFamily.INET);
+			ch.bind(new InetSocketAddress(localPort));
+			// The requests of ServerDiscovery are received on all the interfaces
+			ServerDiscovery.joinGroup(ch);
+			udpEndpoint = new UDPEndpoint(ch, new UDPHandler(sendData, beaconInterval));
 			
-			while(true) {
-				byte[] data = new byte[NetStatic.SSDP_CLIENT_KEY.length];
-				DatagramPacket receve = new DatagramPacket(data, data.length);
-				udpSocket.receive(receve);
-				SocketAddress client = receve.getSocketAddress();
-				
-				// CHecks is the application client
-				if(Arrays.equals(receve.getData(), NetStatic.SSDP_CLIENT_KEY)) {
-					DatagramPacket send = new DatagramPacket(sendData, sendData.length, client);
-					udpSocket.send(send);
-				}
-			}
+			// The SSDP requests and the UDP clients share the port
+			udpEndpoint.run();
 		} catch (IOException e) {
 			
 		} finally {
-			if(udpSocket != null) {
-				udpSocket.close();
+			if(udpEndpoint != null) {
+				udpEndpoint.close();
+			} else if(ch != null) {
+				try {
+					ch.close();
+				} catch (IOException e) { }
 			}
 		}
 	}
@@ -177,13 +296,144 @@ public final class MacroNetServer extends MacroServer {
 	
 	@Override
 	protected void innerClose() {
+		if(selectorServer != null) {
+			selectorServer.close();
+		}
 		try {
 			if(serverSocket != null) {
 				serverSocket.close();
 			}
-			if(udpSocket != null) {
-				udpSocket.close();
-			}
 		} catch (IOException e) { }
+		if(udpEndpoint != null) {
+			udpEndpoint.close();
+		}
+	}
+	
+	
+	
+	/** Forwards the events of {@link #selectorServer} at the server */
+	private class SelectorHandler implements SelectorServer.Handler {
+
+		@Override
+		public String connected(@NonNull NioConnection c) {
+			return clientConnected(c);
+		}
+
+		@Override
+		public void message(@NonNull String clientId, @NonNull byte[] mess, int length) {
+			clientMessage(clientId, mess, length);
+		}
+
+		@Override
+		public void disconnected(@NonNull String clientId, @NonNull NioConnection c) {
+			clientDisconnected(clientId, c);
+		}
+	}
+	
+	
+	
+	/**
+	 * Answers the SSDP requests, sends the presence beacons and forwards the UDP clients
+	 * at the server
+	 */
+	private class UDPHandler implements UDPEndpoint.Handler {
+		
+		/** Answer at the SSDP requests, also used as beacon */
+		private final ByteBuffer ssdpAnswer;
+		
+		/** Period in ns of the beacons; 0 to not send them */
+		private final long beaconPeriod;
+		
+		/** Destination of the beacons */
+		private final InetSocketAddress beaconTarget;
+		
+		/** Interfaces where the beacons are sent */
+		private List<NetworkInterface> beaconInterfaces;
+		
+		/** Time in ns of the next beacon */
+		private long nextBeacon = System.nanoTime();
+		
+		/**
+		 * @param ssdpAnswer Answer at the SSDP requests
+		 * @param beaconInterval Period in ms of the beacons; 0 to not send them
+		 * @throws IOException If an IO error occurs
+		 */
+		UDPHandler(@NonNull byte[] ssdpAnswer, int beaconInterval) throws IOException {
+			this.ssdpAnswer = ByteBuffer.wrap(ssdpAnswer);
+			this.beaconPeriod = TimeUnit.MILLISECONDS.toNanos(beaconInterval);
+			this.beaconTarget = new InetSocketAddress(
+					InetAddress.getByName(NetStatic.MULTICAST_ADDR), NetStatic.BEACON_PORT);
+			if(beaconInterval > 0) {
+				beaconInterfaces = ServerDiscovery.multicastInterfaces();
+			}
+		}
+		
+		@Override
+		public void tick(long now) throws IOException {
+			if(beaconPeriod == 0 || now - nextBeacon < 0) {
+				return;
+			}
+			nextBeacon = now + beaconPeriod;
+			
+			DatagramChannel ch = udpEndpoint.getChannel();
+			if(beaconInterfaces.isEmpty()) {
+				try {
+					sendBeacon(ch);
+				} catch(IOException e) {
+					// No network: retried at the next beacon
+				}
+			}
+			for(NetworkInterface ni : beaconInterfaces) {
+				try {
+					ch.setOption(StandardSocketOptions.IP_MULTICAST_IF, ni);
+					sendBeacon(ch);
+				} catch(IOException e) {
+					// Interface gone: the clients of the others still receive the beacon
+				}
+			}
+		}
+		
+		/**
+		 * Send the beacon at the multicast group from the current interface of the channel
+		 * @param ch Channel of the SSDP
+		 * @throws IOException If an IO error occurs
+		 */
+		private void sendBeacon(@NonNull DatagramChannel ch) throws IOException {
+			ssdpAnswer.rewind();
+			ch.send(ssdpAnswer, beaconTarget);
+		}
+
+		@Override
+		public void foreign(@NonNull ByteBuffer datagram, @NonNull SocketAddress sender)
+				throws IOException {
+			// CHecks is the application client
+			if(datagram.equals(ByteBuffer.wrap(NetStatic.SSDP_CLIENT_KEY))) {
+				ssdpAnswer.rewind();
+				udpEndpoint.getChannel().send(ssdpAnswer, sender);
+			}
+		}
+
+		@Override
+		public UDPMessageProtocol.Listener accepted(@NonNull final UDPMessageProtocol c) {
+			if(!udpEnabled) {
+				return null;
+			}
+			final String clientId = clientConnected(c);
+			if(clientId == null) {
+				return null;
+			}
+			
+			return new UDPMessageProtocol.Listener() {
+				@Override
+				public void message(@NonNull byte[] mess) {
+					clientMessage(clientId, mess);
+				}
+				
+				@Override
+				public void closed() {
+					clientDisconnected(clientId, c);
+				}
+			};
+		}
 	}
 }
@@ -295,6 +295,11 @@ final class NetStatic {
      */
     public static final int PORT = 10414;
     
+    /**
+     * UDP port of the presence beacons of the servers, sent at {@link #MULTICAST_ADDR}
+     */
+    public static final int BEACON_PORT = PORT + 1;
+    
 	/** Header to identify the server */
 	public static final byte[] SERVER_IDENTIFIER = 
 			"pinopanco".getBytes(StandardCharsets.UTF_8);
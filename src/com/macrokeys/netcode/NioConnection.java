@@ -0,0 +1,457 @@
+package com.macrokeys.netcode;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Objects;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import com.macrokeys.comunication.MessageProtocol;
+
+/**
+ * Connection of a {@link SelectorServer}; the messages use the format of {@link TCPMessageProtocol}.
+ * <p>
+ * The messages are sent from any thread with {@link #sendMessage(byte[])}: the frames are copied
+ * in a write buffer of the connection, reused for every message, and written by the event loop.
+ * The received messages are notified to the {@link SelectorServer.Handler} until the first
+ * {@link #receiveMessage()}: from then on they are queued for the blocking reads.
+ * </p>
+ */
+final class NioConnection implements MessageProtocol {
+
+	/** Initial size in bytes of the read buffer */
+	private static final int READ_BUFFER_SIZE = 1024;
+
+	/** Initial size in bytes of the write buffer */
+	private static final int WRITE_BUFFER_SIZE = 1024;
+
+	/** Size of the header of a message */
+	private static final int HEADER_SIZE = 1 + 4;
+
+
+	/** Channel of the connection; non blocking */
+	private final SocketChannel channel;
+
+	/** Loop that serves this connection */
+	private final SelectorServer.EventLoop loop;
+
+	/** Key of {@link #channel} in the selector of {@link #loop} */
+	private SelectionKey key;
+
+	/** Id of the client; null if not accepted */
+	private String clientId;
+
+	/** Buffer for the received data, in write mode */
+	private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+	/** Payload of the message notified to the handler; reused for every message */
+	private byte[] messageBuffer = new byte[READ_BUFFER_SIZE];
+
+	/** True after the first {@link #receiveMessage()}: the messages are queued in {@link #received} */
+	private volatile boolean pull = false;
+
+	/** Messages received for {@link #receiveMessage()} */
+	private final LinkedBlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+
+	/** Marker of the close in {@link #received} */
+	private static final byte[] CLOSED = new byte[0];
+
+	/** Lock of {@link #writeBuffer} */
+	private final Object writeLock = new Object();
+
+	/** Frames to write, in write mode; guarded by {@link #writeLock} */
+	private ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+
+	/** Write of the buffered frames, submitted at the loop */
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			flushScheduled.set(false);
+			flush();
+		}
+	};
+
+	/** True if a flush was submitted at the loop and not yet executed */
+	private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+	/** True if the connection is closed */
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+
+	/** Period of the keep alive messages in ms; 0 for none */
+	private volatile int timeoutInput = 0;
+
+	/** Timeout of the read in ms; 0 for none */
+	private volatile int timeoutOutput = 0;
+
+	/** True if a message was sent in the last keep alive period */
+	private volatile boolean messageSent = false;
+
+	/** Time in ns of the last keep alive check */
+	private long lastKeepAlive = System.nanoTime();
+
+	/** Time in ns of the last reception of data */
+	private long lastReceive = System.nanoTime();
+
+
+	/**
+	 * @param channel Channel of the connection; non blocking
+	 * @param loop Loop that serves the connection
+	 */
+	NioConnection(@NonNull SocketChannel channel, @NonNull SelectorServer.EventLoop loop) {
+		assert channel != null && loop != null;
+
+		this.channel = channel;
+		this.loop = loop;
+	}
+
+
+	/**
+	 * @param key Key of the channel in the selector of the loop
+	 */
+	void setKey(@NonNull SelectionKey key) {
+		assert loop.inLoop();
+		this.key = key;
+	}
+
+
+	/**
+	 * @param clientId Id of the client; null if not accepted
+	 */
+	void setClientId(String clientId) {
+		assert loop.inLoop();
+		this.clientId = clientId;
+	}
+
+
+
+	@Override
+	public boolean isConnected() {
+		return !closed.get() && channel.isOpen();
+	}
+
+
+	@Override
+	public void setInputKeepAlive(int time) {
+		if(time < 0) {
+			throw new IllegalArgumentException("Time must be >= 0");
+		}
+		timeoutInput = time;
+	}
+
+
+	@Override
+	public int getInputKeepAlive() {
+		return timeoutInput;
+	}
+
+
+	@Override
+	public void setOutputKeepAlive(int time) {
+		if(time < 0) {
+			throw new IllegalArgumentException("Time must be >= 0");
+		}
+		timeoutOutput = time;
+	}
+
+
+	@Override
+	public int getOutputKeepAlive() {
+		return timeoutOutput;
+	}
+
+
+	@Override
+	public void sendMessage(byte[] payload) throws IOException {
+		Objects.requireNonNull(payload);
+		sendMessage(payload, payload.length);
+	}
+
+
+	@Override
+	public void sendMessage(byte[] payload, int length) throws IOException {
+		Objects.requireNonNull(payload);
+		if(length < 0 || length > payload.length) {
+			throw new IndexOutOfBoundsException("Length " + length);
+		}
+
+		if(!isConnected()) {
+			throw new SocketException("Connection closed");
+		}
+
+		synchronized(writeLock) {
+			ensureWriteCapacity(HEADER_SIZE + length);
+			writeBuffer.put(TCPMessageProtocol.CODE_MESSAGE);
+			writeBuffer.putInt(length);
+			writeBuffer.put(payload, 0, length);
+		}
+		messageSent = true;
+		scheduleFlush();
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 * <p>The first call stops the notification of the messages to the
+	 * {@link SelectorServer.Handler}: the messages already notified are not returned.</p>
+	 * @throws IllegalStateException If called by the thread of the event loop
+	 */
+	@Override
+	public byte[] receiveMessage() throws IOException {
+		if(loop.inLoop()) {
+			throw new IllegalStateException("Blocking read in the event loop");
+		}
+		pull = true;
+
+		byte[] m;
+		try {
+			m = received.take();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+
+		if(m == CLOSED) {
+			// For the next readers
+			received.add(CLOSED);
+			throw new SocketException("Connection closed");
+		}
+		return m;
+	}
+
+
+	@Override
+	public void close() {
+		if(closed.compareAndSet(false, true)) {
+			loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					doClose();
+				}
+			});
+		}
+	}
+
+
+	@Override
+	public String toString() {
+		String s = channel.socket().getInetAddress().toString();
+		return s.substring(1);
+	}
+
+
+
+	/**
+	 * Grows {@link #writeBuffer} to append the given frame; the caller must hold {@link #writeLock}
+	 * @param size Size in bytes of the frame
+	 */
+	private void ensureWriteCapacity(int size) {
+		assert Thread.holdsLock(writeLock);
+
+		if(writeBuffer.remaining() < size) {
+			ByteBuffer b = ByteBuffer.allocate(
+					Math.max(writeBuffer.position() + size, 2 * writeBuffer.capacity()));
+			writeBuffer.flip();
+			b.put(writeBuffer);
+			writeBuffer = b;
+		}
+	}
+
+
+	/**
+	 * Submit the write of the buffered frames at the loop
+	 */
+	private void scheduleFlush() {
+		if(flushScheduled.compareAndSet(false, true)) {
+			loop.execute(flushTask);
+		}
+	}
+
+
+	/**
+	 * Write the buffered frames until the socket buffer is full; executed by the loop
+	 */
+	private void flush() {
+		assert loop.inLoop();
+
+		if(closed.get()) {
+			return;
+		}
+
+		boolean remaining;
+		try {
+			// Non blocking write: the senders wait at most a copy to the socket buffer
+			synchronized(writeLock) {
+				writeBuffer.flip();
+				try {
+					channel.write(writeBuffer);
+				} finally {
+					remaining = writeBuffer.hasRemaining();
+					writeBuffer.compact();
+				}
+			}
+		} catch(IOException e) {
+			close();
+			return;
+		}
+
+		if(key != null && key.isValid()) {
+			int ops = SelectionKey.OP_READ;
+			if(remaining) {
+				ops |= SelectionKey.OP_WRITE;
+			}
+			key.interestOps(ops);
+		}
+	}
+
+
+	/**
+	 * The channel can be written; executed by the loop
+	 */
+	void onWritable() {
+		flush();
+	}
+
+
+	/**
+	 * The channel can be read; executed by the loop
+	 */
+	void onReadable() {
+		assert loop.inLoop();
+
+		try {
+			int n = channel.read(readBuffer);
+			if(n < 0) {
+				close();
+				return;
+			}
+			lastReceive = System.nanoTime();
+			decode();
+		} catch(IOException e) {
+			close();
+		}
+	}
+
+
+	/**
+	 * Extracts the complete messages in {@link #readBuffer}
+	 * @throws IOException If the data is malformed
+	 */
+	private void decode() throws IOException {
+		readBuffer.flip();
+
+		while(readBuffer.hasRemaining() && !closed.get()) {
+			int start = readBuffer.position();
+			byte code = readBuffer.get(start);
+
+			if(code == TCPMessageProtocol.CODE_KEEP_ALIVE) {
+				readBuffer.position(start + 1);
+			} else if(code == TCPMessageProtocol.CODE_MESSAGE) {
+				if(readBuffer.remaining() < HEADER_SIZE) {
+					break;
+				}
+				int length = readBuffer.getInt(start + 1);
+				if(length < 0 || length > TCPMessageProtocol.DEFAULT_MAX_MESSAGE_LENGTH) {
+					throw new IOException("Invalid message length: " + length);
+				}
+				if(readBuffer.remaining() < HEADER_SIZE + length) {
+					ensureCapacity(HEADER_SIZE + length);
+					break;
+				}
+
+				readBuffer.position(start + HEADER_SIZE);
+				if(pull) {
+					byte[] payload = new byte[length];
+					readBuffer.get(payload);
+					received.add(payload);
+				} else {
+					if(messageBuffer.length < length) {
+						messageBuffer = new byte[Math.max(length, 2 * messageBuffer.length)];
+					}
+					readBuffer.get(messageBuffer, 0, length);
+					if(clientId != null) {
+						loop.getHandler().message(clientId, messageBuffer, length);
+					}
+				}
+			} else {
+				throw new IOException("Unknown message code: " + code);
+			}
+		}
+
+		readBuffer.compact();
+	}
+
+
+	/**
+	 * Grows {@link #readBuffer} to contain at least the given frame
+	 * @param size Size in bytes of the frame
+	 */
+	private void ensureCapacity(int size) {
+		if(readBuffer.capacity() < size) {
+			ByteBuffer b = ByteBuffer.allocate(size);
+			b.put(readBuffer);
+			b.flip();
+			readBuffer = b;
+		}
+	}
+
+
+	/**
+	 * Check of keep alives and timeouts; executed by the loop
+	 * @param now Current time in ns
+	 */
+	void onTick(long now) {
+		assert loop.inLoop();
+
+		int out = timeoutOutput;
+		if(out > 0 && now - lastReceive > out * 1000000L) {
+			close();
+			return;
+		}
+
+		int in = timeoutInput;
+		if(in > 0 && now - lastKeepAlive >= in / 2 * 1000000L) {
+			lastKeepAlive = now;
+			if(!messageSent) {
+				synchronized(writeLock) {
+					ensureWriteCapacity(1);
+					writeBuffer.put(TCPMessageProtocol.CODE_KEEP_ALIVE);
+				}
+				flush();
+			}
+			messageSent = false;
+		}
+	}
+
+
+	/**
+	 * Close the channel and notify the handler; executed by the loop
+	 */
+	private void doClose() {
+		assert loop.inLoop();
+
+		if(key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		} catch(IOException e) {
+			// Nothing
+		}
+		synchronized(writeLock) {
+			writeBuffer.clear();
+		}
+		received.add(CLOSED);
+
+		if(clientId != null) {
+			String id = clientId;
+			clientId = null;
+			loop.getHandler().disconnected(id, this);
+		}
+	}
+}
@@ -0,0 +1,298 @@
+package com.macrokeys.netcode;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * TCP server that multiplexes all the clients on a fixed number of event-loop
+ * threads, each one with its own {@link Selector}.
+ * <p>
+ * The messages are framed in the same format of {@link TCPMessageProtocol}.
+ * The first event loop accepts the connections and assigns them to the loops
+ * in round robin.
+ * </p>
+ */
+final class SelectorServer {
+
+	/** Period in ms of the check of keep alives and timeouts */
+	static final int TICK = 100;
+
+	/** Channel that accepts the connections; non blocking */
+	private final ServerSocketChannel serverChannel;
+
+	/** Receiver of the events of the connections */
+	private final Handler handler;
+
+	/** Event loops; never empty */
+	private final EventLoop[] loops;
+
+	/** Index of the loop of the next accepted connection; used only by the first loop */
+	private int nextLoop = 0;
+
+	/** True if {@link #close()} was called */
+	private volatile boolean closed = false;
+
+
+	/**
+	 * @param serverChannel Channel that accepts the connections; bound
+	 * @param threads Number of event-loop threads; > 0
+	 * @param handler Receiver of the events of the connections
+	 * @throws IOException If an IO error occurs
+	 * @throws IllegalArgumentException If {@code threads} is <= 0
+	 */
+	public SelectorServer(@NonNull ServerSocketChannel serverChannel, int threads,
+			@NonNull Handler handler) throws IOException {
+		Objects.requireNonNull(serverChannel);
+		Objects.requireNonNull(handler);
+		if(threads <= 0) {
+			throw new IllegalArgumentException("Parameter threads must be > 0");
+		}
+
+		this.serverChannel = serverChannel;
+		this.handler = handler;
+		this.loops = new EventLoop[threads];
+		for(int i = 0; i < threads; i++) {
+			loops[i] = new EventLoop(i);
+		}
+
+		serverChannel.configureBlocking(false);
+		serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+	}
+
+
+	/**
+	 * Start the event loops
+	 */
+	public void start() {
+		for(EventLoop l : loops) {
+			l.thread.start();
+		}
+	}
+
+
+	/**
+	 * Close the server and all the connections
+	 */
+	public void close() {
+		closed = true;
+		for(EventLoop l : loops) {
+			l.selector.wakeup();
+		}
+		try {
+			serverChannel.close();
+		} catch(IOException e) {
+			// Nothing
+		}
+	}
+
+
+	/**
+	 * Accept the pending connections; executed in the first loop
+	 */
+	private void accept() {
+		while(true) {
+			SocketChannel ch;
+			try {
+				ch = serverChannel.accept();
+				if(ch == null) {
+					return;
+				}
+			} catch(IOException e) {
+				return;
+			}
+
+			try {
+				ch.configureBlocking(false);
+				ch.socket().setTcpNoDelay(true);
+			} catch(IOException e) {
+				try {
+					ch.close();
+				} catch(IOException e1) {
+					// Nothing
+				}
+				continue;
+			}
+
+			EventLoop l = loops[nextLoop];
+			nextLoop = (nextLoop + 1) % loops.length;
+			l.register(ch);
+		}
+	}
+
+
+
+	/** Thread that serves a set of connections */
+	final class EventLoop implements Runnable {
+
+		/** Selector of the connections of this loop */
+		private final Selector selector;
+
+		/** Thread of this loop */
+		private final Thread thread;
+
+		/** Tasks submitted by other threads */
+		private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+
+		/**
+		 * @param index Index of the loop
+		 * @throws IOException If an IO error occurs
+		 */
+		private EventLoop(int index) throws IOException {
+			this.selector = Selector.open();
+			this.thread = new Thread(this, "MacroKeys event loop " + index);
+			this.thread.setDaemon(true);
+		}
+
+
+		/**
+		 * @return Receiver of the events of the connections
+		 */
+		Handler getHandler() {
+			return handler;
+		}
+
+
+		/**
+		 * @return True if the current thread is the thread of this loop
+		 */
+		boolean inLoop() {
+			return Thread.currentThread() == thread;
+		}
+
+
+		/**
+		 * Execute the task in the thread of this loop
+		 * @param r Task to execute
+		 */
+		void execute(@NonNull Runnable r) {
+			assert r != null;
+
+			if(inLoop()) {
+				r.run();
+			} else {
+				tasks.add(r);
+				selector.wakeup();
+			}
+		}
+
+
+		/**
+		 * Register the new connection in this loop
+		 * @param ch Channel of the connection; non blocking
+		 */
+		private void register(@NonNull final SocketChannel ch) {
+			execute(new Runnable() {
+				@Override
+				public void run() {
+					NioConnection c = new NioConnection(ch, EventLoop.this);
+					try {
+						c.setKey(ch.register(selector, SelectionKey.OP_READ, c));
+					} catch(IOException e) {
+						c.close();
+						return;
+					}
+					c.setClientId(handler.connected(c));
+				}
+			});
+		}
+
+
+		@Override
+		public void run() {
+			long nextTick = System.nanoTime();
+			try {
+				while(!closed) {
+					selector.select(TICK);
+
+					Runnable r;
+					while((r = tasks.poll()) != null) {
+						r.run();
+					}
+
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while(it.hasNext()) {
+						SelectionKey k = it.next();
+						it.remove();
+
+						if(!k.isValid()) {
+							continue;
+						}
+
+						if(k.isAcceptable()) {
+							accept();
+						} else {
+							NioConnection c = (NioConnection) k.attachment();
+							if(k.isReadable()) {
+								c.onReadable();
+							}
+							if(k.isValid() && k.isWritable()) {
+								c.onWritable();
+							}
+						}
+					}
+
+					long now = System.nanoTime();
+					if(now - nextTick >= 0) {
+						nextTick = now + TICK * 1000000L;
+						for(SelectionKey k : selector.keys()) {
+							if(k.attachment() instanceof NioConnection) {
+								((NioConnection) k.attachment()).onTick(now);
+							}
+						}
+					}
+				}
+			} catch(IOException e) {
+				e.printStackTrace();
+			} finally {
+				for(SelectionKey k : selector.keys()) {
+					if(k.attachment() instanceof NioConnection) {
+						((NioConnection) k.attachment()).close();
+					}
+				}
+				try {
+					selector.close();
+				} catch(IOException e) {
+					// Nothing
+				}
+			}
+		}
+	}
+
+
+
+	/** Receiver of the events of the connections of a {@link SelectorServer} */
+	interface Handler {
+
+		/**
+		 * Called at the connection of a client, in the thread of its loop
+		 * @param c New connection
+		 * @return Id of the client; null if refused
+		 */
+		String connected(@NonNull NioConnection c);
+
+		/**
+		 * Called at the reception of a message, in the thread of the loop
+		 * @param clientId Id of the client returned by {@link #connected(NioConnection)}
+		 * @param mess Array that contains the payload of the message from the index 0;
+		 * reused by the connection, valid only during the call
+		 * @param length Length of the payload
+		 */
+		void message(@NonNull String clientId, @NonNull byte[] mess, int length);
+
+		/**
+		 * Called at the closure of a connection of an accepted client
+		 * @param clientId Id of the client returned by {@link #connected(NioConnection)}
+		 * @param c Connection closed
+		 */
+		void disconnected(@NonNull String clientId, @NonNull NioConnection c);
+	}
+}
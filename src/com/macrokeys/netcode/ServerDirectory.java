@@ -0,0 +1,194 @@
+package com.macrokeys.netcode;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import com.macrokeys.netcode.MacroNetClient.SSDPServerInfo;
+
+/**
+ * Directory of the {@link MacroNetServer} alive in the local network, kept current by
+ * their presence beacons (see {@link MacroNetServer#setBeaconInterval(int)}).
+ * <p>
+ * A thread receives the beacons; a server is removed when no beacon is received
+ * for the time to live, so the list of the servers costs no request on the network.
+ * </p>
+ */
+public final class ServerDirectory implements Closeable {
+
+	/** Channel of the beacons */
+	private final DatagramChannel channel;
+
+	/** Time to live in ns of a server without beacons */
+	private final long ttl;
+
+	/** Servers by address */
+	private final ConcurrentHashMap<InetSocketAddress, Entry> servers = new ConcurrentHashMap<>();
+
+	/** True if closed */
+	private volatile boolean closed = false;
+
+
+	/**
+	 * @param channel Channel of the beacons, bound
+	 * @param ttl Time to live in ms of a server without beacons
+	 */
+	private ServerDirectory(@NonNull DatagramChannel channel, int ttl) {
+		assert channel != null;
+
+		this.channel = channel;
+		this.ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+	}
+
+
+	/**
+	 * Start to receive the beacons of the servers, on all the interfaces
+	 * @param ttl Time to live in ms of a server without beacons; a bit more than
+	 * the period of the beacons
+	 * @param threadFactory Factory of the thread that receives the beacons
+	 * @return The directory
+	 * @throws IOException If an IO error occurs
+	 * @throws IllegalArgumentException If {@code ttl} is <= 0
+	 */
+	public static @NonNull ServerDirectory open(int ttl, @NonNull ThreadFactory threadFactory)
+			throws IOException {
+		DatagramChannel ch = DatagramChannel.open(StandardProtocolFamily.INET);
+		try {
+			// More clients on the same host
+			ch.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			ch.bind(new InetSocketAddress(NetStatic.BEACON_PORT));
+			ServerDiscovery.joinGroup(ch);
+		} catch(IOException e) {
+			ch.close();
+			throw e;
+		}
+		return open(ch, ttl, threadFactory);
+	}
+
+
+	/**
+	 * Start to receive the beacons from the given channel
+	 * @param channel Channel of the beacons, bound; closed by the directory
+	 * @param ttl Time to live in ms of a server without beacons
+	 * @param threadFactory Factory of the thread that receives the beacons
+	 * @return The directory
+	 * @throws IOException If an IO error occurs
+	 * @throws IllegalArgumentException If {@code ttl} is <= 0
+	 */
+	static @NonNull ServerDirectory open(@NonNull DatagramChannel channel, int ttl,
+			@NonNull ThreadFactory threadFactory) throws IOException {
+		Objects.requireNonNull(channel);
+		Objects.requireNonNull(threadFactory);
+		if(ttl <= 0) {
+			channel.close();
+			throw new IllegalArgumentException("Parameter ttl must be > 0");
+		}
+
+		channel.configureBlocking(true);
+		final ServerDirectory d = new ServerDirectory(channel, ttl);
+		threadFactory.newThread(new Runnable() {
+			@Override
+			public void run() {
+				d.receive();
+			}
+		}).start();
+		return d;
+	}
+
+
+	/**
+	 * @return The servers with a beacon received in the time to live; computed
+	 * without requests on the network
+	 */
+	public @NonNull List<SSDPServerInfo> getServers() {
+		long now = System.nanoTime();
+		List<SSDPServerInfo> l = new ArrayList<>(servers.size());
+		Iterator<Map.Entry<InetSocketAddress, Entry>> it = servers.entrySet().iterator();
+		while(it.hasNext()) {
+			Entry e = it.next().getValue();
+			if(now - e.lastSeen > ttl) {
+				// Removed only if no beacon replaced the entry meanwhile
+				servers.remove(e.server.address, e);
+			} else {
+				l.add(e.server);
+			}
+		}
+		return l;
+	}
+
+
+	/**
+	 * @return True if the directory is closed
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+
+	/**
+	 * Stop to receive the beacons; the servers are no more updated
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		try {
+			channel.close();
+		} catch(IOException e) {
+			// Nothing
+		}
+	}
+
+
+	/**
+	 * Receive the beacons until closed; executed by the thread of the directory
+	 */
+	private void receive() {
+		ByteBuffer buffer = ByteBuffer.allocate(NetStatic.SSDP_SERVER_KEY.length + NetStatic.SSDP_NAME_LENGTH);
+		try {
+			while(!closed) {
+				buffer.clear();
+				InetSocketAddress sender = (InetSocketAddress) channel.receive(buffer);
+				SSDPServerInfo s = ServerDiscovery.parseAnswer(buffer.array(), buffer.position(), sender);
+				if(s == null) {
+					continue;
+				}
+
+				// A new entry: an expired one that is being removed is not revived
+				servers.put(s.address, new Entry(s, System.nanoTime()));
+			}
+		} catch(IOException e) {
+			// Closed
+		} finally {
+			close();
+		}
+	}
+
+
+
+	/** Server of the directory with the time of its last beacon */
+	private static final class Entry {
+		private final SSDPServerInfo server;
+
+		/** Time in ns of the last beacon */
+		private final long lastSeen;
+
+		Entry(@NonNull SSDPServerInfo server, long lastSeen) {
+			this.server = server;
+			this.lastSeen = lastSeen;
+		}
+	}
+}
@@ -0,0 +1,459 @@
+package com.macrokeys.netcode;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import com.macrokeys.netcode.MacroNetClient.SSDPServerInfo;
+
+/**
+ * Discovery of the {@link MacroNetServer} in the local network that notifies every
+ * server as soon as its answer is received.
+ * <p>
+ * The request is sent at the start from a {@link DatagramChannel} for every network
+ * interface that is up and supports the multicast, at the SSDP group
+ * {@link NetStatic#MULTICAST_ADDR} and at the broadcast address of the interface, for
+ * the servers that don't join the group. The answers of all the interfaces are read by
+ * a thread until the timeout or the {@link #cancel()}: a server that answers more times,
+ * or on more interfaces, is notified once.
+ * </p>
+ */
+public final class ServerDiscovery implements Closeable {
+
+	/** Channels of the requests and of the answers, one for each interface */
+	private final List<DatagramChannel> channels;
+
+	/** Selector of {@link #channels} */
+	private final Selector selector;
+
+	/** Receiver of the servers */
+	private final Listener listener;
+
+	/** Time in ns of the end of the discovery */
+	private final long deadline;
+
+	/** Addresses of the servers already notified; used only by the thread of the discovery */
+	private final HashSet<InetSocketAddress> found = new HashSet<>();
+
+	/** Released at the end of the discovery */
+	private final CountDownLatch done = new CountDownLatch(1);
+
+	/** True if cancelled */
+	private volatile boolean cancelled = false;
+
+
+	/**
+	 * Send the request on every probe
+	 * @param probes Channels and destinations of the request; the channels are closed
+	 * by the discovery
+	 * @param timeout Duration in ms of the discovery
+	 * @param listener Receiver of the servers
+	 * @throws IOException If the request could not be sent on any channel
+	 */
+	private ServerDiscovery(@NonNull List<Probe> probes, int timeout, @NonNull Listener listener)
+			throws IOException {
+		assert probes != null && listener != null;
+
+		this.listener = listener;
+		this.deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		this.channels = new ArrayList<>(probes.size());
+		for(Probe p : probes) {
+			channels.add(p.channel);
+		}
+
+		IOException error = null;
+		Selector sel = null;
+		try {
+			sel = Selector.open();
+			int sent = 0;
+			for(Probe p : probes) {
+				try {
+					p.channel.configureBlocking(false);
+					p.channel.register(sel, SelectionKey.OP_READ);
+					for(SocketAddress target : p.targets) {
+						p.channel.send(ByteBuffer.wrap(NetStatic.SSDP_CLIENT_KEY), target);
+					}
+					sent++;
+				} catch(IOException e) {
+					// The interface can't be used: the others can
+					error = e;
+				}
+			}
+			if(sent == 0) {
+				throw error != null ? error : new IOException("No network interface");
+			}
+		} catch(IOException e) {
+			if(sel != null) {
+				sel.close();
+			}
+			closeChannels();
+			throw e;
+		}
+		this.selector = sel;
+	}
+
+
+	/**
+	 * Start the discovery of the servers in the local network, on all the interfaces
+	 * @param timeout Duration in ms of the discovery
+	 * @param listener Receiver of the servers, called by the thread of the discovery
+	 * @param threadFactory Factory of the thread of the discovery
+	 * @return The discovery in progress
+	 * @throws IOException If an IO error occurs sending the request
+	 * @throws IllegalArgumentException If {@code timeout} is <= 0
+	 */
+	public static @NonNull ServerDiscovery start(int timeout, @NonNull Listener listener,
+			@NonNull ThreadFactory threadFactory) throws IOException {
+		return start(interfaceProbes(), timeout, listener, threadFactory);
+	}
+
+
+	/**
+	 * Start the discovery sending the request at the given address
+	 * @param target Destination of the request
+	 * @param timeout Duration in ms of the discovery
+	 * @param listener Receiver of the servers, called by the thread of the discovery
+	 * @param threadFactory Factory of the thread of the discovery
+	 * @return The discovery in progress
+	 * @throws IOException If an IO error occurs sending the request
+	 * @throws IllegalArgumentException If {@code timeout} is <= 0
+	 */
+	static @NonNull ServerDiscovery start(@NonNull SocketAddress target, int timeout,
+			@NonNull Listener listener, @NonNull ThreadFactory threadFactory) throws IOException {
+		Objects.requireNonNull(target);
+		return start(Collections.singletonList(new Probe(DatagramChannel.open(),
+				Collections.singletonList(target))), timeout, listener, threadFactory);
+	}
+
+
+	/**
+	 * Start the discovery on the given probes
+	 * @param probes Channels and destinations of the request
+	 * @param timeout Duration in ms of the discovery
+	 * @param listener Receiver of the servers, called by the thread of the discovery
+	 * @param threadFactory Factory of the thread of the discovery
+	 * @return The discovery in progress
+	 * @throws IOException If an IO error occurs sending the request
+	 * @throws IllegalArgumentException If {@code timeout} is <= 0
+	 */
+	static @NonNull ServerDiscovery start(@NonNull List<Probe> probes, int timeout,
+			@NonNull Listener listener, @NonNull ThreadFactory threadFactory) throws IOException {
+		Objects.requireNonNull(probes);
+		Objects.requireNonNull(listener);
+		Objects.requireNonNull(threadFactory);
+		if(timeout <= 0) {
+			for(Probe p : probes) {
+				p.channel.close();
+			}
+			throw new IllegalArgumentException("Parameter timeout must be > 0");
+		}
+
+		final ServerDiscovery d = new ServerDiscovery(probes, timeout, listener);
+		threadFactory.newThread(new Runnable() {
+			@Override
+			public void run() {
+				d.receive();
+			}
+		}).start();
+		return d;
+	}
+
+
+	/**
+	 * Open a probe for every IPv4 interface that is up and supports the multicast;
+	 * if none, a probe of the broadcast on the default interface
+	 * @return The probes
+	 * @throws IOException If an IO error occurs
+	 */
+	static @NonNull List<Probe> interfaceProbes() throws IOException {
+		InetAddress group = InetAddress.getByName(NetStatic.MULTICAST_ADDR);
+		List<Probe> probes = new ArrayList<>();
+		for(NetworkInterface ni : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+			try {
+				if(!ni.isUp() || !ni.supportsMulticast()) {
+					continue;
+				}
+				for(InterfaceAddress ia : ni.getInterfaceAddresses()) {
+					if(!(ia.getAddress() instanceof Inet4Address)) {
+						continue;
+					}
+					List<SocketAddress> targets = new ArrayList<>(2);
+					targets.add(new InetSocketAddress(group, NetStatic.PORT));
+					if(ia.getBroadcast() != null) {
+						targets.add(new InetSocketAddress(ia.getBroadcast(), NetStatic.PORT));
+					}
+
+					DatagramChannel ch = DatagramChannel.open(StandardProtocolFamily.INET);
+					try {
+						ch.setOption(StandardSocketOptions.SO_BROADCAST, true);
+						ch.setOption(StandardSocketOptions.IP_MULTICAST_IF, ni);
+						// The answers come back on the interface of the request
+						ch.bind(new InetSocketAddress(ia.getAddress(), 0));
+					} catch(IOException e) {
+						ch.close();
+						continue;
+					}
+					probes.add(new Probe(ch, targets));
+				}
+			} catch(IOException e) {
+				// Interface not usable
+			}
+		}
+
+		if(probes.isEmpty()) {
+			DatagramChannel ch = DatagramChannel.open();
+			ch.setOption(StandardSocketOptions.SO_BROADCAST, true);
+			probes.add(new Probe(ch, Collections.<SocketAddress>singletonList(
+					new InetSocketAddress(InetAddress.getByName(NetStatic.BRODCAST_ADDR), NetStatic.PORT))));
+		}
+		return probes;
+	}
+
+
+	/**
+	 * @return The IPv4 interfaces that are up and support the multicast
+	 * @throws IOException If an IO error occurs
+	 */
+	static @NonNull List<NetworkInterface> multicastInterfaces() throws IOException {
+		List<NetworkInterface> l = new ArrayList<>();
+		for(NetworkInterface ni : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+			try {
+				if(!ni.isUp() || !ni.supportsMulticast()) {
+					continue;
+				}
+				for(InetAddress a : Collections.list(ni.getInetAddresses())) {
+					if(a instanceof Inet4Address) {
+						l.add(ni);
+						break;
+					}
+				}
+			} catch(IOException e) {
+				// Interface not usable
+			}
+		}
+		return l;
+	}
+
+
+	/**
+	 * Join the multicast group of the SSDP on every interface that supports it
+	 * @param ch Channel of the {@link StandardProtocolFamily#INET} family
+	 */
+	static void joinGroup(@NonNull DatagramChannel ch) {
+		try {
+			InetAddress group = InetAddress.getByName(NetStatic.MULTICAST_ADDR);
+			for(NetworkInterface ni : multicastInterfaces()) {
+				try {
+					ch.join(group, ni);
+				} catch(IOException e) {
+					// The other interfaces are still joined
+				}
+			}
+		} catch(IOException e) {
+			// Only the datagrams not sent at the group are received
+		}
+	}
+
+
+	/**
+	 * Stop the discovery; the servers not notified yet are not notified.
+	 * Doesn't wait the end of a notification in progress.
+	 */
+	public void cancel() {
+		cancelled = true;
+		selector.wakeup();
+	}
+
+
+	/**
+	 * Same as {@link #cancel()}
+	 */
+	@Override
+	public void close() {
+		cancel();
+	}
+
+
+	/**
+	 * @return True if the discovery ended for the timeout, the cancellation or an error
+	 */
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+
+	/**
+	 * @return True if the discovery was cancelled
+	 */
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+
+	/**
+	 * Wait the end of the discovery
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	public void await() throws InterruptedException {
+		done.await();
+	}
+
+
+	/**
+	 * Read the answers of all the channels until the deadline; executed by the thread
+	 * of the discovery
+	 */
+	private void receive() {
+		ByteBuffer buffer = ByteBuffer.allocate(NetStatic.SSDP_SERVER_KEY.length + NetStatic.SSDP_NAME_LENGTH);
+		try {
+			while(!cancelled) {
+				long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+				if(left <= 0) {
+					break;
+				}
+				selector.select(left);
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while(it.hasNext() && !cancelled) {
+					SelectionKey k = it.next();
+					it.remove();
+					DatagramChannel ch = (DatagramChannel) k.channel();
+					SocketAddress sender;
+					while(!cancelled && (sender = receiveAnswer(ch, buffer)) != null) {
+						SSDPServerInfo s = parseAnswer(buffer.array(), buffer.position(),
+								(InetSocketAddress) sender);
+						if(s != null && found.add(s.address)) {
+							listener.serverFound(s);
+						}
+					}
+				}
+			}
+		} catch(IOException | ClosedSelectorException e) {
+			// Broken: the discovery ends
+		} finally {
+			try {
+				selector.close();
+			} catch(IOException e) {
+				// Nothing
+			}
+			closeChannels();
+			done.countDown();
+			listener.discoveryEnded();
+		}
+	}
+
+
+	/**
+	 * @param ch Channel
+	 * @param buffer Buffer of the datagram
+	 * @return Sender of the datagram received; null if none
+	 * @throws IOException If an IO error occurs
+	 */
+	private static SocketAddress receiveAnswer(@NonNull DatagramChannel ch, @NonNull ByteBuffer buffer)
+			throws IOException {
+		buffer.clear();
+		return ch.receive(buffer);
+	}
+
+
+	/**
+	 * Close {@link #channels}, ignoring the errors
+	 */
+	private void closeChannels() {
+		for(DatagramChannel ch : channels) {
+			try {
+				ch.close();
+			} catch(IOException e) {
+				// Nothing
+			}
+		}
+	}
+
+
+	/**
+	 * @param data Datagram received
+	 * @param length Length of the datagram
+	 * @param address Sender of the datagram
+	 * @return The server that sent the answer; null if the datagram is not an answer
+	 */
+	static SSDPServerInfo parseAnswer(@NonNull byte[] data, int length,
+			@NonNull InetSocketAddress address) {
+		int keyLength = NetStatic.SSDP_SERVER_KEY.length;
+		if(length < keyLength) {
+			return null;
+		}
+		for(int i = 0; i < keyLength; i++) {
+			if(data[i] != NetStatic.SSDP_SERVER_KEY[i]) {
+				return null;
+			}
+		}
+
+		// Extract from the data the name of the server
+		byte[] name = new byte[NetStatic.SSDP_NAME_LENGTH];
+		System.arraycopy(data, keyLength, name, 0, Math.min(name.length, length - keyLength));
+		return new SSDPServerInfo(address, new String(name));
+	}
+
+
+
+	/**
+	 * Receiver of the servers found by a {@link ServerDiscovery}
+	 */
+	public interface Listener {
+
+		/**
+		 * A server answered; called once for every address
+		 * @param server The server
+		 */
+		void serverFound(@NonNull SSDPServerInfo server);
+
+		/**
+		 * The discovery ended; no more servers are notified
+		 */
+		void discoveryEnded();
+	}
+
+
+
+	/**
+	 * Channel of a discovery with the destinations of its request
+	 */
+	static final class Probe {
+		private final DatagramChannel channel;
+		private final List<SocketAddress> targets;
+
+		/**
+		 * @param channel Channel of the request and of the answers
+		 * @param targets Destinations of the request
+		 */
+		Probe(@NonNull DatagramChannel channel, @NonNull List<SocketAddress> targets) {
+			assert channel != null && targets != null;
+
+			this.channel = channel;
+			this.targets = targets;
+		}
+	}
+}
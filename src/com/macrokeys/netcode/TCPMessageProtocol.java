@@ -1,23 +1,60 @@
 package com.macrokeys.netcode;
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Objects;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.eclipse.jdt.annotation.NonNull;
 
+import com.macrokeys.comunication.BufferPool;
+import com.macrokeys.comunication.MessageLease;
 import com.macrokeys.comunication.MessageProtocol;
 
 /** 
  * Implementation of the TCP protocol {@link MessageProtocol}
+ * <p>
+ * The senders don't wait each other: the sender that finds the socket free writes its
+ * message and the ones queued by the concurrent senders, which return after the copy
+ * of their message in the queue. When the queues exceed {@link #MAX_QUEUED_BYTES}, because
+ * the peer reads slower than the senders write, a sender waits the socket instead.
+ * </p>
+ * <p>
+ * With the fragmentation the long messages are written in fragments and the short
+ * messages of {@link #sendState(int, byte[], int)} are written between them, so a
+ * long transfer delays the keys and the keep alives at most by a fragment.
+ * </p>
  */
 public class TCPMessageProtocol implements MessageProtocol {
 	
-	private static final byte CODE_MESSAGE = 0x00;
-	private static final byte CODE_KEEP_ALIVE = 0x01;
+	/** Code of the header of a message */
+	static final byte CODE_MESSAGE = 0x00;
+	
+	/** Code of a keep alive; it has no payload */
+	static final byte CODE_KEEP_ALIVE = 0x01;
+	
+	/** Code of a fragment of a long message, followed by the other fragments */
+	static final byte CODE_FRAGMENT = 0x02;
+	
+	/** Code of the last fragment of a long message */
+	static final byte CODE_FRAGMENT_END = 0x03;
+	
+	/** Size in bytes of the fragments of the long messages */
+	static final int FRAGMENT_SIZE = 4096;
 	
 	/** Socket to use */
 	private final Socket socket;
@@ -25,20 +62,134 @@ public class TCPMessageProtocol implements MessageProtocol {
 	/** Input stream from the {@link #socket} */
 	private final DataInputStream inStr;
 	
+	/** Size in bytes of {@link #frameBuffer} */
+	private static final int FRAME_BUFFER_SIZE = 8192;
+	
+	/** Size in bytes of the header of a message: code and length */
+	private static final int HEADER_SIZE = 1 + 4;
+	
+	/** Default of {@link #maxMessageLength}; larger than any setup */
+	public static final int DEFAULT_MAX_MESSAGE_LENGTH = 1 << 25;
+	
+	/** Maximum length of a received message; a longer length is a corrupted frame */
+	private volatile int maxMessageLength = DEFAULT_MAX_MESSAGE_LENGTH;
+	
+	/** Buffer of the copy of the messages received in direct buffers; created at the first use */
+	private byte[] transferBuffer = null;
+	
 	/** Output stream from the {@link #socket} */
-	private final DataOutputStream outStr;
+	private final OutputStream outStr;
+	
+	/**
+	 * Buffer where the frames are assembled before the write on {@link #outStr};
+	 * guarded by {@link #draining}
+	 */
+	private final byte[] frameBuffer = new byte[FRAME_BUFFER_SIZE];
+	
+	/** Number of bytes in {@link #frameBuffer} not yet written; guarded by {@link #draining} */
+	private int frameLength = 0;
+	
+	/** If true the queued frames are written together */
+	private volatile boolean flushOnIdle = false;
+	
+	/** Payloads of the messages queued by the concurrent senders, not yet written */
+	private final ConcurrentLinkedQueue<byte[]> pending = new ConcurrentLinkedQueue<>();
+	
+	/** Payloads of the short states queued by the concurrent senders, written before {@link #pending} */
+	private final ConcurrentLinkedQueue<byte[]> prioritized = new ConcurrentLinkedQueue<>();
+	
+	/** Maximum size in bytes of the frames in {@link #pending} and {@link #prioritized} */
+	static final int MAX_QUEUED_BYTES = 1 << 16;
 	
-	/** Thread for the keep alive */
-	private Thread threadKeepalive = null;
+	/** Maximum size in bytes of the queued frames of a lane written in a pass of the owner */
+	private static final int DRAIN_BUDGET = 1 << 14;
+	
+	/** Time in ns between two attempts of a sender that waits the socket */
+	private static final long SOCKET_WAIT_PARK = 20000;
+	
+	/** Size in bytes of the frames in {@link #pending} and {@link #prioritized} */
+	private final AtomicInteger queuedBytes = new AtomicInteger();
+	
+	/** Number of senders that wait {@link #draining}; they drain the queues when they own it */
+	private final AtomicInteger socketWaiters = new AtomicInteger();
+	
+	/** Orders the senders that wait {@link #draining}: the socket is given to them in FIFO order */
+	private final ReentrantLock socketWaitLock = new ReentrantLock(true);
+	
+	/** If true the long messages are split in fragments */
+	private volatile boolean fragmentation = false;
+	
+	/** Fragments of the message in reception; used only by the reader */
+	private byte[] reassembly = new byte[0];
+	
+	/** Maximum size in bytes of {@link #reassembly} kept between two messages */
+	private static final int MAX_KEPT_REASSEMBLY = 16 * FRAGMENT_SIZE;
+	
+	/** Length of the fragments in {@link #reassembly} */
+	private int reassemblyLength = 0;
+	
+	/** True if the last message read by {@link #readHeader(int)} is in {@link #reassembly} */
+	private boolean assembled = false;
+	
+	/** True while a thread writes on {@link #outStr}; the owner drains the queues */
+	private final AtomicBoolean draining = new AtomicBoolean(false);
+	
+	/** Error of a write, reported to the next senders; null if none */
+	private volatile IOException failure = null;
 	
 	/** Timeout for the input stream; 0 for infinity, always > 0 */
-	private int timeoutInput = 0;
+	private volatile int timeoutInput = 0;
+	
+	/** Time in ns of the last frame written */
+	private volatile long lastSent = System.nanoTime();
+	
+	/** Deadline of the next keep alive on {@link HashedWheelTimer#shared()}; null if none */
+	private HashedWheelTimer.Timeout keepAlive = null;
+	
+	/** Generation of {@link #keepAlive}, incremented at every change of the period */
+	private int keepAliveGeneration = 0;
+	
+	/** True while a keep alive is handed to {@link #KEEP_ALIVE_WRITERS} and not yet written */
+	private final AtomicBoolean keepAliveDue = new AtomicBoolean(false);
+	
+	/** Maximum number of threads of {@link #KEEP_ALIVE_WRITERS} */
+	private static final int KEEP_ALIVE_WRITER_THREADS = 4;
 	
-	/** Messages sent in the last period*/
-	private int messageSent = 0;
+	/** Maximum number of keep alives waiting a thread of {@link #KEEP_ALIVE_WRITERS} */
+	private static final int KEEP_ALIVE_QUEUE_SIZE = 1024;
 	
-	/** Semaphore for the socket */
-	private Semaphore sem = new Semaphore(1, true);
+	/**
+	 * Writers of the keep alives, shared by the process: a write can block on a slow peer,
+	 * so it is never executed by the thread of {@link HashedWheelTimer#shared()}.
+	 * Bounded, so the slow peers cost at most {@link #KEEP_ALIVE_WRITER_THREADS} threads;
+	 * a keep alive not accepted is skipped until the next period.
+	 */
+	private static final ThreadPoolExecutor KEEP_ALIVE_WRITERS = new ThreadPoolExecutor(
+			KEEP_ALIVE_WRITER_THREADS, KEEP_ALIVE_WRITER_THREADS, 60, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<Runnable>(KEEP_ALIVE_QUEUE_SIZE), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "KeepAliveWriter");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+	
+	static {
+		KEEP_ALIVE_WRITERS.allowCoreThreadTimeOut(true);
+	}
+	
+	/** Write of a due keep alive, executed by {@link #KEEP_ALIVE_WRITERS} */
+	private final Runnable keepAliveWrite = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				writeKeepAlive();
+			} finally {
+				keepAliveDue.set(false);
+			}
+		}
+	};
 	
 	/**
 	 * @param socket Socket
@@ -49,8 +200,8 @@ public class TCPMessageProtocol implements MessageProtocol {
 		
 		this.socket = socket;
 		
-		this.inStr = new DataInputStream(socket.getInputStream());
-		this.outStr = new DataOutputStream(socket.getOutputStream());
+		this.inStr = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		this.outStr = socket.getOutputStream();
 	}
 	
 	
@@ -65,24 +216,114 @@ public class TCPMessageProtocol implements MessageProtocol {
 	}
 	
 	
+	/**
+	 * Sets the flush on idle mode: the messages queued by the concurrent senders are
+	 * written in a single segment. If disabled (the default) every message is written
+	 * with its own write.
+	 * @param flag True enable, false otherwise
+	 */
+	public void setFlushOnIdle(boolean flag) {
+		flushOnIdle = flag;
+	}
+	
+	
+	/**
+	 * Sets the maximum length of the messages received with {@link #receiveMessage()}:
+	 * a longer message is refused before its allocation
+	 * @param length Maximum length in bytes
+	 * @throws IllegalArgumentException If {@code length} is < 0
+	 */
+	public void setMaxMessageLength(int length) {
+		if(length < 0) {
+			throw new IllegalArgumentException("Length must be >= 0");
+		}
+		maxMessageLength = length;
+	}
+	
+	
+	/**
+	 * @return Maximum length of the messages received with {@link #receiveMessage()}
+	 */
+	public int getMaxMessageLength() {
+		return maxMessageLength;
+	}
+	
+	
+	/**
+	 * @return True if the flush on idle mode is enabled
+	 * @see #setFlushOnIdle(boolean)
+	 */
+	public boolean isFlushOnIdle() {
+		return flushOnIdle;
+	}
+	
+	
 	@Override
 	public void setInputKeepAlive(int time) {
 		if(time < 0) {
 			throw new IllegalArgumentException("Time must be >= 0");
 		}
-		timeoutInput = time;
 		
-		if(time == 0 && threadKeepalive != null) {
-			threadKeepalive.interrupt();
-			threadKeepalive = null;
-		} else {
-			if(threadKeepalive != null) {
-				threadKeepalive.interrupt();
+		synchronized(this) {
+			timeoutInput = time;
+			keepAliveGeneration++;
+			if(keepAlive != null) {
+				keepAlive.cancel();
+				keepAlive = null;
+			}
+			if(time > 0 && !socket.isClosed()) {
+				// The first keep alive at once: the other side may already use the new period
+				keepAlive = HashedWheelTimer.shared().schedule(new KeepAliveTask(keepAliveGeneration, true),
+						0, TimeUnit.NANOSECONDS);
 			}
-			threadKeepalive = new Thread(new ThreadKeepAlive());
-			threadKeepalive.start();
 		}
 	}
+	
+	
+	/**
+	 * @return Period in ns of the keep alives
+	 */
+	private long keepAlivePeriod() {
+		return TimeUnit.MILLISECONDS.toNanos(Math.max(1, timeoutInput / 2));
+	}
+	
+	
+	/**
+	 * Write a keep alive and the queued messages, unless a sender owns the socket:
+	 * its traffic makes the keep alive useless
+	 */
+	private void writeKeepAlive() {
+		if(failure != null || !draining.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			writeLanes();
+			writeFrame(CODE_KEEP_ALIVE, null, 0, 0);
+			flushFrames();
+			lastSent = System.nanoTime();
+		} catch(IOException e) {
+			// Connection broken: the error is reported by the next operation
+			fail(e);
+			return;
+		} finally {
+			draining.set(false);
+		}
+		drainPending();
+	}
+	
+	
+	/**
+	 * Schedule the next keep alive, if the period was not changed
+	 * @param generation Generation of the period of the keep alive
+	 * @param delay Delay in ns
+	 */
+	private synchronized void scheduleKeepAlive(int generation, long delay) {
+		if(generation != keepAliveGeneration || timeoutInput == 0) {
+			return;
+		}
+		keepAlive = HashedWheelTimer.shared().schedule(new KeepAliveTask(generation, false),
+				delay, TimeUnit.NANOSECONDS);
+	}
 
 	@Override
 	public void setOutputKeepAlive(int time) {
@@ -117,47 +358,419 @@ public class TCPMessageProtocol implements MessageProtocol {
 	@Override
 	public void sendMessage(byte[] payload) throws IOException {
 		Objects.requireNonNull(payload);
+		sendMessage(payload, payload.length);
+	}
+	
+	@Override
+	public void sendMessage(byte[] payload, int length) throws IOException {
+		Objects.requireNonNull(payload);
+		if(length < 0 || length > payload.length) {
+			throw new IndexOutOfBoundsException("Length " + length);
+		}
+		send(payload, length, false);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * <p>A short message is sent in the priority lane: it overtakes the fragments of
+	 * a long message in writing, see {@link #setFragmentation(boolean)}</p>
+	 */
+	@Override
+	public void sendState(int stateKey, byte[] payload, int length) throws IOException {
+		Objects.requireNonNull(payload);
+		if(length < 0 || length > payload.length) {
+			throw new IndexOutOfBoundsException("Length " + length);
+		}
+		send(payload, length, length <= FRAGMENT_SIZE);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * <p>The fragments are received by every instance; the ones of the previous
+	 * versions of the library don't know them.</p>
+	 */
+	@Override
+	public void setFragmentation(boolean enable) {
+		fragmentation = enable;
+	}
+	
+	
+	/**
+	 * Send a message: written at once if the socket is free, queued in its lane otherwise
+	 * @param payload Array that contains the payload
+	 * @param length Length of the payload
+	 * @param priority True for the priority lane
+	 * @throws IOException If an IO error occurs
+	 */
+	private void send(@NonNull byte[] payload, int length, boolean priority) throws IOException {
+		checkFailure();
+		
+		// The waiting senders are not overtaken
+		boolean owner = socketWaiters.get() == 0 && draining.compareAndSet(false, true);
+		if(!owner && queuedBytes.get() >= MAX_QUEUED_BYTES) {
+			// The peer doesn't keep up: the sender waits the socket instead of queuing
+			awaitSocket();
+			owner = true;
+		}
+		
+		if(owner) {
+			try {
+				// The older messages left by the budget of the drain are written first
+				if(priority) {
+					writePriority();
+					if(prioritized.isEmpty()) {
+						writeFrame(CODE_MESSAGE, payload, 0, length);
+					} else {
+						enqueue(payload, length, true);
+					}
+				} else {
+					writeLanes();
+					if(pending.isEmpty()) {
+						writeOrdered(payload, length);
+					} else {
+						enqueue(payload, length, false);
+					}
+				}
+				writeLanes();
+				flushFrames();
+				lastSent = System.nanoTime();
+			} catch(IOException e) {
+				fail(e);
+				throw e;
+			} finally {
+				draining.set(false);
+			}
+		} else {
+			// The message is written by the thread that owns the socket
+			enqueue(payload, length, priority);
+		}
 		
+		drainPending();
+		checkFailure();
+	}
+	
+	
+	/**
+	 * Queue a copy of the message in its lane
+	 * @param payload Array that contains the payload
+	 * @param length Length of the payload
+	 * @param priority True for the priority lane
+	 */
+	private void enqueue(@NonNull byte[] payload, int length, boolean priority) {
+		queuedBytes.addAndGet(HEADER_SIZE + length);
+		(priority ? prioritized : pending).add(Arrays.copyOf(payload, length));
+	}
+	
+	
+	/**
+	 * Wait to own {@link #draining}, after the senders that already wait it
+	 * @throws IOException If a write failed meanwhile
+	 */
+	private void awaitSocket() throws IOException {
+		socketWaiters.incrementAndGet();
+		socketWaitLock.lock();
 		try {
-			sem.acquire();
-		} catch (InterruptedException e) {
-			e.printStackTrace();
-			Thread.currentThread().interrupt();
+			while(!draining.compareAndSet(false, true)) {
+				checkFailure();
+				LockSupport.parkNanos(SOCKET_WAIT_PARK);
+			}
+		} finally {
+			socketWaitLock.unlock();
+			socketWaiters.decrementAndGet();
+		}
+	}
+	
+	
+	/**
+	 * @return Size in bytes of the frames queued by the concurrent senders
+	 */
+	int getQueuedBytes() {
+		return queuedBytes.get();
+	}
+	
+	
+	/**
+	 * Write the queued messages if the socket is free. Called after the release
+	 * of the socket, so that the messages queued meanwhile are not left behind.
+	 * A sender that waits the socket drains them in place of the caller, so the caller
+	 * doesn't write the messages of the others for ever.
+	 */
+	private void drainPending() {
+		while((!pending.isEmpty() || !prioritized.isEmpty()) && socketWaiters.get() == 0
+				&& draining.compareAndSet(false, true)) {
+			try {
+				writeLanes();
+				flushFrames();
+				lastSent = System.nanoTime();
+			} catch(IOException e) {
+				fail(e);
+			} finally {
+				draining.set(false);
+			}
+		}
+	}
+	
+	
+	/**
+	 * Append the queued messages of both the lanes to {@link #frameBuffer}, at most
+	 * {@link #DRAIN_BUDGET} for each lane. The caller must own {@link #draining}.
+	 * @throws IOException If an IO error occurs
+	 */
+	private void writeLanes() throws IOException {
+		writePriority();
+		int budget = DRAIN_BUDGET;
+		byte[] p;
+		while(budget > 0 && (p = pending.poll()) != null) {
+			budget -= HEADER_SIZE + p.length;
+			queuedBytes.addAndGet(-HEADER_SIZE - p.length);
+			writeOrdered(p, p.length);
+			if(!flushOnIdle) {
+				flushFrames();
+			}
+			writePriority();
+		}
+	}
+	
+	
+	/**
+	 * Append the queued messages of the priority lane to {@link #frameBuffer}, at most
+	 * {@link #DRAIN_BUDGET}. The caller must own {@link #draining}.
+	 * @throws IOException If an IO error occurs
+	 */
+	private void writePriority() throws IOException {
+		int budget = DRAIN_BUDGET;
+		byte[] p;
+		while(budget > 0 && (p = prioritized.poll()) != null) {
+			budget -= HEADER_SIZE + p.length;
+			queuedBytes.addAndGet(-HEADER_SIZE - p.length);
+			writeFrame(CODE_MESSAGE, p, 0, p.length);
+			if(!flushOnIdle) {
+				flushFrames();
+			}
+		}
+	}
+	
+	
+	/**
+	 * Append a message of the ordered lane to {@link #frameBuffer}; a long message is split
+	 * in fragments and the priority lane is written after every fragment.
+	 * The caller must own {@link #draining}.
+	 * @param payload Array that contains the payload
+	 * @param length Length of the payload
+	 * @throws IOException If an IO error occurs
+	 */
+	private void writeOrdered(@NonNull byte[] payload, int length) throws IOException {
+		if(!fragmentation || length <= FRAGMENT_SIZE) {
+			writeFrame(CODE_MESSAGE, payload, 0, length);
+			return;
+		}
+		
+		for(int off = 0; off < length; off += FRAGMENT_SIZE) {
+			int n = Math.min(FRAGMENT_SIZE, length - off);
+			writeFrame(off + n < length ? CODE_FRAGMENT : CODE_FRAGMENT_END, payload, off, n);
+			flushFrames();
+			writePriority();
+		}
+	}
+	
+	
+	/**
+	 * Record the error of a write; the queued messages are discarded
+	 * @param e Error
+	 */
+	private void fail(@NonNull IOException e) {
+		if(failure == null) {
+			failure = e;
+		}
+		pending.clear();
+		prioritized.clear();
+		queuedBytes.set(0);
+	}
+	
+	
+	/**
+	 * @throws IOException If a previous write failed
+	 */
+	private void checkFailure() throws IOException {
+		IOException f = failure;
+		if(f != null) {
+			throw new IOException(f.getMessage(), f);
+		}
+	}
+	
+	
+	/**
+	 * Append a frame to {@link #frameBuffer}; a payload that doesn't fit in the buffer
+	 * is written directly after the buffer. The caller must own {@link #draining}.
+	 * @param code Code of the frame
+	 * @param payload Array that contains the payload; null for a frame without length and payload
+	 * @param off Offset of the payload in {@code payload}
+	 * @param l Length of the payload
+	 * @throws IOException If an IO error occurs
+	 */
+	private void writeFrame(byte code, byte[] payload, int off, int l) throws IOException {
+		int size = payload == null ? 1 : HEADER_SIZE + l;
+		if(frameLength > 0 && frameLength + size > frameBuffer.length) {
+			flushFrames();
+		}
+		
+		frameBuffer[frameLength++] = code;
+		if(payload == null) {
 			return;
 		}
 		
-		outStr.writeByte(CODE_MESSAGE);
-		outStr.writeInt(payload.length);
-		outStr.write(payload);
+		frameBuffer[frameLength++] = (byte) (l >>> 24);
+		frameBuffer[frameLength++] = (byte) (l >>> 16);
+		frameBuffer[frameLength++] = (byte) (l >>> 8);
+		frameBuffer[frameLength++] = (byte) l;
 		
-		messageSent++;
+		int n = Math.min(l, frameBuffer.length - frameLength);
+		System.arraycopy(payload, off, frameBuffer, frameLength, n);
+		frameLength += n;
 		
-		sem.release();
+		if(n < l) {
+			flushFrames();
+			outStr.write(payload, off + n, l - n);
+		}
+	}
+	
+	
+	/**
+	 * Write the content of {@link #frameBuffer} with a single write.
+	 * The caller must own {@link #draining}.
+	 * @throws IOException If an IO error occurs
+	 */
+	private void flushFrames() throws IOException {
+		if(frameLength > 0) {
+			int l = frameLength;
+			frameLength = 0;
+			outStr.write(frameBuffer, 0, l);
+		}
 	}
+	
+	
 
 	@Override
 	public byte[] receiveMessage() throws IOException {
-		byte code = inStr.readByte();
+		int leng = readHeader(maxMessageLength);
+		if(assembled) {
+			byte[] payload = Arrays.copyOf(reassembly, leng);
+			releaseReassembly();
+			return payload;
+		}
+		byte[] payload = new byte[leng];
+		inStr.readFully(payload);
+		return payload;
+	}
+	
+	@Override
+	public int receiveMessage(byte[] buffer) throws IOException {
+		Objects.requireNonNull(buffer);
 		
-		while(code == CODE_KEEP_ALIVE) {
+		int leng = readHeader(buffer.length);
+		if(assembled) {
+			System.arraycopy(reassembly, 0, buffer, 0, leng);
+			releaseReassembly();
+		} else {
+			inStr.readFully(buffer, 0, leng);
+		}
+		return leng;
+	}
+	
+	@Override
+	public MessageLease receiveMessage(BufferPool pool) throws IOException {
+		Objects.requireNonNull(pool);
+		
+		int leng = readHeader(pool.getBufferSize());
+		MessageLease l = pool.acquire();
+		try {
+			ByteBuffer b = l.getBuffer();
+			if(assembled) {
+				b.put(reassembly, 0, leng).flip();
+				releaseReassembly();
+			} else if(b.hasArray()) {
+				inStr.readFully(b.array(), b.arrayOffset(), leng);
+				b.limit(leng);
+			} else {
+				if(transferBuffer == null) {
+					transferBuffer = new byte[FRAME_BUFFER_SIZE];
+				}
+				int left = leng;
+				while(left > 0) {
+					int n = Math.min(left, transferBuffer.length);
+					inStr.readFully(transferBuffer, 0, n);
+					b.put(transferBuffer, 0, n);
+					left -= n;
+				}
+				b.flip();
+			}
+		} catch(IOException e) {
+			l.close();
+			throw e;
+		}
+		return l;
+	}
+	
+	
+	/**
+	 * Read the frames until the next message, skipping the keep alives.
+	 * The payload of a whole message is left in {@link #inStr}; a fragmented message
+	 * is assembled in {@link #reassembly} and {@link #assembled} is set.
+	 * @param max Maximum length of the message
+	 * @return Length of the message
+	 * @throws IOException If an IO error occurs or if the length is not in [0, {@code max}];
+	 * in the last case the connection must be closed
+	 */
+	private int readHeader(int max) throws IOException {
+		assembled = false;
+		while(true) {
+			byte code = inStr.readByte();
 			switch(code) {
-			case CODE_MESSAGE:
+			case CODE_KEEP_ALIVE:
 				break;
 				
-			case CODE_KEEP_ALIVE:
+			case CODE_MESSAGE:
+				int leng = inStr.readInt();
+				if(leng < 0 || leng > max) {
+					throw new IOException("Message too long: " + leng);
+				}
+				return leng;
+				
+			case CODE_FRAGMENT:
+			case CODE_FRAGMENT_END:
+				int n = inStr.readInt();
+				if(n < 0 || n > max - reassemblyLength) {
+					throw new IOException("Message too long: " + ((long) reassemblyLength + n));
+				}
+				if(reassemblyLength + n > reassembly.length) {
+					reassembly = Arrays.copyOf(reassembly,
+							Math.min(max, Math.max(reassemblyLength + n, reassembly.length * 2)));
+				}
+				inStr.readFully(reassembly, reassemblyLength, n);
+				reassemblyLength += n;
+				
+				if(code == CODE_FRAGMENT_END) {
+					assembled = true;
+					int total = reassemblyLength;
+					reassemblyLength = 0;
+					return total;
+				}
 				break;
 				
-				default: assert false : "Unkown message code";
+			default:
+				throw new IOException("Unknown message code: " + code);
 			}
-			
-			code = inStr.readByte();
 		}
-		
-		// Read the rest of the message
-		int leng = inStr.readInt();
-		byte[] payload = new byte[leng];
-		inStr.readFully(payload);
-		return payload;
+	}
+	
+	
+	/**
+	 * Free {@link #reassembly} after the copy of a message, if too large to keep
+	 */
+	private void releaseReassembly() {
+		if(reassembly.length > MAX_KEPT_REASSEMBLY) {
+			reassembly = new byte[0];
+		}
 	}
 
 
@@ -171,6 +784,13 @@ public class TCPMessageProtocol implements MessageProtocol {
 	
 	@Override
 	public void close() throws IOException {
+		synchronized(this) {
+			keepAliveGeneration++;
+			if(keepAlive != null) {
+				keepAlive.cancel();
+				keepAlive = null;
+			}
+		}
 		socket.close();
 	}
 
@@ -185,37 +805,48 @@ public class TCPMessageProtocol implements MessageProtocol {
 	}
 	
 	
-	/** Keep alive thread */
-	private class ThreadKeepAlive implements Runnable {
+	/**
+	 * Hand a keep alive to {@link #KEEP_ALIVE_WRITERS} if nothing was written in the last
+	 * period; executed by the thread of {@link HashedWheelTimer#shared()}, so it never writes
+	 */
+	private class KeepAliveTask implements Runnable {
+		
+		/** Generation of the period of the keep alive */
+		private final int generation;
+		
+		/** True to send the keep alive even after traffic */
+		private final boolean force;
+		
+		public KeepAliveTask(int generation, boolean force) {
+			this.generation = generation;
+			this.force = force;
+		}
 
 		@Override
 		public void run() {
-			while(true) {
-				if(messageSent <= 0) {
-					// Send the keep alive message
-					try {
-						sem.acquire();
-						outStr.writeByte(CODE_KEEP_ALIVE);
-					} catch(InterruptedException | IOException e) {
-						Thread.currentThread().interrupt();
-						break;
-					} finally {
-						sem.release();
-					}
-					
-					// Sleep
-					try {
-						Thread.sleep(timeoutInput / 2);
-					} catch(InterruptedException e) {
-						Thread.currentThread().interrupt();
-						break;
-					}
+			long period = keepAlivePeriod();
+			long idle = System.nanoTime() - lastSent;
+			if(!force && idle < period) {
+				// Traffic in the period: postpone the deadline
+				scheduleKeepAlive(generation, period - idle);
+				return;
+			}
+			
+			if(failure != null) {
+				// Connection broken: the error is reported by the next operation
+				return;
+			}
+			// Not handed while a write is in flight: a sender or a keep alive still
+			// blocked on a slow peer
+			if(!draining.get() && keepAliveDue.compareAndSet(false, true)) {
+				try {
+					KEEP_ALIVE_WRITERS.execute(keepAliveWrite);
+				} catch(RejectedExecutionException e) {
+					// Writers busy with slow peers: retried at the next period
+					keepAliveDue.set(false);
 				}
-				
-				// Reset the messages
-				messageSent = 0;
 			}
+			scheduleKeepAlive(generation, period);
 		}
-		
 	}
 }
@@ -0,0 +1,234 @@
+package com.macrokeys.netcode;
+
+import java.io.IOException;
+import java.net.PortUnreachableException;
+import java.net.SocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * Reads the datagrams of a {@link DatagramChannel} and dispatches them at the
+ * {@link UDPMessageProtocol} connections; it also drives their retransmissions.
+ * <p>
+ * The datagrams that are not of the protocol (e.g. the SSDP requests) are notified
+ * to the {@link Handler}.
+ * </p>
+ */
+final class UDPEndpoint implements Runnable {
+
+	/** Period in ms of the check of retransmissions and timeouts */
+	private static final int TICK = 10;
+
+	/** Size of the receive buffer; a bigger datagram is truncated */
+	private static final int RECEIVE_BUFFER_SIZE = 2048;
+
+
+	/** Channel of the datagrams */
+	private final DatagramChannel channel;
+
+	/** Selector of {@link #channel} */
+	private final Selector selector;
+
+	/** Handler of the new connections; null to refuse them (client side) */
+	private final Handler handler;
+
+	/** Connections by address of the other side */
+	private final ConcurrentHashMap<SocketAddress, UDPMessageProtocol> connections =
+			new ConcurrentHashMap<>();
+
+	/** Buffer of the received datagram */
+	private final ByteBuffer receiveBuffer = ByteBuffer.allocate(RECEIVE_BUFFER_SIZE);
+
+	/** True if the endpoint is closed */
+	private volatile boolean closed = false;
+
+
+	/**
+	 * @param channel Channel of the datagrams; bound or connected
+	 * @param handler Handler of the new connections and of the other datagrams;
+	 * null to refuse the new connections
+	 * @throws IOException If an IO error occurs
+	 */
+	UDPEndpoint(@NonNull DatagramChannel channel, Handler handler) throws IOException {
+		assert channel != null;
+
+		this.channel = channel;
+		this.handler = handler;
+		channel.configureBlocking(false);
+		selector = Selector.open();
+		channel.register(selector, SelectionKey.OP_READ);
+	}
+
+
+	/**
+	 * @return Channel of the datagrams
+	 */
+	@NonNull DatagramChannel getChannel() {
+		return channel;
+	}
+
+
+	/**
+	 * @param c Connection to serve
+	 */
+	void add(@NonNull UDPMessageProtocol c) {
+		connections.put(c.getRemote(), c);
+	}
+
+
+	/**
+	 * @param c Connection to stop to serve
+	 */
+	void remove(@NonNull UDPMessageProtocol c) {
+		connections.remove(c.getRemote(), c);
+	}
+
+
+	@Override
+	public void run() {
+		long lastTick = System.nanoTime();
+		try {
+			while(!closed) {
+				selector.select(TICK);
+				selector.selectedKeys().clear();
+				receive();
+
+				long now = System.nanoTime();
+				if(now - lastTick >= TICK * 1000000L) {
+					lastTick = now;
+					for(UDPMessageProtocol c : connections.values()) {
+						c.onTick(now);
+					}
+					if(handler != null) {
+						handler.tick(now);
+					}
+				}
+			}
+		} catch(IOException | ClosedSelectorException e) {
+			// Closed
+		} finally {
+			close();
+			for(UDPMessageProtocol c : connections.values()) {
+				c.close();
+			}
+		}
+	}
+
+
+	/**
+	 * Reads and dispatches the datagrams available
+	 * @throws IOException If an IO error occurs
+	 */
+	private void receive() throws IOException {
+		while(true) {
+			receiveBuffer.clear();
+			SocketAddress from;
+			try {
+				from = channel.receive(receiveBuffer);
+			} catch(PortUnreachableException e) {
+				// The other side is not listening: the timeouts close the connection
+				continue;
+			}
+			if(from == null) {
+				return;
+			}
+			receiveBuffer.flip();
+
+			try {
+				dispatch(receiveBuffer, from, System.nanoTime());
+			} catch(BufferUnderflowException e) {
+				// Malformed datagram: dropped
+			}
+		}
+	}
+
+
+	/**
+	 * @param b Datagram
+	 * @param from Sender of the datagram
+	 * @param now Current time in ns
+	 * @throws IOException If an IO error occurs
+	 */
+	private void dispatch(@NonNull ByteBuffer b, @NonNull SocketAddress from, long now)
+			throws IOException {
+		if(b.remaining() < UDPMessageProtocol.HEADER_SIZE
+				|| b.getShort(0) != UDPMessageProtocol.MAGIC) {
+			if(handler != null) {
+				handler.foreign(b, from);
+			}
+			return;
+		}
+		b.position(2);
+
+		UDPMessageProtocol c = connections.get(from);
+		if(c != null) {
+			c.onDatagram(b, now);
+		} else if(handler != null && b.get(2) == UDPMessageProtocol.TYPE_HELLO) {
+			c = new UDPMessageProtocol(this, from, false);
+			add(c);
+			// Answers the hello before the first messages of the server
+			c.onDatagram(b, now);
+
+			UDPMessageProtocol.Listener l = handler.accepted(c);
+			if(l == null) {
+				c.close();
+			} else {
+				c.setListener(l);
+			}
+		}
+	}
+
+
+	/**
+	 * Close the channel and stop the loop
+	 */
+	void close() {
+		closed = true;
+		try {
+			selector.close();
+		} catch(IOException e) {
+			// Nothing
+		}
+		try {
+			channel.close();
+		} catch(IOException e) {
+			// Nothing
+		}
+	}
+
+
+
+	/** Handler of the events of an {@link UDPEndpoint} of a server */
+	interface Handler {
+
+		/**
+		 * A datagram that is not of {@link UDPMessageProtocol}
+		 * @param datagram Content of the datagram
+		 * @param sender Address of the sender
+		 * @throws IOException If an IO error occurs; stops the endpoint
+		 */
+		void foreign(@NonNull ByteBuffer datagram, @NonNull SocketAddress sender) throws IOException;
+
+		/**
+		 * A new connection; the messages are delivered to the returned listener
+		 * @param c The connection
+		 * @return Listener of the connection; null to refuse it
+		 */
+		UDPMessageProtocol.Listener accepted(@NonNull UDPMessageProtocol c);
+
+		/**
+		 * Called by the thread of the endpoint about every {@link UDPEndpoint#TICK} ms
+		 * @param now Current time in ns
+		 * @throws IOException If an IO error occurs; stops the endpoint
+		 */
+		default void tick(long now) throws IOException {
+		}
+	}
+}
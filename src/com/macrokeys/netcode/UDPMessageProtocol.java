@@ -0,0 +1,795 @@
+package com.macrokeys.netcode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+import com.macrokeys.comunication.MessageProtocol;
+
+/**
+ * Implementation of {@link MessageProtocol} over UDP, for the lossy networks where the
+ * head-of-line blocking of TCP delays the key actions behind a lost segment.
+ * <p>
+ * The messages of {@link #sendMessage(byte[])} are split in numbered fragments and
+ * retransmitted until acknowledged (cumulative ack and a bitmap of the following
+ * fragments): they are delivered in order. The messages of {@link #sendState(int, byte[], int)}
+ * are independent: only the last one of each key is retransmitted and an older one
+ * that arrives late is dropped.
+ * </p>
+ * <p>
+ * The datagrams are read by an {@link UDPEndpoint}; the server shares the one on
+ * {@link NetStatic#PORT} with the SSDP, the client uses
+ * {@link #connect(InetSocketAddress, int, ThreadFactory)}.
+ * </p>
+ */
+public class UDPMessageProtocol implements MessageProtocol {
+
+	/** First bytes of the datagrams of the protocol; distinct from the SSDP requests */
+	static final short MAGIC = 0x4D4B;
+
+	/** Request of a connection from the client */
+	static final byte TYPE_HELLO = 0;
+
+	/** Connection accepted by the server */
+	static final byte TYPE_HELLO_ACK = 1;
+
+	/** Fragment of a message: sequence number, flags and payload */
+	static final byte TYPE_DATA = 2;
+
+	/** Ack of the fragments: next expected sequence number and bitmap of the following ones */
+	static final byte TYPE_ACK = 3;
+
+	/** State: key, version and payload */
+	static final byte TYPE_STATE = 4;
+
+	/** Ack of a state: key and version */
+	static final byte TYPE_STATE_ACK = 5;
+
+	/** Keep alive; no content */
+	static final byte TYPE_KEEP_ALIVE = 6;
+
+	/** Close of the connection; no content */
+	static final byte TYPE_CLOSE = 7;
+
+	/** Size in bytes of the header of every datagram: magic and type */
+	static final int HEADER_SIZE = 2 + 1;
+
+	/** Maximum size in bytes of a datagram; below the usual MTU to avoid IP fragmentation */
+	static final int MAX_DATAGRAM = 1400;
+
+	/** Size in bytes of the header of a {@link #TYPE_DATA} datagram */
+	private static final int DATA_HEADER_SIZE = HEADER_SIZE + 4 + 1;
+
+	/** Size in bytes of the header of a {@link #TYPE_STATE} datagram */
+	private static final int STATE_HEADER_SIZE = HEADER_SIZE + 4 + 4;
+
+	/** Maximum size in bytes of the payload of a fragment */
+	private static final int MAX_FRAGMENT = MAX_DATAGRAM - DATA_HEADER_SIZE;
+
+	/** Flag of the last fragment of a message */
+	private static final byte FLAG_LAST = 1;
+
+	/** Maximum number of fragments in flight; at most the bits of the ack bitmap */
+	private static final int WINDOW = 32;
+
+	/** Time in ms after which an unacknowledged datagram is sent again */
+	static final int RETRANSMIT_TIME = 40;
+
+	/** Message queued at the close of the connection */
+	private static final byte[] CLOSED = new byte[0];
+
+
+	/** Channel of the datagrams, shared with the other connections of {@link #endpoint} */
+	private final DatagramChannel channel;
+
+	/** Endpoint that reads the datagrams of this connection */
+	private final UDPEndpoint endpoint;
+
+	/** Address of the other side */
+	private final SocketAddress remote;
+
+	/** True for the client side; it owns {@link #endpoint} */
+	private final boolean client;
+
+	/** Messages received and not yet read */
+	private final LinkedBlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+
+	/** Receiver of the messages in place of {@link #received}; null if none */
+	private volatile Listener listener;
+
+	/** True if the handshake is completed */
+	private volatile boolean established;
+
+	/** True if the connection is closed */
+	private volatile boolean closed = false;
+
+	/** Sequence number of the next fragment to send */
+	private int nextSeq = 0;
+
+	/** Fragments sent and not yet acknowledged, in order */
+	private final ArrayDeque<Packet> unacked = new ArrayDeque<>();
+
+	/** Last version assigned to a state */
+	private int stateVersion = 0;
+
+	/** Last state of every key not yet acknowledged */
+	private final HashMap<Integer, Packet> states = new HashMap<>();
+
+	/** Sequence number of the next fragment to deliver */
+	private int nextExpected = 0;
+
+	/** Fragments received after a missing one */
+	private final HashMap<Integer, Fragment> outOfOrder = new HashMap<>();
+
+	/** Fragments of the message being received */
+	private final ByteArrayOutputStream assembling = new ByteArrayOutputStream();
+
+	/** Maximum length of a received message; a longer message closes the connection */
+	private volatile int maxMessageLength = TCPMessageProtocol.DEFAULT_MAX_MESSAGE_LENGTH;
+
+	/** Version of the last state delivered for every key */
+	private final HashMap<Integer, Integer> receivedStates = new HashMap<>();
+
+	/** Buffer for the control datagrams */
+	private final ByteBuffer controlBuffer = ByteBuffer.allocate(HEADER_SIZE + 4 + 4);
+
+	/** Period of the keep alive messages in ms; 0 for none */
+	private volatile int timeoutInput = 0;
+
+	/** Timeout of the read in ms; 0 for none */
+	private volatile int timeoutOutput = 0;
+
+	/** Time in ns of the last datagram sent */
+	private long lastSend = System.nanoTime();
+
+	/** Time in ns of the last datagram received */
+	private long lastReceive = System.nanoTime();
+
+
+	/**
+	 * @param endpoint Endpoint that reads the datagrams of the connection
+	 * @param remote Address of the other side
+	 * @param client True for the client side, that owns {@code endpoint}
+	 */
+	UDPMessageProtocol(@NonNull UDPEndpoint endpoint, @NonNull SocketAddress remote, boolean client) {
+		assert endpoint != null && remote != null;
+
+		this.endpoint = endpoint;
+		this.channel = endpoint.getChannel();
+		this.remote = remote;
+		this.client = client;
+		this.established = !client;
+	}
+
+
+	/**
+	 * Connects to a server; the datagrams are read by a thread of {@code threadFactory}
+	 * @param address Address of the server
+	 * @param timeout Maximum time in ms for the answer of the server
+	 * @param threadFactory Factory of the thread that reads the datagrams
+	 * @return The connection
+	 * @throws IOException If an IO error occurs
+	 * @throws SocketTimeoutException If the server doesn't answer in time
+	 */
+	public static @NonNull UDPMessageProtocol connect(@NonNull InetSocketAddress address, int timeout,
+			@NonNull ThreadFactory threadFactory) throws IOException {
+		Objects.requireNonNull(address);
+		Objects.requireNonNull(threadFactory);
+
+		DatagramChannel ch = DatagramChannel.open();
+		UDPEndpoint endpoint;
+		try {
+			ch.connect(address);
+			endpoint = new UDPEndpoint(ch, null);
+		} catch(IOException e) {
+			ch.close();
+			throw e;
+		}
+
+		UDPMessageProtocol c = new UDPMessageProtocol(endpoint, address, true);
+		endpoint.add(c);
+		threadFactory.newThread(endpoint).start();
+		c.handshake(timeout);
+		return c;
+	}
+
+
+	/**
+	 * Sends the hello to the server until the answer
+	 * @param timeout Maximum time in ms for the answer
+	 * @throws IOException If the server refuses or doesn't answer
+	 */
+	private synchronized void handshake(int timeout) throws IOException {
+		sendControl(TYPE_HELLO);
+
+		long deadline = System.nanoTime() + timeout * 1000000L;
+		try {
+			long left;
+			while(!established && !closed && (left = deadline - System.nanoTime()) > 0) {
+				wait(Math.max(1, left / 1000000L));
+			}
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			close();
+			throw new InterruptedIOException();
+		}
+
+		if(closed) {
+			throw new SocketException("Connection refused");
+		} else if(!established) {
+			close();
+			throw new SocketTimeoutException("No answer from the server");
+		}
+	}
+
+
+	/**
+	 * @param listener Receiver of the messages and of the close; executed by the
+	 * thread of the endpoint
+	 */
+	void setListener(@NonNull Listener listener) {
+		this.listener = listener;
+	}
+
+
+	/**
+	 * @return Address of the other side
+	 */
+	@NonNull SocketAddress getRemote() {
+		return remote;
+	}
+
+
+
+	@Override
+	public boolean isConnected() {
+		return established && !closed;
+	}
+
+
+	/**
+	 * Sets the maximum length of the received messages: the fragments of a longer
+	 * message are refused and the connection is closed
+	 * @param length Maximum length in bytes
+	 * @throws IllegalArgumentException If {@code length} is < 0
+	 */
+	public void setMaxMessageLength(int length) {
+		if(length < 0) {
+			throw new IllegalArgumentException("Length must be >= 0");
+		}
+		maxMessageLength = length;
+	}
+
+
+	/**
+	 * @return Maximum length of the received messages
+	 */
+	public int getMaxMessageLength() {
+		return maxMessageLength;
+	}
+
+
+	@Override
+	public void setInputKeepAlive(int time) {
+		if(time < 0) {
+			throw new IllegalArgumentException("Time must be >= 0");
+		}
+		timeoutInput = time;
+	}
+
+
+	@Override
+	public int getInputKeepAlive() {
+		return timeoutInput;
+	}
+
+
+	@Override
+	public void setOutputKeepAlive(int time) {
+		if(time < 0) {
+			throw new IllegalArgumentException("Time must be >= 0");
+		}
+		timeoutOutput = time;
+	}
+
+
+	@Override
+	public int getOutputKeepAlive() {
+		return timeoutOutput;
+	}
+
+
+	@Override
+	public void sendMessage(byte[] payload) throws IOException {
+		Objects.requireNonNull(payload);
+		sendMessage(payload, payload.length);
+	}
+
+
+	@Override
+	public synchronized void sendMessage(byte[] payload, int length) throws IOException {
+		Objects.requireNonNull(payload);
+		if(length < 0 || length > payload.length) {
+			throw new IndexOutOfBoundsException("Length " + length);
+		}
+		if(closed) {
+			throw new SocketException("Connection closed");
+		}
+
+		int offset = 0;
+		do {
+			int n = Math.min(MAX_FRAGMENT, length - offset);
+			ByteBuffer d = ByteBuffer.allocate(DATA_HEADER_SIZE + n);
+			d.putShort(MAGIC);
+			d.put(TYPE_DATA);
+			d.putInt(nextSeq);
+			d.put(offset + n == length ? FLAG_LAST : 0);
+			d.put(payload, offset, n);
+			d.flip();
+			unacked.add(new Packet(nextSeq++, d));
+			offset += n;
+		} while(offset < length);
+
+		transmit(System.nanoTime());
+	}
+
+
+	/**
+	 * {@inheritDoc}
+	 * <p>A state that doesn't fit in a datagram is sent as {@link #sendMessage(byte[], int)}</p>
+	 */
+	@Override
+	public void sendState(int stateKey, byte[] payload, int length) throws IOException {
+		Objects.requireNonNull(payload);
+		if(length < 0 || length > payload.length) {
+			throw new IndexOutOfBoundsException("Length " + length);
+		}
+		if(STATE_HEADER_SIZE + length > MAX_DATAGRAM) {
+			sendMessage(payload, length);
+			return;
+		}
+
+		synchronized(this) {
+			if(closed) {
+				throw new SocketException("Connection closed");
+			}
+
+			ByteBuffer d = ByteBuffer.allocate(STATE_HEADER_SIZE + length);
+			d.putShort(MAGIC);
+			d.put(TYPE_STATE);
+			d.putInt(stateKey);
+			d.putInt(++stateVersion);
+			d.put(payload, 0, length);
+			d.flip();
+			Packet p = new Packet(stateVersion, d);
+			states.put(stateKey, p);
+			send(p, System.nanoTime());
+		}
+	}
+
+
+	@Override
+	public byte[] receiveMessage() throws IOException {
+		byte[] m;
+		try {
+			m = received.take();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+
+		if(m == CLOSED) {
+			// For the next readers
+			received.add(CLOSED);
+			throw new SocketException("Connection closed");
+		}
+		return m;
+	}
+
+
+	@Override
+	public void close() {
+		terminate(true);
+	}
+
+
+	@Override
+	public String toString() {
+		return ((InetSocketAddress) remote).getAddress().getHostAddress();
+	}
+
+
+
+	/**
+	 * Handles a datagram of this connection; executed by the thread of the endpoint
+	 * @param b Datagram positioned after the magic
+	 * @param now Current time in ns
+	 * @throws java.nio.BufferUnderflowException If the datagram is malformed
+	 */
+	void onDatagram(@NonNull ByteBuffer b, long now) {
+		List<byte[]> delivered = null;
+		boolean remoteClosed = false;
+		boolean corrupted = false;
+
+		synchronized(this) {
+			if(closed) {
+				return;
+			}
+			lastReceive = now;
+
+			switch(b.get()) {
+			case TYPE_HELLO:
+				if(!client) {
+					sendControl(TYPE_HELLO_ACK);
+				}
+				break;
+
+			case TYPE_HELLO_ACK:
+				if(client && !established) {
+					established = true;
+					notifyAll();
+				}
+				break;
+
+			case TYPE_DATA:
+				try {
+					delivered = onData(b);
+				} catch(IOException e) {
+					corrupted = true;
+				}
+				break;
+
+			case TYPE_ACK:
+				onAck(b, now);
+				break;
+
+			case TYPE_STATE:
+				delivered = onState(b);
+				break;
+
+			case TYPE_STATE_ACK:
+				onStateAck(b);
+				break;
+
+			case TYPE_CLOSE:
+				remoteClosed = true;
+				break;
+
+			default:
+				// Keep alive or type of a newer version: nothing
+			}
+		}
+
+		if(delivered != null) {
+			Listener l = listener;
+			for(byte[] m : delivered) {
+				if(l != null) {
+					l.message(m);
+				} else {
+					received.add(m);
+				}
+			}
+		}
+		if(remoteClosed) {
+			terminate(false);
+		} else if(corrupted) {
+			// The other side stops the retransmissions of the message
+			terminate(true);
+		}
+	}
+
+
+	/**
+	 * Retransmissions, keep alive and timeout; executed by the thread of the endpoint
+	 * @param now Current time in ns
+	 */
+	void onTick(long now) {
+		boolean timeout;
+
+		synchronized(this) {
+			if(closed) {
+				return;
+			}
+
+			if(!established) {
+				if(now - lastSend >= RETRANSMIT_TIME * 1000000L) {
+					sendControl(TYPE_HELLO);
+				}
+				return;
+			}
+
+			transmit(now);
+			for(Packet p : states.values()) {
+				if(now - p.sentAt >= RETRANSMIT_TIME * 1000000L) {
+					send(p, now);
+				}
+			}
+
+			int in = timeoutInput;
+			if(in > 0 && now - lastSend >= in / 2 * 1000000L) {
+				sendControl(TYPE_KEEP_ALIVE);
+			}
+
+			int out = timeoutOutput;
+			timeout = out > 0 && now - lastReceive > out * 1000000L;
+		}
+
+		if(timeout) {
+			terminate(false);
+		}
+	}
+
+
+	/**
+	 * Handles a fragment; the caller must hold the lock of {@code this}
+	 * @param b Datagram positioned after the type
+	 * @return Messages completed; null if none
+	 * @throws IOException If the message being received is longer than {@link #maxMessageLength};
+	 * the connection must be closed
+	 */
+	private List<byte[]> onData(@NonNull ByteBuffer b) throws IOException {
+		int seq = b.getInt();
+		boolean last = (b.get() & FLAG_LAST) != 0;
+
+		List<byte[]> completed = null;
+		int d = seq - nextExpected;
+		if(d >= 0 && d < WINDOW && !outOfOrder.containsKey(seq)) {
+			byte[] data = new byte[b.remaining()];
+			b.get(data);
+			outOfOrder.put(seq, new Fragment(data, last));
+
+			Fragment f;
+			while((f = outOfOrder.remove(nextExpected)) != null) {
+				nextExpected++;
+				if(f.data.length > maxMessageLength - assembling.size()) {
+					assembling.reset();
+					throw new IOException("Message too long");
+				}
+				assembling.write(f.data, 0, f.data.length);
+				if(f.last) {
+					if(completed == null) {
+						completed = new ArrayList<>();
+					}
+					completed.add(assembling.toByteArray());
+					assembling.reset();
+				}
+			}
+		}
+
+		// Ack also the duplicates: the previous ack could be lost
+		int bitmap = 0;
+		for(int i = 0; i < WINDOW - 1; i++) {
+			if(outOfOrder.containsKey(nextExpected + 1 + i)) {
+				bitmap |= 1 << i;
+			}
+		}
+		controlBuffer.clear();
+		controlBuffer.putShort(MAGIC);
+		controlBuffer.put(TYPE_ACK);
+		controlBuffer.putInt(nextExpected);
+		controlBuffer.putInt(bitmap);
+		controlBuffer.flip();
+		sendDatagram(controlBuffer, System.nanoTime());
+
+		return completed;
+	}
+
+
+	/**
+	 * Handles the ack of the fragments; the caller must hold the lock of {@code this}
+	 * @param b Datagram positioned after the type
+	 * @param now Current time in ns
+	 */
+	private void onAck(@NonNull ByteBuffer b, long now) {
+		int next = b.getInt();
+		int bitmap = b.getInt();
+
+		for(Packet p : unacked) {
+			int d = p.seq - next;
+			if(d < 0 || (d > 0 && d < WINDOW && (bitmap >>> (d - 1) & 1) != 0)) {
+				p.acked = true;
+			}
+		}
+		while(!unacked.isEmpty() && unacked.peek().acked) {
+			unacked.poll();
+		}
+
+		transmit(now);
+	}
+
+
+	/**
+	 * Handles a state; the caller must hold the lock of {@code this}
+	 * @param b Datagram positioned after the type
+	 * @return The state to deliver; null if older than the one delivered
+	 */
+	private List<byte[]> onState(@NonNull ByteBuffer b) {
+		int key = b.getInt();
+		int version = b.getInt();
+
+		controlBuffer.clear();
+		controlBuffer.putShort(MAGIC);
+		controlBuffer.put(TYPE_STATE_ACK);
+		controlBuffer.putInt(key);
+		controlBuffer.putInt(version);
+		controlBuffer.flip();
+		sendDatagram(controlBuffer, System.nanoTime());
+
+		Integer last = receivedStates.get(key);
+		if(last != null && version - last <= 0) {
+			return null;
+		}
+		receivedStates.put(key, version);
+
+		byte[] data = new byte[b.remaining()];
+		b.get(data);
+		List<byte[]> l = new ArrayList<>(1);
+		l.add(data);
+		return l;
+	}
+
+
+	/**
+	 * Handles the ack of a state; the caller must hold the lock of {@code this}
+	 * @param b Datagram positioned after the type
+	 */
+	private void onStateAck(@NonNull ByteBuffer b) {
+		int key = b.getInt();
+		int version = b.getInt();
+
+		Packet p = states.get(key);
+		if(p != null && version - p.seq >= 0) {
+			states.remove(key);
+		}
+	}
+
+
+	/**
+	 * Sends the fragments in the window not yet sent or to retransmit;
+	 * the caller must hold the lock of {@code this}
+	 * @param now Current time in ns
+	 */
+	private void transmit(long now) {
+		int n = 0;
+		for(Packet p : unacked) {
+			if(n++ == WINDOW) {
+				break;
+			}
+			if(!p.acked && (!p.sent || now - p.sentAt >= RETRANSMIT_TIME * 1000000L)) {
+				send(p, now);
+			}
+		}
+	}
+
+
+	/**
+	 * Sends a packet; the caller must hold the lock of {@code this}
+	 * @param p Packet to send
+	 * @param now Current time in ns
+	 */
+	private void send(@NonNull Packet p, long now) {
+		p.datagram.rewind();
+		sendDatagram(p.datagram, now);
+		p.sent = true;
+		p.sentAt = now;
+	}
+
+
+	/**
+	 * Sends a datagram with only the header; the caller must hold the lock of {@code this}
+	 * @param type Type of the datagram
+	 */
+	private void sendControl(byte type) {
+		controlBuffer.clear();
+		controlBuffer.putShort(MAGIC);
+		controlBuffer.put(type);
+		controlBuffer.flip();
+		sendDatagram(controlBuffer, System.nanoTime());
+	}
+
+
+	/**
+	 * Sends a datagram; a datagram not sent is like a lost one and
+	 * it's recovered by the retransmissions
+	 * @param b Datagram
+	 * @param now Current time in ns
+	 */
+	private void sendDatagram(@NonNull ByteBuffer b, long now) {
+		try {
+			channel.send(b, remote);
+		} catch(IOException e) {
+			// Like a lost datagram
+		}
+		lastSend = now;
+	}
+
+
+	/**
+	 * Close the connection
+	 * @param notifyRemote True to notify the other side
+	 */
+	private void terminate(boolean notifyRemote) {
+		Listener l;
+		synchronized(this) {
+			if(closed) {
+				return;
+			}
+			if(notifyRemote && established) {
+				sendControl(TYPE_CLOSE);
+			}
+			closed = true;
+			unacked.clear();
+			states.clear();
+			notifyAll();
+			l = listener;
+		}
+
+		received.add(CLOSED);
+		endpoint.remove(this);
+		if(client) {
+			endpoint.close();
+		}
+		if(l != null) {
+			l.closed();
+		}
+	}
+
+
+
+	/** Receiver of the events of a connection not read with {@link UDPMessageProtocol#receiveMessage()} */
+	interface Listener {
+
+		/**
+		 * @param mess Message received
+		 */
+		void message(@NonNull byte[] mess);
+
+		/**
+		 * The connection was closed
+		 */
+		void closed();
+	}
+
+
+	/** Datagram to send until acknowledged */
+	private static final class Packet {
+		/** Sequence number of a fragment or version of a state */
+		final int seq;
+		final ByteBuffer datagram;
+		boolean sent = false;
+		long sentAt;
+		boolean acked = false;
+
+		Packet(int seq, @NonNull ByteBuffer datagram) {
+			this.seq = seq;
+			this.datagram = datagram;
+		}
+	}
+
+
+	/** Fragment received */
+	private static final class Fragment {
+		final byte[] data;
+		final boolean last;
+
+		Fragment(@NonNull byte[] data, boolean last) {
+			this.data = data;
+			this.last = last;
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package com.macrokeys;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.event.KeyEvent;
+
+import org.junit.jupiter.api.Test;
+
+public class KeySequencePlanTest {
+
+	@Test
+	public void shouldShareThePlanOfEqualSequences() {
+		LimitedKeySequence a = new LimitedKeySequence(new Integer[] {KeyEvent.VK_CONTROL, KeyEvent.VK_SHIFT, KeyEvent.VK_V});
+		LimitedKeySequence b = new LimitedKeySequence(new Integer[] {KeyEvent.VK_CONTROL, KeyEvent.VK_SHIFT, KeyEvent.VK_V});
+		LimitedKeySequence c = new LimitedKeySequence(new Integer[] {KeyEvent.VK_V, KeyEvent.VK_SHIFT, KeyEvent.VK_CONTROL});
+
+		KeySequencePlan p = a.getPlan();
+		assertSame(p, a.getPlan());
+		assertSame(p, b.getPlan());
+		assertNotSame(p, c.getPlan());
+
+		assertEquals(3, p.size());
+		int[] press = {KeyEvent.VK_CONTROL, KeyEvent.VK_SHIFT, KeyEvent.VK_V};
+		for(int i = 0; i < press.length; i++) {
+			assertEquals(press[i], p.getPressKey(i));
+			assertEquals(press[press.length - 1 - i], p.getReleaseKey(i));
+		}
+	}
+
+	@Test
+	public void shouldCompileTheEmptySequences() {
+		assertSame(KeySequencePlan.EMPTY, new LimitedKeySequence().getPlan());
+		assertSame(KeySequencePlan.EMPTY, new LimitedKeySequence(null).getPlan());
+		assertEquals(0, KeySequencePlan.EMPTY.size());
+	}
+}
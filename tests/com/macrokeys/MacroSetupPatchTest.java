@@ -0,0 +1,122 @@
+package com.macrokeys;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.event.KeyEvent;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.macrokeys.MacroScreen.SwipeType;
+import com.macrokeys.rendering.RectF;
+
+public class MacroSetupPatchTest {
+
+	@Test
+	public void shouldTransformOldVersionInNew() throws IOException, MSLoadException {
+		MacroSetup from = setup(3, 4);
+		MacroSetup to = setup(2, 4);
+
+		// Changed fields
+		MacroKey k = to.getMacroScreens().get(0).getKeys().get(1);
+		k.setText("Changed");
+		k.setArea(new RectF(1, 2, 3, 4));
+		k.setKeySeq(new LimitedKeySequence(new Integer[] {KeyEvent.VK_A, KeyEvent.VK_B}));
+		k.setType(MacroKeyType.Game);
+		k.setRepeatDelay(300);
+		k.setRepeatRate(10);
+		to.getMacroScreens().get(1).setBackgroundText("Second");
+		// Removed and added keys
+		to.getMacroScreens().get(0).getKeys().remove(3);
+		to.getMacroScreens().get(1).getKeys().add(new MacroKey());
+		to.saveAsByteArray();
+
+		MacroSetup client = copy(from);
+		MacroSetupPatch p = MacroSetupPatch.diff(copy(from), copy(to));
+		MacroSetupPatch loaded = load(p);
+		loaded.applyTo(client);
+
+		assertEquals(to, client);
+		assertEquals(MacroSetupPatch.checksum(copy(to)), MacroSetupPatch.checksum(client));
+		assertEquals(6, client.macroKeyFromID(6).getId());
+		assertTrue(p.saveAsByteArray().length < to.saveAsByteArray().length / 4, "Patch too big");
+
+		// Back to the old version: added screen
+		MacroSetupPatch.diff(copy(to), copy(from)).applyTo(client);
+		assertEquals(from, client);
+	}
+
+
+	@Test
+	public void shouldBeEmptyForEqualSetups() throws IOException, MSLoadException {
+		MacroSetup s = setup(2, 3);
+		assertTrue(MacroSetupPatch.diff(copy(s), copy(s)).isEmpty());
+		assertFalse(MacroSetupPatch.diff(copy(s), setup(2, 2)).isEmpty());
+	}
+
+
+	@Test
+	public void shouldRefuseOtherSetups() throws IOException, MSLoadException {
+		MacroSetup from = setup(1, 2);
+		MacroSetup to = setup(1, 3);
+		MacroSetupPatch p = MacroSetupPatch.diff(copy(from), copy(to));
+
+		MacroSetup other = setup(1, 2);
+		other.getMacroScreens().get(0).getKeys().get(0).setText("Other");
+		other.saveAsByteArray();
+		assertThrows(MSLoadException.class, () -> p.applyTo(other));
+
+		byte[] data = p.saveAsByteArray();
+		data[data.length - 1] ^= 1;
+		MacroSetupPatch corrupted = MacroSetupPatch.load(data, 0, data.length);
+		assertThrows(MSLoadException.class, () -> corrupted.applyTo(copy(from)));
+		assertThrows(MSLoadException.class, () -> MacroSetupPatch.load(data, 0, 7));
+	}
+
+
+	/**
+	 * @param screens Number of screens
+	 * @param keys Number of keys of every screen
+	 * @return Setup with the ids assigned
+	 * @throws IOException If an IO error occurs
+	 */
+	private static MacroSetup setup(int screens, int keys) throws IOException {
+		List<MacroScreen> l = new ArrayList<>();
+		for(int i = 0; i < screens; i++) {
+			MacroScreen m = new MacroScreen();
+			m.setSwipeType(SwipeType.values()[i % SwipeType.values().length]);
+			for(int j = 0; j < keys; j++) {
+				MacroKey k = new MacroKey();
+				k.setText("Key " + i + " " + j);
+				k.setKeySeq(new LimitedKeySequence(new Integer[] {KeyEvent.VK_0 + j}));
+				m.getKeys().add(k);
+			}
+			l.add(m);
+		}
+		MacroSetup s = new MacroSetup(l);
+		s.saveAsByteArray();
+		return s;
+	}
+
+
+	/**
+	 * @param s Setup
+	 * @return Copy of {@code s} as loaded by a client
+	 */
+	private static MacroSetup copy(MacroSetup s) throws IOException, MSLoadException {
+		return MacroSetup.load(new ByteArrayInputStream(s.saveAsByteArray()));
+	}
+
+
+	/**
+	 * @param p Patch
+	 * @return Copy of {@code p} as loaded by a client
+	 */
+	private static MacroSetupPatch load(MacroSetupPatch p) throws MSLoadException {
+		byte[] data = p.saveAsByteArray();
+		return MacroSetupPatch.load(data, 0, data.length);
+	}
+}
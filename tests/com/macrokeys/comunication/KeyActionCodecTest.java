@@ -0,0 +1,452 @@
+package com.macrokeys.comunication;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.macrokeys.MSLoadException;
+import com.macrokeys.MacroKey;
+import com.macrokeys.MacroScreen;
+import com.macrokeys.MacroSetup;
+import com.macrokeys.netcode.TCPMessageProtocol;
+
+public class KeyActionCodecTest {
+
+	private static final int PORT = 25349;
+
+	/** Number of operations of a measure of the allocations */
+	private static final int ITERATIONS = 20000;
+
+	private static final com.sun.management.ThreadMXBean THREAD_BEAN =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+
+	@Test
+	public void shouldEncodeAsDataOutputStream() throws IOException {
+		final int[] ids = {0, 1, 255, 0x12345678, Integer.MAX_VALUE};
+		byte[] buf = new byte[KeyActionCodec.ACTION_LENGTH];
+
+		for(int id : ids) {
+			for(boolean down : new boolean[] {true, false}) {
+				ByteArrayOutputStream str = new ByteArrayOutputStream();
+				DataOutputStream dataStr = new DataOutputStream(str);
+				dataStr.writeInt(id);
+				dataStr.writeBoolean(down);
+
+				KeyActionCodec.encode(buf, 0, id, down);
+				assertArrayEquals(str.toByteArray(), buf);
+				assertEquals(id, KeyActionCodec.decodeId(buf, 0));
+				assertEquals(down, KeyActionCodec.decodeDown(buf, 0));
+			}
+		}
+	}
+
+
+	@Test
+	public void shouldEncodeBatch() {
+		byte[] buf = new byte[KeyActionCodec.MAX_MESSAGE_LENGTH];
+		for(int i = 0; i < KeyActionCodec.MAX_BATCH; i++) {
+			KeyActionCodec.encode(buf, KeyActionCodec.batchOffset(i), i * 1000, i % 3 == 0);
+		}
+		int length = KeyActionCodec.encodeBatchHeader(buf, KeyActionCodec.MAX_BATCH);
+
+		assertEquals(KeyActionCodec.MAX_MESSAGE_LENGTH - KeyActionCodec.SEQUENCE_LENGTH, length);
+		assertEquals(KeyActionCodec.TYPE_KEY_BATCH, KeyActionCodec.messageType(buf, length));
+		assertEquals(KeyActionCodec.MAX_BATCH, KeyActionCodec.batchCount(buf, length));
+		for(int i = 0; i < KeyActionCodec.MAX_BATCH; i++) {
+			assertEquals(i * 1000, KeyActionCodec.decodeId(buf, KeyActionCodec.batchOffset(i)));
+			assertEquals(i % 3 == 0, KeyActionCodec.decodeDown(buf, KeyActionCodec.batchOffset(i)));
+		}
+
+		assertThrows(IllegalArgumentException.class, () -> KeyActionCodec.batchCount(buf, length - 1));
+		assertThrows(IllegalArgumentException.class, () -> KeyActionCodec.batchCount(buf, 2));
+		assertEquals(KeyActionCodec.TYPE_KEY_ACTION,
+				KeyActionCodec.messageType(buf, KeyActionCodec.ACTION_LENGTH));
+	}
+
+
+	@Test
+	public void shouldEncodeSequencedActions() {
+		byte[] buf = new byte[KeyActionCodec.MAX_MESSAGE_LENGTH];
+		for(int i = 0; i < KeyActionCodec.MAX_BATCH; i++) {
+			KeyActionCodec.encode(buf, KeyActionCodec.batchOffset(i), i, i % 2 == 0);
+		}
+		int length = KeyActionCodec.encodeSequenced(buf, KeyActionCodec.MAX_BATCH, -7);
+
+		assertEquals(KeyActionCodec.MAX_MESSAGE_LENGTH, length);
+		assertEquals(KeyActionCodec.TYPE_KEY_SEQUENCED, KeyActionCodec.messageType(buf, length));
+		assertEquals(KeyActionCodec.MAX_BATCH, KeyActionCodec.sequencedCount(buf, length));
+		assertEquals(-7, KeyActionCodec.decodeSequence(buf, length));
+		assertEquals(KeyActionCodec.MAX_BATCH - 1,
+				KeyActionCodec.decodeId(buf, KeyActionCodec.batchOffset(KeyActionCodec.MAX_BATCH - 1)));
+
+		length = KeyActionCodec.encodeSequenced(buf, 1, 3);
+		assertEquals(KeyActionCodec.SEQUENCED_ACTION_LENGTH, length);
+		assertEquals(KeyActionCodec.TYPE_KEY_SEQUENCED, KeyActionCodec.messageType(buf, length));
+		assertEquals(1, KeyActionCodec.sequencedCount(buf, length));
+		assertEquals(3, KeyActionCodec.decodeSequence(buf, length));
+
+		final int l = length;
+		assertThrows(IllegalArgumentException.class, () -> KeyActionCodec.sequencedCount(buf, l - 1));
+		assertThrows(IllegalArgumentException.class, () -> KeyActionCodec.sequencedCount(buf, 6));
+	}
+
+
+	@Test
+	public void clientShouldSendBatch() throws IOException, MSLoadException {
+		MacroSetup setup = macroSetup(4);
+		List<MacroKey> keys = setup.getMacroScreens().get(0).getKeys();
+		StubClient c = new StubClient();
+		c.connectToServer();
+
+		// Server that doesn't support the batches: single actions
+		c.prot.received = setup.saveAsByteArray();
+		c.reciveMacroSetup();
+		c.keyBatch(keys.subList(0, 0), keys.subList(0, 2));
+		assertEquals(KeyActionCodec.ACTION_LENGTH, c.prot.lastLength);
+		assertEquals(keys.get(1).getId(), KeyActionCodec.decodeId(c.prot.last, 0));
+		c.keyBatch(keys.subList(1, 2), keys.subList(0, 0));
+
+		// Server that doesn't order the actions by sequence number
+		c.prot.received = SetupCodec.encodeFullSetup(setup.saveAsByteArray(),
+				SetupCodec.CAPABILITIES & ~SetupCodec.CAP_KEY_SEQUENCE);
+		c.reciveMacroSetup();
+
+		// Key 0 released, key 1 pressed, key 2 pressed twice
+		c.keyBatch(keys.subList(0, 1), Arrays.asList(keys.get(1), keys.get(2), keys.get(2)));
+		byte[] mess = c.prot.last;
+		int length = c.prot.lastLength;
+		assertEquals(KeyActionCodec.TYPE_KEY_BATCH, KeyActionCodec.messageType(mess, length));
+		assertEquals(3, KeyActionCodec.batchCount(mess, length));
+		int[] ids = new int[3];
+		boolean[] down = new boolean[3];
+		for(int i = 0; i < 3; i++) {
+			ids[i] = KeyActionCodec.decodeId(mess, KeyActionCodec.batchOffset(i));
+			down[i] = KeyActionCodec.decodeDown(mess, KeyActionCodec.batchOffset(i));
+		}
+		assertArrayEquals(new int[] {keys.get(0).getId(), keys.get(1).getId(), keys.get(2).getId()}, ids);
+		assertArrayEquals(new boolean[] {false, true, true}, down);
+
+		// Only key 3 changes: single action
+		c.keyBatch(keys.subList(0, 1), keys.subList(1, 4));
+		assertEquals(KeyActionCodec.ACTION_LENGTH, c.prot.lastLength);
+		assertEquals(keys.get(3).getId(), KeyActionCodec.decodeId(c.prot.last, 0));
+		assertTrue(KeyActionCodec.decodeDown(c.prot.last, 0));
+		assertEquals(-1, c.prot.lastStateKey);
+	}
+
+
+	@Test
+	public void clientShouldSendSequencedActions() throws IOException, MSLoadException {
+		MacroSetup setup = macroSetup(4);
+		List<MacroKey> keys = setup.getMacroScreens().get(0).getKeys();
+		StubClient c = new StubClient();
+		c.connectToServer();
+		c.prot.received = SetupCodec.encodeFullSetup(setup.saveAsByteArray(), SetupCodec.CAPABILITIES);
+		c.reciveMacroSetup();
+
+		// Single action: the state of the key
+		c.keyDown(keys.get(0));
+		assertEquals(keys.get(0).getId(), c.prot.lastStateKey);
+		assertEquals(KeyActionCodec.SEQUENCED_ACTION_LENGTH, c.prot.lastLength);
+		assertEquals(1, KeyActionCodec.sequencedCount(c.prot.last, c.prot.lastLength));
+		assertEquals(1, KeyActionCodec.decodeSequence(c.prot.last, c.prot.lastLength));
+		assertTrue(KeyActionCodec.decodeDown(c.prot.last, KeyActionCodec.batchOffset(0)));
+
+		// Batch: ordered message, a sequence number for every action
+		c.keyBatch(keys.subList(0, 1), keys.subList(1, 3));
+		assertEquals(-1, c.prot.lastStateKey);
+		assertEquals(KeyActionCodec.TYPE_KEY_SEQUENCED, KeyActionCodec.messageType(c.prot.last, c.prot.lastLength));
+		assertEquals(3, KeyActionCodec.sequencedCount(c.prot.last, c.prot.lastLength));
+		assertEquals(2, KeyActionCodec.decodeSequence(c.prot.last, c.prot.lastLength));
+
+		c.keyUp(keys.get(1));
+		assertEquals(keys.get(1).getId(), c.prot.lastStateKey);
+		assertEquals(5, KeyActionCodec.decodeSequence(c.prot.last, c.prot.lastLength));
+		assertFalse(KeyActionCodec.decodeDown(c.prot.last, KeyActionCodec.batchOffset(0)));
+	}
+
+
+	@Test
+	public void clientKeyActionsShouldNotAllocate() throws IOException {
+		MacroSetup setup = macroSetup(4);
+		List<MacroKey> keys = setup.getMacroScreens().get(0).getKeys();
+		StubClient c = new StubClient();
+		c.connectToServer();
+
+		pressAndRelease(c, keys);
+		long start = allocatedBytes();
+		pressAndRelease(c, keys);
+		long allocated = allocatedBytes() - start;
+
+		assertEquals(KeyActionCodec.ACTION_LENGTH, c.prot.lastLength);
+		assertTrue(allocated < ITERATIONS, "Allocated " + allocated + " bytes");
+	}
+
+
+	@Test
+	public void receiveShouldNotAllocate() throws IOException, InterruptedException {
+		try(ServerSocket sv = new ServerSocket(PORT)) {
+			Socket client = new Socket("localhost", PORT);
+			final TCPMessageProtocol sender = new TCPMessageProtocol(client);
+			final TCPMessageProtocol receiver = new TCPMessageProtocol(sv.accept());
+
+			Thread th = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					byte[] mess = new byte[KeyActionCodec.ACTION_LENGTH];
+					try {
+						for(int i = 0; i < ITERATIONS * 2; i++) {
+							KeyActionCodec.encode(mess, 0, i, i % 2 == 0);
+							sender.sendMessage(mess);
+						}
+					} catch(IOException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+			th.start();
+
+			byte[] buf = new byte[KeyActionCodec.ACTION_LENGTH];
+			for(int i = 0; i < ITERATIONS; i++) {
+				receiver.receiveMessage(buf);
+			}
+
+			long start = allocatedBytes();
+			for(int i = ITERATIONS; i < ITERATIONS * 2; i++) {
+				int l = receiver.receiveMessage(buf);
+				assert l == KeyActionCodec.ACTION_LENGTH && KeyActionCodec.decodeId(buf, 0) == i;
+			}
+			long allocated = allocatedBytes() - start;
+
+			th.join();
+			assertEquals(ITERATIONS * 2 - 1, KeyActionCodec.decodeId(buf, 0));
+			assertTrue(allocated < ITERATIONS, "Allocated " + allocated + " bytes");
+
+			sender.close();
+			receiver.close();
+		}
+	}
+
+
+
+	@Test
+	public void pooledReceiveShouldNotAllocate() throws IOException, InterruptedException {
+		try(ServerSocket sv = new ServerSocket(PORT)) {
+			Socket client = new Socket("localhost", PORT);
+			final TCPMessageProtocol sender = new TCPMessageProtocol(client);
+			final TCPMessageProtocol receiver = new TCPMessageProtocol(sv.accept());
+
+			Thread th = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					byte[] mess = new byte[KeyActionCodec.ACTION_LENGTH];
+					try {
+						for(int i = 0; i < ITERATIONS * 2; i++) {
+							KeyActionCodec.encode(mess, 0, i, i % 2 == 0);
+							sender.sendMessage(mess);
+						}
+					} catch(IOException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+			th.start();
+
+			BufferPool pool = new BufferPool(KeyActionCodec.MAX_MESSAGE_LENGTH, 4, false);
+			for(int i = 0; i < ITERATIONS; i++) {
+				receiver.receiveMessage(pool).close();
+			}
+
+			long start = allocatedBytes();
+			int last = -1;
+			for(int i = ITERATIONS; i < ITERATIONS * 2; i++) {
+				MessageLease l = receiver.receiveMessage(pool);
+				last = KeyActionCodec.decodeId(l.getBuffer().array(), 0);
+				l.close();
+			}
+			long allocated = allocatedBytes() - start;
+
+			th.join();
+			assertEquals(ITERATIONS * 2 - 1, last);
+			assertEquals(1, pool.getPooled());
+			assertTrue(allocated < ITERATIONS, "Allocated " + allocated + " bytes");
+
+			sender.close();
+			receiver.close();
+		}
+	}
+
+
+
+	@Test
+	public void sendShouldNotAllocate() throws IOException, InterruptedException {
+		try(ServerSocket sv = new ServerSocket(PORT)) {
+			Socket client = new Socket("localhost", PORT);
+			final TCPMessageProtocol sender = new TCPMessageProtocol(client);
+			final TCPMessageProtocol receiver = new TCPMessageProtocol(sv.accept());
+			sender.setTcpNoDelay(true);
+
+			Thread th = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					byte[] buf = new byte[KeyActionCodec.ACTION_LENGTH];
+					try {
+						for(int i = 0; i < ITERATIONS * 2; i++) {
+							receiver.receiveMessage(buf);
+						}
+					} catch(IOException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+			th.start();
+
+			byte[] mess = new byte[KeyActionCodec.ACTION_LENGTH];
+			for(int i = 0; i < ITERATIONS; i++) {
+				KeyActionCodec.encode(mess, 0, i, true);
+				sender.sendMessage(mess);
+			}
+
+			long start = allocatedBytes();
+			for(int i = 0; i < ITERATIONS; i++) {
+				KeyActionCodec.encode(mess, 0, i, false);
+				sender.sendMessage(mess);
+			}
+			long allocated = allocatedBytes() - start;
+
+			th.join();
+			assertTrue(allocated < ITERATIONS, "Allocated " + allocated + " bytes");
+
+			sender.close();
+			receiver.close();
+		}
+	}
+
+
+
+	/**
+	 * Press and release the keys for {@link #ITERATIONS} times
+	 * @param c Client
+	 * @param keys Keys to press and release
+	 * @throws IOException If an IO error occurs
+	 */
+	private static void pressAndRelease(MacroClient c, List<MacroKey> keys) throws IOException {
+		for(int i = 0; i < ITERATIONS; i++) {
+			MacroKey k = keys.get(i % keys.size());
+			c.keyDown(k);
+			c.keyUp(k);
+		}
+	}
+
+
+	/**
+	 * @return Bytes allocated by the current thread
+	 */
+	@SuppressWarnings("deprecation")
+	private static long allocatedBytes() {
+		return THREAD_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+
+	/**
+	 * @param n Number of keys
+	 * @return Setup with a screen of {@code n} keys, with the ids assigned
+	 * @throws IOException If an IO error occurs
+	 */
+	private static MacroSetup macroSetup(int n) throws IOException {
+		MacroScreen screen = new MacroScreen();
+		for(int i = 0; i < n; i++) {
+			screen.getKeys().add(new MacroKey());
+		}
+		List<MacroScreen> l = new ArrayList<>();
+		l.add(screen);
+
+		MacroSetup s = new MacroSetup(l);
+		s.saveAsByteArray();
+		return s;
+	}
+
+
+
+	/** Client that sends the messages to a {@link StubProtocol} */
+	private static class StubClient extends MacroClient {
+
+		final StubProtocol prot = new StubProtocol();
+
+		@Override
+		protected MessageProtocol innerConnectToServer() {
+			return prot;
+		}
+	}
+
+
+	/** Protocol that copies the sent messages in a preallocated buffer */
+	private static class StubProtocol implements MessageProtocol {
+
+		final byte[] last = new byte[KeyActionCodec.MAX_MESSAGE_LENGTH];
+		int lastLength = 0;
+
+		/** Key of the last message if sent as a state, -1 otherwise */
+		int lastStateKey = -1;
+
+		/** Message returned by {@link #receiveMessage()} */
+		byte[] received;
+
+		@Override
+		public boolean isConnected() {
+			return true;
+		}
+
+		@Override
+		public void setInputKeepAlive(int time) { }
+
+		@Override
+		public int getInputKeepAlive() {
+			return 0;
+		}
+
+		@Override
+		public void setOutputKeepAlive(int time) { }
+
+		@Override
+		public int getOutputKeepAlive() {
+			return 0;
+		}
+
+		@Override
+		public void sendMessage(byte[] payload) {
+			System.arraycopy(payload, 0, last, 0, payload.length);
+			lastLength = payload.length;
+			lastStateKey = -1;
+		}
+
+		@Override
+		public void sendState(int stateKey, byte[] payload, int length) {
+			System.arraycopy(payload, 0, last, 0, length);
+			lastLength = length;
+			lastStateKey = stateKey;
+		}
+
+		@Override
+		public byte[] receiveMessage() {
+			if(received == null) {
+				throw new UnsupportedOperationException();
+			}
+			return received;
+		}
+
+		@Override
+		public void close() { }
+	}
+}
@@ -0,0 +1,137 @@
+package com.macrokeys.comunication;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.junit.jupiter.api.Test;
+
+import com.macrokeys.KeySequencePlan;
+import com.macrokeys.LimitedKeySequence;
+
+public class KeyDispatcherTest {
+
+	@Test
+	public void shouldExecuteInOrderWithoutBlockingThePublishers() throws Exception {
+		final CountDownLatch slow = new CountDownLatch(1);
+		final List<String> executed = new ArrayList<>();
+		KeyDispatcher d = new KeyDispatcher(new KeyPresser() {
+			@Override
+			public void press(@NonNull KeySequencePlan p) {
+				try {
+					// A slow output
+					slow.await();
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				add("+" + p.getPressKey(0));
+			}
+
+			@Override
+			public void release(@NonNull KeySequencePlan p) {
+				add("-" + p.getReleaseKey(0));
+			}
+
+			private void add(String c) {
+				synchronized(executed) {
+					executed.add(c);
+					executed.notifyAll();
+				}
+			}
+		}, 10);
+		Thread t = new Thread(d);
+		t.start();
+
+		try {
+			// The publishers return while the output is stalled
+			for(int i = 0; i < 8; i++) {
+				LimitedKeySequence s = new LimitedKeySequence(new Integer[] {i});
+				d.press(s.getPlan());
+				d.release(s.getPlan());
+			}
+			assertEquals(16, d.getQueueDepth());
+			slow.countDown();
+
+			synchronized(executed) {
+				long end = System.currentTimeMillis() + 5000;
+				while(executed.size() < 16 && System.currentTimeMillis() < end) {
+					executed.wait(100);
+				}
+				List<String> expected = new ArrayList<>();
+				for(int i = 0; i < 8; i++) {
+					expected.add("+" + i);
+					expected.add("-" + i);
+				}
+				assertEquals(expected, executed);
+			}
+			// The sink returns before the command is counted
+			long end = System.currentTimeMillis() + 5000;
+			while(d.getQueueDepth() > 0 && System.currentTimeMillis() < end) {
+				Thread.sleep(1);
+			}
+			assertEquals(0, d.getQueueDepth());
+			assertEquals(16, d.getExecuted());
+			assertTrue(d.getMaxLatency() >= d.getMeanLatency());
+			assertTrue(d.getMeanLatency() > 0);
+		} finally {
+			d.close(5000);
+			t.join(5000);
+		}
+		assertFalse(t.isAlive());
+	}
+
+
+	@Test
+	public void shouldExecuteThePublishedCommandsAtTheClose() throws Exception {
+		final CountDownLatch slow = new CountDownLatch(1);
+		final List<String> executed = Collections.synchronizedList(new ArrayList<String>());
+		final KeyDispatcher d = new KeyDispatcher(new KeyPresser() {
+			@Override
+			public void press(@NonNull KeySequencePlan p) {
+				try {
+					slow.await();
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				executed.add("+" + p.getPressKey(0));
+			}
+
+			@Override
+			public void release(@NonNull KeySequencePlan p) {
+				executed.add("-" + p.getReleaseKey(0));
+			}
+		}, 16);
+		Thread t = new Thread(d);
+		t.start();
+
+		KeySequencePlan a = new LimitedKeySequence(new Integer[] {1}).getPlan();
+		KeySequencePlan b = new LimitedKeySequence(new Integer[] {2}).getPlan();
+		d.press(a);
+		d.press(b);
+		d.release(a);
+		new Thread(() -> {
+			try {
+				Thread.sleep(50);
+			} catch(InterruptedException e) {
+				// Nothing
+			}
+			slow.countDown();
+		}).start();
+
+		// Waits the commands published before
+		d.close(5000);
+		assertFalse(t.isAlive());
+		assertEquals(Arrays.asList("+1", "+2", "-1"), executed);
+		assertEquals(0, d.getQueueDepth());
+
+		// After the close only the releases
+		d.press(a);
+		d.release(b);
+		assertEquals(Arrays.asList("+1", "+2", "-1", "-2"), executed);
+	}
+}
@@ -0,0 +1,74 @@
+package com.macrokeys.comunication;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.junit.jupiter.api.Test;
+
+import com.macrokeys.MacroKey;
+
+public class KeyRepeaterTest {
+
+	@Test
+	public void shouldRepeatWithTheDelayAndRateOfTheKey() throws Exception {
+		final List<Long> times = Collections.synchronizedList(new ArrayList<Long>());
+		KeyRepeater r = new KeyRepeater(new KeyRepeater.Action() {
+			@Override
+			public void keystroke(@NonNull MacroKey k) {
+				times.add(System.nanoTime());
+			}
+		});
+		Thread t = new Thread(r);
+		t.start();
+
+		try {
+			// Parked while no key is held
+			waitState(t, Thread.State.WAITING);
+
+			MacroKey k = new MacroKey();
+			k.setRepeatDelay(200);
+			k.setRepeatRate(20);
+			long start = System.nanoTime();
+			r.hold(k);
+			Thread.sleep(375);
+			r.release(k);
+			int released = times.size();
+			waitState(t, Thread.State.WAITING);
+			Thread.sleep(100);
+
+			// Keystrokes at 0, 200, 250, 300, 350 ms; none after the release
+			List<Long> l;
+			synchronized(times) {
+				l = new ArrayList<>(times);
+			}
+			assertTrue(l.size() >= 3, "Keystrokes: " + l.size());
+			assertTrue(l.size() <= released + 1);
+			// Deadlines from the hold: a late keystroke doesn't delay the following ones
+			assertTrue(ms(l.get(0) - start) < 100);
+			assertTrue(ms(l.get(1) - start) >= 200);
+			assertTrue(ms(l.get(2) - start) >= 250);
+		} finally {
+			t.interrupt();
+			t.join(5000);
+		}
+	}
+
+
+	private static long ms(long ns) {
+		return TimeUnit.NANOSECONDS.toMillis(ns);
+	}
+
+
+	private static void waitState(Thread t, Thread.State s) throws InterruptedException {
+		long end = System.currentTimeMillis() + 5000;
+		while(t.getState() != s) {
+			assertTrue(System.currentTimeMillis() < end, "State " + t.getState());
+			Thread.sleep(5);
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package com.macrokeys.comunication;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.junit.jupiter.api.Test;
+
+import com.macrokeys.MacroKey;
+import com.macrokeys.MacroScreen;
+import com.macrokeys.MacroSetup;
+
+public class KeyStateTableTest {
+
+	@Test
+	public void shouldTrackTheKeysOfTheClients() throws IOException {
+		MacroSetup s = setup(100);
+		List<MacroKey> keys = s.getMacroScreens().get(0).getKeys();
+		KeyStateTable t = new KeyStateTable();
+		t.reserve(s);
+		final List<String> released = new ArrayList<>();
+		KeyStateTable.Visitor v = new KeyStateTable.Visitor() {
+			@Override
+			public void released(@NonNull MacroKey k, @NonNull String clientId) {
+				released.add(k.getId() + clientId);
+			}
+		};
+
+		assertTrue(t.press(keys.get(1), "A"));
+		assertFalse(t.press(keys.get(1), "B"));
+		assertTrue(t.press(keys.get(70), "B"));
+		assertTrue(t.press(keys.get(99), "A"));
+		assertTrue(t.isDown(70));
+		assertFalse(t.isDown(2));
+
+		assertFalse(t.release(2, v));
+		assertTrue(t.release(70, v));
+		assertFalse(t.isDown(70));
+
+		t.transfer("A", "C");
+		t.releaseAll("A", v);
+		t.releaseAll("C", v);
+		assertFalse(t.isDown(1));
+		assertFalse(t.isDown(99));
+		assertEquals("[70B, 1C, 99C]", released.toString());
+		// Not reserved
+		assertFalse(t.press(new MacroKey(), "A"));
+	}
+
+
+	@Test
+	public void shouldPressOnceUnderConcurrentClients() throws Exception {
+		MacroSetup s = setup(1);
+		final MacroKey k = s.getMacroScreens().get(0).getKeys().get(0);
+		final KeyStateTable t = new KeyStateTable();
+		t.reserve(s);
+		final AtomicInteger pressed = new AtomicInteger();
+		final AtomicInteger released = new AtomicInteger();
+		final KeyStateTable.Visitor v = new KeyStateTable.Visitor() {
+			@Override
+			public void released(@NonNull MacroKey key, @NonNull String clientId) {
+				released.incrementAndGet();
+			}
+		};
+
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<>();
+		for(int i = 0; i < 4; i++) {
+			final String id = "C" + i;
+			Thread th = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch(InterruptedException e) {
+						return;
+					}
+					for(int j = 0; j < 10000; j++) {
+						if(t.press(k, id)) {
+							pressed.incrementAndGet();
+						}
+						t.release(k.getId(), v);
+					}
+				}
+			});
+			th.start();
+			threads.add(th);
+		}
+		start.countDown();
+		for(Thread th : threads) {
+			th.join();
+		}
+
+		assertFalse(t.isDown(k.getId()));
+		assertEquals(pressed.get(), released.get());
+	}
+
+
+	/**
+	 * @return Setup with {@code n} keys, with the ids assigned
+	 */
+	private static MacroSetup setup(int n) throws IOException {
+		MacroScreen m = new MacroScreen();
+		for(int i = 0; i < n; i++) {
+			m.getKeys().add(new MacroKey());
+		}
+		List<MacroScreen> l = new ArrayList<>();
+		l.add(m);
+		MacroSetup s = new MacroSetup(l);
+		s.saveAsByteArray();
+		return s;
+	}
+}
@@ -0,0 +1,138 @@
+package com.macrokeys.comunication;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import com.macrokeys.LimitedKeySequence;
+import com.macrokeys.MSLoadException;
+import com.macrokeys.MacroKey;
+import com.macrokeys.MacroScreen;
+import com.macrokeys.MacroSetup;
+import com.macrokeys.netcode.TCPMessageProtocol;
+
+public class MacroClientTest {
+
+	private static final int PORT = 25363;
+
+
+	@Test
+	public void shouldReplayKeysAfterReconnection() throws Exception {
+		// Setup without the trailer: server of the previous versions, without sessions
+		final byte[] setupMessage = macroSetup().saveAsByteArray();
+
+		MacroClient client = new MacroClient() {
+			@Override
+			protected MessageProtocol innerConnectToServer() throws IOException {
+				return new TCPMessageProtocol(new Socket("localhost", PORT));
+			}
+		};
+		client.setAutoReconnect(true);
+		client.setReconnectDelay(10, 50);
+
+		ServerSocket sv = new ServerSocket(PORT);
+		client.connectToServer();
+		TCPMessageProtocol server = new TCPMessageProtocol(sv.accept());
+		server.sendMessage(setupMessage);
+		MacroSetup s = client.reciveMacroSetup();
+		List<MacroKey> keys = s.getMacroScreens().get(0).getKeys();
+
+		final List<MacroSetup> received = Collections.synchronizedList(new ArrayList<MacroSetup>());
+		Thread receiver = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while(true) {
+						MacroSetup m = client.reciveMacroSetup();
+						received.add(m);
+					}
+				} catch(IOException | MSLoadException | IllegalStateException e) {
+					// Closed
+				}
+			}
+		});
+		receiver.start();
+
+		try {
+			client.keyDown(keys.get(0));
+			client.keyDown(keys.get(1));
+			assertEquals(action(keys.get(0), true), action(server.receiveMessage()));
+			assertEquals(action(keys.get(1), true), action(server.receiveMessage()));
+
+			// Connection lost: the actions are kept
+			server.close();
+			sv.close();
+			long end = System.currentTimeMillis() + 5000;
+			while(client.isConnected() && System.currentTimeMillis() < end) {
+				Thread.sleep(5);
+			}
+			assertFalse(client.isConnected());
+			client.keyUp(keys.get(0));
+			client.keyDown(keys.get(2));
+
+			// Only the keys still pressed are replayed
+			sv = new ServerSocket(PORT);
+			server = new TCPMessageProtocol(sv.accept());
+			server.sendMessage(setupMessage);
+			Set<String> replayed = new HashSet<>();
+			replayed.add(action(server.receiveMessage()));
+			replayed.add(action(server.receiveMessage()));
+			Set<String> expected = new HashSet<>();
+			expected.add(action(keys.get(1), true));
+			expected.add(action(keys.get(2), true));
+			assertEquals(expected, replayed);
+			end = System.currentTimeMillis() + 5000;
+			while(received.isEmpty() && System.currentTimeMillis() < end) {
+				Thread.sleep(5);
+			}
+			synchronized(received) {
+				assertEquals(1, received.size());
+			}
+		} finally {
+			client.close();
+			server.close();
+			sv.close();
+			receiver.join(5000);
+		}
+	}
+
+
+	private static String action(MacroKey k, boolean down) {
+		return k.getId() + (down ? "+" : "-");
+	}
+
+
+	private static String action(byte[] mess) {
+		assertEquals(KeyActionCodec.ACTION_LENGTH, mess.length);
+		return KeyActionCodec.decodeId(mess, 0) + (KeyActionCodec.decodeDown(mess, 0) ? "+" : "-");
+	}
+
+
+	/**
+	 * @return Setup with 3 keys, with the ids assigned
+	 * @throws IOException If an IO error occurs
+	 */
+	private static MacroSetup macroSetup() throws IOException {
+		MacroScreen m = new MacroScreen();
+		for(int i = 0; i < 3; i++) {
+			MacroKey k = new MacroKey();
+			k.setText("Key " + i);
+			k.setKeySeq(new LimitedKeySequence(new Integer[] {i}));
+			m.getKeys().add(k);
+		}
+		List<MacroScreen> l = new ArrayList<>();
+		l.add(m);
+		MacroSetup s = new MacroSetup(l);
+		s.saveAsByteArray();
+		return s;
+	}
+}
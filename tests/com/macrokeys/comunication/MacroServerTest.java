@@ -0,0 +1,166 @@
+package com.macrokeys.comunication;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.event.KeyEvent;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.macrokeys.LimitedKeySequence;
+import com.macrokeys.MacroKey;
+import com.macrokeys.MacroKeyType;
+import com.macrokeys.MacroScreen;
+import com.macrokeys.MacroSetup;
+import com.macrokeys.netcode.MacroNetServer;
+import com.macrokeys.netcode.TCPMessageProtocol;
+
+public class MacroServerTest {
+
+	/** Port of the {@link MacroNetServer} */
+	private static final int PORT = 10414;
+
+
+	@Test
+	public void shouldIgnoreStaleSequencedActions() throws Exception {
+		MacroSetup setup = macroSetup();
+		RecordingKeyPresser rec = new RecordingKeyPresser(16);
+		MacroNetServer s = new MacroNetServer(setup, rec);
+		s.start();
+		TCPMessageProtocol c = new TCPMessageProtocol(new Socket("localhost", PORT));
+		try {
+			assertTrue(SetupCodec.isFullSetup(c.receiveMessage()));
+			int a = setup.getMacroScreens().get(0).getKeys().get(0).getId();
+			int b = setup.getMacroScreens().get(0).getKeys().get(1).getId();
+
+			// The release of A overtaken by its newer pression is ignored
+			sendAction(c, a, true, 3);
+			sendAction(c, a, false, 2);
+			sendAction(c, b, true, 4);
+
+			long end = System.currentTimeMillis() + 5000;
+			while(rec.size() < 2 && System.currentTimeMillis() < end) {
+				Thread.sleep(5);
+			}
+			assertEquals(2, rec.size());
+			assertEquals(KeyEvent.VK_A, rec.getKeyCode(0));
+			assertTrue(rec.isPress(0));
+			assertEquals(KeyEvent.VK_B, rec.getKeyCode(1));
+			assertTrue(rec.isPress(1));
+
+			// Newer release
+			sendAction(c, a, false, 5);
+			end = System.currentTimeMillis() + 5000;
+			while(rec.size() < 3 && System.currentTimeMillis() < end) {
+				Thread.sleep(5);
+			}
+			assertEquals(3, rec.size());
+			assertEquals(KeyEvent.VK_A, rec.getKeyCode(2));
+			assertFalse(rec.isPress(2));
+		} finally {
+			c.close();
+			s.close();
+		}
+	}
+
+
+	@Test
+	public void shouldIgnoreUnknownKeyIds() throws Exception {
+		MacroSetup setup = macroSetup();
+		RecordingKeyPresser rec = new RecordingKeyPresser(16);
+		MacroNetServer s = new MacroNetServer(setup, rec);
+		s.start();
+		TCPMessageProtocol c = new TCPMessageProtocol(new Socket("localhost", PORT));
+		try {
+			assertTrue(SetupCodec.isFullSetup(c.receiveMessage()));
+			int a = setup.getMacroScreens().get(0).getKeys().get(0).getId();
+			int unknown = setup.getMacroScreens().get(0).getKeys().get(1).getId() + 100;
+			
+			byte[] mess = new byte[KeyActionCodec.ACTION_LENGTH];
+			KeyActionCodec.encode(mess, 0, unknown, true);
+			c.sendMessage(mess);
+			KeyActionCodec.encode(mess, 0, a, true);
+			c.sendMessage(mess);
+			
+			// The connection still serves the next action
+			long end = System.currentTimeMillis() + 5000;
+			while(rec.size() < 1 && System.currentTimeMillis() < end) {
+				Thread.sleep(5);
+			}
+			assertEquals(1, rec.size());
+			assertEquals(KeyEvent.VK_A, rec.getKeyCode(0));
+			assertTrue(rec.isPress(0));
+		} finally {
+			c.close();
+			s.close();
+		}
+	}
+
+
+	@Test
+	public void shouldReleaseThePressedKeysAtTheClose() throws Exception {
+		MacroSetup setup = macroSetup();
+		RecordingKeyPresser rec = new RecordingKeyPresser(16);
+		MacroNetServer s = new MacroNetServer(setup, rec);
+		s.start();
+		TCPMessageProtocol c = new TCPMessageProtocol(new Socket("localhost", PORT));
+		try {
+			assertTrue(SetupCodec.isFullSetup(c.receiveMessage()));
+			byte[] mess = new byte[KeyActionCodec.ACTION_LENGTH];
+			KeyActionCodec.encode(mess, 0, setup.getMacroScreens().get(0).getKeys().get(0).getId(), true);
+			c.sendMessage(mess);
+
+			long end = System.currentTimeMillis() + 5000;
+			while(rec.size() < 1 && System.currentTimeMillis() < end) {
+				Thread.sleep(5);
+			}
+			assertEquals(1, rec.size());
+		} finally {
+			s.close();
+			c.close();
+		}
+
+		// Released before the close returns
+		assertEquals(2, rec.size());
+		assertEquals(KeyEvent.VK_A, rec.getKeyCode(1));
+		assertFalse(rec.isPress(1));
+		assertEquals(0, s.getKeyQueueDepth());
+	}
+
+
+	/**
+	 * @return Setup with a screen of two {@link MacroKeyType#Game} keys, A and B
+	 */
+	private static MacroSetup macroSetup() {
+		MacroScreen screen = new MacroScreen();
+		for(int code : new int[] {KeyEvent.VK_A, KeyEvent.VK_B}) {
+			MacroKey k = new MacroKey();
+			k.setKeySeq(new LimitedKeySequence(new Integer[] {code}));
+			k.setType(MacroKeyType.Game);
+			screen.getKeys().add(k);
+		}
+		List<MacroScreen> l = new ArrayList<>();
+		l.add(screen);
+		return new MacroSetup(l);
+	}
+
+
+	/**
+	 * Send a {@link KeyActionCodec#TYPE_KEY_SEQUENCED} message of a single action
+	 * @param c Connection with the server
+	 * @param id Id of the key
+	 * @param down True: pressed, released otherwise
+	 * @param sequence Sequence number of the action
+	 * @throws IOException If an IO error occurs
+	 */
+	private static void sendAction(TCPMessageProtocol c, int id, boolean down, int sequence)
+			throws IOException {
+		byte[] mess = new byte[KeyActionCodec.SEQUENCED_ACTION_LENGTH];
+		KeyActionCodec.encode(mess, KeyActionCodec.batchOffset(0), id, down);
+		KeyActionCodec.encodeSequenced(mess, 1, sequence);
+		c.sendMessage(mess);
+	}
+}
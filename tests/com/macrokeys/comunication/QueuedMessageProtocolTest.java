@@ -0,0 +1,191 @@
+package com.macrokeys.comunication;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class QueuedMessageProtocolTest {
+
+	private ExecutorService writer;
+	private ScheduledExecutorService timer;
+
+
+	@BeforeEach
+	public void setUp() {
+		writer = Executors.newCachedThreadPool();
+		timer = Executors.newSingleThreadScheduledExecutor();
+	}
+
+
+	@AfterEach
+	public void tearDown() {
+		writer.shutdownNow();
+		timer.shutdownNow();
+	}
+
+
+	@Test
+	public void shouldCoalesceSupersededMessages() throws Exception {
+		BlockingProtocol inner = new BlockingProtocol();
+		QueuedMessageProtocol q = new QueuedMessageProtocol(inner, writer, timer);
+
+		// The first message blocks the writer, the others stay queued
+		q.sendMessage(new byte[] {0});
+		assertTrue(inner.writing.await(5, TimeUnit.SECONDS));
+		Outcomes outcomes = new Outcomes();
+		q.sendState(1, new byte[] {1, 1}, 2, outcomes);
+		q.sendMessage(new byte[] {2});
+		q.sendState(1, new byte[] {3, 3, 3}, 3, outcomes);
+		assertEquals(3, q.getQueuedMessages());
+		assertEquals(1 + 1 + 3, q.getQueuedBytes());
+		assertEquals(1, q.getCoalescedMessages());
+		assertTrue(outcomes.values.isEmpty());
+
+		inner.release.countDown();
+		inner.awaitWritten(3);
+		assertEquals(0, q.getQueuedBytes());
+		// The newer state takes the place of the superseded one
+		assertEquals(0, inner.written.get(0)[0]);
+		assertEquals(3, inner.written.get(1)[0]);
+		assertEquals(2, inner.written.get(2)[0]);
+		// Both the sends of the state are completed by its write
+		outcomes.await(2);
+		assertEquals(Arrays.asList(true, true), outcomes.values);
+	}
+
+
+	@Test
+	public void shouldEvictSlowClient() throws Exception {
+		BlockingProtocol inner = new BlockingProtocol();
+		QueuedMessageProtocol q = new QueuedMessageProtocol(inner, writer, timer);
+		q.setWatermarks(10, 100);
+		q.setEvictionTime(100);
+
+		q.sendMessage(new byte[50]);
+		assertTrue(inner.writing.await(5, TimeUnit.SECONDS));
+		Outcomes outcomes = new Outcomes();
+		q.sendMessage(new byte[60], 60, outcomes);
+		assertTrue(q.isCongested());
+		assertEquals(110, q.getPeakQueuedBytes());
+
+		// Still above the high watermark after the eviction time
+		assertTrue(inner.closed.await(5, TimeUnit.SECONDS));
+		assertFalse(q.isConnected());
+		assertThrows(IOException.class, () -> q.sendMessage(new byte[1]));
+		outcomes.await(1);
+		assertEquals(Arrays.asList(false), outcomes.values);
+	}
+
+
+	@Test
+	public void shouldEvictOverCapacity() throws Exception {
+		BlockingProtocol inner = new BlockingProtocol();
+		QueuedMessageProtocol q = new QueuedMessageProtocol(inner, writer, timer);
+		q.setWatermarks(10, 100);
+		q.setCapacity(200);
+
+		q.sendMessage(new byte[150]);
+		assertThrows(IOException.class, () -> q.sendMessage(new byte[60]));
+		assertEquals(0, inner.closed.getCount());
+		assertEquals(0, q.getQueuedBytes());
+	}
+
+
+
+	/** Recorder of the completions */
+	private static class Outcomes implements QueuedMessageProtocol.Completion {
+
+		final List<Boolean> values = Collections.synchronizedList(new ArrayList<Boolean>());
+
+		@Override
+		public void completed(boolean written) {
+			values.add(written);
+		}
+
+		void await(int n) throws InterruptedException {
+			long end = System.currentTimeMillis() + 5000;
+			while(values.size() < n && System.currentTimeMillis() < end) {
+				Thread.sleep(5);
+			}
+			assertEquals(n, values.size());
+		}
+	}
+
+
+
+	/** Protocol whose writes block until {@link #release} */
+	private static class BlockingProtocol implements MessageProtocol {
+
+		final CountDownLatch writing = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch closed = new CountDownLatch(1);
+		final List<byte[]> written = Collections.synchronizedList(new ArrayList<byte[]>());
+
+		void awaitWritten(int n) throws InterruptedException {
+			long end = System.currentTimeMillis() + 5000;
+			while(written.size() < n && System.currentTimeMillis() < end) {
+				Thread.sleep(5);
+			}
+			assertEquals(n, written.size());
+		}
+
+		@Override
+		public boolean isConnected() {
+			return closed.getCount() > 0;
+		}
+
+		@Override
+		public void setInputKeepAlive(int time) { }
+
+		@Override
+		public int getInputKeepAlive() {
+			return 0;
+		}
+
+		@Override
+		public void setOutputKeepAlive(int time) { }
+
+		@Override
+		public int getOutputKeepAlive() {
+			return 0;
+		}
+
+		@Override
+		public void sendMessage(byte[] payload) throws IOException {
+			writing.countDown();
+			try {
+				while(!release.await(10, TimeUnit.MILLISECONDS)) {
+					if(closed.getCount() == 0) {
+						throw new IOException("Closed");
+					}
+				}
+			} catch(InterruptedException e) {
+				throw new IOException(e);
+			}
+			written.add(payload);
+		}
+
+		@Override
+		public byte[] receiveMessage() throws IOException {
+			throw new IOException("No message");
+		}
+
+		@Override
+		public void close() {
+			closed.countDown();
+		}
+	}
+}
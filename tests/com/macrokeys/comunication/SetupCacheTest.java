@@ -0,0 +1,171 @@
+package com.macrokeys.comunication;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.macrokeys.MSLoadException;
+import com.macrokeys.MacroKey;
+import com.macrokeys.MacroScreen;
+import com.macrokeys.MacroSetup;
+
+public class SetupCacheTest {
+
+	@TempDir
+	Path dir;
+
+
+	@Test
+	public void shouldStoreLastSetupOfServer() throws IOException {
+		SetupCache c = new SetupCache(dir.toFile());
+		byte[] d1 = macroSetup(3).saveAsByteArray();
+		byte[] d2 = macroSetup(4).saveAsByteArray();
+
+		assertNull(c.lastHash("a"));
+		byte[] h1 = c.put("a", d1, SetupCodec.CAPABILITIES);
+		assertArrayEquals(h1, c.lastHash("a"));
+		assertArrayEquals(d1, c.get(h1));
+		assertEquals(SetupCodec.CAPABILITIES, c.capabilities("a"));
+
+		byte[] h2 = c.put("a", d2, 0);
+		assertArrayEquals(d2, c.get(h2));
+		assertNull(c.get(h1), "The previous setup must be removed");
+
+		// Corrupted file
+		File[] setups = dir.toFile().listFiles((f, n) -> n.endsWith(".setup"));
+		assertEquals(1, setups.length);
+		Files.write(setups[0].toPath(), d1);
+		assertNull(c.get(h2));
+
+		c.remove("a");
+		assertNull(c.lastHash("a"));
+	}
+
+
+	@Test
+	public void clientShouldSkipCachedSetup() throws IOException, MSLoadException {
+		SetupCache cache = new SetupCache(dir.toFile());
+		MacroSetup setup = macroSetup(5);
+		byte[] data = setup.saveAsByteArray();
+
+		// First connection: full setup, then the hello
+		StubClient c1 = new StubClient(cache);
+		c1.connectToServer();
+		assertTrue(c1.prot.sent.isEmpty(), "Unknown server: the client must wait the setup");
+		c1.prot.received.add(SetupCodec.encodeFullSetup(data, SetupCodec.CAPABILITIES));
+		assertEquals(setup, c1.reciveMacroSetup());
+		assertArrayEquals(SetupCodec.encodeHello(SetupCodec.CAPABILITIES, null), c1.prot.sent.get(0));
+
+		// Second connection: the hash at the connection, the setup from the cache
+		StubClient c2 = new StubClient(cache);
+		c2.connectToServer();
+		byte[] hello = c2.prot.sent.get(0);
+		assertArrayEquals(SetupCache.hash(data), SetupCodec.helloHash(hello, hello.length));
+		c2.prot.received.add(SetupCodec.encodeCached(SetupCache.hash(data)));
+		assertEquals(setup, c2.reciveMacroSetup());
+		assertEquals(1, c2.prot.sent.size());
+
+		// Setup missing from the cache: the full setup is requested
+		cache.remove(StubClient.SERVER);
+		StubClient c3 = new StubClient(new SetupCache(Files.createTempDirectory(dir, "other").toFile()));
+		c3.connectToServer();
+		c3.prot.received.add(SetupCodec.encodeCached(SetupCache.hash(data)));
+		c3.prot.received.add(SetupCodec.encodeFullSetup(data, SetupCodec.CAPABILITIES));
+		assertEquals(setup, c3.reciveMacroSetup());
+		assertArrayEquals(new byte[] {(byte) KeyActionCodec.TYPE_SETUP_RESYNC}, c3.prot.sent.get(0));
+	}
+
+
+	/**
+	 * @param n Number of keys
+	 * @return Setup with a screen of {@code n} keys
+	 */
+	private static MacroSetup macroSetup(int n) {
+		MacroScreen screen = new MacroScreen();
+		for(int i = 0; i < n; i++) {
+			screen.getKeys().add(new MacroKey());
+		}
+		List<MacroScreen> l = new ArrayList<>();
+		l.add(screen);
+		return new MacroSetup(l);
+	}
+
+
+
+	/** Client of a {@link QueueProtocol} with a cache */
+	private static class StubClient extends MacroClient {
+
+		static final String SERVER = "server";
+
+		final QueueProtocol prot = new QueueProtocol();
+
+		StubClient(SetupCache cache) {
+			setSetupCache(cache);
+		}
+
+		@Override
+		protected MessageProtocol innerConnectToServer() {
+			return prot;
+		}
+
+		@Override
+		protected String getServerId() {
+			return SERVER;
+		}
+	}
+
+
+	/** Protocol that records the sent messages and receives from a queue */
+	private static class QueueProtocol implements MessageProtocol {
+
+		final List<byte[]> sent = new ArrayList<>();
+		final LinkedList<byte[]> received = new LinkedList<>();
+
+		@Override
+		public boolean isConnected() {
+			return true;
+		}
+
+		@Override
+		public void setInputKeepAlive(int time) { }
+
+		@Override
+		public int getInputKeepAlive() {
+			return 0;
+		}
+
+		@Override
+		public void setOutputKeepAlive(int time) { }
+
+		@Override
+		public int getOutputKeepAlive() {
+			return 0;
+		}
+
+		@Override
+		public void sendMessage(byte[] payload) {
+			sent.add(Arrays.copyOf(payload, payload.length));
+		}
+
+		@Override
+		public byte[] receiveMessage() throws IOException {
+			if(received.isEmpty()) {
+				throw new IOException("No message");
+			}
+			return received.removeFirst();
+		}
+
+		@Override
+		public void close() { }
+	}
+}
@@ -0,0 +1,123 @@
+package com.macrokeys.comunication;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import org.junit.jupiter.api.Test;
+
+import com.macrokeys.LimitedKeySequence;
+import com.macrokeys.MSLoadException;
+import com.macrokeys.MacroKey;
+import com.macrokeys.MacroScreen;
+import com.macrokeys.MacroSetup;
+
+public class SetupCodecTest {
+
+	@Test
+	public void shouldRecognizeTrailer() throws IOException, MSLoadException {
+		byte[] data = macroSetup(10).saveAsByteArray();
+		byte[] mess = SetupCodec.encodeFullSetup(data, SetupCodec.CAPABILITIES);
+
+		assertTrue(SetupCodec.isFullSetup(mess));
+		assertEquals(SetupCodec.CAPABILITIES, SetupCodec.fullSetupCapabilities(mess));
+		assertEquals(-1, SetupCodec.fullSetupCapabilities(data));
+		// The clients that don't know the trailer load the setup
+		assertEquals(macroSetup(10), MacroSetup.load(new ByteArrayInputStream(mess)));
+	}
+
+
+	@Test
+	public void shouldCompressSetup() throws IOException, MSLoadException {
+		byte[] data = macroSetup(300).saveAsByteArray();
+		byte[] mess = SetupCodec.encodeDeflatedSetup(data);
+
+		assertFalse(SetupCodec.isFullSetup(mess));
+		assertEquals(SetupCodec.TYPE_SETUP_DEFLATE, mess[0]);
+		assertTrue(mess.length < data.length / 4, "Compressed " + data.length + " in " + mess.length);
+		assertArrayEquals(data, SetupCodec.decodeDeflatedSetup(mess));
+	}
+
+
+	@Test
+	public void shouldRefuseMalformedSetup() throws IOException {
+		byte[] data = macroSetup(5).saveAsByteArray();
+		byte[] mess = SetupCodec.encodeDeflatedSetup(data);
+
+		assertThrows(MSLoadException.class,
+				() -> SetupCodec.decodeDeflatedSetup(Arrays.copyOf(mess, mess.length - 10)));
+		byte[] longer = mess.clone();
+		longer[4]--;
+		assertThrows(MSLoadException.class, () -> SetupCodec.decodeDeflatedSetup(longer));
+
+		// Compressed with a different dictionary
+		Deflater d = new Deflater();
+		d.setDictionary(new byte[] {1, 2, 3});
+		d.setInput(data);
+		d.finish();
+		ByteArrayOutputStream str = new ByteArrayOutputStream();
+		str.write(Arrays.copyOf(mess, 5));
+		byte[] buf = new byte[1024];
+		while(!d.finished()) {
+			str.write(buf, 0, d.deflate(buf));
+		}
+		d.end();
+		assertThrows(MSLoadException.class, () -> SetupCodec.decodeDeflatedSetup(str.toByteArray()));
+	}
+
+
+	@Test
+	public void shouldEncodeSessions() throws MSLoadException {
+		byte[] token = new byte[SetupCodec.TOKEN_LENGTH];
+		byte[] hash = new byte[SetupCache.HASH_LENGTH];
+		Arrays.fill(token, (byte) 7);
+		Arrays.fill(hash, (byte) 9);
+
+		byte[] mess = SetupCodec.encodeSession(SetupCodec.SESSION_RESUMED, token);
+		assertEquals(SetupCodec.TYPE_SESSION, mess[0]);
+		assertEquals(SetupCodec.SESSION_RESUMED, SetupCodec.sessionFlags(mess));
+		assertArrayEquals(token, SetupCodec.sessionToken(mess));
+		assertThrows(MSLoadException.class, () -> SetupCodec.sessionFlags(Arrays.copyOf(mess, 5)));
+
+		// Every combination of hash and token is recognized by its length
+		for(byte[] h : new byte[][] {null, hash}) {
+			for(byte[] t : new byte[][] {null, token}) {
+				byte[] hello = SetupCodec.encodeHello(SetupCodec.CAPABILITIES, h, t);
+				assertEquals(SetupCodec.CAPABILITIES, SetupCodec.helloCapabilities(hello, hello.length));
+				assertArrayEquals(h, SetupCodec.helloHash(hello, hello.length));
+				assertArrayEquals(t, SetupCodec.helloToken(hello, hello.length));
+			}
+		}
+		assertThrows(IllegalArgumentException.class,
+				() -> SetupCodec.helloCapabilities(new byte[10], 10));
+	}
+
+
+	/**
+	 * @param n Number of keys
+	 * @return Setup with {@code n} keys on 4 screens, with the ids assigned
+	 * @throws IOException If an IO error occurs
+	 */
+	private static MacroSetup macroSetup(int n) throws IOException {
+		List<MacroScreen> l = new ArrayList<>();
+		for(int i = 0; i < 4; i++) {
+			l.add(new MacroScreen());
+		}
+		for(int i = 0; i < n; i++) {
+			MacroKey k = new MacroKey();
+			k.setText("Key " + i);
+			k.setKeySeq(new LimitedKeySequence(new Integer[] {i % 90, (i * 7) % 90}));
+			l.get(i % l.size()).getKeys().add(k);
+		}
+
+		MacroSetup s = new MacroSetup(l);
+		s.saveAsByteArray();
+		return s;
+	}
+}
@@ -0,0 +1,73 @@
+package com.macrokeys.netcode;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+public class HashedWheelTimerTest {
+
+	@Test
+	public void shouldExpireAfterDelay() throws InterruptedException {
+		// Small wheel: the longer delays take more rounds
+		HashedWheelTimer timer = new HashedWheelTimer(5, 8, Executors.defaultThreadFactory());
+		try {
+			final long[] delays = {0, 12, 40, 130, 300};
+			final CountDownLatch done = new CountDownLatch(delays.length);
+			final AtomicLong late = new AtomicLong(0);
+			final long start = System.nanoTime();
+			for(final long d : delays) {
+				timer.schedule(new Runnable() {
+					@Override
+					public void run() {
+						long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+						if(elapsed < d) {
+							late.set(-1);
+						} else {
+							late.accumulateAndGet(elapsed - d, Math::max);
+						}
+						done.countDown();
+					}
+				}, d, TimeUnit.MILLISECONDS);
+			}
+
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+			assertTrue(late.get() >= 0, "Executed before the delay");
+			assertTrue(late.get() < 200, "Late " + late.get() + " ms");
+		} finally {
+			timer.stop();
+		}
+	}
+
+
+	@Test
+	public void shouldNotExecuteCancelled() throws InterruptedException {
+		HashedWheelTimer timer = new HashedWheelTimer(5, 8, Executors.defaultThreadFactory());
+		try {
+			final CountDownLatch executed = new CountDownLatch(1);
+			Runnable task = new Runnable() {
+				@Override
+				public void run() {
+					executed.countDown();
+				}
+			};
+			HashedWheelTimer.Timeout t = timer.schedule(task, 50, TimeUnit.MILLISECONDS);
+			assertTrue(t.cancel());
+			assertFalse(t.cancel());
+
+			HashedWheelTimer.Timeout t2 = timer.schedule(new Runnable() {
+				@Override
+				public void run() { }
+			}, 100, TimeUnit.MILLISECONDS);
+			assertFalse(executed.await(300, TimeUnit.MILLISECONDS));
+			assertTrue(t2.isExpired());
+			assertFalse(t2.cancel());
+		} finally {
+			timer.stop();
+		}
+	}
+}
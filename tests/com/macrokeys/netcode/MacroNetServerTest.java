@@ -0,0 +1,60 @@
+package com.macrokeys.netcode;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.awt.event.KeyEvent;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.macrokeys.LimitedKeySequence;
+import com.macrokeys.MacroKey;
+import com.macrokeys.MacroKeyType;
+import com.macrokeys.MacroScreen;
+import com.macrokeys.MacroSetup;
+import com.macrokeys.comunication.RecordingKeyPresser;
+
+public class MacroNetServerTest {
+
+	@Test
+	public void shouldPressTheKeysWithoutDisplay() throws Exception {
+		MacroScreen screen = new MacroScreen();
+		MacroKey k = new MacroKey();
+		k.setKeySeq(new LimitedKeySequence(new Integer[] {KeyEvent.VK_CONTROL, KeyEvent.VK_V}));
+		k.setType(MacroKeyType.Game);
+		screen.getKeys().add(k);
+		List<MacroScreen> l = new ArrayList<>();
+		l.add(screen);
+
+		RecordingKeyPresser rec = new RecordingKeyPresser(16);
+		MacroNetServer s = new MacroNetServer(new MacroSetup(l), rec);
+		s.start();
+		MacroNetClient c = new MacroNetClient("localhost");
+		try {
+			c.connectToServer();
+			MacroKey key = c.reciveMacroSetup().getMacroScreens().get(0).getKeys().get(0);
+			long start = System.nanoTime();
+			c.keyDown(key);
+			c.keyUp(key);
+
+			long end = System.currentTimeMillis() + 5000;
+			while(rec.size() < 4 && System.currentTimeMillis() < end) {
+				Thread.sleep(5);
+			}
+			assertEquals(4, rec.size());
+			assertEquals(KeyEvent.VK_CONTROL, rec.getKeyCode(0));
+			assertEquals(KeyEvent.VK_V, rec.getKeyCode(1));
+			assertTrue(rec.isPress(1));
+			assertFalse(rec.isPress(2));
+			// Released in reverse order
+			assertEquals(KeyEvent.VK_V, rec.getKeyCode(2));
+			assertEquals(KeyEvent.VK_CONTROL, rec.getKeyCode(3));
+			assertTrue(rec.getTime(0) >= start);
+			assertEquals(0, s.getKeyQueueDepth());
+		} finally {
+			c.close();
+			s.close();
+		}
+	}
+}
@@ -0,0 +1,245 @@
+package com.macrokeys.netcode;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+public class SelectorServerTest {
+
+	private static final int PORT = 25348;
+
+	/** Port of {@link #sendShouldNotAllocateTheFrames()}: the channel of the previous test can be still bound */
+	private static final int ALLOCATION_PORT = 25352;
+
+	private static final int ITERATIONS = 20000;
+
+	private static final com.sun.management.ThreadMXBean THREAD_BEAN =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	@Test
+	public void testMessages() throws IOException, InterruptedException {
+		RecordingHandler h = new RecordingHandler();
+		ServerSocketChannel ch = ServerSocketChannel.open();
+		ch.bind(new InetSocketAddress(PORT));
+		SelectorServer sv = new SelectorServer(ch, 2, h);
+		sv.start();
+
+		try {
+			TCPMessageProtocol c1 = new TCPMessageProtocol(new Socket("localhost", PORT));
+			TCPMessageProtocol c2 = new TCPMessageProtocol(new Socket("localhost", PORT));
+			NioConnection n1 = h.connections.poll(5, TimeUnit.SECONDS);
+			NioConnection n2 = h.connections.poll(5, TimeUnit.SECONDS);
+			assertNotNull(n1);
+			assertNotNull(n2);
+
+			final byte[] msg1 = {1, 2, 3, 4, 5};
+			final byte[] msg2 = new byte[100000];
+			Arrays.fill(msg2, (byte) 7);
+
+			c1.sendMessage(msg1);
+			c2.sendMessage(msg2);
+			c1.sendMessage(new byte[0]);
+
+			// The two clients are served by different loops: the order is not defined
+			int[] lengths = new int[3];
+			for(int i = 0; i < lengths.length; i++) {
+				byte[] r = h.messages.poll(5, TimeUnit.SECONDS);
+				assertNotNull(r);
+				lengths[i] = r.length;
+			}
+			Arrays.sort(lengths);
+			assertArrayEquals(new int[] {0, msg1.length, msg2.length}, lengths);
+
+			n1.sendMessage(msg2);
+			n2.sendMessage(msg1);
+			assertTrue(Arrays.equals(msg2, c1.receiveMessage()), "Messages must be equal");
+			assertTrue(Arrays.equals(msg1, c2.receiveMessage()), "Messages must be equal");
+
+			c1.close();
+			String id = h.disconnected.poll(5, TimeUnit.SECONDS);
+			assertEquals("127.0.0.1", id);
+			assertFalse(n1.isConnected());
+			assertTrue(n2.isConnected());
+		} finally {
+			sv.close();
+		}
+	}
+
+
+	@Test
+	public void testKeepAlive() throws IOException, InterruptedException {
+		RecordingHandler h = new RecordingHandler();
+		ServerSocketChannel ch = ServerSocketChannel.open();
+		ch.bind(new InetSocketAddress(PORT));
+		SelectorServer sv = new SelectorServer(ch, 1, h);
+		sv.start();
+
+		try {
+			TCPMessageProtocol c = new TCPMessageProtocol(new Socket("localhost", PORT));
+			NioConnection n = h.connections.poll(5, TimeUnit.SECONDS);
+			assertNotNull(n);
+
+			n.setInputKeepAlive(400);
+			n.setOutputKeepAlive(400);
+			c.setInputKeepAlive(400);
+			c.setOutputKeepAlive(400);
+
+			Thread.sleep(1500);
+			assertTrue(n.isConnected(), "Keep alive must prevent the timeout");
+
+			c.setInputKeepAlive(0);
+			assertNotNull(h.disconnected.poll(5, TimeUnit.SECONDS), "Timeout must close the connection");
+			c.close();
+		} finally {
+			sv.close();
+		}
+	}
+
+
+	@Test
+	public void testReceiveMessage() throws IOException, InterruptedException {
+		RecordingHandler h = new RecordingHandler();
+		ServerSocketChannel ch = ServerSocketChannel.open();
+		ch.bind(new InetSocketAddress(PORT));
+		SelectorServer sv = new SelectorServer(ch, 1, h);
+		sv.start();
+
+		try {
+			TCPMessageProtocol c = new TCPMessageProtocol(new Socket("localhost", PORT));
+			NioConnection n = h.connections.poll(5, TimeUnit.SECONDS);
+			assertNotNull(n);
+
+			final byte[] msg1 = {1, 2, 3};
+			final byte[] msg2 = new byte[100000];
+			Arrays.fill(msg2, (byte) 7);
+
+			c.sendMessage(msg1);
+			byte[] r = h.messages.poll(5, TimeUnit.SECONDS);
+			assertArrayEquals(msg1, r);
+
+			c.sendMessage(msg2);
+			c.sendMessage(msg1);
+			// The message may be notified before the first read
+			byte[] first = n.receiveMessage();
+			if(first.length != msg2.length) {
+				assertArrayEquals(msg2, h.messages.poll(5, TimeUnit.SECONDS));
+			} else {
+				assertArrayEquals(msg2, first);
+				first = n.receiveMessage();
+			}
+			assertArrayEquals(msg1, first);
+
+			c.sendMessage(msg2);
+			assertArrayEquals(msg2, n.receiveMessage());
+			assertTrue(h.messages.isEmpty(), "Messages must be queued after the first read");
+
+			c.close();
+			assertThrows(IOException.class, () -> n.receiveMessage());
+			assertThrows(IOException.class, () -> n.receiveMessage());
+		} finally {
+			sv.close();
+		}
+	}
+
+
+	@Test
+	public void sendShouldNotAllocateTheFrames() throws IOException, InterruptedException {
+		RecordingHandler h = new RecordingHandler();
+		ServerSocketChannel ch = ServerSocketChannel.open();
+		ch.bind(new InetSocketAddress(ALLOCATION_PORT));
+		SelectorServer sv = new SelectorServer(ch, 1, h);
+		sv.start();
+
+		try {
+			final TCPMessageProtocol c = new TCPMessageProtocol(new Socket("localhost", ALLOCATION_PORT));
+			NioConnection n = h.connections.poll(5, TimeUnit.SECONDS);
+			assertNotNull(n);
+
+			final AtomicInteger received = new AtomicInteger();
+			Thread reader = new Thread(() -> {
+				try {
+					for(int i = 0; i < ITERATIONS * 2; i++) {
+						c.receiveMessage();
+						received.incrementAndGet();
+					}
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+			});
+			reader.start();
+
+			// At most BACKLOG messages not yet received: the write buffer stops growing
+			final int BACKLOG = 100;
+			final byte[] msg = new byte[1000];
+			for(int i = 0; i < ITERATIONS; i++) {
+				while(i - received.get() > BACKLOG) {
+					Thread.yield();
+				}
+				n.sendMessage(msg);
+			}
+
+			long start = allocatedBytes();
+			for(int i = ITERATIONS; i < ITERATIONS * 2; i++) {
+				while(i - received.get() > BACKLOG) {
+					Thread.yield();
+				}
+				n.sendMessage(msg);
+			}
+			long allocated = allocatedBytes() - start;
+
+			reader.join(10000);
+			assertEquals(ITERATIONS * 2, received.get());
+			// A frame allocated for every message would take ITERATIONS * msg.length bytes
+			assertTrue(allocated < ITERATIONS * msg.length / 10, "Allocated " + allocated + " bytes");
+			c.close();
+		} finally {
+			sv.close();
+		}
+	}
+
+
+	/**
+	 * @return Bytes allocated by the current thread
+	 */
+	@SuppressWarnings("deprecation")
+	private static long allocatedBytes() {
+		return THREAD_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+
+	/** Handler that records the events */
+	private static class RecordingHandler implements SelectorServer.Handler {
+
+		final BlockingQueue<NioConnection> connections = new LinkedBlockingQueue<>();
+		final BlockingQueue<byte[]> messages = new LinkedBlockingQueue<>();
+		final BlockingQueue<String> disconnected = new LinkedBlockingQueue<>();
+
+		@Override
+		public String connected(NioConnection c) {
+			connections.add(c);
+			return c.toString();
+		}
+
+		@Override
+		public void message(String clientId, byte[] mess, int length) {
+			// The array is reused by the connection
+			messages.add(Arrays.copyOf(mess, length));
+		}
+
+		@Override
+		public void disconnected(String clientId, NioConnection c) {
+			disconnected.add(clientId);
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package com.macrokeys.netcode;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.List;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.Test;
+
+import com.macrokeys.netcode.MacroNetClient.SSDPServerInfo;
+
+public class ServerDirectoryTest {
+
+	@Test
+	public void shouldEvictServersWithoutBeacons() throws Exception {
+		DatagramChannel ch = DatagramChannel.open();
+		ch.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		SocketAddress target = ch.getLocalAddress();
+
+		try(ServerDirectory d = ServerDirectory.open(ch, 300, Executors.defaultThreadFactory());
+				DatagramSocket a = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+				DatagramSocket b = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+			beacon(a, target, "A");
+			beacon(b, target, "B");
+			// Not a beacon
+			a.send(new DatagramPacket(new byte[] {1, 2}, 2, target));
+			assertTrue(waitServers(d, 2, 5000));
+
+			// Only the server A is still alive
+			long end = System.currentTimeMillis() + 600;
+			while(System.currentTimeMillis() < end) {
+				beacon(a, target, "A");
+				Thread.sleep(50);
+			}
+			List<SSDPServerInfo> l = d.getServers();
+			assertEquals(1, l.size());
+			assertEquals(a.getLocalSocketAddress(), l.get(0).address);
+		}
+	}
+
+
+	/**
+	 * @return True if the directory has {@code n} servers before the timeout
+	 */
+	private static boolean waitServers(ServerDirectory d, int n, long timeout) throws InterruptedException {
+		long end = System.currentTimeMillis() + timeout;
+		while(d.getServers().size() != n) {
+			if(System.currentTimeMillis() > end) {
+				return false;
+			}
+			Thread.sleep(5);
+		}
+		return true;
+	}
+
+
+	/**
+	 * Send the beacon of a server with the given name
+	 */
+	private static void beacon(DatagramSocket s, SocketAddress target, String name) throws Exception {
+		byte[] b = new byte[NetStatic.SSDP_SERVER_KEY.length + NetStatic.SSDP_NAME_LENGTH];
+		System.arraycopy(NetStatic.SSDP_SERVER_KEY, 0, b, 0, NetStatic.SSDP_SERVER_KEY.length);
+		byte[] n = name.getBytes(MacroNetServer.CHARSET_CLIENT);
+		System.arraycopy(n, 0, b, NetStatic.SSDP_SERVER_KEY.length, n.length);
+		s.send(new DatagramPacket(b, b.length, target));
+	}
+}
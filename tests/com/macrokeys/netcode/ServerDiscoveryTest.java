@@ -0,0 +1,121 @@
+package com.macrokeys.netcode;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import com.macrokeys.netcode.MacroNetClient.SSDPServerInfo;
+
+public class ServerDiscoveryTest {
+
+	private static final int PORT = 25364;
+
+
+	@Test
+	public void shouldNotifyBeforeTimeout() throws Exception {
+		try(DatagramSocket server = new DatagramSocket(PORT, InetAddress.getLoopbackAddress())) {
+			final AtomicInteger found = new AtomicInteger(0);
+			final CountDownLatch first = new CountDownLatch(1);
+			final CountDownLatch ended = new CountDownLatch(1);
+			long start = System.nanoTime();
+			ServerDiscovery d = ServerDiscovery.start(
+					new InetSocketAddress(InetAddress.getLoopbackAddress(), PORT), 10000,
+					new ServerDiscovery.Listener() {
+						@Override
+						public void serverFound(SSDPServerInfo s) {
+							found.incrementAndGet();
+							first.countDown();
+						}
+
+						@Override
+						public void discoveryEnded() {
+							ended.countDown();
+						}
+					}, Executors.defaultThreadFactory());
+
+			// The server answers twice
+			byte[] request = new byte[NetStatic.SSDP_CLIENT_KEY.length];
+			DatagramPacket p = new DatagramPacket(request, request.length);
+			server.receive(p);
+			byte[] answer = new byte[NetStatic.SSDP_SERVER_KEY.length + NetStatic.SSDP_NAME_LENGTH];
+			System.arraycopy(NetStatic.SSDP_SERVER_KEY, 0, answer, 0, NetStatic.SSDP_SERVER_KEY.length);
+			answer[NetStatic.SSDP_SERVER_KEY.length] = 'A';
+			server.send(new DatagramPacket(answer, answer.length, p.getSocketAddress()));
+			server.send(new DatagramPacket(answer, answer.length, p.getSocketAddress()));
+			// Not an answer
+			server.send(new DatagramPacket(new byte[] {1, 2}, 2, p.getSocketAddress()));
+
+			assertTrue(first.await(5, TimeUnit.SECONDS));
+			assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+			Thread.sleep(100);
+			assertFalse(d.isDone());
+
+			d.cancel();
+			assertTrue(ended.await(5, TimeUnit.SECONDS));
+			assertTrue(d.isDone());
+			assertTrue(d.isCancelled());
+			assertEquals(1, found.get());
+		}
+	}
+
+
+	@Test
+	public void shouldMergeInterfaces() throws Exception {
+		// Two interfaces with a server, one without
+		try(DatagramSocket a = new DatagramSocket(PORT, InetAddress.getLoopbackAddress());
+				DatagramSocket b = new DatagramSocket(PORT + 1, InetAddress.getLoopbackAddress());
+				DatagramSocket none = new DatagramSocket(PORT + 2, InetAddress.getLoopbackAddress())) {
+			List<ServerDiscovery.Probe> probes = new ArrayList<>();
+			for(int i = 0; i < 3; i++) {
+				probes.add(new ServerDiscovery.Probe(DatagramChannel.open(),
+						Collections.<SocketAddress>singletonList(
+								new InetSocketAddress(InetAddress.getLoopbackAddress(), PORT + i))));
+			}
+			final List<SSDPServerInfo> found = Collections.synchronizedList(new ArrayList<SSDPServerInfo>());
+			ServerDiscovery d = ServerDiscovery.start(probes, 300, new ServerDiscovery.Listener() {
+				@Override
+				public void serverFound(SSDPServerInfo s) {
+					found.add(s);
+				}
+
+				@Override
+				public void discoveryEnded() { }
+			}, Executors.defaultThreadFactory());
+
+			answer(a);
+			answer(b);
+			d.await();
+			assertFalse(d.isCancelled());
+			assertEquals(2, found.size());
+			assertNotEquals(found.get(0).address, found.get(1).address);
+		}
+	}
+
+
+	/**
+	 * Answer the request received by the socket
+	 */
+	private static void answer(DatagramSocket server) throws IOException {
+		byte[] request = new byte[NetStatic.SSDP_CLIENT_KEY.length];
+		DatagramPacket p = new DatagramPacket(request, request.length);
+		server.receive(p);
+		byte[] answer = new byte[NetStatic.SSDP_SERVER_KEY.length + NetStatic.SSDP_NAME_LENGTH];
+		System.arraycopy(NetStatic.SSDP_SERVER_KEY, 0, answer, 0, NetStatic.SSDP_SERVER_KEY.length);
+		server.send(new DatagramPacket(answer, answer.length, p.getSocketAddress()));
+	}
+}
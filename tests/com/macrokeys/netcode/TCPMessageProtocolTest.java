@@ -10,6 +10,9 @@ import java.util.Arrays;
 
 import org.junit.jupiter.api.Test;
 
+import com.macrokeys.comunication.BufferPool;
+import com.macrokeys.comunication.MessageLease;
+
 import com.macrokeys.netcode.TCPMessageProtocol;
 
 public class TCPMessageProtocolTest {
@@ -46,6 +49,121 @@ public class TCPMessageProtocolTest {
 		}
 	}
 	
+	@Test
+	public void testLargeMessages() {
+		ServerSocket sv = null;
+		
+		try {
+			sv = new ServerSocket(PORT);
+			Socket client = new Socket("localhost", PORT);
+			Socket server = sv.accept();
+			
+			final TCPMessageProtocol msgServer = new TCPMessageProtocol(server);
+			TCPMessageProtocol msgClient = new TCPMessageProtocol(client);
+			
+			final byte[] msg1 = new byte[8192 - 5];
+			final byte[] msg2 = new byte[100000];
+			for(int i = 0; i < msg2.length; i++) {
+				msg2[i] = (byte) i;
+			}
+			
+			Thread th = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						msgServer.sendMessage(msg1);
+						msgServer.sendMessage(msg2);
+						msgServer.sendMessage(msg1);
+					} catch(IOException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+			th.start();
+			
+			assertTrue(Arrays.equals(msg1, msgClient.receiveMessage()), "Messages must be equal");
+			assertTrue(Arrays.equals(msg2, msgClient.receiveMessage()), "Messages must be equal");
+			assertTrue(Arrays.equals(msg1, msgClient.receiveMessage()), "Messages must be equal");
+			th.join();
+		} catch(IOException e) {
+			fail("IOException");
+		} catch(InterruptedException e) {
+			fail("Should not be interrupted");
+		} finally {
+			if(sv != null) {
+				try {
+					sv.close();
+				} catch(IOException e) {
+					
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void testFlushOnIdle() {
+		final int SENDERS = 4;
+		final int NUM_IT = 500;
+		ServerSocket sv = null;
+		
+		try {
+			sv = new ServerSocket(PORT);
+			Socket client = new Socket("localhost", PORT);
+			Socket server = sv.accept();
+			
+			final TCPMessageProtocol msgServer = new TCPMessageProtocol(server);
+			TCPMessageProtocol msgClient = new TCPMessageProtocol(client);
+			msgServer.setFlushOnIdle(true);
+			msgServer.setInputKeepAlive(100);
+			
+			Thread[] senders = new Thread[SENDERS];
+			for(int i = 0; i < SENDERS; i++) {
+				final byte id = (byte) i;
+				senders[i] = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							for(int j = 0; j < NUM_IT; j++) {
+								// Some messages longer than the frame buffer
+								byte[] m = new byte[j % 100 == 0 ? 10000 : 2];
+								m[0] = id;
+								m[1] = (byte) j;
+								msgServer.sendMessage(m);
+							}
+						} catch(IOException e) {
+							e.printStackTrace();
+						}
+					}
+				});
+				senders[i].start();
+			}
+			
+			int[] next = new int[SENDERS];
+			for(int i = 0; i < SENDERS * NUM_IT; i++) {
+				byte[] m = msgClient.receiveMessage();
+				int id = m[0];
+				assertEquals((byte) next[id], m[1], "Messages of a sender must be in order");
+				assertEquals(next[id] % 100 == 0 ? 10000 : 2, m.length);
+				next[id]++;
+			}
+			for(Thread t : senders) {
+				t.join();
+			}
+		} catch(IOException e) {
+			fail("IOException");
+		} catch(InterruptedException e) {
+			fail("Should not be interrupted");
+		} finally {
+			if(sv != null) {
+				try {
+					sv.close();
+				} catch(IOException e) {
+					
+				}
+			}
+		}
+	}
+	
 	@Test
 	public void testTriggerTimeout() {
 		ServerSocket sv = null;
@@ -157,21 +275,21 @@ public class TCPMessageProtocolTest {
 	}
 	
 	@Test
-	public void testComunication() {
+	public void testComunication() throws IOException {
 		
 		final byte[] MESS1 = new byte[] { 100, 101, 102, 103, 104 };
 		final byte[] MESS2 = new byte[] { 1, 2, 3, 4, 5 };
 		final int NUM_IT = 10;
 		final int TIMEOUT = 100;
 		
+		// Bound before the start of the client
+		final ServerSocket sv = new ServerSocket(PORT);
+		
 		Thread thServer = new Thread(new Runnable() {
 			
-			ServerSocket sv = null;
-			
 			@Override
 			public void run() {
 				try {
-					sv = new ServerSocket(PORT);
 					Socket client = sv.accept();
 					TCPMessageProtocol msgServer = new TCPMessageProtocol(client);
 					msgServer.setInputKeepAlive(TIMEOUT);
@@ -252,6 +370,141 @@ public class TCPMessageProtocolTest {
 	}
 	
 	
+	@Test
+	public void testPooledReceive() throws IOException {
+		try(ServerSocket sv = new ServerSocket(PORT)) {
+			Socket client = new Socket("localhost", PORT);
+			Socket server = sv.accept();
+			
+			TCPMessageProtocol msgServer = new TCPMessageProtocol(server);
+			TCPMessageProtocol msgClient = new TCPMessageProtocol(client);
+			
+			// Direct buffers are filled in chunks
+			for(boolean direct : new boolean[] {false, true}) {
+				BufferPool pool = new BufferPool(20000, 1, direct);
+				byte[] msg = new byte[12345];
+				msg[0] = 1;
+				msg[msg.length - 1] = 2;
+				msgClient.sendMessage(msg);
+				
+				MessageLease l = msgServer.receiveMessage(pool);
+				byte[] r = new byte[l.getLength()];
+				l.getBuffer().get(r);
+				assertArrayEquals(msg, r);
+				l.close();
+				assertEquals(1, pool.getPooled());
+				
+				// Steady reception: the same buffer
+				msgClient.sendMessage(new byte[] {5});
+				MessageLease l2 = msgServer.receiveMessage(pool);
+				assertSame(l, l2);
+				assertEquals(1, l2.getLength());
+				l2.close();
+				assertThrows(IllegalStateException.class, () -> l2.getBuffer());
+			}
+			
+			// Longer than the buffers: refused before reading it
+			msgClient.sendMessage(new byte[100]);
+			assertThrows(IOException.class, () -> msgServer.receiveMessage(new BufferPool(99, 1, false)));
+			
+			msgServer.setMaxMessageLength(10);
+			msgServer.sendMessage(new byte[11]);
+			msgClient.setMaxMessageLength(10);
+			assertThrows(IOException.class, () -> msgClient.receiveMessage());
+		}
+	}
+
+
+	@Test
+	public void testPriorityLanes() throws Exception {
+		try(ServerSocket sv = new ServerSocket(PORT)) {
+			Socket client = new Socket("localhost", PORT);
+			Socket server = sv.accept();
+
+			final TCPMessageProtocol msgServer = new TCPMessageProtocol(server);
+			TCPMessageProtocol msgClient = new TCPMessageProtocol(client);
+			msgServer.setFragmentation(true);
+
+			// Larger than the buffers of the sockets: the sender blocks in the write
+			final byte[] large = new byte[16 * 1024 * 1024];
+			for(int i = 0; i < large.length; i++) {
+				large[i] = (byte) i;
+			}
+			Thread th = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						msgServer.sendMessage(large);
+					} catch(IOException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+			th.start();
+			Thread.sleep(200);
+
+			final byte[] small = {1, 2, 3};
+			msgServer.sendState(1, small, small.length);
+
+			assertArrayEquals(small, msgClient.receiveMessage());
+			assertArrayEquals(large, msgClient.receiveMessage());
+			th.join();
+		}
+	}
+
+
+	@Test
+	public void testBoundedQueue() throws Exception {
+		try(ServerSocket sv = new ServerSocket(PORT)) {
+			Socket client = new Socket("localhost", PORT);
+			Socket server = sv.accept();
+
+			final TCPMessageProtocol msgServer = new TCPMessageProtocol(server);
+			TCPMessageProtocol msgClient = new TCPMessageProtocol(client);
+
+			// Larger than the buffers of the sockets: the owner of the socket blocks in the write
+			final byte[] large = new byte[16 * 1024 * 1024];
+			Thread owner = new Thread(() -> {
+				try {
+					msgServer.sendMessage(large);
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+			});
+			owner.start();
+			Thread.sleep(200);
+
+			// Four times the bound of the queues
+			final int count = 4 * TCPMessageProtocol.MAX_QUEUED_BYTES / 1000;
+			Thread sender = new Thread(() -> {
+				byte[] mess = new byte[1000];
+				try {
+					for(int i = 0; i < count; i++) {
+						mess[0] = (byte) i;
+						msgServer.sendMessage(mess);
+					}
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+			});
+			sender.start();
+			Thread.sleep(500);
+
+			assertTrue(sender.isAlive(), "The sender must wait the socket");
+			assertTrue(msgServer.getQueuedBytes() <= TCPMessageProtocol.MAX_QUEUED_BYTES + 1005,
+					"Queued " + msgServer.getQueuedBytes() + " bytes");
+
+			assertEquals(large.length, msgClient.receiveMessage().length);
+			for(int i = 0; i < count; i++) {
+				assertEquals((byte) i, msgClient.receiveMessage()[0]);
+			}
+			owner.join();
+			sender.join();
+			assertEquals(0, msgServer.getQueuedBytes());
+		}
+	}
+
+	
 	
 	
 	
@@ -0,0 +1,326 @@
+package com.macrokeys.netcode;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class UDPMessageProtocolTest {
+
+	private static final int PORT = 25350;
+
+	private static final int RELAY_PORT = 25351;
+
+	@Test
+	public void testMessages() throws IOException, InterruptedException {
+		RecordingHandler h = new RecordingHandler();
+		UDPEndpoint sv = startServer(h);
+
+		try {
+			UDPMessageProtocol c = UDPMessageProtocol.connect(new InetSocketAddress("localhost", PORT),
+					2000, Executors.defaultThreadFactory());
+			UDPMessageProtocol s = h.connections.poll(5, TimeUnit.SECONDS);
+			assertNotNull(s);
+			assertTrue(c.isConnected());
+			assertEquals("127.0.0.1", s.toString());
+
+			final byte[] msg1 = {1, 2, 3, 4, 5};
+			final byte[] msg2 = new byte[100000];
+			Arrays.fill(msg2, (byte) 7);
+
+			s.sendMessage(msg2);
+			s.sendMessage(new byte[0]);
+			s.sendMessage(msg1);
+			assertArrayEquals(msg2, c.receiveMessage());
+			assertArrayEquals(new byte[0], c.receiveMessage());
+			assertArrayEquals(msg1, c.receiveMessage());
+
+			c.sendState(3, msg1, msg1.length);
+			c.sendMessage(msg1, 2);
+			assertNotNull(h.messages.poll(5, TimeUnit.SECONDS));
+			assertNotNull(h.messages.poll(5, TimeUnit.SECONDS));
+
+			c.close();
+			assertNotNull(h.closed.poll(5, TimeUnit.SECONDS), "Close must be notified");
+			assertFalse(s.isConnected());
+		} finally {
+			sv.close();
+		}
+	}
+
+
+	@Test
+	public void shouldCloseOnTooLongMessage() throws IOException, InterruptedException {
+		RecordingHandler h = new RecordingHandler();
+		UDPEndpoint sv = startServer(h);
+
+		try {
+			UDPMessageProtocol c = UDPMessageProtocol.connect(new InetSocketAddress("localhost", PORT),
+					2000, Executors.defaultThreadFactory());
+			UDPMessageProtocol s = h.connections.poll(5, TimeUnit.SECONDS);
+			assertNotNull(s);
+			c.setMaxMessageLength(3000);
+
+			s.sendMessage(new byte[3000]);
+			assertEquals(3000, c.receiveMessage().length);
+			s.sendMessage(new byte[3001]);
+			assertThrows(IOException.class, () -> c.receiveMessage());
+			assertFalse(c.isConnected());
+			assertNotNull(h.closed.poll(5, TimeUnit.SECONDS), "Close must be notified");
+		} finally {
+			sv.close();
+		}
+	}
+
+
+	@Test
+	public void testLossyLink() throws IOException, InterruptedException {
+		RecordingHandler h = new RecordingHandler();
+		UDPEndpoint sv = startServer(h);
+		LossyRelay relay = new LossyRelay(RELAY_PORT, new InetSocketAddress("localhost", PORT), 0.3);
+		relay.start();
+
+		try {
+			UDPMessageProtocol c = UDPMessageProtocol.connect(new InetSocketAddress("localhost", RELAY_PORT),
+					5000, Executors.defaultThreadFactory());
+			UDPMessageProtocol s = h.connections.poll(5, TimeUnit.SECONDS);
+			assertNotNull(s);
+
+			byte[] big = new byte[50000];
+			new Random(1).nextBytes(big);
+			s.sendMessage(big);
+			for(int i = 0; i < 20; i++) {
+				s.sendMessage(new byte[] {(byte) i});
+			}
+			assertArrayEquals(big, c.receiveMessage());
+			for(int i = 0; i < 20; i++) {
+				assertArrayEquals(new byte[] {(byte) i}, c.receiveMessage(), "Messages must be in order");
+			}
+
+			// Only the last state of each key must survive
+			final int keys = 8;
+			for(int i = 0; i < 200; i++) {
+				c.sendState(i % keys, new byte[] {(byte) i}, 1);
+			}
+			Map<Integer, Byte> last = new HashMap<>();
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+			while(last.size() < keys || !lastStates(last, keys)) {
+				byte[] m = h.messages.poll(Math.max(1, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+				assertNotNull(m, "Last states not delivered: " + last);
+				int v = m[0] & 0xFF;
+				Byte prev = last.put(v % keys, m[0]);
+				assertTrue(prev == null || (prev & 0xFF) < v, "Older state delivered after a newer one");
+			}
+
+			c.close();
+		} finally {
+			relay.close();
+			sv.close();
+		}
+	}
+
+
+	@Test
+	public void shouldDropStateOvertakenByNewerOne() throws IOException, InterruptedException {
+		RecordingHandler h = new RecordingHandler();
+		UDPEndpoint sv = startServer(h);
+		LossyRelay relay = new LossyRelay(RELAY_PORT, new InetSocketAddress("localhost", PORT), 0);
+		relay.start();
+
+		try {
+			UDPMessageProtocol c = UDPMessageProtocol.connect(new InetSocketAddress("localhost", RELAY_PORT),
+					5000, Executors.defaultThreadFactory());
+			assertNotNull(h.connections.poll(5, TimeUnit.SECONDS));
+
+			// The press is lost: its retransmissions too
+			relay.holdState = true;
+			c.sendState(5, new byte[] {1}, 1);
+			long end = System.currentTimeMillis() + 5000;
+			while(relay.held == null && System.currentTimeMillis() < end) {
+				Thread.sleep(1);
+			}
+			assertNotNull(relay.held, "State not sent");
+
+			// The release overtakes it and supersedes it
+			c.sendState(5, new byte[] {0}, 1);
+			assertArrayEquals(new byte[] {0}, h.messages.poll(5, TimeUnit.SECONDS));
+
+			// The press arrives late
+			relay.sendHeld();
+			assertNull(h.messages.poll(UDPMessageProtocol.RETRANSMIT_TIME * 5, TimeUnit.MILLISECONDS),
+					"Older state delivered after a newer one");
+			assertEquals(0, relay.heldRetransmissions, "Superseded state retransmitted");
+
+			c.close();
+		} finally {
+			relay.close();
+			sv.close();
+		}
+	}
+
+
+	/**
+	 * @param last Last state received for every key
+	 * @param keys Number of keys
+	 * @return True if every key has its last state
+	 */
+	private static boolean lastStates(Map<Integer, Byte> last, int keys) {
+		for(int k = 0; k < keys; k++) {
+			Byte b = last.get(k);
+			if(b == null || (b & 0xFF) != 200 - keys + k) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+	/**
+	 * @param h Handler of the server
+	 * @return Endpoint of the server, started
+	 * @throws IOException If an IO error occurs
+	 */
+	private static UDPEndpoint startServer(RecordingHandler h) throws IOException {
+		DatagramChannel ch = DatagramChannel.open();
+		ch.bind(new InetSocketAddress(PORT));
+		UDPEndpoint sv = new UDPEndpoint(ch, h);
+		new Thread(sv).start();
+		return sv;
+	}
+
+
+	/** Handler that records the events */
+	private static class RecordingHandler implements UDPEndpoint.Handler {
+
+		final BlockingQueue<UDPMessageProtocol> connections = new LinkedBlockingQueue<>();
+		final BlockingQueue<byte[]> messages = new LinkedBlockingQueue<>();
+		final BlockingQueue<UDPMessageProtocol> closed = new LinkedBlockingQueue<>();
+
+		@Override
+		public void foreign(ByteBuffer datagram, SocketAddress sender) { }
+
+		@Override
+		public UDPMessageProtocol.Listener accepted(final UDPMessageProtocol c) {
+			connections.add(c);
+			return new UDPMessageProtocol.Listener() {
+				@Override
+				public void message(byte[] mess) {
+					messages.add(mess);
+				}
+
+				@Override
+				public void closed() {
+					closed.add(c);
+				}
+			};
+		}
+	}
+
+
+	/** Relay of the datagrams of a single client that drops some of them */
+	private static class LossyRelay extends Thread {
+
+		private final DatagramChannel channel;
+		private final InetSocketAddress server;
+		private final double loss;
+		private final Random random = new Random(42);
+		private SocketAddress client;
+
+		/** True to hold the next state sent by the client in {@link #held} */
+		volatile boolean holdState = false;
+
+		/** State held; its retransmissions are dropped */
+		volatile ByteBuffer held;
+
+		/** Number of retransmissions of {@link #held} dropped after the newer state */
+		volatile int heldRetransmissions = 0;
+
+		/** True after the newer state of the key of {@link #held} */
+		private boolean superseded = false;
+
+		LossyRelay(int port, InetSocketAddress server, double loss) throws IOException {
+			this.channel = DatagramChannel.open();
+			this.channel.bind(new InetSocketAddress(port));
+			this.server = server;
+			this.loss = loss;
+		}
+
+		@Override
+		public void run() {
+			ByteBuffer b = ByteBuffer.allocate(2048);
+			try {
+				while(true) {
+					b.clear();
+					SocketAddress from = channel.receive(b);
+					b.flip();
+					SocketAddress to;
+					if(from.equals(server)) {
+						to = client;
+					} else {
+						client = from;
+						to = server;
+					}
+					if(to == server && b.get(UDPMessageProtocol.HEADER_SIZE - 1) == UDPMessageProtocol.TYPE_STATE
+							&& hold(b)) {
+						continue;
+					}
+					if(to != null && random.nextDouble() >= loss) {
+						channel.send(b, to);
+					}
+				}
+			} catch(IOException e) {
+				// Closed
+			}
+		}
+
+		/**
+		 * @param b State sent by the client
+		 * @return True if the state is held or dropped
+		 */
+		private boolean hold(ByteBuffer b) {
+			ByteBuffer h = held;
+			if(h == null && holdState) {
+				ByteBuffer copy = ByteBuffer.allocate(b.remaining());
+				copy.put(b.duplicate()).flip();
+				held = copy;
+				return true;
+			} else if(h != null && h.getInt(UDPMessageProtocol.HEADER_SIZE) == b.getInt(UDPMessageProtocol.HEADER_SIZE)) {
+				// Same key: version of the held one or newer
+				int version = b.getInt(UDPMessageProtocol.HEADER_SIZE + 4);
+				if(version == h.getInt(UDPMessageProtocol.HEADER_SIZE + 4)) {
+					if(superseded) {
+						heldRetransmissions++;
+					}
+					return true;
+				}
+				superseded = true;
+			}
+			return false;
+		}
+
+		/**
+		 * Sends the held state to the server
+		 * @throws IOException If an IO error occurs
+		 */
+		void sendHeld() throws IOException {
+			channel.send(held.duplicate(), server);
+		}
+
+		void close() throws IOException {
+			channel.close();
+		}
+	}
+}